@@ -6,6 +6,7 @@
 package org.monte.media.screenrecorder;
 
 import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferRing;
 import org.monte.media.av.Format;
 import org.monte.media.av.codec.audio.AudioFormatKeys;
 import org.monte.media.math.Rational;
@@ -18,7 +19,6 @@ import javax.sound.sampled.FloatControl;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.Mixer;
 import javax.sound.sampled.TargetDataLine;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -27,12 +27,16 @@ import static org.monte.media.av.codec.audio.AudioFormatKeys.fromAudioFormat;
 
 /**
  * This runnable grabs audio samples and enqueues them into the specified
- * BlockingQueue. This runnable must be called twice a second.
+ * BufferRing. This runnable must be called twice a second.
+ * <p>
+ * The audio samples are read directly into the data array of a slot of the
+ * ring, so that no data is allocated or copied.
  */
 class AudioGrabber implements Runnable, AutoCloseable {
 
     private final TargetDataLine line;
-    private final BlockingQueue<Buffer> queue;
+    private final BufferRing queue;
+    private final Format bufferFormat;
     private final Integer audioTrack;
     private final long startTime;
     private long totalSampleCount;
@@ -43,7 +47,7 @@ class AudioGrabber implements Runnable, AutoCloseable {
     private float audioLevelRight = AudioSystem.NOT_SPECIFIED;
     private final AtomicLong stopTime = new AtomicLong(Long.MAX_VALUE);
 
-    public AudioGrabber(ScreenRecorder recorder, final Mixer mixer, final Format audioFormat, final int audioTrack, long startTime, BlockingQueue<Buffer> queue)
+    public AudioGrabber(ScreenRecorder recorder, final Mixer mixer, final Format audioFormat, final int audioTrack, long startTime, BufferRing queue)
             throws LineUnavailableException {
         this.audioTrack = audioTrack;
         this.queue = queue;
@@ -54,6 +58,7 @@ class AudioGrabber implements Runnable, AutoCloseable {
         this.line = initializeAudioLine(mixer, lineInfo);
 
         configureAudioLine();
+        this.bufferFormat = fromAudioFormat(line.getFormat()).append(SilenceBugKey, true);
     }
 
     private TargetDataLine initializeAudioLine(Mixer mixer, DataLine.Info lineInfo) throws LineUnavailableException {
@@ -110,27 +115,35 @@ class AudioGrabber implements Runnable, AutoCloseable {
     public void run() {
         try {
             grabAudio();
+        } catch (InterruptedException ex) {
+            // We have been aborted, terminate
+            Thread.currentThread().interrupt();
         } catch (Throwable ex) {
             recorder.recordingFailed(ex);
         }
     }
 
-    public void grabAudio() {
-        Buffer buf = new Buffer();
+    public void grabAudio() throws InterruptedException {
         AudioFormat lineFormat = line.getFormat();
-        buf.format = fromAudioFormat(lineFormat).append(SilenceBugKey, true);
-
         int bufferSize = calculateBufferSize(lineFormat);
-        byte[] bdat = new byte[bufferSize];
-        buf.data = bdat;
 
-        int count = line.read(bdat, 0, bdat.length);
+        // The slot is only handed over to the writer thread if we publish it.
+        // Otherwise, the next claim returns the same slot again.
+        Buffer buf = queue.claim();
+        buf.clearFlags();
+        buf.format = bufferFormat;
+        byte[] bdat = buf.reuseByteArray(bufferSize);
+
+        int count = line.read(bdat, 0, bufferSize);
         if (count > 0) {
             processAudioData(buf, lineFormat, bdat, count);
         }
     }
 
-    private int calculateBufferSize(AudioFormat lineFormat) {
+    /**
+     * Returns the size of an audio buffer in bytes.
+     */
+    static int calculateBufferSize(AudioFormat lineFormat) {
         // For even sample rates, we select a buffer size that can
         // hold half a second of audio. This allows audio/video interleave
         // twice a second, as recommended for AVI and QuickTime movies.
@@ -184,11 +197,7 @@ class AudioGrabber implements Runnable, AutoCloseable {
     }
 
     private void enqueueBuffer(Buffer buf) {
-        try {
-            queue.put(buf);
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
-        }
+        queue.publish();
     }
 
     /**
@@ -0,0 +1,378 @@
+/*
+ * @(#)EncodingStage.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.screenrecorder;
+
+import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferFlag;
+import org.monte.media.av.BufferPool;
+import org.monte.media.av.BufferRing;
+import org.monte.media.av.Codec;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * EncodingStage encodes video frames on a pool of worker threads and hands
+ * the encoded frames over to the writer queue in the order in which they
+ * were submitted.
+ * <p>
+ * Each worker owns its own codec instance. Since inter-frame codecs carry
+ * state from one frame to the next, the stage splits the frames into groups
+ * of pictures (GOPs) that start at a key frame. All frames of a GOP are
+ * encoded by the same worker, consecutive GOPs are distributed round-robin
+ * over the workers. The codec of a worker is reset at the start of each
+ * GOP, so that the first frame of each GOP is encoded as a key frame.
+ * <p>
+ * The stage holds at most {@code capacity} frames that have been submitted
+ * but not yet handed over to the writer queue.
+ * <p>
+ * The encoded frames borrow their data from a {@link BufferPool}. The stage
+ * moves the data into the slots of the writer queue. The consumer of the
+ * writer queue should {@link Buffer#release()} the slots after it has written
+ * them, so that the data is returned to the pool.
+ * <p>
+ * The stage is the only producer of the writer queue. Since the frames are
+ * handed over while holding the lock of the stage, the worker threads take
+ * turns as producer.
+ * <p>
+ * If a frame can not be encoded, the stage hands a placeholder with the
+ * {@link BufferFlag#DISCARD} flag over to the writer queue instead, so that
+ * the frames after it are not held back. The stage reports the first failure
+ * to the error handler, and refuses all frames that are submitted after it.
+ */
+class EncodingStage implements AutoCloseable {
+    /**
+     * Marker task that tells a worker to terminate.
+     */
+    private final static Task POISON = new Task(null, -1, false);
+
+    private final BufferRing writerQueue;
+    private final Consumer<Throwable> errorHandler;
+    private final BufferPool pool;
+    private final Worker[] workers;
+    private final int framesPerGop;
+    private final Semaphore permits;
+    private final int capacity;
+    /**
+     * Input buffers that have been encoded, and can be reused for copying
+     * the next frame into.
+     */
+    private final ConcurrentLinkedQueue<Buffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    /**
+     * Encoded frames that can not be handed over yet, because a frame with
+     * a lower sequence number is still being encoded.
+     * <p>
+     * Guarded by {@code this}.
+     */
+    private final PriorityQueue<Task> completed = new PriorityQueue<>((a, b) -> Long.compare(a.sequenceNumber, b.sequenceNumber));
+    /**
+     * The sequence number of the next frame that is handed over to the
+     * writer queue.
+     * <p>
+     * Guarded by {@code this}.
+     */
+    private long nextSequenceNumberToEmit;
+    /**
+     * The sequence number of the next submitted frame. Only accessed from
+     * the thread that submits frames.
+     */
+    private long nextSequenceNumber;
+
+    private final AtomicLong encodedFrameCount = new AtomicLong();
+    private final AtomicLong droppedFrameCount = new AtomicLong();
+    private final AtomicLong totalEncodeNanos = new AtomicLong();
+    private final AtomicLong maxEncodeNanos = new AtomicLong();
+    private volatile boolean closed;
+    /**
+     * The first exception that occurred on a worker thread, or null.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Creates a new encoding stage.
+     *
+     * @param codecs       one codec instance per worker thread
+     * @param framesPerGop the number of frames from one key frame to the next,
+     *                     a value smaller or equal 1 means that each frame
+     *                     can be encoded independently
+     * @param capacity     the maximal number of frames that are in the stage
+     * @param pool         the pool from which the frames borrow their data
+     * @param writerQueue  the queue that receives the encoded frames
+     * @param errorHandler receives exceptions that occur on a worker thread
+     */
+    public EncodingStage(List<Codec> codecs, int framesPerGop, int capacity, BufferPool pool,
+                         BufferRing writerQueue, Consumer<Throwable> errorHandler) {
+        if (codecs.isEmpty()) {
+            throw new IllegalArgumentException("codecs must not be empty");
+        }
+        this.writerQueue = writerQueue;
+        this.errorHandler = errorHandler;
+        this.pool = pool;
+        this.framesPerGop = Math.max(1, framesPerGop);
+        this.capacity = Math.max(1, capacity);
+        this.permits = new Semaphore(this.capacity);
+        this.workers = new Worker[codecs.size()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(codecs.get(i), i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Submits a frame for encoding. Blocks if the stage is full.
+     * <p>
+     * The data of the buffer is copied, so that the caller can reuse
+     * the buffer after this method has returned.
+     *
+     * @param buf a buffer with un-encoded video data
+     * @throws IOException if a frame could not be encoded
+     */
+    public void put(Buffer buf) throws IOException, InterruptedException {
+        permits.acquire();
+        submit(buf);
+    }
+
+    /**
+     * Submits a frame for encoding, unless the stage is full.
+     * <p>
+     * The data of the buffer is copied, so that the caller can reuse
+     * the buffer after this method has returned.
+     *
+     * @param buf a buffer with un-encoded video data
+     * @return true on success, false if the frame has been dropped
+     * @throws IOException if a frame could not be encoded
+     */
+    public boolean offer(Buffer buf) throws IOException {
+        if (!permits.tryAcquire()) {
+            droppedFrameCount.incrementAndGet();
+            return false;
+        }
+        submit(buf);
+        return true;
+    }
+
+    private void submit(Buffer buf) throws IOException {
+        if (closed) {
+            permits.release();
+            throw new IllegalStateException("EncodingStage is closed");
+        }
+        Throwable t = failure.get();
+        if (t != null) {
+            permits.release();
+            throw new IOException("EncodingStage failed", t);
+        }
+        Buffer copy = freeBuffers.poll();
+        if (copy == null) {
+            copy = new Buffer(pool);
+        }
+        copy.setMetaTo(buf);
+        if (copy.setDataTo(buf) != Codec.CODEC_OK) {
+            permits.release();
+            errorHandler.accept(new IOException("Could not copy frame " + buf));
+            return;
+        }
+        long seq = nextSequenceNumber++;
+        long gop = seq / framesPerGop;
+        boolean isGopStart = seq % framesPerGop == 0;
+        workers[(int) (gop % workers.length)].tasks.add(new Task(copy, seq, isGopStart));
+    }
+
+    /**
+     * Hands all consecutive completed frames over to the writer queue.
+     */
+    private synchronized void emit(Task task) throws InterruptedException {
+        completed.add(task);
+        while (!completed.isEmpty() && completed.peek().sequenceNumber == nextSequenceNumberToEmit) {
+            Task t = completed.poll();
+            Buffer out = t.output;
+            Buffer slot = writerQueue.claim();
+            slot.setMetaTo(out);
+            slot.setPool(out.getPool());
+            slot.data = out.data;
+            slot.offset = out.offset;
+            slot.length = out.length;
+            slot.header = out.header;
+            writerQueue.publish();
+            nextSequenceNumberToEmit++;
+            permits.release();
+        }
+    }
+
+    /**
+     * Returns the number of frames that have been submitted but not yet
+     * handed over to the writer queue.
+     */
+    public int getQueueDepth() {
+        return capacity - permits.availablePermits();
+    }
+
+    /**
+     * Returns the maximal number of frames that can be in the stage.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of worker threads.
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Returns the number of frames that have been encoded.
+     */
+    public long getEncodedFrameCount() {
+        return encodedFrameCount.get();
+    }
+
+    /**
+     * Returns the number of frames that have been dropped by
+     * {@link #offer(Buffer)} because the stage was full.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount.get();
+    }
+
+    /**
+     * Returns the average time in nanoseconds that a worker needed for
+     * encoding a frame.
+     */
+    public long getAverageEncodeNanos() {
+        long count = encodedFrameCount.get();
+        return count == 0 ? 0 : totalEncodeNanos.get() / count;
+    }
+
+    /**
+     * Returns the maximal time in nanoseconds that a worker needed for
+     * encoding a frame.
+     */
+    public long getMaxEncodeNanos() {
+        return maxEncodeNanos.get();
+    }
+
+    /**
+     * Encodes all pending frames, hands them over to the writer queue,
+     * and then terminates the worker threads.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        for (Worker w : workers) {
+            w.tasks.add(POISON);
+        }
+        for (Worker w : workers) {
+            w.join();
+        }
+    }
+
+    /**
+     * Terminates the worker threads without encoding the pending frames.
+     */
+    public void abort() {
+        closed = true;
+        for (Worker w : workers) {
+            w.interrupt();
+        }
+    }
+
+    private static class Task {
+        final Buffer input;
+        final long sequenceNumber;
+        final boolean isGopStart;
+        Buffer output;
+
+        Task(Buffer input, long sequenceNumber, boolean isGopStart) {
+            this.input = input;
+            this.sequenceNumber = sequenceNumber;
+            this.isGopStart = isGopStart;
+        }
+    }
+
+    private class Worker extends Thread {
+        private final Codec codec;
+        private final LinkedBlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+        /**
+         * Length of the previously encoded frame. We use this as an estimate
+         * for the size of the array that we borrow for the next frame.
+         */
+        private int previousLength = 0;
+
+        Worker(Codec codec, int index) {
+            super("ScreenRecorder-Encoder-" + index);
+            this.codec = codec;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Task task = tasks.take(); task != POISON; task = tasks.take()) {
+                    try {
+                        encode(task);
+                    } catch (Exception e) {
+                        discard(task, e);
+                    }
+                    emit(task);
+                }
+            } catch (InterruptedException e) {
+                // We have been aborted, terminate
+            } catch (Throwable e) {
+                errorHandler.accept(e);
+            }
+        }
+
+        /**
+         * Replaces the output of a task that could not be encoded by a
+         * placeholder, so that the frames after it can be handed over.
+         * <p>
+         * The codec is reset, because its state is undefined after a failure.
+         */
+        private void discard(Task task, Exception e) {
+            Buffer out = new Buffer();
+            out.setMetaTo(task.input);
+            out.setFlagsTo(BufferFlag.DISCARD);
+            task.output = out;
+            freeBuffers.add(task.input);
+            codec.reset();
+            if (failure.compareAndSet(null, e)) {
+                errorHandler.accept(e);
+            }
+        }
+
+        private void encode(Task task) throws IOException {
+            if (task.isGopStart) {
+                codec.reset();
+            }
+            Buffer out = new Buffer(pool);
+            if (previousLength > 0) {
+                out.data = pool.borrowByteArray(previousLength);
+            }
+            long start = System.nanoTime();
+            if (codec.process(task.input, out) != Codec.CODEC_OK) {
+                throw new IOException("Codec failed or could not process frame in a single step.");
+            }
+            long elapsed = System.nanoTime() - start;
+            totalEncodeNanos.addAndGet(elapsed);
+            maxEncodeNanos.accumulateAndGet(elapsed, Math::max);
+            encodedFrameCount.incrementAndGet();
+            if (out.data instanceof byte[]) {
+                previousLength = out.length;
+            }
+
+            task.output = out;
+            freeBuffers.add(task.input);
+        }
+    }
+}
@@ -6,6 +6,7 @@
 package org.monte.media.screenrecorder;
 
 import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferRing;
 import org.monte.media.av.Format;
 import org.monte.media.math.Rational;
 
@@ -14,7 +15,6 @@ import java.awt.MouseInfo;
 import java.awt.Point;
 import java.awt.PointerInfo;
 import java.awt.Rectangle;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
@@ -34,7 +34,7 @@ class MouseGrabber implements Runnable, AutoCloseable {
     private final ScreenRecorder recorder;
     private final GraphicsDevice captureDevice;
     private final Rectangle captureArea;
-    private final BlockingQueue<Buffer> mouseCaptures;
+    private final BufferRing mouseCaptures;
     private volatile long stopTime = Long.MAX_VALUE;
     private final long startTime;
     private final Format format;
@@ -59,7 +59,7 @@ class MouseGrabber implements Runnable, AutoCloseable {
         this.startTime = startTime;
         this.captureDevice = recorder.getCaptureDevice();
         this.captureArea = recorder.getCaptureArea();
-        this.mouseCaptures = recorder.getMouseCaptures();
+        this.mouseCaptures = recorder.getMouseCaptureRing();
         this.cursorImageArea = new Rectangle(0, 0, recorder.getCursorImg().getWidth(), recorder.getCursorImg().getHeight());
         this.cursorOffset = recorder.getCursorOffset();
     }
@@ -116,7 +116,7 @@ class MouseGrabber implements Runnable, AutoCloseable {
     /**
      * Captures the mouse cursor position and state.
      */
-    private void grabMouse() throws InterruptedException {
+    private void grabMouse() {
         long now = (System.nanoTime() / 1_000_000);
         if (now > getStopTime()) {
             future.cancel(false);
@@ -126,8 +126,7 @@ class MouseGrabber implements Runnable, AutoCloseable {
         PointerInfo info = MouseInfo.getPointerInfo();
         Point currentMouseLocation = getCursorPosition(info);
 
-        if (hasMouseStateChanged(currentMouseLocation)) {
-            enqueueMouse(currentMouseLocation, now);
+        if (hasMouseStateChanged(currentMouseLocation) && enqueueMouse(currentMouseLocation, now)) {
             updatePreviousState(currentMouseLocation);
         }
 
@@ -159,13 +158,26 @@ class MouseGrabber implements Runnable, AutoCloseable {
                 || mouseWasPressed != mousePressedRecorded;
     }
 
-    private void enqueueMouse(Point currentMouseLocation, long timestamp) throws InterruptedException {
-        Buffer buf = new Buffer();
+    /**
+     * Enqueues the mouse state into a slot of the mouse captures.
+     * <p>
+     * If the screen grabber has not consumed the previous mouse captures yet,
+     * the mouse state is not enqueued, and we try again with the next
+     * capture.
+     *
+     * @return true on success
+     */
+    private boolean enqueueMouse(Point currentMouseLocation, long timestamp) {
+        Buffer buf = mouseCaptures.tryClaim();
+        if (buf == null) {
+            return false;
+        }
         buf.format = format;
         buf.timeStamp = new Rational(timestamp, 1000);
-        buf.data = currentMouseLocation;
+        ((Point) buf.data).setLocation(currentMouseLocation);
         buf.header = mouseWasPressed;
-        mouseCaptures.put(buf);
+        mouseCaptures.publish();
+        return true;
     }
 
     private void updatePreviousState(Point currentMouseLocation) {
@@ -6,6 +6,7 @@
 package org.monte.media.screenrecorder;
 
 import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferRing;
 import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys;
 import org.monte.media.color.Colors;
@@ -20,7 +21,6 @@ import java.awt.Robot;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.Objects;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 
 import static org.monte.media.av.FormatKeys.EncodingKey;
@@ -62,7 +62,7 @@ class ScreenGrabber implements Runnable, AutoCloseable {
     /**
      * Holds the mouse captures made with {@code MouseInfo}.
      */
-    private final ArrayBlockingQueue<Buffer> mouseCaptures;
+    private final BufferRing mouseCaptures;
     /**
      * The time the previous screen frame was captured.
      */
@@ -85,7 +85,7 @@ class ScreenGrabber implements Runnable, AutoCloseable {
         this.captureArea = recorder.getCaptureArea();
         this.robot = new Robot(recorder.getCaptureDevice());
         this.mouseFormat = recorder.mouseFormat;
-        this.mouseCaptures = recorder.getMouseCaptures();
+        this.mouseCaptures = recorder.getMouseCaptureRing();
         this.cursorImg = recorder.getCursorImg();
         this.cursorImgPressed = recorder.getCursorImgPressed();
         this.cursorOffset = recorder.getCursorOffset();
@@ -179,19 +179,21 @@ class ScreenGrabber implements Runnable, AutoCloseable {
     private boolean processMouseCapturesWithCursor(long timeBeforeCapture, long timeAfterCapture, BufferedImage previousScreenCapture, Buffer buf) throws IOException, InterruptedException {
         boolean hasMouseCapture = false;
         if (mouseFormat != null && mouseFormat.get(FrameRateKey).intValue() > 0) {
-            while (!mouseCaptures.isEmpty() && shouldProcessMouseCapture(timeAfterCapture)) {
-                Buffer mouseCapture = mouseCaptures.poll();
+            for (Buffer mouseCapture = mouseCaptures.peek();
+                 mouseCapture != null && shouldProcessMouseCapture(mouseCapture, timeAfterCapture);
+                 mouseCapture = mouseCaptures.peek()) {
                 if (isValidMouseCapture(mouseCapture, timeBeforeCapture)) {
                     hasMouseCapture = true;
-                    processMouseCapture(Objects.requireNonNull(mouseCapture), previousScreenCapture, buf);
+                    processMouseCapture(mouseCapture, previousScreenCapture, buf);
                 }
+                mouseCaptures.recycle();
             }
         }
         return hasMouseCapture;
     }
 
-    private boolean shouldProcessMouseCapture(long timeAfterCapture) {
-        return Objects.requireNonNull(mouseCaptures.peek()).timeStamp.compareTo(new Rational(timeAfterCapture, 1000)) < 0;
+    private boolean shouldProcessMouseCapture(Buffer mouseCapture, long timeAfterCapture) {
+        return mouseCapture.timeStamp.compareTo(new Rational(timeAfterCapture, 1000)) < 0;
     }
 
     private boolean isValidMouseCapture(Buffer mouseCapture, long timeBeforeCapture) {
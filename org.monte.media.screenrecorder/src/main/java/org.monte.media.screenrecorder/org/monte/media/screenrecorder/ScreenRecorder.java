@@ -6,17 +6,21 @@ package org.monte.media.screenrecorder;
 
 import org.monte.media.av.Buffer;
 import org.monte.media.av.BufferFlag;
+import org.monte.media.av.BufferPool;
+import org.monte.media.av.BufferRing;
 import org.monte.media.av.Codec;
 import org.monte.media.av.CodecChain;
 import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys.MediaType;
 import org.monte.media.av.MovieWriter;
 import org.monte.media.av.Registry;
+import org.monte.media.av.codec.audio.AudioFormatKeys;
 import org.monte.media.av.codec.video.ScaleImageCodec;
 import org.monte.media.avi.AVIWriter;
 import org.monte.media.beans.AbstractStateModel;
 import org.monte.media.color.Colors;
 import org.monte.media.image.Images;
+import org.monte.media.image.TileChangeDetector;
 import org.monte.media.math.Rational;
 import org.monte.media.quicktime.QuickTimeWriter;
 
@@ -24,6 +28,7 @@ import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.Mixer;
 import javax.swing.SwingUtilities;
+import javax.swing.event.EventListenerList;
 import java.awt.AWTEvent;
 import java.awt.AWTException;
 import java.awt.GraphicsConfiguration;
@@ -45,15 +50,18 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.Math.max;
+import static org.monte.media.av.BufferFlag.DISCARD;
 import static org.monte.media.av.BufferFlag.SAME_DATA;
 import static org.monte.media.av.FormatKeys.EncodingKey;
 import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.KeyFrameIntervalKey;
 import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
 import static org.monte.media.av.FormatKeys.MediaTypeKey;
 import static org.monte.media.av.FormatKeys.MimeTypeKey;
@@ -66,10 +74,12 @@ import static org.monte.media.av.codec.audio.AudioFormatKeys.SignedKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.COMPRESSOR_NAME_QUICKTIME_ANIMATION;
 import static org.monte.media.av.codec.video.VideoFormatKeys.CompressorNameKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE;
 import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
 import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_QUICKTIME_ANIMATION;
 import static org.monte.media.av.codec.video.VideoFormatKeys.FixedFrameRateKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ScalingFilterKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
 
 /**
@@ -84,6 +94,10 @@ import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
  * <p>
  * This recorder uses four threads. Three capture threads for screen, mouse
  * cursor and audio, and one output thread for the movie writer.
+ * <p>
+ * By default, video frames are encoded on the screen capture thread. If
+ * {@link #setEncoderThreadCount} is set to a value greater than 0, video
+ * frames are encoded on a pool of encoder threads instead.
  *
  * @author Werner Randelshofer
  */
@@ -113,9 +127,9 @@ public class ScreenRecorder extends AbstractStateModel {
      */
     private final Rectangle captureArea;
     /**
-     * The writer for the movie file.
+     * The writer for the current movie file.
      */
-    private MovieWriter w;
+    private volatile MovieWriter w;
     /**
      * The start time of the recording.
      */
@@ -125,13 +139,14 @@ public class ScreenRecorder extends AbstractStateModel {
      */
     protected volatile long recordingStopTime;
     /**
-     * The start time of the current movie file.
+     * Splits the recording into movie files. This is only accessed by the
+     * writer thread while it is running.
      */
-    private long fileStartTime;
+    private SegmentingStage segmentingStage;
     /**
      * Holds the mouse captures made with {@code MouseInfo}.
      */
-    private ArrayBlockingQueue<Buffer> mouseCaptures;
+    private BufferRing mouseCaptures;
     /**
      * Timer for screen captures.
      */
@@ -158,7 +173,27 @@ public class ScreenRecorder extends AbstractStateModel {
      */
     private Point cursorOffset;
 
-    private ArrayBlockingQueue<Buffer> writerQueue;
+    /**
+     * The writer queues. Each queue has a single producer: the video queue
+     * is filled by the screen capture thread or by the encoding stage, the
+     * audio queue is filled by the audio capture thread, and the other queue
+     * is filled by callers of {@link #write(Buffer)} with other tracks, which
+     * synchronize on the queue. The writer thread consumes all queues.
+     */
+    private BufferRing videoQueue;
+    private BufferRing audioQueue;
+    private BufferRing otherQueue;
+    private BufferRing[] writerQueues = new BufferRing[0];
+    /**
+     * How the threads wait for each other at the writer queues.
+     */
+    private BufferRing.WaitStrategy waitStrategy = BufferRing.WaitStrategy.PARK;
+    /**
+     * Pool for the data of the encoded frames of the encoding stage. The
+     * writer thread returns the data to the pool after it has written a
+     * buffer.
+     */
+    private final BufferPool bufferPool = BufferPool.getInstance();
     /**
      * This codec encodes a video frame.
      */
@@ -170,7 +205,53 @@ public class ScreenRecorder extends AbstractStateModel {
      */
     private Rational outputTime;
     private Rational ffrDuration;
-    private final ArrayList<File> recordedFiles = new ArrayList<>();
+    /**
+     * The time stamp of the first video frame that has been dropped since
+     * the last frame that was accepted by the encoding stage. This is null
+     * if no frame has been dropped.
+     */
+    private Rational droppedFrameTime;
+    /**
+     * Detects the regions of a video frame that have changed since the last
+     * frame that has been accepted for encoding.
+     */
+    private final TileChangeDetector changeDetector = new TileChangeDetector();
+    /**
+     * Whether change detection has been requested for all encoders.
+     */
+    private boolean changeDetectionEnabled;
+    /**
+     * Whether the changes of the video frames are detected in the current
+     * recording.
+     */
+    private boolean detectChanges;
+    /**
+     * The input and output format of the video encoder.
+     */
+    private Format videoInputFormat;
+    private Format videoOutputFormat;
+    /**
+     * Encodes video frames on a pool of threads. This is null if video frames
+     * are encoded on the screen capture thread.
+     */
+    private volatile EncodingStage encodingStage;
+    /**
+     * The encoding stage of the current or of the most recent recording.
+     * We keep it around for its statistics.
+     */
+    private volatile EncodingStage statisticsStage;
+    /**
+     * Number of encoder threads. 0 means that frames are encoded on the screen
+     * capture thread.
+     */
+    private int encoderThreadCount = 0;
+    /**
+     * Maximal number of frames in the encoding stage. 0 means that the
+     * capacity is computed from the number of encoder threads and the key
+     * frame interval.
+     */
+    private int encoderQueueCapacity = 0;
+    private final List<File> recordedFiles = new CopyOnWriteArrayList<>();
 
     protected int videoTrackId = 0;
 
@@ -272,7 +353,8 @@ public class ScreenRecorder extends AbstractStateModel {
 
     private void initializeMouseCapture(Format mouseFormat) throws IOException {
         if (mouseFormat != null && mouseFormat.get(FrameRateKey).intValue() > 0) {
-            mouseCaptures = new ArrayBlockingQueue<>(mouseFormat.get(FrameRateKey).intValue() * 2);
+            mouseCaptures = new BufferRing(mouseFormat.get(FrameRateKey).intValue() * 2, BufferRing.WaitStrategy.PARK,
+                    b -> b.data = new Point());
             switch (mouseFormat.get(EncodingKey)) {
                 case MouseConfigs.ENCODING_BLACK_CURSOR:
                     cursorImg = loadCursorImage("Cursor.black.png");
@@ -307,7 +389,28 @@ public class ScreenRecorder extends AbstractStateModel {
         return cursorImg;
     }
 
+    /**
+     * Returns the mouse captures.
+     * <p>
+     * Migration note: the recorder no longer holds the mouse captures in a
+     * queue. The mouse grabber hands them over to the screen grabber through
+     * a {@link BufferRing}, which is not accessible to subclasses. This
+     * method returns an empty queue with the capacity of the ring, buffers
+     * that are put into the queue are not recorded.
+     *
+     * @return an empty queue
+     * @deprecated the mouse captures are internal to the recorder
+     */
+    @Deprecated
     public ArrayBlockingQueue<Buffer> getMouseCaptures() {
+        return new ArrayBlockingQueue<>(mouseCaptures == null ? 1 : mouseCaptures.getCapacity());
+    }
+
+    /**
+     * Returns the ring through which the mouse grabber hands over the mouse
+     * captures to the screen grabber.
+     */
+    BufferRing getMouseCaptureRing() {
         return mouseCaptures;
     }
 
@@ -334,66 +437,109 @@ public class ScreenRecorder extends AbstractStateModel {
         return new File(userHome + File.separator + folderName);
     }
 
-    protected MovieWriter createMovieWriter() throws IOException {
-        File f = createMovieFile(fileCodecFormat);
-        recordedFiles.add(f);
-
-        MovieWriter mw = w = Registry.getInstance().getWriter(fileCodecFormat, f);
-        if (w == null) {
-            throw new IOException("Error no writer found for file format: " + fileCodecFormat + ".");
-        }
-
-        // Create the video encoder
+    /**
+     * Computes the input and output formats of the video encoder.
+     */
+    private void createVideoFormats() {
         Rational videoRate = Rational.max(screenFormat.get(FrameRateKey), mouseFormat.get(FrameRateKey));
         ffrDuration = videoRate.inverse();
-        Format videoInputFormat = screenFormat
+        videoInputFormat = screenFormat
                 .prepend(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_BUFFERED_IMAGE, WidthKey, captureArea.width, HeightKey, captureArea.height, FrameRateKey, videoRate);
-        Format videoOutputFormat = screenFormat
+        videoOutputFormat = screenFormat
                 .prepend(FrameRateKey, videoRate, MimeTypeKey, fileCodecFormat.get(MimeTypeKey))
                 .append(WidthKey, captureArea.width, HeightKey, captureArea.height);
+    }
 
-        videoTrackId = w.addTrack(videoOutputFormat);
+    /**
+     * Creates a writer for a movie file, and adds the video track and the
+     * audio track to it.
+     * <p>
+     * This method is invoked once at the start of the recording, and then
+     * on a background thread for each additional file of the recording.
+     *
+     * @param file the movie file
+     * @return the writer
+     */
+    protected MovieWriter createMovieWriter(File file) throws IOException {
+        MovieWriter mw = Registry.getInstance().getWriter(fileCodecFormat, file);
+        if (mw == null) {
+            throw new IOException("Error no writer found for file format: " + fileCodecFormat + ".");
+        }
 
+        // All files have the same tracks, so the track ids do not change
+        videoTrackId = mw.addTrack(videoOutputFormat);
+        if (audioFormat != null) {
+            audioTrackId = mw.addTrack(audioFormat);
+        }
+
+        // FIXME - There should be no need for format-specific code.
+        if (screenFormat.get(DepthKey) == 8) {
+            if (mw instanceof AVIWriter) {
+                AVIWriter aviw = (AVIWriter) mw;
+                aviw.setPalette(videoTrackId, Colors.createMacColors());
+            } else if (mw instanceof QuickTimeWriter) {
+                QuickTimeWriter qtw = (QuickTimeWriter) mw;
+                // do not set palette due to a bug
+                //qtw.setVideoColorTable(videoTrack, Colors.createMacColors());
+            }
+        }
+        return mw;
+    }
+
+    /**
+     * Creates a movie file, and a writer for it with the video track and the
+     * audio track.
+     * <p>
+     * Migration note: the recorder no longer invokes this method, because
+     * it creates a writer for each file of a recording. Subclasses that
+     * override this method must override {@link #createMovieWriter(File)}
+     * instead. The file is created by {@link #createMovieFile(Format)}, the
+     * recorder creates the video encoder itself.
+     *
+     * @return the writer
+     * @deprecated use {@link #createMovieWriter(File)}
+     */
+    @Deprecated
+    protected MovieWriter createMovieWriter() throws IOException {
+        if (videoOutputFormat == null) {
+            createVideoFormats();
+        }
+        return createMovieWriter(createMovieFile(fileCodecFormat));
+    }
+
+    /**
+     * Creates the file and the writer for a segment of the recording.
+     */
+    private SegmentingStage.Segment openSegment() throws IOException {
+        File f = createMovieFile(fileCodecFormat);
+        return new SegmentingStage.Segment(f, createMovieWriter(f));
+    }
+
+    /**
+     * Creates a codec that encodes a video frame for the video track of the
+     * current movie writer.
+     */
+    private Codec createFrameEncoder() throws IOException {
         Codec encoder = Registry.getInstance().getEncoder(w.getFormat(videoTrackId));
         if (encoder == null) {
             throw new IOException("No encoder for format " + w.getFormat(videoTrackId));
         }
-        frameEncoder = encoder;
-        frameEncoder.setInputFormat(videoInputFormat);
-        frameEncoder.setOutputFormat(videoOutputFormat);
-        if (frameEncoder.getOutputFormat() == null) {
+        encoder.setInputFormat(videoInputFormat);
+        encoder.setOutputFormat(videoOutputFormat);
+        if (encoder.getOutputFormat() == null) {
             throw new IOException("Unable to encode video frames in this output format:\n" + videoOutputFormat);
         }
 
-        // Create the audio encoder
-        if (audioFormat != null) {
-            audioTrackId = w.addTrack(audioFormat);
-        }
-
         // If the capture area does not have the same dimensions as the
         // video format, create a codec chain which scales the image before
         // performing the frame encoding.
         if (!videoInputFormat.intersectKeys(WidthKey, HeightKey).matches(videoOutputFormat.intersectKeys(WidthKey, HeightKey))) {
             ScaleImageCodec sic = new ScaleImageCodec();
             sic.setInputFormat(videoInputFormat);
-            sic.setOutputFormat(videoOutputFormat.intersectKeys(WidthKey, HeightKey).append(videoInputFormat));
-            frameEncoder = new CodecChain(sic, frameEncoder);
-        }
-
-        // FIXME - There should be no need for format-specific code.
-        if (screenFormat.get(DepthKey) == 8) {
-            if (w instanceof AVIWriter) {
-                AVIWriter aviw = (AVIWriter) w;
-                aviw.setPalette(videoTrackId, Colors.createMacColors());
-            } else if (w instanceof QuickTimeWriter) {
-                QuickTimeWriter qtw = (QuickTimeWriter) w;
-                // do not set palette due to a bug
-                //qtw.setVideoColorTable(videoTrack, Colors.createMacColors());
-            }
+            sic.setOutputFormat(videoOutputFormat.intersectKeys(WidthKey, HeightKey, ScalingFilterKey).append(videoInputFormat));
+            encoder = new CodecChain(sic, encoder);
         }
-
-        fileStartTime = (System.nanoTime() / 1_000_000);
-        return mw;
+        return encoder;
     }
 
     /**
@@ -459,13 +605,22 @@ public class ScreenRecorder extends AbstractStateModel {
     public void start() throws IOException {
         stop();
         recordedFiles.clear();
-        createMovieWriter();
+        createVideoFormats();
+        SegmentingStage.Segment firstSegment = openSegment();
+        recordedFiles.add(firstSegment.file);
+        w = firstSegment.writer;
         try {
+            frameEncoder = createFrameEncoder();
             recordingStartTime = (System.nanoTime() / 1_000_000);
             recordingStopTime = Long.MAX_VALUE;
 
             outputTime = new Rational(0, 0);
-            startWriter();
+            droppedFrameTime = null;
+            detectChanges = changeDetectionEnabled
+                    || ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE.equals(videoOutputFormat.get(EncodingKey));
+            changeDetector.reset();
+            startWriter(firstSegment);
+            startEncoder();
             try {
                 startScreenCapture();
             } catch (AWTException e) {
@@ -608,7 +763,7 @@ public class ScreenRecorder extends AbstractStateModel {
      */
     private void startAudioCapture() throws LineUnavailableException {
         audioCaptureTimer = new ScheduledThreadPoolExecutor(1);
-        audioGrabber = new AudioGrabber(this, mixer, audioFormat, audioTrackId, recordingStartTime, writerQueue);
+        audioGrabber = new AudioGrabber(this, mixer, audioFormat, audioTrackId, recordingStartTime, audioQueue);
         audioFuture = audioCaptureTimer.scheduleWithFixedDelay(audioGrabber, 0, 10, TimeUnit.MILLISECONDS);
         audioGrabber.setFuture(audioFuture);
     }
@@ -660,23 +815,68 @@ public class ScreenRecorder extends AbstractStateModel {
 
     /**
      * Starts file writing.
+     *
+     * @param firstSegment the first movie file of the recording
      */
-    private void startWriter() {
-        writerQueue = new ArrayBlockingQueue<>(
-                max(screenFormat.get(FrameRateKey).intValue(), mouseFormat.get(FrameRateKey).intValue()) + 1);
+    private void startWriter(SegmentingStage.Segment firstSegment) {
+        segmentingStage = new SegmentingStage(this, firstSegment, videoTrackId,
+                audioFormat == null ? -1 : audioTrackId, maxRecordingTime, new SegmentingStage.SegmentHandler() {
+            @Override
+            public SegmentingStage.Segment open() throws IOException {
+                return openSegment();
+            }
+
+            @Override
+            public void started(SegmentingStage.Segment segment) {
+                recordedFiles.add(segment.file);
+                w = segment.writer;
+            }
+
+            @Override
+            public void finished(SegmentEvent event) {
+                SwingUtilities.invokeLater(() -> fireSegmentFinished(event));
+            }
+
+            @Override
+            public void failed(Throwable e) {
+                recordingFailed(e);
+            }
+        });
+        int videoCapacity = max(screenFormat.get(FrameRateKey).intValue(), mouseFormat.get(FrameRateKey).intValue()) + 1;
+        videoQueue = new BufferRing(videoCapacity, waitStrategy);
+        otherQueue = new BufferRing(videoCapacity, waitStrategy);
+        if (audioFormat != null) {
+            // An audio buffer holds half a second or a second of audio
+            int audioBufferSize = AudioGrabber.calculateBufferSize(AudioFormatKeys.toAudioFormat(audioFormat));
+            audioQueue = new BufferRing(4, waitStrategy, b -> b.data = new byte[audioBufferSize]);
+            writerQueues = new BufferRing[]{videoQueue, audioQueue, otherQueue};
+        } else {
+            audioQueue = null;
+            writerQueues = new BufferRing[]{videoQueue, otherQueue};
+        }
+        final BufferRing[] queues = writerQueues;
+        final BufferRing.WaitStrategy writerWaitStrategy = waitStrategy;
         writerThread = new Thread() {
             @Override
             public void run() {
                 try {
-                    while (writerThread == this || !writerQueue.isEmpty()) {
-                        try {
-                            Buffer buf = writerQueue.take();
-                            doWrite(buf);
-                        } catch (InterruptedException ex) {
-                            // We have been interrupted, terminate
+                    // We keep writing until we have been stopped and
+                    // all queues are empty
+                    int attempt = 0;
+                    for (boolean isStopped = false; ; isStopped = writerThread != this) {
+                        BufferRing queue = nextWriterQueue(queues);
+                        if (queue != null) {
+                            doWrite(queue.peek());
+                            queue.recycle();
+                            attempt = 0;
+                        } else if (isStopped) {
                             break;
+                        } else {
+                            writerWaitStrategy.idle(attempt++);
                         }
                     }
+                } catch (InterruptedException e) {
+                    // We have been interrupted, terminate
                 } catch (Throwable e) {
                     //e.printStackTrace();
                     recordingFailed(e);
@@ -686,6 +886,69 @@ public class ScreenRecorder extends AbstractStateModel {
         writerThread.start();
     }
 
+    /**
+     * Returns the writer queue with the earliest buffer, or null if all
+     * queues are empty.
+     */
+    private static BufferRing nextWriterQueue(BufferRing[] queues) {
+        BufferRing next = null;
+        Buffer earliest = null;
+        for (BufferRing queue : queues) {
+            Buffer buf = queue.peek();
+            if (buf != null && (earliest == null
+                    || buf.timeStamp != null && earliest.timeStamp != null && buf.timeStamp.compareTo(earliest.timeStamp) < 0)) {
+                next = queue;
+                earliest = buf;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Starts the encoding stage, if encoding on a pool of threads has been
+     * configured.
+     */
+    private void startEncoder() throws IOException {
+        if (encoderThreadCount <= 0) {
+            return;
+        }
+        List<Codec> codecs = new ArrayList<>();
+        for (int i = 0; i < encoderThreadCount; i++) {
+            codecs.add(createFrameEncoder());
+        }
+        Format trackFormat = w.getFormat(videoTrackId);
+        int framesPerGop = trackFormat.get(KeyFrameIntervalKey, trackFormat.get(FrameRateKey).intValue());
+        int capacity = encoderQueueCapacity > 0 ? encoderQueueCapacity
+                : encoderThreadCount * max(2, framesPerGop);
+        encodingStage = statisticsStage = new EncodingStage(codecs, framesPerGop, capacity, bufferPool, videoQueue, this::recordingFailed);
+    }
+
+    /**
+     * Encodes all pending frames and then stops the encoding stage.
+     */
+    private void stopEncoder() {
+        EncodingStage pendingStage = encodingStage;
+        encodingStage = null;
+        if (pendingStage != null) {
+            try {
+                pendingStage.close();
+            } catch (InterruptedException ex) {
+                pendingStage.abort();
+            }
+        }
+    }
+
+    /**
+     * Stops the encoding stage without encoding the pending frames.
+     */
+    private void abortEncoder() {
+        EncodingStage pendingStage = encodingStage;
+        encodingStage = null;
+        if (pendingStage != null) {
+            pendingStage.abort();
+        }
+    }
+
     public void recordingFailed(final Throwable msg) {
         SwingUtilities.invokeLater(() -> {
             try {
@@ -742,6 +1005,7 @@ public class ScreenRecorder extends AbstractStateModel {
             } catch (InterruptedException ex) {
                 // nothing to do
             }
+            stopEncoder();
             stopWriter();
             setState(state == State.FAILING ? State.FAILED : State.DONE, getStateMessage());
         }
@@ -753,16 +1017,19 @@ public class ScreenRecorder extends AbstractStateModel {
 
         try {
             if (pendingWriterThread != null) {
-                pendingWriterThread.interrupt();
+                // The writer thread terminates after it has written all
+                // queued buffers
                 pendingWriterThread.join();
             }
         } catch (InterruptedException ex) {
             // nothing to do
             ex.printStackTrace();
         }
-        if (w != null) {
-            w.close();
-            w = null;
+        SegmentingStage pendingStage = segmentingStage;
+        segmentingStage = null;
+        w = null;
+        if (pendingStage != null) {
+            pendingStage.close();
         }
     }
 
@@ -780,6 +1047,7 @@ public class ScreenRecorder extends AbstractStateModel {
             abortMouseCapture();
             abortScreenCapture();
             abortAudioCapture();
+            abortEncoder();
             stopWriter();
             setState(state == State.FAILING ? State.FAILED : State.DONE, getStateMessage());
         }
@@ -815,12 +1083,23 @@ public class ScreenRecorder extends AbstractStateModel {
         if (writer == null) {
             return;
         }
-        if (buf.track == videoTrackId) {
+        EncodingStage stage = encodingStage;
+        List<Rectangle> dirtyRegions = null;
+        if (detectChanges && buf.track == videoTrackId && buf.data instanceof BufferedImage) {
+            dirtyRegions = detectChanges(buf);
+        }
+        if (buf.track == videoTrackId && stage != null) {
+            if (writeToEncodingStage(writer, stage, buf) && detectChanges) {
+                changeDetector.update((BufferedImage) buf.data, dirtyRegions);
+            }
+        } else if (buf.track == videoTrackId) {
+            boolean isEncoded = true;
             if (writer.getFormat(videoTrackId).get(FixedFrameRateKey, false) == false) {
                 // variable frame rate is supported => easy
-                Buffer wbuf = new Buffer();
+                Buffer wbuf = videoQueue.claim();
+                wbuf.clearFlags();
                 frameEncoder.process(buf, wbuf);
-                writerQueue.put(wbuf);
+                videoQueue.publish();
             } else {// variable frame rate not supported => convert to fixed frame rate
 
                 // FIXME - Use CodecChain for this
@@ -834,27 +1113,106 @@ public class ScreenRecorder extends AbstractStateModel {
                     } else {
                         buf.setFlag(SAME_DATA);
                     }
-                    Buffer wbuf = new Buffer();
+                    Buffer wbuf = videoQueue.claim();
+                    wbuf.clearFlags();
                     if (frameEncoder.process(buf, wbuf) != Codec.CODEC_OK) {
                         throw new IOException("Codec failed or could not process frame in a single step.");
                     }
-                    writerQueue.put(wbuf);
+                    videoQueue.publish();
                     outputTime = outputTime.add(ffrDuration);
                 }
+                isEncoded = !isFirst;
+            }
+            if (detectChanges && isEncoded && buf.data instanceof BufferedImage) {
+                changeDetector.update((BufferedImage) buf.data, dirtyRegions);
             }
         } else {
-            Buffer wbuf = new Buffer();
-            wbuf.setMetaTo(buf);
-            wbuf.data = ((byte[]) buf.data).clone();
-            wbuf.length = buf.length;
-            wbuf.offset = buf.offset;
-            writerQueue.put(wbuf);
+            BufferRing queue = otherQueue;
+            synchronized (queue) {
+                Buffer wbuf = queue.claim();
+                wbuf.setMetaTo(buf);
+                byte[] b = (byte[]) buf.data;
+                System.arraycopy(b, 0, wbuf.reuseByteArray(b.length), 0, b.length);
+                wbuf.length = buf.length;
+                wbuf.offset = buf.offset;
+                queue.publish();
+            }
+        }
+    }
+
+    /**
+     * Compares the video frame with the last frame that has been accepted for
+     * encoding. Sets the dirty regions of the buffer, and marks the buffer
+     * with {@code SAME_DATA} if nothing has changed.
+     *
+     * @param buf a buffer with a {@code BufferedImage}
+     * @return the dirty regions, or null if the entire frame has changed
+     */
+    private List<Rectangle> detectChanges(Buffer buf) {
+        List<Rectangle> dirtyRegions = changeDetector.detect((BufferedImage) buf.data);
+        buf.dirtyRegions = dirtyRegions;
+        if (dirtyRegions != null && dirtyRegions.isEmpty()) {
+            buf.setFlag(SAME_DATA);
+        }
+        return dirtyRegions;
+    }
+
+    /**
+     * Submits a video frame to the encoding stage.
+     * <p>
+     * If the encoding stage is full, the frame is dropped. The next frame that
+     * is accepted by the encoding stage covers the time span of the dropped
+     * frames.
+     *
+     * @return true if the frame has been accepted
+     */
+    private boolean writeToEncodingStage(MovieWriter writer, EncodingStage stage, Buffer buf) throws IOException, InterruptedException {
+        if (writer.getFormat(videoTrackId).get(FixedFrameRateKey, false) == false) {
+            // variable frame rate is supported => extend the frame over dropped frames
+            if (droppedFrameTime != null) {
+                buf.sampleDuration = buf.timeStamp.add(buf.sampleDuration).subtract(droppedFrameTime);
+                buf.timeStamp = droppedFrameTime;
+            }
+            if (stage.offer(buf)) {
+                droppedFrameTime = null;
+                return true;
+            } else if (droppedFrameTime == null) {
+                droppedFrameTime = buf.timeStamp;
+            }
+            return false;
+        } else {// variable frame rate not supported => convert to fixed frame rate
+            // If the first frame is dropped, we do not advance the output time,
+            // so that the next input frame covers the time span of the dropped frame.
+            Rational inputTime = buf.timeStamp.add(buf.sampleDuration);
+            boolean isFirst = true;
+            while (outputTime.compareTo(inputTime) < 0) {
+                buf.timeStamp = outputTime;
+                buf.sampleDuration = ffrDuration;
+                if (isFirst) {
+                    isFirst = false;
+                    if (!stage.offer(buf)) {
+                        return false;
+                    }
+                } else {
+                    buf.setFlag(SAME_DATA);
+                    stage.put(buf);
+                }
+                outputTime = outputTime.add(ffrDuration);
+            }
+            return !isFirst;
         }
     }
 
     /**
      * The actual writing of the buffer happens here.
      * <p>
+     * The segmenting stage starts a new movie file at a key frame, if the
+     * current file is full or if the maximal recording time of the file
+     * has been exceeded.
+     * <p>
+     * Buffers with the {@code DISCARD} flag are placeholders for frames that
+     * the encoding stage could not encode, they are not written.
+     * <p>
      * This method is called exclusively from the writer thread in
      * startWriter().
      *
@@ -862,35 +1220,39 @@ public class ScreenRecorder extends AbstractStateModel {
      * @throws IOException
      */
     private void doWrite(Buffer buf) throws IOException {
-        MovieWriter mw = w;
-        // Close file on a separate thread if file is full or an hour
-        // has passed.
-        // The if-statement must ensure that we only start a new video file
-        // at a key-frame.
-        // FIXME - this assumes that all audio frames are key-frames
-        // FIXME - this does not guarantee that audio and video track have
-        //         the same duration
-        long now = (System.nanoTime() / 1_000_000);
-        if (buf.track == videoTrackId && buf.isFlag(BufferFlag.KEYFRAME)
-                && (mw.isDataLimitReached() || now - fileStartTime > maxRecordingTime)) {
-            final MovieWriter closingWriter = mw;
-            new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        closingWriter.close();
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                        //recordingFailed(ex);
-                    }
+        if (!buf.isFlag(DISCARD)) {
+            segmentingStage.write(buf);
+        }
+        buf.release();
+    }
 
-                }
-            }.start();
-            mw = createMovieWriter();
+    /**
+     * Adds a listener that is notified each time the recorder has finished
+     * a movie file.
+     */
+    public void addSegmentListener(SegmentListener l) {
+        if (listenerList == null) {
+            listenerList = new EventListenerList();
+        }
+        listenerList.add(SegmentListener.class, l);
+    }
 
+    public void removeSegmentListener(SegmentListener l) {
+        if (listenerList != null) {
+            listenerList.remove(SegmentListener.class, l);
+        }
+    }
+
+    /**
+     * Notifies all segment listeners. Must be called on the AWT event
+     * dispatching thread.
+     */
+    protected void fireSegmentFinished(SegmentEvent event) {
+        if (listenerList != null) {
+            for (SegmentListener l : listenerList.getListeners(SegmentListener.class)) {
+                l.segmentFinished(event);
+            }
         }
-        //}
-        mw.write(buf.track, buf);
     }
 
     /**
@@ -920,6 +1282,153 @@ public class ScreenRecorder extends AbstractStateModel {
         this.maxFileSize = maxFileSize;
     }
 
+    /**
+     * Returns true if the changes of the video frames are detected with all
+     * encoders.
+     */
+    public boolean isChangeDetectionEnabled() {
+        return changeDetectionEnabled;
+    }
+
+    /**
+     * Sets whether the changes of the video frames are detected with all
+     * encoders. Change detection compares each captured frame with the last
+     * encoded frame, and passes the changed regions to the encoder. It is
+     * always performed for the TechSmith Screen Capture encoder, which only
+     * encodes the changed regions. Other encoders only benefit from it, if
+     * they use the dirty regions or the {@code SAME_DATA} flag of a buffer.
+     * This setting takes effect when the next recording is started.
+     */
+    public void setChangeDetectionEnabled(boolean changeDetectionEnabled) {
+        this.changeDetectionEnabled = changeDetectionEnabled;
+    }
+
+    /**
+     * Returns the number of encoder threads. 0 means that video frames are
+     * encoded on the screen capture thread.
+     */
+    public int getEncoderThreadCount() {
+        return encoderThreadCount;
+    }
+
+    /**
+     * Sets the number of encoder threads. 0 means that video frames are
+     * encoded on the screen capture thread. This setting takes effect when
+     * the next recording is started.
+     */
+    public void setEncoderThreadCount(int encoderThreadCount) {
+        this.encoderThreadCount = max(0, encoderThreadCount);
+    }
+
+    /**
+     * Returns the maximal number of video frames that are queued for encoding.
+     * 0 means that the capacity is computed from the number of encoder threads
+     * and the key frame interval.
+     */
+    public int getEncoderQueueCapacity() {
+        return encoderQueueCapacity;
+    }
+
+    /**
+     * Sets the maximal number of video frames that are queued for encoding.
+     * Frames that arrive while the queue is full are dropped.
+     * <p>
+     * Inter-frame codecs can only encode in parallel if the queue can hold
+     * more than one group of frames from one key frame to the next.
+     * This setting takes effect when the next recording is started.
+     */
+    public void setEncoderQueueCapacity(int encoderQueueCapacity) {
+        this.encoderQueueCapacity = max(0, encoderQueueCapacity);
+    }
+
+    /**
+     * Returns the number of video frames that are currently queued for
+     * encoding, or 0 if video frames are encoded on the screen capture thread.
+     */
+    public int getEncoderQueueDepth() {
+        EncodingStage stage = encodingStage;
+        return stage == null ? 0 : stage.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of encoded buffers that are queued for writing.
+     */
+    public int getWriterQueueDepth() {
+        int depth = 0;
+        for (BufferRing queue : writerQueues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the highest number of buffers that were queued for writing
+     * in a single writer queue in the current or most recent recording.
+     */
+    public int getMaxWriterQueueDepth() {
+        int depth = 0;
+        for (BufferRing queue : writerQueues) {
+            depth = max(depth, queue.getMaxSize());
+        }
+        return depth;
+    }
+
+    /**
+     * Returns how many times a capture thread had to wait in the current or
+     * most recent recording, because the writer thread could not keep up.
+     */
+    public long getWriterQueueFullCount() {
+        long count = 0;
+        for (BufferRing queue : writerQueues) {
+            count += queue.getFullCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns how the capture threads and the writer thread wait for each
+     * other.
+     */
+    public BufferRing.WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Sets how the capture threads and the writer thread wait for each other.
+     * {@link BufferRing.WaitStrategy#PARK} uses the least processor time.
+     * This setting takes effect when the next recording is started.
+     */
+    public void setWaitStrategy(BufferRing.WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Returns the number of video frames that have been dropped in the current
+     * or most recent recording, because the encoder threads could not keep up.
+     */
+    public long getDroppedFrameCount() {
+        EncodingStage stage = statisticsStage;
+        return stage == null ? 0 : stage.getDroppedFrameCount();
+    }
+
+    /**
+     * Returns the average time in nanoseconds that an encoder thread needed
+     * for encoding a video frame in the current or most recent recording.
+     */
+    public long getAverageEncodeNanos() {
+        EncodingStage stage = statisticsStage;
+        return stage == null ? 0 : stage.getAverageEncodeNanos();
+    }
+
+    /**
+     * Returns the maximal time in nanoseconds that an encoder thread needed
+     * for encoding a video frame in the current or most recent recording.
+     */
+    public long getMaxEncodeNanos() {
+        EncodingStage stage = statisticsStage;
+        return stage == null ? 0 : stage.getMaxEncodeNanos();
+    }
+
     /**
      * Gets the audio mixer used for sound input. Returns null, if the default
      * mixer is used.
@@ -0,0 +1,104 @@
+/*
+ * @(#)SegmentEvent.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.screenrecorder;
+
+import org.monte.media.math.Rational;
+
+import java.io.File;
+import java.util.EventObject;
+
+/**
+ * Describes a movie file that the screen recorder has finished.
+ * <p>
+ * A recording is split into segments if the maximal recording time of a
+ * file is exceeded, or if the movie writer can not take more data.
+ * See {@link ScreenRecorder#setMaxRecordingTime(long)}.
+ */
+public class SegmentEvent extends EventObject {
+    private static final long serialVersionUID = 1L;
+    private final File file;
+    private final int segmentIndex;
+    private final Rational startTime;
+    private final Rational videoDuration;
+    private final Rational audioDuration;
+    private final long fileSize;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param source        the screen recorder
+     * @param file          the movie file of the segment
+     * @param segmentIndex  the index of the segment in the recording
+     * @param startTime     the start time of the segment in seconds since the
+     *                      start of the recording
+     * @param videoDuration the duration of the video track in seconds
+     * @param audioDuration the duration of the audio track in seconds, null
+     *                      if the movie has no audio track
+     * @param fileSize      the size of the movie file in bytes
+     */
+    public SegmentEvent(Object source, File file, int segmentIndex, Rational startTime,
+                        Rational videoDuration, Rational audioDuration, long fileSize) {
+        super(source);
+        this.file = file;
+        this.segmentIndex = segmentIndex;
+        this.startTime = startTime;
+        this.videoDuration = videoDuration;
+        this.audioDuration = audioDuration;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Returns the movie file of the segment.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the index of the segment in the recording. The first segment
+     * has index 0.
+     */
+    public int getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    /**
+     * Returns the start time of the segment in seconds since the start of the
+     * recording.
+     */
+    public Rational getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the duration of the video track in seconds.
+     */
+    public Rational getVideoDuration() {
+        return videoDuration;
+    }
+
+    /**
+     * Returns the duration of the audio track in seconds, or null if the
+     * movie has no audio track.
+     */
+    public Rational getAudioDuration() {
+        return audioDuration;
+    }
+
+    /**
+     * Returns the size of the movie file in bytes.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[file=" + file + ", segmentIndex=" + segmentIndex
+                + ", startTime=" + startTime + ", videoDuration=" + videoDuration
+                + ", audioDuration=" + audioDuration + ", fileSize=" + fileSize + "]";
+    }
+}
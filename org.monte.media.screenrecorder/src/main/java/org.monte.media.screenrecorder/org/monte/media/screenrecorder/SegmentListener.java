@@ -0,0 +1,22 @@
+/*
+ * @(#)SegmentListener.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.screenrecorder;
+
+import java.util.EventListener;
+
+/**
+ * Receives a {@link SegmentEvent} when the screen recorder has finished a
+ * movie file.
+ */
+public interface SegmentListener extends EventListener {
+    /**
+     * Invoked on the AWT event dispatching thread after a movie file has
+     * been closed.
+     *
+     * @param e describes the movie file
+     */
+    void segmentFinished(SegmentEvent e);
+}
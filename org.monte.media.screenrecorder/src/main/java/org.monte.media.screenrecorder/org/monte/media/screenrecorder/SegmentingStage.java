@@ -0,0 +1,347 @@
+/*
+ * @(#)SegmentingStage.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.screenrecorder;
+
+import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferFlag;
+import org.monte.media.av.MovieWriter;
+import org.monte.media.math.Rational;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SegmentingStage writes the encoded media data of a recording into a
+ * sequence of movie files.
+ * <p>
+ * The stage starts a new segment at the first video key frame after the
+ * current segment has exceeded its maximal duration, or after its writer
+ * has reached its data limit.
+ * <p>
+ * The audio track is cut at the time stamp of that key frame. Since audio
+ * data usually arrives later than the video data of the same time, the
+ * previous segment stays open until the audio data has caught up with the
+ * cut. The audio buffer that spans the cut is split at the first sample at
+ * or after the cut. If audio data arrives earlier than video data, then the
+ * audio track of the previous segment may be longer than its video track by
+ * up to one audio buffer.
+ * <p>
+ * The writer of the next segment is opened on a background thread shortly
+ * before the segment is due, so that opening the file does not delay the
+ * writer thread. Finished segments are closed on the same background
+ * threads. The number of threads and the number of pending tasks are
+ * bounded. If the tasks can not keep up, they are run on the writer thread.
+ * <p>
+ * All methods except {@link #close()} must be called from the writer
+ * thread.
+ */
+class SegmentingStage implements AutoCloseable {
+    /**
+     * The next segment is opened this many milliseconds before the current
+     * segment exceeds its maximal duration.
+     */
+    private final static long OPEN_AHEAD_MILLIS = 2000;
+
+    /**
+     * A movie file and its writer.
+     */
+    static class Segment {
+        final File file;
+        final MovieWriter writer;
+
+        Segment(File file, MovieWriter writer) {
+            this.file = file;
+            this.writer = writer;
+        }
+    }
+
+    /**
+     * Opens segments and receives the results of the stage.
+     */
+    interface SegmentHandler {
+        /**
+         * Creates the file and the writer of the next segment. This method
+         * is invoked from a background thread.
+         */
+        Segment open() throws IOException;
+
+        /**
+         * Invoked on the writer thread when the first sample has been written
+         * into a segment that was opened with {@link #open()}.
+         */
+        void started(Segment segment);
+
+        /**
+         * Invoked after a segment has been closed.
+         */
+        void finished(SegmentEvent event);
+
+        /**
+         * Receives exceptions that occur on a background thread.
+         */
+        void failed(Throwable e);
+    }
+
+    /**
+     * A segment that is being written.
+     */
+    private static class ActiveSegment {
+        final Segment segment;
+        final int index;
+        final Rational startTime;
+        final long startMillis;
+        /**
+         * The end time of the audio data that has been written into the
+         * segment.
+         */
+        Rational audioEndTime;
+
+        ActiveSegment(Segment segment, int index, Rational startTime) {
+            this.segment = segment;
+            this.index = index;
+            this.startTime = startTime;
+            this.startMillis = System.nanoTime() / 1_000_000;
+            this.audioEndTime = startTime;
+        }
+    }
+
+    private final Object source;
+    private final SegmentHandler handler;
+    private final int videoTrack;
+    private final int audioTrack;
+    private final long maxSegmentMillis;
+    private final ThreadPoolExecutor executor;
+    private ActiveSegment current;
+    /**
+     * The previous segment, which receives audio data until the audio
+     * data has reached {@code cutTime}. This is null if there is no
+     * previous segment that is still being written.
+     */
+    private ActiveSegment previous;
+    private Rational cutTime;
+    /**
+     * The writer of the next segment. This is null if the next segment
+     * has not been requested yet.
+     */
+    private Future<Segment> next;
+    private int nextIndex = 1;
+    private boolean closed;
+
+    /**
+     * Creates a new segmenting stage.
+     *
+     * @param source           the source of the segment events
+     * @param first            the first segment
+     * @param videoTrack       the video track
+     * @param audioTrack       the audio track, or -1 if there is no audio track
+     * @param maxSegmentMillis the maximal duration of a segment in
+     *                         milliseconds
+     * @param handler          opens the segments and receives the results
+     */
+    public SegmentingStage(Object source, Segment first, int videoTrack, int audioTrack,
+                           long maxSegmentMillis, SegmentHandler handler) {
+        this.source = source;
+        this.handler = handler;
+        this.videoTrack = videoTrack;
+        this.audioTrack = audioTrack;
+        this.maxSegmentMillis = maxSegmentMillis;
+        this.current = new ActiveSegment(first, 0, Rational.ZERO);
+        this.executor = new ThreadPoolExecutor(2, 2, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<>(4), r -> {
+            Thread t = new Thread(r, "ScreenRecorder-Segmenter");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the writer of the current segment.
+     */
+    public MovieWriter getWriter() {
+        return current.segment.writer;
+    }
+
+    /**
+     * Writes a buffer into the current segment, or into the previous
+     * segment if it is an audio buffer that precedes the cut.
+     * <p>
+     * Starts a new segment if this is a video key frame and the current
+     * segment is full.
+     *
+     * @param buf an encoded buffer
+     */
+    public void write(Buffer buf) throws IOException {
+        if (buf.track == audioTrack && previous != null) {
+            writeAudioAtCut(buf);
+            return;
+        }
+        if (buf.track == videoTrack) {
+            MovieWriter mw = current.segment.writer;
+            boolean isFull = mw.isDataLimitReached();
+            long elapsed = System.nanoTime() / 1_000_000 - current.startMillis;
+            if (next == null && (isFull || elapsed > maxSegmentMillis - Math.min(OPEN_AHEAD_MILLIS, maxSegmentMillis / 2))) {
+                next = executor.submit(handler::open);
+            }
+            // We can only start a new segment at a key frame. If the segment
+            // is not full yet, we wait for a key frame after the next writer
+            // has been opened.
+            if (buf.isFlag(BufferFlag.KEYFRAME) && next != null
+                    && (isFull || elapsed > maxSegmentMillis && next.isDone())) {
+                cut(buf.timeStamp);
+            }
+        }
+        if (buf.track == audioTrack) {
+            current.audioEndTime = buf.getBufferEndTimestamp();
+        }
+        current.segment.writer.write(buf.track, buf);
+    }
+
+    /**
+     * Makes the next segment the current segment.
+     *
+     * @param time the time stamp of the key frame that starts the segment
+     */
+    private void cut(Rational time) throws IOException {
+        Segment segment = await(next);
+        next = null;
+        if (previous != null) {
+            // The audio data did not catch up with the previous cut
+            finish(previous);
+        }
+        previous = current;
+        cutTime = time;
+        current = new ActiveSegment(segment, nextIndex++, time);
+        handler.started(segment);
+        if (audioTrack < 0 || previous.audioEndTime.compareTo(cutTime) >= 0) {
+            finish(previous);
+            previous = null;
+        }
+    }
+
+    /**
+     * Writes an audio buffer while the previous segment is waiting for
+     * the audio data up to the cut.
+     */
+    private void writeAudioAtCut(Buffer buf) throws IOException {
+        Rational endTime = buf.getBufferEndTimestamp();
+        if (endTime.compareTo(cutTime) <= 0) {
+            previous.segment.writer.write(buf.track, buf);
+            previous.audioEndTime = endTime;
+        } else {
+            int count = buf.sampleCount;
+            int n = buf.timeStamp.compareTo(cutTime) >= 0 ? 0
+                    : (int) Math.min(count, cutTime.subtract(buf.timeStamp).divide(buf.sampleDuration).ceil(1).longValue());
+            if (n > 0 && n < count && buf.data instanceof byte[] && buf.length % count == 0) {
+                // Split the buffer at the first sample at or after the cut
+                int frameSize = buf.length / count;
+                Buffer head = new Buffer();
+                head.setMetaTo(buf);
+                head.data = buf.data;
+                head.offset = buf.offset;
+                head.length = n * frameSize;
+                head.sampleCount = n;
+                previous.segment.writer.write(buf.track, head);
+
+                buf.offset += head.length;
+                buf.length -= head.length;
+                buf.sampleCount = count - n;
+                buf.timeStamp = buf.timeStamp.add(buf.sampleDuration.multiply(n));
+            } else if (n == count) {
+                previous.segment.writer.write(buf.track, buf);
+                buf = null;
+            }
+            if (buf != null) {
+                current.audioEndTime = buf.getBufferEndTimestamp();
+                current.segment.writer.write(buf.track, buf);
+            }
+        }
+        if (endTime.compareTo(cutTime) >= 0) {
+            finish(previous);
+            previous = null;
+        }
+    }
+
+    /**
+     * Closes the writer of the segment on a background thread.
+     */
+    private void finish(ActiveSegment s) {
+        executor.execute(() -> {
+            try {
+                handler.finished(close(s));
+            } catch (Throwable e) {
+                handler.failed(e);
+            }
+        });
+    }
+
+    private SegmentEvent close(ActiveSegment s) throws IOException {
+        MovieWriter mw = s.segment.writer;
+        Rational videoDuration = mw.getDuration(videoTrack);
+        Rational audioDuration = audioTrack < 0 ? null : mw.getDuration(audioTrack);
+        mw.close();
+        return new SegmentEvent(source, s.segment.file, s.index, s.startTime,
+                videoDuration, audioDuration, s.segment.file.length());
+    }
+
+    private static Segment await(Future<Segment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while opening the next segment");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Closes all segments, and waits until they have been closed.
+     * The current segment is closed on the calling thread. A segment that
+     * has been opened in advance, but has not been started, is deleted.
+     * <p>
+     * This method must not be called while the writer thread is writing.
+     *
+     * @throws IOException if closing the current segment failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (previous != null) {
+                finish(previous);
+                previous = null;
+            }
+            if (next != null) {
+                Segment unused = await(next);
+                next = null;
+                unused.writer.close();
+                if (!unused.file.delete()) {
+                    unused.file.deleteOnExit();
+                }
+            }
+            handler.finished(close(current));
+        } finally {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // keep waiting until the segments have been closed
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
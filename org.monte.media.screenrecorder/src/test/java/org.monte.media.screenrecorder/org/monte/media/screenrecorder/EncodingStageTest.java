@@ -0,0 +1,217 @@
+/*
+ * @(#)EncodingStageTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.screenrecorder;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.AbstractCodec;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferFlag;
+import org.monte.media.av.BufferPool;
+import org.monte.media.av.BufferRing;
+import org.monte.media.av.Codec;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.math.Rational;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+
+public class EncodingStageTest {
+    /**
+     * Marks a reset in the events of a {@link ProbeCodec}.
+     */
+    private final static int RESET = -1;
+
+    /**
+     * A codec that copies the frame number, marks the first frame after a
+     * reset as key frame, and records the frames and the resets in the order
+     * in which they occur.
+     */
+    private static class ProbeCodec extends AbstractCodec {
+        final List<Integer> events = Collections.synchronizedList(new ArrayList<>());
+        private final Random random;
+        private final int failingFrame;
+        private boolean isReset = true;
+
+        ProbeCodec(long seed, int failingFrame) {
+            super(new Format[]{new Format(MediaTypeKey, MediaType.VIDEO)});
+            this.random = new Random(seed);
+            this.failingFrame = failingFrame;
+        }
+
+        @Override
+        public int process(Buffer in, Buffer out) {
+            int frame = ((byte[]) in.data)[in.offset];
+            if (frame == failingFrame) {
+                return CODEC_FAILED;
+            }
+            events.add(frame);
+            try {
+                // Let the workers finish their frames out of order
+                Thread.sleep(random.nextInt(3));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.setMetaTo(in);
+            out.setFlag(BufferFlag.KEYFRAME, isReset);
+            out.data = new byte[]{(byte) frame};
+            out.offset = 0;
+            out.length = 1;
+            isReset = false;
+            return CODEC_OK;
+        }
+
+        @Override
+        public void reset() {
+            events.add(RESET);
+            isReset = true;
+        }
+    }
+
+    private static List<Codec> createCodecs(int count, int failingFrame) {
+        List<Codec> codecs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            codecs.add(new ProbeCodec(i, failingFrame));
+        }
+        return codecs;
+    }
+
+    private static Buffer frame(int i) {
+        Buffer buf = new Buffer();
+        buf.track = 0;
+        buf.data = new byte[]{(byte) i};
+        buf.offset = 0;
+        buf.length = 1;
+        buf.timeStamp = new Rational(i, 10);
+        buf.sampleDuration = new Rational(1, 10);
+        return buf;
+    }
+
+    /**
+     * Removes all frames from the writer queue.
+     */
+    private static List<Buffer> drain(BufferRing queue) {
+        List<Buffer> frames = new ArrayList<>();
+        for (Buffer slot = queue.peek(); slot != null; slot = queue.peek()) {
+            Buffer copy = new Buffer();
+            copy.setMetaTo(slot);
+            copy.setDataTo(slot);
+            frames.add(copy);
+            queue.recycle();
+        }
+        return frames;
+    }
+
+    @Test
+    public void shouldHandOverFramesInSubmissionOrder() throws Exception {
+        BufferRing queue = new BufferRing(128, BufferRing.WaitStrategy.YIELD);
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        EncodingStage stage = new EncodingStage(createCodecs(3, -1), 4, 8,
+                new BufferPool(1 << 20, false), queue, errors::add);
+        for (int i = 0; i < 100; i++) {
+            stage.put(frame(i));
+        }
+        stage.close();
+
+        List<Buffer> frames = drain(queue);
+        assertEquals(100, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            Buffer buf = frames.get(i);
+            assertEquals(i, ((byte[]) buf.data)[buf.offset]);
+            assertEquals(new Rational(i, 10), buf.timeStamp);
+        }
+        assertEquals(100, stage.getEncodedFrameCount());
+        assertEquals(0, stage.getQueueDepth());
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    public void shouldResetCodecAtTheStartOfEachGop() throws Exception {
+        int framesPerGop = 5;
+        BufferRing queue = new BufferRing(64, BufferRing.WaitStrategy.YIELD);
+        List<Codec> codecs = createCodecs(2, -1);
+        EncodingStage stage = new EncodingStage(codecs, framesPerGop, 4,
+                new BufferPool(1 << 20, false), queue, e -> {
+        });
+        for (int i = 0; i < 40; i++) {
+            stage.put(frame(i));
+        }
+        stage.close();
+
+        // Each codec encodes entire GOPs, and is reset before each GOP
+        for (int c = 0; c < codecs.size(); c++) {
+            List<Integer> events = ((ProbeCodec) codecs.get(c)).events;
+            assertEquals(4 + 20, events.size());
+            int expected = RESET;
+            for (int event : events) {
+                if (expected == RESET) {
+                    assertEquals(RESET, event);
+                    expected = -2;
+                } else if (expected == -2) {
+                    assertEquals(0, event % framesPerGop);
+                    assertEquals(c, event / framesPerGop % codecs.size());
+                    expected = event + 1;
+                } else {
+                    assertEquals(expected, event);
+                    expected = expected % framesPerGop == framesPerGop - 1 ? RESET : expected + 1;
+                }
+            }
+        }
+
+        List<Buffer> frames = drain(queue);
+        assertEquals(40, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(i % framesPerGop == 0, frames.get(i).isFlag(BufferFlag.KEYFRAME), "frame " + i);
+        }
+    }
+
+    @Test
+    public void shouldDiscardFrameThatCanNotBeEncodedAndRefuseFurtherFrames() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            BufferRing queue = new BufferRing(16, BufferRing.WaitStrategy.YIELD);
+            List<Throwable> errors = new CopyOnWriteArrayList<>();
+            EncodingStage stage = new EncodingStage(createCodecs(2, 5), 1, 2,
+                    new BufferPool(1 << 20, false), queue, errors::add);
+            for (int i = 0; i <= 5; i++) {
+                stage.put(frame(i));
+            }
+            while (errors.isEmpty()) {
+                Thread.sleep(1);
+            }
+            // The stage refuses frames instead of blocking the caller
+            assertThrows(IOException.class, () -> stage.put(frame(6)));
+            assertThrows(IOException.class, () -> stage.offer(frame(6)));
+            stage.close();
+
+            assertEquals(1, errors.size());
+            assertEquals(0, stage.getQueueDepth());
+            List<Buffer> frames = drain(queue);
+            assertEquals(6, frames.size());
+            for (int i = 0; i < frames.size(); i++) {
+                Buffer buf = frames.get(i);
+                assertEquals(new Rational(i, 10), buf.timeStamp);
+                if (i == 5) {
+                    assertTrue(buf.isFlag(BufferFlag.DISCARD));
+                } else {
+                    assertFalse(buf.isFlag(BufferFlag.DISCARD));
+                    assertEquals(i, ((byte[]) buf.data)[buf.offset]);
+                }
+            }
+        });
+    }
+}
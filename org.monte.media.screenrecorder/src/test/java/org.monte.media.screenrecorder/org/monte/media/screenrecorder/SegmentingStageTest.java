@@ -0,0 +1,242 @@
+/*
+ * @(#)SegmentingStageTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.screenrecorder;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferFlag;
+import org.monte.media.av.Codec;
+import org.monte.media.av.Format;
+import org.monte.media.av.MovieWriter;
+import org.monte.media.math.Rational;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentingStageTest {
+    private final static int VIDEO = 0, AUDIO = 1, SAMPLE_RATE = 8000;
+
+    /**
+     * A buffer as it has been written into a {@link RecordingWriter}.
+     */
+    private record Written(int track, Rational timeStamp, int sampleCount, byte[] data) {
+    }
+
+    /**
+     * A writer that records the buffers, and that reports the data limit
+     * as reached when told so.
+     */
+    private static class RecordingWriter implements MovieWriter {
+        final List<Written> written = new ArrayList<>();
+        final Rational[] durations = {Rational.ZERO, Rational.ZERO};
+        volatile boolean full;
+        volatile boolean closed;
+
+        List<Written> track(int track) {
+            return written.stream().filter(w -> w.track == track).toList();
+        }
+
+        @Override
+        public void write(int track, Buffer buf) {
+            written.add(new Written(track, buf.timeStamp, buf.sampleCount,
+                    Arrays.copyOfRange((byte[]) buf.data, buf.offset, buf.offset + buf.length)));
+            durations[track] = durations[track].add(buf.getBufferDuration());
+        }
+
+        @Override
+        public boolean isDataLimitReached() {
+            return full;
+        }
+
+        @Override
+        public Rational getDuration(int track) {
+            return durations[track];
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public Format getFileFormat() {
+            return null;
+        }
+
+        @Override
+        public int addTrack(Format format) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setCodec(int trackIndex, Codec codec) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Format getFormat(int track) {
+            return null;
+        }
+
+        @Override
+        public int getTrackCount() {
+            return 2;
+        }
+
+        @Override
+        public void write(int track, BufferedImage image, long duration) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isEmpty(int track) {
+            return track(track).isEmpty();
+        }
+    }
+
+    private static class Handler implements SegmentingStage.SegmentHandler {
+        final SegmentingStage.Segment next;
+        final List<SegmentingStage.Segment> started = new CopyOnWriteArrayList<>();
+        final List<SegmentEvent> finished = new CopyOnWriteArrayList<>();
+        final List<Throwable> failed = new CopyOnWriteArrayList<>();
+
+        Handler(SegmentingStage.Segment next) {
+            this.next = next;
+        }
+
+        @Override
+        public SegmentingStage.Segment open() {
+            return next;
+        }
+
+        @Override
+        public void started(SegmentingStage.Segment segment) {
+            started.add(segment);
+        }
+
+        @Override
+        public void finished(SegmentEvent event) {
+            finished.add(event);
+        }
+
+        @Override
+        public void failed(Throwable e) {
+            failed.add(e);
+        }
+    }
+
+    private static Buffer video(int frame, boolean keyframe) {
+        Buffer buf = new Buffer();
+        buf.track = VIDEO;
+        buf.data = new byte[]{(byte) frame};
+        buf.length = 1;
+        buf.timeStamp = new Rational(frame, 10);
+        buf.sampleDuration = new Rational(1, 10);
+        buf.sampleCount = 1;
+        buf.setFlag(BufferFlag.KEYFRAME, keyframe);
+        return buf;
+    }
+
+    /**
+     * Returns an audio buffer with 16-bit mono samples, whose values are the
+     * sample numbers.
+     */
+    private static Buffer audio(int firstSample, int count) {
+        Buffer buf = new Buffer();
+        buf.track = AUDIO;
+        buf.data = samples(firstSample, count);
+        buf.length = count * 2;
+        buf.timeStamp = new Rational(firstSample, SAMPLE_RATE);
+        buf.sampleDuration = new Rational(1, SAMPLE_RATE);
+        buf.sampleCount = count;
+        return buf;
+    }
+
+    private static byte[] samples(int firstSample, int count) {
+        byte[] data = new byte[count * 2];
+        for (int i = 0; i < count; i++) {
+            data[i * 2] = (byte) ((firstSample + i) >>> 8);
+            data[i * 2 + 1] = (byte) (firstSample + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void shouldCutAtKeyFrameAndSplitAudioAtTheCut() throws IOException {
+        RecordingWriter first = new RecordingWriter();
+        RecordingWriter second = new RecordingWriter();
+        SegmentingStage.Segment firstSegment = new SegmentingStage.Segment(new File("first.mov"), first);
+        SegmentingStage.Segment secondSegment = new SegmentingStage.Segment(new File("second.mov"), second);
+        Handler handler = new Handler(secondSegment);
+        SegmentingStage stage = new SegmentingStage(this, firstSegment, VIDEO, AUDIO, 3_600_000, handler);
+
+        // The audio buffers have 1000 samples = 1/8 s, the audio data lags
+        // behind the video data
+        stage.write(video(0, true));
+        stage.write(audio(0, 1000));
+        stage.write(video(1, false));
+        stage.write(audio(1000, 1000));
+        first.full = true;
+        // The cut has to wait for the next key frame
+        stage.write(video(2, false));
+        assertSame(first, stage.getWriter());
+        stage.write(video(3, true));
+        assertSame(second, stage.getWriter());
+        // This buffer spans the cut at 3/10 s = sample 2400
+        stage.write(audio(2000, 1000));
+        stage.write(video(4, false));
+        stage.write(audio(3000, 1000));
+        stage.close();
+
+        assertEquals(List.of(), handler.failed);
+        assertEquals(List.of(secondSegment), handler.started);
+        assertTrue(first.closed);
+        assertTrue(second.closed);
+
+        List<Written> video = first.track(VIDEO);
+        assertEquals(3, video.size());
+        assertEquals(new Rational(2, 10), video.get(2).timeStamp());
+        video = second.track(VIDEO);
+        assertEquals(2, video.size());
+        assertEquals(new Rational(3, 10), video.get(0).timeStamp());
+
+        List<Written> audio = first.track(AUDIO);
+        assertEquals(List.of(1000, 1000, 400), audio.stream().map(Written::sampleCount).toList());
+        assertEquals(new Rational(2000, SAMPLE_RATE), audio.get(2).timeStamp());
+        assertArrayEquals(samples(2000, 400), audio.get(2).data());
+        audio = second.track(AUDIO);
+        assertEquals(List.of(600, 1000), audio.stream().map(Written::sampleCount).toList());
+        assertEquals(new Rational(3, 10), audio.get(0).timeStamp());
+        assertArrayEquals(samples(2400, 600), audio.get(0).data());
+        assertEquals(new Rational(3000, SAMPLE_RATE), audio.get(1).timeStamp());
+
+        // The segments are closed on different threads
+        List<SegmentEvent> events = new ArrayList<>(handler.finished);
+        events.sort(Comparator.comparingInt(SegmentEvent::getSegmentIndex));
+        assertEquals(2, events.size());
+        SegmentEvent firstEvent = events.get(0);
+        SegmentEvent secondEvent = events.get(1);
+        assertEquals(0, firstEvent.getSegmentIndex());
+        assertEquals(Rational.ZERO, firstEvent.getStartTime());
+        assertEquals(new Rational(3, 10), firstEvent.getVideoDuration());
+        assertEquals(new Rational(3, 10), firstEvent.getAudioDuration());
+        assertEquals(1, secondEvent.getSegmentIndex());
+        assertEquals(new Rational(3, 10), secondEvent.getStartTime());
+        assertEquals(new Rational(2, 10), secondEvent.getVideoDuration());
+        assertEquals(new Rational(1600, SAMPLE_RATE), secondEvent.getAudioDuration());
+    }
+}
@@ -28,7 +28,7 @@
  * <tr><td>Run Length</td><td>AVI</td><td>Run Length
  * Encoding</td><td>Encode</td></tr>
  * <tr><td>ZMBV</td><td>AVI</td><td>DosBox Capture
- * Codec</td><td>Decode</td></tr>
+ * Codec</td><td>Decode, Encode</td></tr>
  * <tr><td>TSCC</td><td>AVI, MOV</td><td>TechSmith Screen Capture
  * Codec</td><td>Decode, Encode</td></tr>
  * <tr><td>MJPG</td><td>AVI, MOV</td><td>Motion JPEG</td><td>Decode,
@@ -61,6 +61,7 @@
  */
 module org.monte.media {
     requires java.desktop;
+    requires java.management;
     requires java.prefs;
 
     exports org.monte.media.beans;
@@ -124,7 +125,8 @@ module org.monte.media {
 
     provides org.monte.media.av.MovieReaderSpi with
             org.monte.media.avi.AVIReaderSpi,
-            org.monte.media.quicktime.QuickTimeReaderSpi;
+            org.monte.media.quicktime.QuickTimeReaderSpi,
+            org.monte.media.mp4.MP4ReaderSpi;
 
     provides javax.imageio.spi.ImageReaderSpi with
             org.monte.media.pgm.PGMImageReaderSpi,
@@ -7,19 +7,33 @@ package org.monte.media.av;
 import org.monte.media.math.Rational;
 import org.monte.media.util.Methods;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * A {@code Buffer} carries media data from one media processing unit to
  * another.
+ * <p>
+ * The media data is usually a {@code byte} array, a {@link ByteBuffer} or
+ * a {@link BufferedImage}.
+ * <p>
+ * A buffer can be associated with a {@link BufferPool}. In this case, the
+ * {@code byte} arrays and byte buffers of the buffer are borrowed from the
+ * pool, and are returned to the pool when the reference count of the buffer
+ * drops to zero. See {@link #retain()} and {@link #release()}.
  *
  * @author Werner Randelshofer
  */
 public class Buffer {
+    private final static AtomicIntegerFieldUpdater<Buffer> REF_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(Buffer.class, "refCount");
 
     /**
      * A flag mask that describes the boolean attributes for this buffer.
@@ -54,6 +68,15 @@ public class Buffer {
      * The data length. This field is only used if {@code data} is an array.
      */
     public int length;
+    /**
+     * The regions of the image in {@code data} that have changed since the
+     * previous frame, or null if any part of the image may have changed.
+     * <p>
+     * Delta codecs can use this to limit the comparison with the previous
+     * frame to the changed regions. Codecs that change the geometry of the
+     * image, or that discard frames, must not pass this on.
+     */
+    public List<Rectangle> dirtyRegions;
     /**
      * Duration of a sample in seconds. Multiply this with {@code sampleCount}
      * to get the buffer duration.
@@ -82,6 +105,139 @@ public class Buffer {
      */
     public Throwable exception;
 
+    /**
+     * The pool from which the data of this buffer is borrowed.
+     */
+    private BufferPool pool;
+    /**
+     * The reference count. Only used if this buffer has a pool.
+     */
+    private volatile int refCount = 1;
+
+    /**
+     * Creates a new buffer without a pool.
+     */
+    public Buffer() {
+    }
+
+    /**
+     * Creates a new buffer that borrows its data from the specified pool.
+     *
+     * @param pool a pool or null
+     */
+    public Buffer(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the pool from which the data of this buffer is borrowed.
+     *
+     * @return the pool or null
+     */
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Sets the pool from which the data of this buffer is borrowed.
+     *
+     * @param pool the pool or null
+     */
+    public void setPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Increments the reference count of this buffer.
+     *
+     * @return this buffer
+     */
+    public Buffer retain() {
+        REF_COUNT.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * Decrements the reference count of this buffer.
+     * <p>
+     * If the reference count drops to zero, the {@code byte} array or the
+     * byte buffer in {@code data} is returned to the pool, {@code data} is
+     * set to null, and the reference count is set to 1, so that this buffer
+     * object can be used again.
+     *
+     * @return true if the reference count dropped to zero
+     */
+    public boolean release() {
+        if (REF_COUNT.decrementAndGet(this) > 0) {
+            return false;
+        }
+        if (pool != null) {
+            pool.returnData(data);
+            data = null;
+        }
+        refCount = 1;
+        return true;
+    }
+
+    /**
+     * Ensures that {@code data} is a {@code byte} array with at least the
+     * specified length.
+     * <p>
+     * The current array is reused if it is large enough. Otherwise, if this
+     * buffer has a pool, the current data is returned to the pool, and a new
+     * array is borrowed from the pool.
+     *
+     * @param minLength the minimal length
+     * @return the {@code byte} array in {@code data}
+     */
+    public byte[] reuseByteArray(int minLength) {
+        if (data instanceof byte[] && ((byte[]) data).length >= minLength) {
+            return (byte[]) data;
+        }
+        byte[] b;
+        if (pool != null) {
+            pool.returnData(data);
+            b = pool.borrowByteArray(minLength);
+        } else {
+            b = new byte[minLength];
+        }
+        data = b;
+        return b;
+    }
+
+    /**
+     * If {@code data} is a {@link ByteBuffer}, returns a buffer with the same
+     * meta data, that holds the remaining bytes of the byte buffer as a
+     * {@code byte} array. Otherwise returns this buffer.
+     * <p>
+     * If the byte buffer has an accessible array, the array is shared.
+     * Otherwise, the bytes are copied into the {@code byte} array of the
+     * provided view buffer.
+     *
+     * @param view a buffer that can be reused for the result
+     * @return a buffer with a {@code byte} array or with non-byte data
+     */
+    public Buffer asByteArrayBuffer(Buffer view) {
+        if (!(data instanceof ByteBuffer)) {
+            return this;
+        }
+        ByteBuffer bb = (ByteBuffer) data;
+        view.setMetaTo(this);
+        view.header = header;
+        view.headerOffset = headerOffset;
+        view.headerLength = headerLength;
+        if (bb.hasArray()) {
+            view.data = bb.array();
+            view.offset = bb.arrayOffset() + bb.position();
+        } else {
+            byte[] b = view.reuseByteArray(bb.remaining());
+            bb.duplicate().get(b, 0, bb.remaining());
+            view.offset = 0;
+        }
+        view.length = bb.remaining();
+        return view;
+    }
+
     public void setException(Throwable exception) {
         this.exception = exception;
     }
@@ -93,6 +249,7 @@ public class Buffer {
      *     <li>{@code offset}</li>
      *     <li>{@code length}</li>
      *     <li>{@code header}</li>
+     *     <li>{@code dirtyRegions}</li>
      * </ul>
      */
     public void setMetaTo(Buffer that) {
@@ -111,16 +268,18 @@ public class Buffer {
     }
 
     /**
-     * Sets {@code data}, {@code offset}, {@code length} and {@code header} of
-     * this buffer to that buffer. Note that this method creates copies of the
-     * {@code data} and {@code header}, so that these fields in that buffer can
-     * be discarded without affecting the contents of this buffer.
+     * Sets {@code data}, {@code offset}, {@code length}, {@code header} and
+     * {@code dirtyRegions} of this buffer to that buffer. Note that this
+     * method creates copies of the {@code data} and {@code header}, so that
+     * these fields in that buffer can be discarded without affecting the
+     * contents of this buffer.
      * <p>
      * Returns {@link Codec#CODEC_FAILED} or {@link Codec#CODEC_OK}
      */
     public int setDataTo(Buffer that) {
         this.offset = that.offset;
         this.length = that.length;
+        this.dirtyRegions = that.dirtyRegions;
         try {
             this.data = copy(that.data, this.data);
             this.header = copy(that.header, this.header);
@@ -139,19 +298,45 @@ public class Buffer {
     }
 
     private Object copy(Object from, Object into) throws UnsupportedOperationException {
-        if (from instanceof byte[]) {
+        if (from == null) {
+            into = null;
+        } else if (from instanceof byte[]) {
             byte[] b = (byte[]) from;
             if (!(into instanceof byte[]) || ((byte[]) into).length < b.length) {
-                into = new byte[b.length];
+                if (pool != null) {
+                    pool.returnData(into);
+                    into = pool.borrowByteArray(b.length);
+                } else {
+                    into = new byte[b.length];
+                }
             }
             System.arraycopy(b, 0, into, 0, b.length);
+        } else if (from instanceof ByteBuffer) {
+            ByteBuffer b = ((ByteBuffer) from).duplicate();
+            ByteBuffer bb;
+            if (into instanceof ByteBuffer && !((ByteBuffer) into).isReadOnly()
+                    && ((ByteBuffer) into).capacity() >= b.remaining()) {
+                bb = (ByteBuffer) into;
+                bb.clear().limit(b.remaining());
+            } else if (pool != null) {
+                pool.returnData(into);
+                bb = pool.borrowByteBuffer(b.remaining());
+            } else {
+                bb = b.isDirect() ? ByteBuffer.allocateDirect(b.remaining()) : ByteBuffer.allocate(b.remaining());
+            }
+            bb.put(b).flip();
+            into = bb;
         } else if (from instanceof BufferedImage) {
-            // FIXME - Try to reuse BufferedImage in output!
             BufferedImage img = (BufferedImage) from;
             ColorModel cm = img.getColorModel();
-            boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
-            WritableRaster raster = img.copyData(null);
-            into = new BufferedImage(cm, raster, isAlphaPremultiplied, null);
+            if (into instanceof BufferedImage && isCompatibleImage(img, (BufferedImage) into)) {
+                // Reuse the image in the output
+                img.copyData(((BufferedImage) into).getRaster());
+            } else {
+                boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
+                WritableRaster raster = img.copyData(null);
+                into = new BufferedImage(cm, raster, isAlphaPremultiplied, null);
+            }
         } else if (from instanceof Cloneable) {
             try {
                 into = Methods.invoke(from, "clone");
@@ -165,6 +350,19 @@ public class Buffer {
         return into;
     }
 
+    /**
+     * Returns true if the pixels of image {@code from} can be copied into
+     * image {@code into} without changing the pixel layout.
+     */
+    private static boolean isCompatibleImage(BufferedImage from, BufferedImage into) {
+        return from != into
+                && from.getWidth() == into.getWidth()
+                && from.getHeight() == into.getHeight()
+                && from.getType() == into.getType()
+                && from.getColorModel().equals(into.getColorModel())
+                && from.getSampleModel().equals(into.getSampleModel());
+    }
+
     /**
      * Returns true if the specified flag is set.
      */
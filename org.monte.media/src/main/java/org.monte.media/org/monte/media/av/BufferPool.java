@@ -0,0 +1,242 @@
+/*
+ * @(#)BufferPool.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of {@code byte} arrays and {@link ByteBuffer}s that can be used as
+ * payload of a {@link Buffer}.
+ * <p>
+ * Arrays and byte buffers are pooled in size classes of powers of two.
+ * A borrowed array or byte buffer has at least the requested size.
+ * <p>
+ * The pool retains at most {@code maxRetainedBytes}. Arrays and byte buffers
+ * that are returned when the pool is full, are left to the garbage collector.
+ * <p>
+ * This class is thread-safe.
+ */
+public class BufferPool {
+    /**
+     * The smallest size class is {@code 1 << MIN_SHIFT}.
+     */
+    private final static int MIN_SHIFT = 6;
+    private final static int SIZE_CLASS_COUNT = 31 - MIN_SHIFT + 1;
+
+    private static BufferPool instance;
+
+    private final long maxRetainedBytes;
+    private final boolean direct;
+    private final ConcurrentLinkedDeque<byte[]>[] arrays;
+    private final ConcurrentLinkedDeque<ByteBuffer>[] byteBuffers;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxRetainedBytes the maximal number of bytes that the pool retains
+     * @param direct           whether {@link #borrowByteBuffer} creates direct
+     *                         byte buffers
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxRetainedBytes, boolean direct) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.direct = direct;
+        arrays = new ConcurrentLinkedDeque[SIZE_CLASS_COUNT];
+        byteBuffers = new ConcurrentLinkedDeque[SIZE_CLASS_COUNT];
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            arrays[i] = new ConcurrentLinkedDeque<>();
+            byteBuffers[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /**
+     * Gets the shared instance. The shared instance retains at most 64 MiB
+     * in heap byte buffers.
+     *
+     * @return the instance
+     */
+    public static synchronized BufferPool getInstance() {
+        if (instance == null) {
+            instance = new BufferPool(64L << 20, false);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the size class for the specified minimal size.
+     */
+    private static int sizeClass(int minSize) {
+        int shift = minSize <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(minSize - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns the size class that is completely filled by the specified
+     * capacity, or -1 if the capacity is too small for any size class.
+     */
+    private static int sizeClassOfCapacity(int capacity) {
+        if (capacity < 1 << MIN_SHIFT) {
+            return -1;
+        }
+        return 31 - Integer.numberOfLeadingZeros(capacity) - MIN_SHIFT;
+    }
+
+    private static int sizeOfClass(int sizeClass) {
+        int shift = sizeClass + MIN_SHIFT;
+        return shift >= 31 ? Integer.MAX_VALUE - 8 : 1 << shift;
+    }
+
+    /**
+     * Borrows a {@code byte} array with at least the specified length.
+     *
+     * @param minLength the minimal length
+     * @return an array, the contents of the array is undefined
+     */
+    public byte[] borrowByteArray(int minLength) {
+        int sc = sizeClass(minLength);
+        byte[] a = arrays[sc].pollFirst();
+        if (a != null) {
+            retainedBytes.addAndGet(-a.length);
+            hitCount.incrementAndGet();
+            return a;
+        }
+        missCount.incrementAndGet();
+        return new byte[sizeOfClass(sc)];
+    }
+
+    /**
+     * Returns a {@code byte} array to the pool.
+     *
+     * @param a an array, null is ignored
+     */
+    public void returnByteArray(byte[] a) {
+        if (a == null) {
+            return;
+        }
+        int sc = sizeClassOfCapacity(a.length);
+        if (sc >= 0 && reserve(a.length)) {
+            arrays[sc].addFirst(a);
+        }
+    }
+
+    /**
+     * Borrows a byte buffer with at least the specified capacity.
+     * <p>
+     * The position of the byte buffer is 0, and the limit is set to the
+     * specified capacity.
+     *
+     * @param minCapacity the minimal capacity
+     * @return a byte buffer, the contents of the buffer is undefined
+     */
+    public ByteBuffer borrowByteBuffer(int minCapacity) {
+        int sc = sizeClass(minCapacity);
+        ByteBuffer b = byteBuffers[sc].pollFirst();
+        if (b != null) {
+            retainedBytes.addAndGet(-b.capacity());
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+            b = direct ? ByteBuffer.allocateDirect(sizeOfClass(sc)) : ByteBuffer.allocate(sizeOfClass(sc));
+        }
+        b.clear().limit(minCapacity);
+        return b;
+    }
+
+    /**
+     * Returns a byte buffer to the pool.
+     *
+     * @param b a byte buffer, null and read-only buffers are ignored
+     */
+    public void returnByteBuffer(ByteBuffer b) {
+        if (b == null || b.isReadOnly()) {
+            return;
+        }
+        int sc = sizeClassOfCapacity(b.capacity());
+        if (sc >= 0 && reserve(b.capacity())) {
+            byteBuffers[sc].addFirst(b);
+        }
+    }
+
+    /**
+     * Returns the specified data object to the pool if it is a {@code byte}
+     * array or a byte buffer.
+     *
+     * @param data a data object
+     */
+    public void returnData(Object data) {
+        if (data instanceof byte[]) {
+            returnByteArray((byte[]) data);
+        } else if (data instanceof ByteBuffer) {
+            returnByteBuffer((ByteBuffer) data);
+        }
+    }
+
+    private boolean reserve(int bytes) {
+        long current;
+        do {
+            current = retainedBytes.get();
+            if (current + bytes > maxRetainedBytes) {
+                return false;
+            }
+        } while (!retainedBytes.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Removes all arrays and byte buffers from the pool.
+     */
+    public void clear() {
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            for (byte[] a = arrays[i].pollFirst(); a != null; a = arrays[i].pollFirst()) {
+                retainedBytes.addAndGet(-a.length);
+            }
+            for (ByteBuffer b = byteBuffers[i].pollFirst(); b != null; b = byteBuffers[i].pollFirst()) {
+                retainedBytes.addAndGet(-b.capacity());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes that are currently retained by the pool.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Returns the maximal number of bytes that the pool retains.
+     */
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    /**
+     * Returns true if {@link #borrowByteBuffer} creates direct byte buffers.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns the number of borrow requests that could be served from the
+     * pool.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of borrow requests that required a new allocation.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
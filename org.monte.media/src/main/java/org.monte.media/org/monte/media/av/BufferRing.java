@@ -0,0 +1,349 @@
+/*
+ * @(#)BufferRing.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A bounded single-producer single-consumer queue of reusable
+ * {@link Buffer} slots.
+ * <p>
+ * All slots are allocated when the ring is created. The producer claims the
+ * next free slot, fills it, and publishes it. The consumer takes the next
+ * published slot, processes it, and recycles it. The slots and the data that
+ * they hold are never handed over to the garbage collector, so that a slot
+ * that is recycled keeps its data array for the next round.
+ * <p>
+ * The ring does not use locks. The producer and the consumer only
+ * synchronize through two counters. Therefore, at any time, at most one
+ * thread may act as producer, and at most one thread may act as consumer.
+ * Different threads may take turns as producer, if they synchronize with each
+ * other.
+ * <p>
+ * A producer that finds the ring full, and a consumer that finds the ring
+ * empty, wait with the {@link WaitStrategy} of the ring. The other side
+ * unparks the waiting thread when it has made progress.
+ */
+public class BufferRing {
+    /**
+     * Specifies how a thread waits until the other side has made progress.
+     */
+    public enum WaitStrategy {
+        /**
+         * Busy-spins. This has the lowest latency, but occupies a processor.
+         */
+        SPIN,
+        /**
+         * Yields the processor to other threads.
+         */
+        YIELD,
+        /**
+         * Spins a few times, yields a few times, and then parks the thread
+         * for periods that grow from 0.1 to 10 milliseconds. A thread that
+         * waits in {@link #claim()} or {@link #take()} is unparked as soon
+         * as the other side has made progress. This has the highest latency,
+         * but uses almost no processor time.
+         */
+        PARK;
+
+        /**
+         * The number of attempts that {@link #PARK} spins.
+         */
+        private final static int PARK_SPIN_COUNT = 16;
+        /**
+         * The number of attempts that {@link #PARK} spins or yields before
+         * it parks.
+         */
+        private final static int PARK_YIELD_COUNT = 64;
+        /**
+         * The time that {@link #PARK} parks the thread the first time.
+         */
+        private final static long PARK_MIN_NANOS = 100_000;
+        /**
+         * The maximal time that {@link #PARK} parks the thread. This limits
+         * the latency of a thread that is not unparked, because it does not
+         * wait for a single ring.
+         */
+        private final static long PARK_MAX_NANOS = 10_000_000;
+
+        /**
+         * Waits once.
+         *
+         * @param attempt the number of times that the caller has waited
+         *                without progress
+         * @throws InterruptedException if the thread has been interrupted
+         */
+        public void idle(int attempt) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            switch (this) {
+                case SPIN -> Thread.onSpinWait();
+                case YIELD -> Thread.yield();
+                case PARK -> {
+                    if (attempt < PARK_SPIN_COUNT) {
+                        Thread.onSpinWait();
+                    } else if (attempt < PARK_YIELD_COUNT) {
+                        Thread.yield();
+                    } else {
+                        int doublings = Math.min(attempt - PARK_YIELD_COUNT, 7);
+                        LockSupport.parkNanos(Math.min(PARK_MAX_NANOS, PARK_MIN_NANOS << doublings));
+                    }
+                }
+            }
+        }
+    }
+
+    private final Buffer[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    /**
+     * The number of slots that the consumer has recycled. Written by the
+     * consumer only.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * The number of slots that the producer has published. Written by the
+     * producer only.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The value of {@code head} that the producer has seen most recently.
+     */
+    private long cachedHead;
+    /**
+     * The value of {@code tail} that the consumer has seen most recently.
+     */
+    private long cachedTail;
+    /**
+     * The producer while it waits in {@link #claim()}, or null.
+     */
+    private volatile Thread waitingProducer;
+    /**
+     * The consumer while it waits in {@link #take()}, or null.
+     */
+    private volatile Thread waitingConsumer;
+
+    private final AtomicLong maxSize = new AtomicLong();
+    private final AtomicLong fullCount = new AtomicLong();
+    private final AtomicLong emptyCount = new AtomicLong();
+
+    /**
+     * Creates a new instance with empty slots.
+     *
+     * @param capacity     the minimal number of slots, is rounded up to a
+     *                     power of two
+     * @param waitStrategy the wait strategy
+     */
+    public BufferRing(int capacity, WaitStrategy waitStrategy) {
+        this(capacity, waitStrategy, null);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param capacity     the minimal number of slots, is rounded up to a
+     *                     power of two
+     * @param waitStrategy the wait strategy
+     * @param initializer  is invoked for each slot, for example to
+     *                     allocate a data array of the required size,
+     *                     may be null
+     */
+    public BufferRing(int capacity, WaitStrategy waitStrategy, Consumer<Buffer> initializer) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity=" + capacity + " must be in the range [1, 2^30]");
+        }
+        int n = Integer.highestOneBit(capacity);
+        if (n < capacity) {
+            n <<= 1;
+        }
+        this.slots = new Buffer[n];
+        this.mask = n - 1;
+        this.waitStrategy = waitStrategy;
+        for (int i = 0; i < n; i++) {
+            slots[i] = new Buffer();
+            if (initializer != null) {
+                initializer.accept(slots[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the next free slot, or null if the ring is full.
+     * <p>
+     * The slot holds the data of its previous use. The caller must
+     * {@link #publish()} the slot before it claims another one.
+     *
+     * @return the slot or null
+     */
+    public Buffer tryClaim() {
+        long t = tail.get();
+        if (t - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= slots.length) {
+                return null;
+            }
+        }
+        return slots[(int) t & mask];
+    }
+
+    /**
+     * Returns the next free slot. Waits if the ring is full.
+     *
+     * @return the slot
+     * @throws InterruptedException if the thread has been interrupted while
+     *                              waiting
+     */
+    public Buffer claim() throws InterruptedException {
+        Buffer slot = tryClaim();
+        if (slot == null) {
+            fullCount.incrementAndGet();
+            waitingProducer = Thread.currentThread();
+            try {
+                for (int attempt = 0; (slot = tryClaim()) == null; attempt++) {
+                    waitStrategy.idle(attempt);
+                }
+            } finally {
+                waitingProducer = null;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Hands the slot that has been claimed most recently over to the
+     * consumer.
+     */
+    public void publish() {
+        long t = tail.get() + 1;
+        tail.lazySet(t);
+        long size = t - cachedHead;
+        if (size > maxSize.get()) {
+            maxSize.accumulateAndGet(size, Math::max);
+        }
+        unpark(waitingConsumer);
+    }
+
+    /**
+     * Returns the next published slot without removing it, or null if the
+     * ring is empty.
+     * <p>
+     * The caller must {@link #recycle()} the slot when it is done with it.
+     *
+     * @return the slot or null
+     */
+    public Buffer peek() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        return slots[(int) h & mask];
+    }
+
+    /**
+     * Returns the next published slot without removing it. Waits if the
+     * ring is empty.
+     *
+     * @return the slot
+     * @throws InterruptedException if the thread has been interrupted while
+     *                              waiting
+     */
+    public Buffer take() throws InterruptedException {
+        Buffer slot = peek();
+        if (slot == null) {
+            emptyCount.incrementAndGet();
+            waitingConsumer = Thread.currentThread();
+            try {
+                for (int attempt = 0; (slot = peek()) == null; attempt++) {
+                    waitStrategy.idle(attempt);
+                }
+            } finally {
+                waitingConsumer = null;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Hands the slot that has been returned by {@link #peek()} or
+     * {@link #take()} back to the producer.
+     */
+    public void recycle() {
+        head.lazySet(head.get() + 1);
+        unpark(waitingProducer);
+    }
+
+    /**
+     * Unparks a waiting thread. The thread may miss the wakeup if it
+     * registers itself just after the progress has been made, but then it
+     * only sleeps until its park time has elapsed.
+     */
+    private static void unpark(Thread waiting) {
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Returns the wait strategy.
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Returns the number of slots.
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Returns the number of published slots that have not been recycled yet.
+     * This is only a snapshot if the ring is in use.
+     */
+    public int size() {
+        long h = head.get();
+        return (int) Math.max(0, tail.get() - h);
+    }
+
+    /**
+     * Returns true if the ring has no published slots.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the highest number of slots that were in use when the producer
+     * published a slot. Since the producer does not always see the most
+     * recent progress of the consumer, this is an upper bound.
+     */
+    public int getMaxSize() {
+        return (int) maxSize.get();
+    }
+
+    /**
+     * Returns how many times the producer had to wait because the ring was
+     * full.
+     */
+    public long getFullCount() {
+        return fullCount.get();
+    }
+
+    /**
+     * Returns how many times the consumer had to wait because the ring was
+     * empty.
+     */
+    public long getEmptyCount() {
+        return emptyCount.get();
+    }
+}
@@ -20,11 +20,19 @@ public class CodecChain implements Codec {
     private Buffer tmpBuf;
     private int firstState;
     private int secondState;
+    /**
+     * The statistics of the codecs, or null if they are not instrumented.
+     * See {@link Instrumentation}.
+     */
+    private final StageStatistics firstStatistics;
+    private final StageStatistics secondStatistics;
 
     public CodecChain(Codec first, Codec second) {
         if (first == null || second == null) throw new IllegalArgumentException("first and second must not be null");
         this.first = first;
         this.second = second;
+        this.firstStatistics = Instrumentation.getStatistics(first);
+        this.secondStatistics = Instrumentation.getStatistics(second);
     }
 
     public static Codec createCodecChain(List<Codec> codecs) {
@@ -97,13 +105,16 @@ public class CodecChain implements Codec {
 
         if (CODEC_INPUT_NOT_CONSUMED == (secondState & CODEC_INPUT_NOT_CONSUMED)) {
             // => second codec needs to process tmpBuffer again
-            long start = (System.nanoTime() / 1_000_000);
-            secondState = second.process(tmpBuf, out);
+            secondState = processSecond(out);
             return secondState;
         }
 
 
+        long start = firstStatistics == null ? 0 : System.nanoTime();
         firstState = first.process(in, tmpBuf);
+        if (firstStatistics != null) {
+            firstStatistics.recordProcess(System.nanoTime() - start, in, tmpBuf, firstState);
+        }
         if (firstState == CODEC_FAILED) {
             return firstState;
         }
@@ -112,7 +123,7 @@ public class CodecChain implements Codec {
             return firstState;
         }
 
-        secondState = second.process(tmpBuf, out);
+        secondState = processSecond(out);
         if (secondState == CODEC_FAILED) {
             return secondState;
         }
@@ -120,6 +131,15 @@ public class CodecChain implements Codec {
         return (secondState & (-1 ^ CODEC_INPUT_NOT_CONSUMED)) | (firstState & (-1 ^ CODEC_OUTPUT_NOT_FILLED));
     }
 
+    private int processSecond(Buffer out) {
+        long start = secondStatistics == null ? 0 : System.nanoTime();
+        int state = second.process(tmpBuf, out);
+        if (secondStatistics != null) {
+            secondStatistics.recordProcess(System.nanoTime() - start, tmpBuf, out, state);
+        }
+        return state;
+    }
+
     @Override
     public String getName() {
         return first.getName() + ", " + second.getName();
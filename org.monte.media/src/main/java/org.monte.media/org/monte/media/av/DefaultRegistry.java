@@ -6,24 +6,61 @@ package org.monte.media.av;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.WeakHashMap;
+
+import static org.monte.media.av.FormatKeys.DataClassKey;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
 
 /**
  * This default {@link Registry} uses {@link ServiceLoader} to discover
  * {@link CodecSpi}s, {@link MovieReaderSpi}s, and {@link MovieWriterSpi}s.
+ * <p>
+ * On the first codec lookup, the registry creates one instance of each codec,
+ * and builds an index of the input and output formats that the codecs declare.
+ * The index is keyed by {@link FormatKeys#MediaTypeKey},
+ * {@link FormatKeys#EncodingKey} and {@link FormatKeys#DataClassKey}.
+ * Subsequent lookups only instantiate codecs which match the index.
+ * <p>
+ * Optionally, the registry can pool codecs that have been released with
+ * {@link #releaseCodec(Codec)}, see {@link #setCodecPoolCapacity(int)}.
  *
  * @author Werner Randelshofer
  */
 public class DefaultRegistry extends Registry {
 
+    /**
+     * The format keys that are used for indexing codecs.
+     */
+    private final static FormatKey<?>[] INDEX_KEYS = {MediaTypeKey, EncodingKey, DataClassKey};
+
     private List<CodecSpi> codecSpis;
+    private FormatIndex inputIndex;
+    private FormatIndex outputIndex;
+    /**
+     * Maximal number of pooled codecs per pool key.
+     */
+    private int codecPoolCapacity;
+    /**
+     * Pooled codecs. Guarded by {@code codecPool}.
+     */
+    private final Map<PoolKey, ArrayDeque<Codec>> codecPool = new HashMap<>();
+    /**
+     * The pool keys of the codecs that have been handed out.
+     * Guarded by {@code codecPool}.
+     */
+    private final Map<Codec, PoolKey> handedOutCodecs = new WeakHashMap<>();
     private List<MovieReaderSpi> readerSpis;
     private List<MovieWriterSpi> writerSpis;
     private Map<String, String> mimeTypeToExtensionMap;
@@ -39,6 +76,24 @@ public class DefaultRegistry extends Registry {
         return codecSpis;
     }
 
+    /**
+     * Builds the format indices if they have not been built yet.
+     */
+    private synchronized void ensureCodecIndex() {
+        if (inputIndex == null) {
+            List<CodecSpi> spis = getCodecSpis();
+            FormatIndex in = new FormatIndex(spis.size());
+            FormatIndex out = new FormatIndex(spis.size());
+            for (int i = 0; i < spis.size(); i++) {
+                Codec prototype = spis.get(i).create();
+                in.add(i, prototype.getInputFormats());
+                out.add(i, prototype.getOutputFormats(null));
+            }
+            inputIndex = in;
+            outputIndex = out;
+        }
+    }
+
     private synchronized Map<String, String> getMimeTypeToExtensionMap() {
         if (mimeTypeToExtensionMap == null) {
             mimeTypeToExtensionMap = new LinkedHashMap<>();
@@ -91,9 +146,26 @@ public class DefaultRegistry extends Registry {
 
     @Override
     public List<Codec> getCodecs(Format inputFormat, Format outputFormat) {
+        ensureCodecIndex();
+        List<CodecSpi> spis = getCodecSpis();
+        BitSet candidates = new BitSet(spis.size());
+        candidates.set(0, spis.size());
+        if (inputFormat != null) {
+            inputIndex.retainMatches(inputFormat, candidates);
+        }
+        if (outputFormat != null) {
+            outputIndex.retainMatches(outputFormat, candidates);
+        }
+
         List<Codec> codecs = new ArrayList<>();
-        for (CodecSpi spi : getCodecSpis()) {
-            Codec codec = spi.create();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            PoolKey key = new PoolKey(i, inputFormat, outputFormat);
+            Codec codec = takePooledCodec(key);
+            if (codec != null) {
+                codecs.add(codec);
+                continue;
+            }
+            codec = spis.get(i).create();
             if (inputFormat != null) {
                 Format actual = codec.setInputFormat(inputFormat);
                 if (actual == null) {
@@ -106,11 +178,80 @@ public class DefaultRegistry extends Registry {
                     continue;
                 }
             }
+            if (codecPoolCapacity > 0) {
+                synchronized (codecPool) {
+                    handedOutCodecs.put(codec, key);
+                }
+            }
             codecs.add(codec);
         }
         return Collections.unmodifiableList(codecs);
     }
 
+    private Codec takePooledCodec(PoolKey key) {
+        if (codecPoolCapacity <= 0) {
+            return null;
+        }
+        synchronized (codecPool) {
+            ArrayDeque<Codec> pooled = codecPool.get(key);
+            Codec codec = pooled == null ? null : pooled.poll();
+            if (codec != null) {
+                handedOutCodecs.put(codec, key);
+            }
+            return codec;
+        }
+    }
+
+    /**
+     * Resets the codec and puts it into the pool, if the codec has been
+     * obtained from this registry and the pool has capacity left.
+     *
+     * @param codec a codec
+     */
+    @Override
+    public void releaseCodec(Codec codec) {
+        if (codecPoolCapacity <= 0 || codec == null) {
+            return;
+        }
+        synchronized (codecPool) {
+            PoolKey key = handedOutCodecs.remove(codec);
+            if (key == null) {
+                return;
+            }
+            ArrayDeque<Codec> pooled = codecPool.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (pooled.size() < codecPoolCapacity) {
+                codec.reset();
+                pooled.add(codec);
+            }
+        }
+    }
+
+    /**
+     * Returns the maximal number of codecs that are pooled for each
+     * combination of codec, input format and output format.
+     */
+    public int getCodecPoolCapacity() {
+        return codecPoolCapacity;
+    }
+
+    /**
+     * Sets the maximal number of codecs that are pooled for each combination
+     * of codec, input format and output format. Set to 0 to disable pooling.
+     * <p>
+     * The default value is 0.
+     *
+     * @param newValue the new capacity
+     */
+    public void setCodecPoolCapacity(int newValue) {
+        synchronized (codecPool) {
+            codecPoolCapacity = Math.max(0, newValue);
+            if (codecPoolCapacity == 0) {
+                codecPool.clear();
+                handedOutCodecs.clear();
+            }
+        }
+    }
+
     @Override
     public String getExtension(Format ff) {
         return getMimeTypeToExtensionMap().get(ff.get(FormatKeys.MimeTypeKey));
@@ -194,4 +335,119 @@ public class DefaultRegistry extends Registry {
         return Collections.unmodifiableList(new ArrayList<>(result));
     }
 
+    /**
+     * Indexes the formats declared by the codecs.
+     * <p>
+     * For each index key and each value, the index holds the set of codecs
+     * that declare a format with this value. Codecs which declare a format
+     * without a value for an index key are wildcards for this key.
+     */
+    private static class FormatIndex {
+        private final Map<FormatKey<?>, Map<Object, BitSet>> byValue = new HashMap<>();
+        private final Map<FormatKey<?>, BitSet> wildcards = new HashMap<>();
+        /**
+         * Declared formats by codec index.
+         */
+        private final Format[][] formats;
+
+        FormatIndex(int size) {
+            formats = new Format[size][];
+            for (FormatKey<?> key : INDEX_KEYS) {
+                byValue.put(key, new HashMap<>());
+                wildcards.put(key, new BitSet(size));
+            }
+        }
+
+        void add(int codecIndex, Format[] declaredFormats) {
+            formats[codecIndex] = declaredFormats;
+            if (declaredFormats == null || declaredFormats.length == 0) {
+                // We know nothing about this codec, it must always be tried
+                for (FormatKey<?> key : INDEX_KEYS) {
+                    wildcards.get(key).set(codecIndex);
+                }
+                return;
+            }
+            for (Format f : declaredFormats) {
+                for (FormatKey<?> key : INDEX_KEYS) {
+                    Object value = f.get(key);
+                    if (value == null) {
+                        wildcards.get(key).set(codecIndex);
+                    } else {
+                        byValue.get(key).computeIfAbsent(value, k -> new BitSet(formats.length)).set(codecIndex);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes all codecs from the candidates set, that do not declare a
+         * format that matches the specified format in the index keys.
+         */
+        void retainMatches(Format query, BitSet candidates) {
+            for (FormatKey<?> key : INDEX_KEYS) {
+                Object value = query.get(key);
+                if (value != null) {
+                    BitSet matching = (BitSet) wildcards.get(key).clone();
+                    BitSet withValue = byValue.get(key).get(value);
+                    if (withValue != null) {
+                        matching.or(withValue);
+                    }
+                    candidates.and(matching);
+                }
+            }
+
+            // The index keys may match in different declared formats,
+            // check that at least one declared format matches in all keys.
+            Format indexQuery = query.intersectKeys(INDEX_KEYS);
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                Format[] declared = formats[i];
+                if (declared == null || declared.length == 0) {
+                    continue;
+                }
+                boolean matches = false;
+                for (Format f : declared) {
+                    if (f.matches(indexQuery)) {
+                        matches = true;
+                        break;
+                    }
+                }
+                if (!matches) {
+                    candidates.clear(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Key for pooled codecs.
+     */
+    private static class PoolKey {
+        private final int codecIndex;
+        private final Map<FormatKey<?>, Object> inputProperties;
+        private final Map<FormatKey<?>, Object> outputProperties;
+
+        PoolKey(int codecIndex, Format inputFormat, Format outputFormat) {
+            this.codecIndex = codecIndex;
+            this.inputProperties = inputFormat == null ? Collections.emptyMap() : inputFormat.getProperties();
+            this.outputProperties = outputFormat == null ? Collections.emptyMap() : outputFormat.getProperties();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PoolKey that = (PoolKey) o;
+            return codecIndex == that.codecIndex
+                    && inputProperties.equals(that.inputProperties)
+                    && outputProperties.equals(that.outputProperties);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = codecIndex;
+            result = 31 * result + inputProperties.hashCode();
+            result = 31 * result + outputProperties.hashCode();
+            return result;
+        }
+    }
 }
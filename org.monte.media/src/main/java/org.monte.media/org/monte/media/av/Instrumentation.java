@@ -0,0 +1,153 @@
+/*
+ * @(#)Instrumentation.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in instrumentation of media pipelines.
+ * <p>
+ * Instrumentation is disabled by default. It can be enabled with
+ * {@link #setEnabled(boolean)}, or by setting the system property
+ * {@value #ENABLED_PROPERTY} to {@code true}. Codecs, readers and writers
+ * are only instrumented if they are created or wrapped while the
+ * instrumentation is enabled.
+ * <p>
+ * The statistics of all instances of the same class are collected in one
+ * {@link StageStatistics} object. The statistics are named after the kind
+ * of the stage and the class name, for example {@code "codec PNGCodec"},
+ * {@code "read QuickTimeReader"} or {@code "write AVIWriter"}. Each
+ * statistics object is registered as an MXBean with the object name
+ * {@code org.monte.media:type=Stage,name="<name>"} at the platform
+ * MBean server.
+ */
+public final class Instrumentation {
+    /**
+     * The system property that enables the instrumentation at startup.
+     */
+    public final static String ENABLED_PROPERTY = "org.monte.media.instrumentation";
+
+    private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+    private final static ConcurrentHashMap<String, StageStatistics> statistics = new ConcurrentHashMap<>();
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Instrumentation() {
+    }
+
+    /**
+     * Returns true if the instrumentation is enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the instrumentation. Codecs, readers and writers
+     * that have already been instrumented keep recording.
+     */
+    public static void setEnabled(boolean newValue) {
+        enabled = newValue;
+    }
+
+    /**
+     * Returns the statistics with the specified name. Creates the
+     * statistics and registers them as an MXBean if they do not exist yet.
+     *
+     * @param name the name of the stage
+     * @return the statistics
+     */
+    public static StageStatistics getStatistics(String name) {
+        return statistics.computeIfAbsent(name, Instrumentation::register);
+    }
+
+    private static StageStatistics register(String name) {
+        StageStatistics s = new StageStatistics(name);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(s,
+                    new ObjectName("org.monte.media:type=Stage,name=" + ObjectName.quote(name)));
+        } catch (JMException | SecurityException e) {
+            // The statistics are still available through the snapshot API
+        }
+        return s;
+    }
+
+    /**
+     * Returns snapshots of all statistics, sorted by name.
+     */
+    public static List<StageStatistics.Snapshot> getSnapshots() {
+        List<StageStatistics.Snapshot> snapshots = new ArrayList<>();
+        for (StageStatistics s : statistics.values()) {
+            snapshots.add(s.getSnapshot());
+        }
+        snapshots.sort(Comparator.comparing(StageStatistics.Snapshot::name));
+        return snapshots;
+    }
+
+    /**
+     * Clears the counters of all statistics.
+     */
+    public static void reset() {
+        for (StageStatistics s : statistics.values()) {
+            s.reset();
+        }
+    }
+
+    /**
+     * Returns the statistics of a codec, or null if the instrumentation
+     * is disabled or if the codec is a {@link CodecChain}, which
+     * instruments its codecs itself.
+     */
+    static StageStatistics getStatistics(Codec codec) {
+        return enabled && !(codec instanceof CodecChain) && !(codec instanceof InstrumentedCodec)
+                ? getStatistics("codec " + codec.getClass().getSimpleName()) : null;
+    }
+
+    /**
+     * Returns an instrumented view of the codec if the instrumentation is
+     * enabled. Otherwise, returns the codec itself.
+     *
+     * @param codec a codec, may be null
+     * @return the instrumented codec
+     */
+    public static Codec instrument(Codec codec) {
+        StageStatistics s = codec == null ? null : getStatistics(codec);
+        return s == null ? codec : new InstrumentedCodec(codec, s);
+    }
+
+    /**
+     * Returns an instrumented view of the reader if the instrumentation is
+     * enabled. Otherwise, returns the reader itself. Only the methods that
+     * read samples are instrumented.
+     *
+     * @param reader a reader, may be null
+     * @return the instrumented reader
+     */
+    public static MovieReader instrument(MovieReader reader) {
+        return !enabled || reader == null || reader instanceof InstrumentedMovieReader ? reader
+                : new InstrumentedMovieReader(reader, getStatistics("read " + reader.getClass().getSimpleName()));
+    }
+
+    /**
+     * Returns an instrumented view of the writer if the instrumentation is
+     * enabled. Otherwise, returns the writer itself. Only the methods that
+     * write samples are instrumented.
+     *
+     * @param writer a writer, may be null
+     * @return the instrumented writer
+     */
+    public static MovieWriter instrument(MovieWriter writer) {
+        return !enabled || writer == null || writer instanceof InstrumentedMovieWriter ? writer
+                : new InstrumentedMovieWriter(writer, getStatistics("write " + writer.getClass().getSimpleName()));
+    }
+}
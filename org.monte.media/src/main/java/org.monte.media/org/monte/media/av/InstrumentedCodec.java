@@ -0,0 +1,73 @@
+/*
+ * @(#)InstrumentedCodec.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+/**
+ * Records the calls of {@link #process(Buffer, Buffer)} of a codec in a
+ * {@link StageStatistics} object.
+ */
+class InstrumentedCodec implements Codec {
+    private final Codec codec;
+    private final StageStatistics statistics;
+
+    InstrumentedCodec(Codec codec, StageStatistics statistics) {
+        this.codec = codec;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public Format[] getInputFormats() {
+        return codec.getInputFormats();
+    }
+
+    @Override
+    public Format[] getOutputFormats(Format input) {
+        return codec.getOutputFormats(input);
+    }
+
+    @Override
+    public Format setInputFormat(Format input) {
+        return codec.setInputFormat(input);
+    }
+
+    @Override
+    public Format getInputFormat() {
+        return codec.getInputFormat();
+    }
+
+    @Override
+    public Format setOutputFormat(Format output) {
+        return codec.setOutputFormat(output);
+    }
+
+    @Override
+    public Format getOutputFormat() {
+        return codec.getOutputFormat();
+    }
+
+    @Override
+    public int process(Buffer in, Buffer out) {
+        long start = System.nanoTime();
+        int result = codec.process(in, out);
+        statistics.recordProcess(System.nanoTime() - start, in, out, result);
+        return result;
+    }
+
+    @Override
+    public String getName() {
+        return codec.getName();
+    }
+
+    @Override
+    public void reset() {
+        codec.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "InstrumentedCodec{" + codec + "}";
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * @(#)InstrumentedMovieReader.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.monte.media.math.Rational;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Records the calls of the {@code read} methods of a movie reader in a
+ * {@link StageStatistics} object.
+ */
+class InstrumentedMovieReader implements MovieReader {
+    private final MovieReader reader;
+    private final StageStatistics statistics;
+
+    InstrumentedMovieReader(MovieReader reader, StageStatistics statistics) {
+        this.reader = reader;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void read(int track, Buffer buffer) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            reader.read(track, buffer);
+            failed = false;
+        } finally {
+            statistics.record(System.nanoTime() - start, 0,
+                    failed ? 0 : StageStatistics.byteLength(buffer), failed,
+                    !failed && buffer.isFlag(BufferFlag.DISCARD));
+        }
+    }
+
+    @Override
+    public BufferedImage read(int track, BufferedImage img) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage result = null;
+        boolean failed = true;
+        try {
+            result = reader.read(track, img);
+            failed = false;
+        } finally {
+            statistics.record(System.nanoTime() - start, 0, 0, failed, !failed && result == null);
+        }
+        return result;
+    }
+
+    @Override
+    public int getSampleCount(int track) throws IOException {
+        return reader.getSampleCount(track);
+    }
+
+    @Override
+    public int getTrackCount() throws IOException {
+        return reader.getTrackCount();
+    }
+
+    @Override
+    public int findTrack(int fromTrack, Format format) throws IOException {
+        return reader.findTrack(fromTrack, format);
+    }
+
+    @Override
+    public Rational getMovieDuration() throws IOException {
+        return reader.getMovieDuration();
+    }
+
+    @Override
+    public Rational getTrackDuration(int track) throws IOException {
+        return reader.getTrackDuration(track);
+    }
+
+    @Override
+    public long findSampleAtTime(int track, Rational seconds) throws IOException {
+        return reader.findSampleAtTime(track, seconds);
+    }
+
+    @Override
+    public Rational getSampleTime(int track, long sample) throws IOException {
+        return reader.getSampleTime(track, sample);
+    }
+
+    @Override
+    public Rational getSampleDuration(int track, long sample) throws IOException {
+        return reader.getSampleDuration(track, sample);
+    }
+
+    @Override
+    public Format getFileFormat() throws IOException {
+        return reader.getFileFormat();
+    }
+
+    @Override
+    public Format getFormat(int track) throws IOException {
+        return reader.getFormat(track);
+    }
+
+    @Override
+    public long getChunkCount(int track) throws IOException {
+        return reader.getChunkCount(track);
+    }
+
+    @Override
+    public int nextTrack() throws IOException {
+        return reader.nextTrack();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    @Override
+    public void setMovieReadTime(Rational newValue) throws IOException {
+        reader.setMovieReadTime(newValue);
+    }
+
+    @Override
+    public Rational getReadTime(int track) throws IOException {
+        return reader.getReadTime(track);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * @(#)InstrumentedMovieWriter.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.monte.media.math.Rational;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Records the calls of the {@code write} methods of a movie writer in a
+ * {@link StageStatistics} object.
+ */
+class InstrumentedMovieWriter implements MovieWriter {
+    private final MovieWriter writer;
+    private final StageStatistics statistics;
+
+    InstrumentedMovieWriter(MovieWriter writer, StageStatistics statistics) {
+        this.writer = writer;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void write(int track, Buffer buf) throws IOException {
+        long start = System.nanoTime();
+        long bytesIn = StageStatistics.byteLength(buf);
+        boolean discarded = buf.isFlag(BufferFlag.DISCARD);
+        boolean failed = true;
+        try {
+            writer.write(track, buf);
+            failed = false;
+        } finally {
+            statistics.record(System.nanoTime() - start, bytesIn, 0, failed, discarded);
+        }
+    }
+
+    @Override
+    public void write(int track, BufferedImage image, long duration) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            writer.write(track, image, duration);
+            failed = false;
+        } finally {
+            statistics.record(System.nanoTime() - start, 0, 0, failed, false);
+        }
+    }
+
+    @Override
+    public Format getFileFormat() throws IOException {
+        return writer.getFileFormat();
+    }
+
+    @Override
+    public int addTrack(Format format) throws IOException {
+        return writer.addTrack(format);
+    }
+
+    @Override
+    public void setCodec(int trackIndex, Codec codec) {
+        writer.setCodec(trackIndex, codec);
+    }
+
+    @Override
+    public Format getFormat(int track) {
+        return writer.getFormat(track);
+    }
+
+    @Override
+    public int getTrackCount() {
+        return writer.getTrackCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    @Override
+    public boolean isDataLimitReached() {
+        return writer.isDataLimitReached();
+    }
+
+    @Override
+    public Rational getDuration(int track) {
+        return writer.getDuration(track);
+    }
+
+    @Override
+    public boolean isEmpty(int track) {
+        return writer.isEmpty(track);
+    }
+}
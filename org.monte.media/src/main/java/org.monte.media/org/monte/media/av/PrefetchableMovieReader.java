@@ -0,0 +1,56 @@
+/*
+ * @(#)PrefetchableMovieReader.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import java.io.IOException;
+
+/**
+ * A {@link MovieReader} that can tell where the data of its samples is
+ * stored in the file, and that can read a range of the file in advance.
+ * <p>
+ * A {@link ReadAheadMovieReader} uses this to read the data of many
+ * upcoming samples with a single sequential read, instead of seeking to
+ * each sample.
+ */
+public interface PrefetchableMovieReader extends MovieReader {
+    /**
+     * Returns the index of the sample that is read next from the specified
+     * track.
+     *
+     * @param track the track number
+     * @return the sample index, equal to {@link #getSampleCount} if the end
+     * of the track has been reached
+     */
+    long getReadIndex(int track) throws IOException;
+
+    /**
+     * Returns the position of the data of the specified sample in the file.
+     *
+     * @param track  the track number
+     * @param sample the sample index
+     * @return the position in bytes
+     */
+    long getSampleOffset(int track, long sample) throws IOException;
+
+    /**
+     * Returns the length of the data of the specified sample.
+     *
+     * @param track  the track number
+     * @param sample the sample index
+     * @return the length in bytes
+     */
+    long getSampleLength(int track, long sample) throws IOException;
+
+    /**
+     * Reads the specified range of the file. Until the next call of this
+     * method, samples whose data lies completely inside the range are read
+     * from memory.
+     *
+     * @param offset the position of the range in the file
+     * @param length the length of the range, 0 releases the range
+     */
+    void prefetch(long offset, int length) throws IOException;
+}
@@ -0,0 +1,640 @@
+/*
+ * @(#)ReadAheadMovieReader.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.monte.media.math.Rational;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.monte.media.av.BufferFlag.DISCARD;
+import static org.monte.media.av.BufferFlag.END_OF_MEDIA;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.MIME_JAVA;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
+
+/**
+ * A {@link MovieReader} that reads the samples of another movie reader
+ * ahead of time on a background thread.
+ * <p>
+ * The background thread reads the samples in the order in which they are
+ * expected to be consumed: either in the order given by
+ * {@link MovieReader#nextTrack()}, or, if a set of tracks is specified, in
+ * the order of the time stamps of the samples of these tracks. The samples
+ * are kept in memory until the byte budget is used up. The {@code read}
+ * methods hand out the samples that are ready, and only block if the
+ * background thread has not read the requested sample yet.
+ * <p>
+ * If the reader is a {@link PrefetchableMovieReader}, the background thread
+ * reads the data of the upcoming samples of all tracks with a single
+ * sequential read of up to {@code blockSize} bytes, instead of seeking to
+ * each sample. The block is not counted in the byte budget.
+ * <p>
+ * The methods that do not read samples are forwarded to the reader. Since
+ * movie readers are not thread-safe, the background thread and the
+ * forwarded methods hold the same lock while they access the reader. A
+ * forwarded method may therefore wait until the background thread has read
+ * one sample. {@link #setMovieReadTime} discards all samples that have been
+ * read ahead.
+ * <p>
+ * Errors that occur on the background thread are thrown by the next
+ * method that waits for a sample.
+ * <p>
+ * The methods that read samples, and {@link #setMovieReadTime}, are
+ * intended for a single consumer thread. The forwarded methods can be called
+ * from any thread.
+ */
+public class ReadAheadMovieReader implements MovieReader {
+    /**
+     * The default byte budget is 16 MiB.
+     */
+    public final static long DEFAULT_BYTE_BUDGET = 1L << 24;
+    /**
+     * The default block size is 1 MiB.
+     */
+    public final static int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private final MovieReader reader;
+    /**
+     * The tracks that are read ahead.
+     */
+    private final int[] readTracks;
+    private final boolean[] isReadTrack;
+    /**
+     * True if the tracks are read in the order given by
+     * {@link MovieReader#nextTrack()}.
+     */
+    private final boolean byNextTrack;
+    private final long byteBudget;
+    private final int blockSize;
+    private final ExecutorService loader;
+
+    /**
+     * Guards all accesses to the reader, which is not thread-safe.
+     * {@code lock} may be acquired while holding this lock, but not the
+     * other way round.
+     */
+    private final Object readerLock = new Object();
+    private final Object lock = new Object();
+    /**
+     * The samples that have been read ahead, for each track.
+     */
+    private final ArrayDeque<Buffer>[] queues;
+    /**
+     * The tracks of the samples in the order in which they have been read.
+     */
+    private final ArrayDeque<Integer> order = new ArrayDeque<>();
+    /**
+     * Buffers that can be reused by the background thread.
+     */
+    private final ArrayDeque<Buffer> free = new ArrayDeque<>();
+    private final boolean[] finished;
+    /**
+     * The time of the next sample that the background thread reads from
+     * each track.
+     */
+    private final Rational[] readTimes;
+    private long queuedBytes;
+    /**
+     * The number of consumers that wait for a sample. The background thread
+     * exceeds the byte budget while a consumer is waiting.
+     */
+    private int waiting;
+    private boolean stopped;
+    private boolean done;
+    private boolean closed;
+    private Throwable failure;
+    private Future<?> pendingLoad;
+
+    /**
+     * The prefetched range of the file. Only accessed by the background
+     * thread.
+     */
+    private long windowStart, windowEnd;
+
+    private Buffer[] inputBuffers;
+    private Codec[] codecs;
+
+    /**
+     * Creates a new instance that reads all tracks in the order given by
+     * {@link MovieReader#nextTrack()}.
+     *
+     * @param reader the reader
+     * @throws IOException if the reader fails
+     */
+    public ReadAheadMovieReader(MovieReader reader) throws IOException {
+        this(reader, null, DEFAULT_BYTE_BUDGET, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param reader the reader
+     * @param tracks the tracks that are read in the order of the time
+     *               stamps of their samples, or null to read all tracks
+     *               in the order given by {@link MovieReader#nextTrack()}
+     * @throws IOException if the reader fails
+     */
+    public ReadAheadMovieReader(MovieReader reader, int[] tracks) throws IOException {
+        this(reader, tracks, DEFAULT_BYTE_BUDGET, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param reader     the reader
+     * @param tracks     the tracks that are read in the order of the time
+     *                   stamps of their samples, or null to read all tracks
+     *                   in the order given by {@link MovieReader#nextTrack()}
+     * @param byteBudget the number of bytes of samples that are read
+     *                   ahead, must be at least 1
+     * @param blockSize  the maximal number of bytes that are read with a
+     *                   single read, if the reader is a
+     *                   {@link PrefetchableMovieReader}, must be at least 1
+     * @throws IOException if the reader fails
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ReadAheadMovieReader(MovieReader reader, int[] tracks, long byteBudget, int blockSize) throws IOException {
+        if (byteBudget < 1) {
+            throw new IllegalArgumentException("byteBudget=" + byteBudget + " must be at least 1");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize=" + blockSize + " must be at least 1");
+        }
+        this.reader = reader;
+        this.byteBudget = byteBudget;
+        this.blockSize = blockSize;
+        int n = reader.getTrackCount();
+        byNextTrack = tracks == null;
+        if (byNextTrack) {
+            tracks = new int[n];
+            for (int t = 0; t < n; t++) {
+                tracks[t] = t;
+            }
+        }
+        readTracks = tracks.clone();
+        isReadTrack = new boolean[n];
+        for (int t : readTracks) {
+            if (t < 0 || t >= n) {
+                throw new IllegalArgumentException("track=" + t + " must be between 0 and " + (n - 1));
+            }
+            isReadTrack[t] = true;
+        }
+        queues = new ArrayDeque[n];
+        for (int t = 0; t < n; t++) {
+            queues[t] = new ArrayDeque<>();
+        }
+        finished = new boolean[n];
+        readTimes = new Rational[n];
+        inputBuffers = new Buffer[n];
+        codecs = new Codec[n];
+        loader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "ReadAheadMovieReader");
+            t.setDaemon(true);
+            return t;
+        });
+        start();
+    }
+
+    /**
+     * Starts the background thread at the current read time of the reader.
+     */
+    private void start() throws IOException {
+        synchronized (readerLock) {
+            for (int t : readTracks) {
+                readTimes[t] = reader.getReadTime(t);
+            }
+        }
+        windowStart = windowEnd = 0;
+        synchronized (lock) {
+            stopped = false;
+            pendingLoad = loader.submit(this::load);
+        }
+    }
+
+    /**
+     * Stops the background thread, and discards all samples that have been
+     * read ahead.
+     */
+    private void stop() throws IOException {
+        Future<?> load;
+        synchronized (lock) {
+            stopped = true;
+            load = pendingLoad;
+            pendingLoad = null;
+            lock.notifyAll();
+        }
+        if (load != null) {
+            try {
+                load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for read-ahead");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+        synchronized (lock) {
+            for (ArrayDeque<Buffer> q : queues) {
+                free.addAll(q);
+                q.clear();
+            }
+            order.clear();
+            Arrays.fill(finished, false);
+            queuedBytes = 0;
+            done = false;
+            failure = null;
+        }
+        if (reader instanceof PrefetchableMovieReader p) {
+            synchronized (readerLock) {
+                p.prefetch(0, 0);
+            }
+        }
+    }
+
+    /**
+     * Reads samples until all tracks are finished, the background thread is
+     * stopped, or an error occurs. This method runs on the background thread.
+     */
+    private void load() {
+        try {
+            while (true) {
+                Buffer buf;
+                synchronized (lock) {
+                    while (!stopped && waiting == 0 && queuedBytes >= byteBudget) {
+                        lock.wait();
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                    buf = free.isEmpty() ? new Buffer() : free.poll();
+                }
+                int track;
+                synchronized (readerLock) {
+                    track = selectTrack();
+                    if (track >= 0) {
+                        if (reader instanceof PrefetchableMovieReader p) {
+                            prefetch(p, track);
+                        }
+                        reader.read(track, buf);
+                    }
+                }
+                if (track < 0) {
+                    synchronized (lock) {
+                        done = true;
+                        lock.notifyAll();
+                    }
+                    return;
+                }
+                synchronized (lock) {
+                    if (buf.isFlag(END_OF_MEDIA)) {
+                        finished[track] = true;
+                        free.add(buf);
+                    } else {
+                        queues[track].add(buf);
+                        order.add(track);
+                        queuedBytes += buf.length;
+                        readTimes[track] = buf.getBufferEndTimestamp();
+                    }
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            synchronized (lock) {
+                failure = e;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the track from which the background thread reads the next
+     * sample, or -1 if all tracks are finished.
+     */
+    private int selectTrack() throws IOException {
+        if (byNextTrack) {
+            return reader.nextTrack();
+        }
+        int next = -1;
+        synchronized (lock) {
+            for (int t : readTracks) {
+                if (!finished[t] && (next == -1 || readTimes[t].compareTo(readTimes[next]) < 0)) {
+                    next = t;
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Ensures that the data of the next sample of the specified track has
+     * been prefetched. If not, prefetches a block that starts with the next
+     * sample, and that ends with the last upcoming sample of any track that
+     * fits into the block.
+     */
+    private void prefetch(PrefetchableMovieReader p, int track) throws IOException {
+        long sample = p.getReadIndex(track);
+        if (sample >= p.getSampleCount(track)) {
+            return;
+        }
+        long start = p.getSampleOffset(track, sample);
+        long end = start + p.getSampleLength(track, sample);
+        if (start >= windowStart && end <= windowEnd) {
+            return;
+        }
+        long limit = Math.max(end, start + blockSize);
+        if (limit - start > Integer.MAX_VALUE) {
+            return;
+        }
+        for (int t : readTracks) {
+            for (long s = p.getReadIndex(t), n = p.getSampleCount(t); s < n; s++) {
+                long offset = p.getSampleOffset(t, s);
+                long sampleEnd = offset + p.getSampleLength(t, s);
+                if (offset < start || sampleEnd > limit) {
+                    break;
+                }
+                end = Math.max(end, sampleEnd);
+            }
+        }
+        p.prefetch(start, (int) (end - start));
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    /**
+     * Waits until a sample of the specified track has been read ahead.
+     * Must be called while holding the lock.
+     *
+     * @return the sample, or null if the end of the track has been reached
+     */
+    private Buffer awaitSample(int track) throws IOException {
+        if (!isReadTrack[track]) {
+            throw new IllegalArgumentException("track=" + track + " is not read ahead");
+        }
+        while (queues[track].isEmpty()) {
+            if (failure != null) {
+                throw failure instanceof IOException ? (IOException) failure : new IOException(failure);
+            }
+            if (closed) {
+                throw new IOException("Reader is closed.");
+            }
+            if (finished[track] || done) {
+                return null;
+            }
+            awaitLoader();
+        }
+        return queues[track].peek();
+    }
+
+    /**
+     * Waits until the background thread has made progress. Must be called
+     * while holding the lock.
+     */
+    private void awaitLoader() throws IOException {
+        waiting++;
+        lock.notifyAll();
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for read-ahead");
+        } finally {
+            waiting--;
+        }
+    }
+
+    @Override
+    public void read(int track, Buffer buffer) throws IOException {
+        synchronized (lock) {
+            Buffer ready = awaitSample(track);
+            if (ready == null) {
+                buffer.setFlagsTo(END_OF_MEDIA, DISCARD);
+                buffer.length = 0;
+                return;
+            }
+            queues[track].poll();
+            order.removeFirstOccurrence(track);
+            queuedBytes -= ready.length;
+
+            // Hand over the data, and give the array of the buffer to the
+            // background thread for reuse
+            Object data = buffer.data;
+            buffer.setMetaTo(ready);
+            buffer.data = ready.data;
+            buffer.offset = ready.offset;
+            buffer.length = ready.length;
+            buffer.header = ready.header;
+            buffer.headerOffset = ready.headerOffset;
+            buffer.headerLength = ready.headerLength;
+            buffer.dirtyRegions = null;
+            ready.data = data instanceof byte[] ? data : null;
+            ready.header = null;
+            free.add(ready);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Reads an image. The samples of the track are decoded with a decoder
+     * from the {@link Registry}.
+     *
+     * @param track The track number
+     * @param img   An image that can be reused if it fits the media format of the
+     *              track. Pass null to create a new image on each read.
+     * @return An image or null if the end of the media has been reached.
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public BufferedImage read(int track, BufferedImage img) throws IOException {
+        if (codecs[track] == null) {
+            createCodec(track);
+        }
+        Buffer buf = new Buffer();
+        buf.data = img;
+        do {
+            read(track, inputBuffers[track]);
+            codecs[track].process(inputBuffers[track], buf);
+        } while (buf.isFlag(DISCARD) && !buf.isFlag(END_OF_MEDIA));
+
+        if (buf.isFlag(END_OF_MEDIA)) {
+            return null;
+        }
+        return (BufferedImage) buf.data;
+    }
+
+    private void createCodec(int track) throws IOException {
+        Format fmt = getFormat(track);
+        if (fmt.get(MediaTypeKey) != FormatKeys.MediaType.VIDEO) {
+            throw new IOException("Track " + track + " is not a video track. format=" + fmt);
+        }
+        Codec codec = Registry.getInstance().getDecoder(fmt);
+        if (codec == null) {
+            throw new IOException("Track " + track + " no codec found for format " + fmt);
+        }
+        if (null == codec.setInputFormat(fmt)) {
+            throw new IOException("Track " + track + " codec " + codec + " does not support input format " + fmt);
+        }
+        Format outFormat = fmt.prepend(MediaTypeKey, FormatKeys.MediaType.VIDEO,
+                MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class);
+        if (null == codec.setOutputFormat(outFormat)) {
+            throw new IOException("Track " + track + " codec " + codec + " does not support output format " + outFormat);
+        }
+        inputBuffers[track] = new Buffer();
+        codecs[track] = codec;
+    }
+
+    /**
+     * Returns the track of the next sample that has been read ahead.
+     *
+     * @return Index of next track or -1 if end of media reached.
+     */
+    @Override
+    public int nextTrack() throws IOException {
+        synchronized (lock) {
+            while (order.isEmpty()) {
+                if (failure != null) {
+                    throw failure instanceof IOException ? (IOException) failure : new IOException(failure);
+                }
+                if (closed) {
+                    throw new IOException("Reader is closed.");
+                }
+                if (done) {
+                    return -1;
+                }
+                awaitLoader();
+            }
+            return order.peek();
+        }
+    }
+
+    @Override
+    public Rational getReadTime(int track) throws IOException {
+        synchronized (lock) {
+            Buffer ready = awaitSample(track);
+            return ready != null ? ready.timeStamp : readTimes[track];
+        }
+    }
+
+    @Override
+    public void setMovieReadTime(Rational newValue) throws IOException {
+        stop();
+        synchronized (readerLock) {
+            reader.setMovieReadTime(newValue);
+        }
+        start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            stop();
+        } finally {
+            synchronized (lock) {
+                closed = true;
+            }
+            loader.shutdown();
+            synchronized (readerLock) {
+                reader.close();
+            }
+        }
+    }
+
+    @Override
+    public int getSampleCount(int track) throws IOException {
+        synchronized (readerLock) {
+            return reader.getSampleCount(track);
+        }
+    }
+
+    @Override
+    public int getTrackCount() throws IOException {
+        synchronized (readerLock) {
+            return reader.getTrackCount();
+        }
+    }
+
+    @Override
+    public int findTrack(int fromTrack, Format format) throws IOException {
+        synchronized (readerLock) {
+            return reader.findTrack(fromTrack, format);
+        }
+    }
+
+    @Override
+    public Rational getMovieDuration() throws IOException {
+        synchronized (readerLock) {
+            return reader.getMovieDuration();
+        }
+    }
+
+    @Override
+    public Rational getTrackDuration(int track) throws IOException {
+        synchronized (readerLock) {
+            return reader.getTrackDuration(track);
+        }
+    }
+
+    @Override
+    public long findSampleAtTime(int track, Rational seconds) throws IOException {
+        synchronized (readerLock) {
+            return reader.findSampleAtTime(track, seconds);
+        }
+    }
+
+    @Override
+    public Rational getSampleTime(int track, long sample) throws IOException {
+        synchronized (readerLock) {
+            return reader.getSampleTime(track, sample);
+        }
+    }
+
+    @Override
+    public Rational getSampleDuration(int track, long sample) throws IOException {
+        synchronized (readerLock) {
+            return reader.getSampleDuration(track, sample);
+        }
+    }
+
+    @Override
+    public Format getFileFormat() throws IOException {
+        synchronized (readerLock) {
+            return reader.getFileFormat();
+        }
+    }
+
+    @Override
+    public Format getFormat(int track) throws IOException {
+        synchronized (readerLock) {
+            return reader.getFormat(track);
+        }
+    }
+
+    @Override
+    public long getChunkCount(int track) throws IOException {
+        synchronized (readerLock) {
+            return reader.getChunkCount(track);
+        }
+    }
+}
@@ -69,6 +69,19 @@ public abstract class Registry {
      */
     public abstract List<Codec> getCodecs(Format inputFormat, Format outputFormat);
 
+    /**
+     * Returns a codec that has been obtained from this registry and which
+     * is no longer in use.
+     * <p>
+     * A registry may reset the codec and hand it out again.
+     * This implementation does nothing.
+     *
+     * @param codec a codec that is no longer in use
+     */
+    public void releaseCodec(Codec codec) {
+        // empty
+    }
+
     /**
      * Gets the first codec which can decode the specified format.
      *
@@ -0,0 +1,210 @@
+/*
+ * @(#)StageStatistics.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the call counts, latencies and data volumes of one stage of a
+ * media pipeline, for example of a codec, a movie reader or a movie writer.
+ * <p>
+ * Instances are obtained from {@link Instrumentation#getStatistics(String)}.
+ * Recording does not allocate memory, and can be done from multiple threads.
+ */
+public class StageStatistics implements StageStatisticsMXBean {
+    /**
+     * An immutable snapshot of the statistics.
+     *
+     * @param name         the name of the stage
+     * @param callCount    the number of calls
+     * @param failedCount  the number of calls that failed
+     * @param discardCount the number of calls that produced a discarded buffer
+     * @param bytesIn      the number of bytes that the stage has received
+     * @param bytesOut     the number of bytes that the stage has produced
+     * @param totalNanos   the total time spent in the stage
+     * @param meanNanos    the mean latency of a call
+     * @param maxNanos     the maximal latency of a call
+     * @param p50Nanos     the median latency of a call
+     * @param p99Nanos     the 99th percentile of the latency of a call
+     * @param p999Nanos    the 99.9th percentile of the latency of a call
+     */
+    public record Snapshot(String name, long callCount, long failedCount, long discardCount,
+                           long bytesIn, long bytesOut, long totalNanos, double meanNanos,
+                           long maxNanos, long p50Nanos, long p99Nanos, long p999Nanos) {
+    }
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder discardCount = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param name the name of the stage
+     */
+    public StageStatistics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param elapsedNanos the latency of the call
+     * @param bytesIn      the number of bytes that the call has received
+     * @param bytesOut     the number of bytes that the call has produced
+     * @param failed       whether the call failed
+     * @param discarded    whether the call produced a discarded buffer
+     */
+    public void record(long elapsedNanos, long bytesIn, long bytesOut, boolean failed, boolean discarded) {
+        latency.record(elapsedNanos);
+        if (bytesIn != 0) {
+            this.bytesIn.add(bytesIn);
+        }
+        if (bytesOut != 0) {
+            this.bytesOut.add(bytesOut);
+        }
+        if (failed) {
+            failedCount.increment();
+        }
+        if (discarded) {
+            discardCount.increment();
+        }
+    }
+
+    /**
+     * Records a call of {@link Codec#process(Buffer, Buffer)}.
+     *
+     * @param elapsedNanos the latency of the call
+     * @param in           the input buffer
+     * @param out          the output buffer
+     * @param result       the result of the call
+     */
+    public void recordProcess(long elapsedNanos, Buffer in, Buffer out, int result) {
+        boolean failed = result == Codec.CODEC_FAILED;
+        boolean consumed = (result & Codec.CODEC_INPUT_NOT_CONSUMED) == 0;
+        boolean filled = (result & Codec.CODEC_OUTPUT_NOT_FILLED) == 0;
+        record(elapsedNanos,
+                consumed && !failed ? byteLength(in) : 0,
+                filled && !failed ? byteLength(out) : 0,
+                failed,
+                filled && !failed && out.isFlag(BufferFlag.DISCARD));
+    }
+
+    /**
+     * Returns the number of bytes in the data of a buffer, or 0 if the
+     * buffer is discarded or its data is not an array of bytes.
+     */
+    static long byteLength(Buffer buf) {
+        if (buf == null || buf.isFlag(BufferFlag.DISCARD)) {
+            return 0;
+        }
+        return buf.data instanceof byte[] || buf.data instanceof ByteBuffer ? buf.length : 0;
+    }
+
+    /**
+     * Returns the latency histogram.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(name, getCallCount(), getFailedCount(), getDiscardCount(),
+                getBytesIn(), getBytesOut(), getTotalNanos(), getMeanNanos(),
+                getMaxNanos(), getP50Nanos(), getP99Nanos(), getP999Nanos());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCallCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    @Override
+    public long getDiscardCount() {
+        return discardCount.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getTotalNanos() {
+        return latency.getTotal();
+    }
+
+    @Override
+    public double getMeanNanos() {
+        return latency.getMean();
+    }
+
+    @Override
+    public long getMaxNanos() {
+        return latency.getMax();
+    }
+
+    @Override
+    public long getP50Nanos() {
+        return latency.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getP99Nanos() {
+        return latency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getP999Nanos() {
+        return latency.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        failedCount.reset();
+        discardCount.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "StageStatistics{" +
+                "name='" + name + '\'' +
+                ", calls=" + getCallCount() +
+                ", meanNanos=" + (long) getMeanNanos() +
+                ", p99Nanos=" + getP99Nanos() +
+                ", maxNanos=" + getMaxNanos() +
+                ", bytesIn=" + getBytesIn() +
+                ", bytesOut=" + getBytesOut() +
+                ", failed=" + getFailedCount() +
+                ", discarded=" + getDiscardCount() +
+                '}';
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * @(#)StageStatisticsMXBean.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+/**
+ * Management interface of {@link StageStatistics}.
+ * <p>
+ * All latencies are in nanoseconds.
+ */
+public interface StageStatisticsMXBean {
+    /**
+     * Returns the name of the stage.
+     */
+    String getName();
+
+    /**
+     * Returns the number of calls.
+     */
+    long getCallCount();
+
+    /**
+     * Returns the number of calls that failed.
+     */
+    long getFailedCount();
+
+    /**
+     * Returns the number of calls that produced a discarded buffer.
+     */
+    long getDiscardCount();
+
+    /**
+     * Returns the number of bytes that the stage has received.
+     */
+    long getBytesIn();
+
+    /**
+     * Returns the number of bytes that the stage has produced.
+     */
+    long getBytesOut();
+
+    /**
+     * Returns the total time spent in the stage.
+     */
+    long getTotalNanos();
+
+    /**
+     * Returns the mean latency of a call.
+     */
+    double getMeanNanos();
+
+    /**
+     * Returns the maximal latency of a call.
+     */
+    long getMaxNanos();
+
+    /**
+     * Returns the median latency of a call.
+     */
+    long getP50Nanos();
+
+    /**
+     * Returns the 99th percentile of the latency of a call.
+     */
+    long getP99Nanos();
+
+    /**
+     * Returns the 99.9th percentile of the latency of a call.
+     */
+    long getP999Nanos();
+
+    /**
+     * Clears all counters.
+     */
+    void reset();
+}
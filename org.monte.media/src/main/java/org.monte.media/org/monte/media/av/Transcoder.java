@@ -0,0 +1,676 @@
+/*
+ * @(#)Transcoder.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.monte.media.math.Rational;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.monte.media.av.BufferFlag.DISCARD;
+import static org.monte.media.av.BufferFlag.END_OF_MEDIA;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.MIME_MP4;
+import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
+
+/**
+ * Transcodes all audio and video tracks of a movie file into another movie
+ * file.
+ * <p>
+ * The transcoder runs the following stages, each on its own thread:
+ * <ol>
+ *     <li>A reader reads the samples of all tracks from the
+ *     {@link MovieReader} in playback sequence.</li>
+ *     <li>For each track that needs to be converted, a codec stage decodes
+ *     the samples, filters them, and encodes them into the output format.
+ *     Tracks that already have the output format are passed through.</li>
+ *     <li>A muxer writes the encoded samples of all tracks in the order of
+ *     their time stamps into the {@link MovieWriter}. The muxer runs on the
+ *     thread that invokes {@link #transcode()}.</li>
+ * </ol>
+ * The stages are connected by {@link BufferRing}s. A full ring blocks the
+ * stage that fills it, so that a slow stage slows down the stages before
+ * it, and the number of samples in flight is bounded.
+ * <p>
+ * The output format of a track is chosen with
+ * {@link Registry#suggestOutputFormats(Format, Format)}, unless a format has
+ * been specified for its media type with
+ * {@link #setOutputFormat(FormatKeys.MediaType, Format)}. Tracks for which
+ * no output format or no codec can be found are skipped.
+ * <p>
+ * If a {@link Semaphore} has been set with {@link #setCpuPermits(Semaphore)},
+ * each codec stage holds a permit while it processes a sample. This allows
+ * multiple transcoders to share a common CPU budget, see
+ * {@link TranscodingEngine}.
+ * <p>
+ * If {@link Instrumentation} is enabled, the reader, the codecs and the
+ * writer record their statistics.
+ */
+public class Transcoder {
+    /**
+     * The watermark of the reader after it has read all samples.
+     */
+    private final static Rational END_OF_INPUT = new Rational(Integer.MAX_VALUE, 1);
+
+    /**
+     * The stages of a track.
+     */
+    private static class TrackStage {
+        final int inputTrack;
+        final int outputTrack;
+        final Format outputFormat;
+        /**
+         * The codecs, or an empty list if the track is passed through.
+         */
+        final List<Codec> codecs;
+        final Codec codec;
+        /**
+         * The samples that have been read. This is null if the track is
+         * passed through.
+         */
+        final BufferRing input;
+        /**
+         * The samples that are ready to be written.
+         */
+        final BufferRing output;
+        /**
+         * The number of samples that have been published into
+         * {@code input} but whose output has not been published into
+         * {@code output} yet.
+         */
+        final AtomicInteger pending = new AtomicInteger();
+        /**
+         * Set by the muxer when it has received the end of the track.
+         */
+        boolean ended;
+
+        TrackStage(int inputTrack, int outputTrack, Format outputFormat, List<Codec> codecs,
+                   int capacity, BufferRing.WaitStrategy waitStrategy) {
+            this.inputTrack = inputTrack;
+            this.outputTrack = outputTrack;
+            this.outputFormat = outputFormat;
+            this.codecs = codecs;
+            this.codec = Instrumentation.instrument(CodecChain.createCodecChain(codecs));
+            this.input = codec == null ? null : new BufferRing(capacity, waitStrategy);
+            this.output = new BufferRing(capacity, waitStrategy);
+        }
+    }
+
+    private final File inputFile;
+    private final File outputFile;
+    private Format outputFileFormat;
+    private final Map<FormatKeys.MediaType, Format> outputFormats = new EnumMap<>(FormatKeys.MediaType.class);
+    private final Map<FormatKeys.MediaType, Function<Format, Codec>> filters = new EnumMap<>(FormatKeys.MediaType.class);
+    private Registry registry = Registry.getInstance();
+    private Semaphore cpuPermits;
+    private int queueCapacity = 8;
+    private BufferRing.WaitStrategy waitStrategy = BufferRing.WaitStrategy.PARK;
+    private Consumer<TranscodingProgress> progressListener;
+    private long progressIntervalMillis = 250;
+
+    private volatile boolean cancelled;
+    private volatile TranscodingProgress progress;
+    /**
+     * The time stamp of the sample that the reader has published most
+     * recently. Since the reader reads in playback sequence, all samples
+     * that it will read later have a time stamp that is greater or equal.
+     */
+    private volatile Rational watermark = Rational.ZERO;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Creates a new transcoder.
+     *
+     * @param inputFile  the input file
+     * @param outputFile the output file
+     */
+    public Transcoder(File inputFile, File outputFile) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.progress = new TranscodingProgress(outputFile, Rational.ZERO, Rational.ZERO, 0, 0, false);
+    }
+
+    public File getInputFile() {
+        return inputFile;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Sets the file format of the output file. If this is null, the
+     * file format is derived from the extension of the output file.
+     */
+    public void setOutputFileFormat(Format outputFileFormat) {
+        this.outputFileFormat = outputFileFormat;
+    }
+
+    public Format getOutputFileFormat() {
+        return outputFileFormat;
+    }
+
+    /**
+     * Sets the output format for all tracks of the specified media type.
+     * The format only needs to contain the properties that differ from
+     * the suggested output format, for example the encoding.
+     *
+     * @param mediaType the media type
+     * @param format    the output format, or null to use the suggested
+     *                  output format
+     */
+    public void setOutputFormat(FormatKeys.MediaType mediaType, Format format) {
+        if (format == null) {
+            outputFormats.remove(mediaType);
+        } else {
+            outputFormats.put(mediaType, format);
+        }
+    }
+
+    public Format getOutputFormat(FormatKeys.MediaType mediaType) {
+        return outputFormats.get(mediaType);
+    }
+
+    /**
+     * Sets a filter for all tracks of the specified media type.
+     * <p>
+     * The filter is inserted between the decoder and the encoder of a
+     * track. The function is invoked once per track with the decoded
+     * format. It must return a new codec whose input and output formats
+     * have been set, or null if the track shall not be filtered.
+     *
+     * @param mediaType the media type
+     * @param filter    the filter factory, or null to remove the filter
+     */
+    public void setFilter(FormatKeys.MediaType mediaType, Function<Format, Codec> filter) {
+        if (filter == null) {
+            filters.remove(mediaType);
+        } else {
+            filters.put(mediaType, filter);
+        }
+    }
+
+    /**
+     * Sets the registry that provides the reader, the writer and the codecs.
+     */
+    public void setRegistry(Registry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Sets the semaphore that limits the number of codec stages that can
+     * process a sample at the same time. If this is null, the number is not
+     * limited.
+     */
+    public void setCpuPermits(Semaphore cpuPermits) {
+        this.cpuPermits = cpuPermits;
+    }
+
+    public Semaphore getCpuPermits() {
+        return cpuPermits;
+    }
+
+    /**
+     * Sets the capacity of the rings between the stages.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets how the stages wait for each other.
+     */
+    public void setWaitStrategy(BufferRing.WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public BufferRing.WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Sets a listener that receives progress snapshots. The listener is
+     * invoked on the thread that runs {@link #transcode()}.
+     *
+     * @param progressListener the listener, or null
+     */
+    public void setProgressListener(Consumer<TranscodingProgress> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Sets the minimal interval between two progress snapshots.
+     */
+    public void setProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    /**
+     * Returns the most recent progress snapshot. This method can be called
+     * from any thread.
+     */
+    public TranscodingProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Stops reading the input file. The samples that have already been
+     * read are written, and the output file is closed properly.
+     * This method can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Transcodes the input file into the output file.
+     *
+     * @return the final progress
+     * @throws IOException if reading, converting or writing failed
+     */
+    public TranscodingProgress transcode() throws IOException {
+        long startNanos = System.nanoTime();
+        Format fileFormat = outputFileFormat != null ? outputFileFormat : registry.getFileFormat(outputFile);
+        if (fileFormat == null) {
+            throw new IOException("Unsupported output file format: " + outputFile);
+        }
+        List<Thread> threads = new ArrayList<>();
+        List<TrackStage> stages = new ArrayList<>();
+        try (MovieReader in = Instrumentation.instrument(registry.getReader(inputFile))) {
+            if (in == null) {
+                throw new IOException("Unsupported input file format: " + inputFile);
+            }
+            MovieWriter out = Instrumentation.instrument(registry.getWriter(fileFormat, outputFile));
+            if (out == null) {
+                throw new IOException("Unsupported output file format: " + outputFile);
+            }
+            try {
+                Rational duration = in.getMovieDuration();
+                TrackStage[] byInputTrack = new TrackStage[in.getTrackCount()];
+                for (int t = 0; t < byInputTrack.length; t++) {
+                    byInputTrack[t] = createTrackStage(in, t, fileFormat, out);
+                    if (byInputTrack[t] != null) {
+                        stages.add(byInputTrack[t]);
+                    }
+                }
+                if (stages.isEmpty()) {
+                    throw new IOException("No track can be transcoded into " + fileFormat + ": " + inputFile);
+                }
+
+                threads.add(startThread("Transcoder-Reader", () -> read(in, byInputTrack)));
+                for (TrackStage s : stages) {
+                    if (s.codec != null) {
+                        threads.add(startThread("Transcoder-Codec-" + s.inputTrack, () -> process(s)));
+                    }
+                }
+                mux(out, stages, duration, startNanos);
+            } finally {
+                for (Thread t : threads) {
+                    t.interrupt();
+                }
+                for (Thread t : threads) {
+                    joinUninterruptibly(t);
+                }
+                for (TrackStage s : stages) {
+                    for (Codec c : s.codecs) {
+                        registry.releaseCodec(c);
+                    }
+                }
+                out.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transcoding has been interrupted: " + inputFile);
+        }
+        return progress;
+    }
+
+    /**
+     * Chooses the output format and the codecs of a track, and adds the
+     * track to the writer.
+     *
+     * @return the stages, or null if the track is skipped
+     */
+    private TrackStage createTrackStage(MovieReader in, int track, Format fileFormat, MovieWriter out) throws IOException {
+        Format inputFormat = in.getFormat(track);
+        Format outputFormat = chooseOutputFormat(inputFormat, fileFormat);
+        if (outputFormat == null) {
+            return null;
+        }
+        List<Codec> codecs = createCodecs(inputFormat, outputFormat);
+        if (codecs == null) {
+            return null;
+        }
+        int outputTrack = out.addTrack(outputFormat);
+        return new TrackStage(track, outputTrack, out.getFormat(outputTrack), codecs, queueCapacity, waitStrategy);
+    }
+
+    private Format chooseOutputFormat(Format inputFormat, Format fileFormat) {
+        String mimeType = fileFormat.get(MimeTypeKey);
+        List<Format> candidates = registry.suggestOutputFormats(inputFormat, fileFormat);
+        if (candidates.isEmpty() && MIME_MP4.equals(mimeType)) {
+            // The MP4 writer uses the QuickTime encoders
+            mimeType = MIME_QUICKTIME;
+            candidates = registry.suggestOutputFormats(inputFormat, new Format(MimeTypeKey, mimeType));
+        }
+        Format requested = outputFormats.get(inputFormat.get(MediaTypeKey));
+        for (Format f : candidates) {
+            // An encoder that serves several file formats does not specify
+            // a MIME type, the suggested format inherits the MIME type of the
+            // input then
+            f = f.prepend(MimeTypeKey, mimeType);
+            if (requested == null) {
+                return f;
+            }
+            if (f.matches(requested)) {
+                return requested.append(f);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the codecs that convert the input format into the output
+     * format.
+     *
+     * @return the codecs, an empty list if the track can be passed through,
+     * or null if no codecs have been found
+     */
+    private List<Codec> createCodecs(Format inputFormat, Format outputFormat) {
+        List<Codec> codecs = new ArrayList<>();
+        Function<Format, Codec> filterFactory = filters.get(inputFormat.get(MediaTypeKey));
+        if (filterFactory == null) {
+            if (inputFormat.matchesWithout(outputFormat, MimeTypeKey, FrameRateKey)) {
+                return codecs;
+            }
+            Codec direct = registry.getCodec(inputFormat, outputFormat);
+            if (direct != null) {
+                if (direct.setInputFormat(inputFormat) != null && direct.setOutputFormat(outputFormat) != null) {
+                    codecs.add(direct);
+                    return codecs;
+                }
+                registry.releaseCodec(direct);
+            }
+        }
+
+        Codec decoder = registry.getDecoder(inputFormat);
+        if (decoder == null) {
+            return null;
+        }
+        codecs.add(decoder);
+        Format decodedFormat = decoder.setInputFormat(inputFormat) == null ? null
+                : decoder.setOutputFormat(chooseDecodedFormat(decoder.getOutputFormats(inputFormat)));
+        if (decodedFormat != null && filterFactory != null) {
+            Codec filter = filterFactory.apply(decodedFormat);
+            if (filter != null) {
+                codecs.add(filter);
+                decodedFormat = filter.getOutputFormat();
+            }
+        }
+        Codec encoder = decodedFormat == null ? null : registry.getCodec(decodedFormat, outputFormat);
+        if (encoder != null) {
+            codecs.add(encoder);
+            if (encoder.setInputFormat(decodedFormat) != null && encoder.setOutputFormat(outputFormat) != null) {
+                return codecs;
+            }
+        }
+        for (Codec c : codecs) {
+            registry.releaseCodec(c);
+        }
+        return null;
+    }
+
+    /**
+     * Prefers decoding video into buffered images, because all video
+     * encoders accept them.
+     * <p>
+     * Some decoders do not specify the data class of their buffered image
+     * format. Their output formats inherit the data class of the input
+     * format, therefore the data class is replaced.
+     */
+    private static Format chooseDecodedFormat(Format[] formats) {
+        for (Format f : formats) {
+            if (f.get(DataClassKey) == BufferedImage.class) {
+                return f;
+            }
+        }
+        for (Format f : formats) {
+            if (ENCODING_BUFFERED_IMAGE.equals(f.get(EncodingKey))) {
+                return f.prepend(DataClassKey, BufferedImage.class);
+            }
+        }
+        return formats.length == 0 ? null : formats[0];
+    }
+
+    /**
+     * The reader stage. Reads all samples in playback sequence, and
+     * publishes an end marker into every track.
+     */
+    private void read(MovieReader in, TrackStage[] byInputTrack) throws IOException, InterruptedException {
+        Buffer skipped = new Buffer();
+        for (int t; !cancelled && (t = in.nextTrack()) >= 0; ) {
+            TrackStage s = byInputTrack[t];
+            if (s == null) {
+                in.read(t, skipped);
+                continue;
+            }
+            BufferRing ring = s.input != null ? s.input : s.output;
+            Buffer slot = ring.claim();
+            slot.clearFlags();
+            in.read(t, slot);
+            if (slot.isFlag(DISCARD)) {
+                // The slot is handed out again by the next claim
+                continue;
+            }
+            Rational timeStamp = timeStampOf(slot);
+            if (s.input != null) {
+                s.pending.incrementAndGet();
+            }
+            ring.publish();
+            // Must be updated after publishing, see mux()
+            watermark = timeStamp;
+        }
+        for (TrackStage s : byInputTrack) {
+            if (s != null) {
+                BufferRing ring = s.input != null ? s.input : s.output;
+                Buffer slot = ring.claim();
+                slot.setFlagsTo(END_OF_MEDIA, DISCARD);
+                slot.length = 0;
+                slot.sampleCount = 0;
+                if (s.input != null) {
+                    s.pending.incrementAndGet();
+                }
+                ring.publish();
+            }
+        }
+        watermark = END_OF_INPUT;
+    }
+
+    /**
+     * The codec stage of a track. Converts the samples from the input ring
+     * into the output ring. The end marker is passed to the codecs as well,
+     * so that they can flush delayed samples.
+     */
+    private void process(TrackStage s) throws IOException, InterruptedException {
+        for (boolean end = false; !end; ) {
+            Buffer in = s.input.take();
+            end = in.isFlag(END_OF_MEDIA);
+            if (end || !in.isFlag(DISCARD)) {
+                int state;
+                do {
+                    Buffer out = s.output.claim();
+                    out.clearFlags();
+                    if (cpuPermits != null) {
+                        cpuPermits.acquire();
+                    }
+                    try {
+                        state = s.codec.process(in, out);
+                    } finally {
+                        if (cpuPermits != null) {
+                            cpuPermits.release();
+                        }
+                    }
+                    if (state == Codec.CODEC_FAILED) {
+                        throw new IOException("Codec failed: " + s.codec.getName(), out.exception);
+                    }
+                    if ((state & Codec.CODEC_OUTPUT_NOT_FILLED) == 0 && !out.isFlag(DISCARD)) {
+                        s.output.publish();
+                    }
+                } while ((state & Codec.CODEC_INPUT_NOT_CONSUMED) != 0);
+            }
+            if (end) {
+                Buffer out = s.output.claim();
+                out.setFlagsTo(END_OF_MEDIA, DISCARD);
+                s.output.publish();
+            }
+            s.input.recycle();
+            s.pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * The muxer stage. Writes the sample with the earliest time stamp from
+     * the output rings.
+     * <p>
+     * If the output ring of a track is empty, the muxer can only write a
+     * sample of another track if it is certain that the empty track will
+     * not deliver an earlier sample. This is the case if no sample of the
+     * empty track is pending in its codec stage, and the sample is not
+     * later than the watermark of the reader. The watermark is read before
+     * the pending counts and the rings, so that a sample that the reader
+     * has published before it updated the watermark is always seen.
+     */
+    private void mux(MovieWriter out, List<TrackStage> stages, Rational duration, long startNanos)
+            throws IOException, InterruptedException {
+        int remaining = stages.size();
+        long sampleCount = 0;
+        Rational mediaTime = Rational.ZERO;
+        long nextProgressNanos = startNanos;
+        int attempt = 0;
+        while (remaining > 0) {
+            Throwable e = failure.get();
+            if (e != null) {
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+
+            Rational bound = watermark;
+            boolean bounded = false;
+            boolean waiting = false;
+            TrackStage next = null;
+            Rational nextTimeStamp = null;
+            for (TrackStage s : stages) {
+                if (s.ended) {
+                    continue;
+                }
+                boolean pending = s.pending.get() > 0;
+                Buffer head = s.output.peek();
+                if (head == null) {
+                    bounded |= !pending;
+                    waiting |= pending;
+                } else if (head.isFlag(END_OF_MEDIA) && head.isFlag(DISCARD)) {
+                    s.output.recycle();
+                    s.ended = true;
+                    remaining--;
+                } else {
+                    Rational timeStamp = timeStampOf(head);
+                    if (next == null || timeStamp.compareTo(nextTimeStamp) < 0) {
+                        next = s;
+                        nextTimeStamp = timeStamp;
+                    }
+                }
+            }
+
+            if (next != null && !waiting && (!bounded || nextTimeStamp.compareTo(bound) <= 0)) {
+                Buffer buf = next.output.peek();
+                buf.track = next.outputTrack;
+                buf.format = next.outputFormat;
+                Rational endTime = nextTimeStamp.add(buf.getBufferDuration());
+                out.write(next.outputTrack, buf);
+                next.output.recycle();
+                sampleCount++;
+                mediaTime = Rational.max(mediaTime, endTime);
+                attempt = 0;
+            } else if (remaining > 0) {
+                waitStrategy.idle(attempt++);
+            }
+
+            long now = System.nanoTime();
+            if (now >= nextProgressNanos || remaining == 0) {
+                nextProgressNanos = now + progressIntervalMillis * 1_000_000;
+                progress = new TranscodingProgress(outputFile, mediaTime, duration, sampleCount,
+                        now - startNanos, remaining == 0 && !cancelled);
+                if (progressListener != null) {
+                    progressListener.accept(progress);
+                }
+            }
+        }
+    }
+
+    private static Rational timeStampOf(Buffer buf) {
+        return buf.timeStamp == null ? Rational.ZERO : buf.timeStamp;
+    }
+
+    /**
+     * Functional interface for a stage that may fail.
+     */
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private Thread startThread(String name, Stage stage) {
+        Thread t = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                // The muxer has stopped
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void joinUninterruptibly(Thread t) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                t.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * @(#)TranscodingEngine.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs multiple {@link Transcoder}s concurrently.
+ * <p>
+ * All transcoders share a CPU budget: the number of codec stages that may
+ * process a sample at the same time, over all transcoders. Reading and
+ * writing does not count against the budget.
+ * <p>
+ * Jobs that exceed the maximal number of concurrent jobs wait in a queue.
+ */
+public class TranscodingEngine implements AutoCloseable {
+    private final Semaphore cpuPermits;
+    private final int cpuBudget;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new engine with a CPU budget of one permit per available
+     * processor, that runs as many jobs concurrently.
+     */
+    public TranscodingEngine() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new engine.
+     *
+     * @param cpuBudget         the number of codec stages that may process a
+     *                          sample at the same time
+     * @param maxConcurrentJobs the number of transcoders that may run at the
+     *                          same time
+     */
+    public TranscodingEngine(int cpuBudget, int maxConcurrentJobs) {
+        if (cpuBudget < 1 || maxConcurrentJobs < 1) {
+            throw new IllegalArgumentException("cpuBudget=" + cpuBudget
+                    + " and maxConcurrentJobs=" + maxConcurrentJobs + " must be at least 1");
+        }
+        this.cpuBudget = cpuBudget;
+        this.cpuPermits = new Semaphore(cpuBudget, true);
+        AtomicInteger jobNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "TranscodingEngine-" + jobNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits a transcoder. The transcoder shares the CPU budget of this
+     * engine.
+     *
+     * @param transcoder the transcoder
+     * @return a future that delivers the final progress of the transcoder
+     */
+    public Future<TranscodingProgress> submit(Transcoder transcoder) {
+        transcoder.setCpuPermits(cpuPermits);
+        return executor.submit(transcoder::transcode);
+    }
+
+    /**
+     * Returns the CPU budget.
+     */
+    public int getCpuBudget() {
+        return cpuBudget;
+    }
+
+    /**
+     * Returns the number of codec stages that could start processing a
+     * sample right now. This is only a snapshot.
+     */
+    public int getAvailableCpuPermits() {
+        return cpuPermits.availablePermits();
+    }
+
+    /**
+     * Stops all running transcoders, and discards the jobs that have not
+     * been started yet. The running transcoders fail with an
+     * {@link java.io.InterruptedIOException}.
+     */
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Waits until all submitted jobs are done, and releases the threads
+     * of the engine.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                executor.shutdownNow();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * @(#)TranscodingProgress.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.monte.media.math.Rational;
+
+import java.io.File;
+
+/**
+ * An immutable snapshot of the progress of a {@link Transcoder}.
+ */
+public class TranscodingProgress {
+    private final File file;
+    private final Rational mediaTime;
+    private final Rational duration;
+    private final long sampleCount;
+    private final long elapsedNanos;
+    private final boolean done;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param file         the output file
+     * @param mediaTime    the media time up to which samples have been written
+     * @param duration     the duration of the input movie
+     * @param sampleCount  the number of buffers that have been written
+     * @param elapsedNanos the time since the transcoder has started
+     * @param done         whether the transcoder has finished
+     */
+    public TranscodingProgress(File file, Rational mediaTime, Rational duration,
+                               long sampleCount, long elapsedNanos, boolean done) {
+        this.file = file;
+        this.mediaTime = mediaTime;
+        this.duration = duration;
+        this.sampleCount = sampleCount;
+        this.elapsedNanos = elapsedNanos;
+        this.done = done;
+    }
+
+    /**
+     * Returns the output file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the media time up to which samples have been written.
+     */
+    public Rational getMediaTime() {
+        return mediaTime;
+    }
+
+    /**
+     * Returns the duration of the input movie.
+     */
+    public Rational getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the number of buffers that have been written.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the time since the transcoder has started in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns true if the transcoder has finished.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the progress in the range [0, 1].
+     */
+    public double getFraction() {
+        if (done) {
+            return 1.0;
+        }
+        if (duration.isZero()) {
+            return 0.0;
+        }
+        return Math.min(1.0, mediaTime.doubleValue() / duration.doubleValue());
+    }
+
+    /**
+     * Returns how many seconds of media time have been transcoded per
+     * second of elapsed time.
+     */
+    public double getSpeed() {
+        return elapsedNanos == 0 ? 0.0 : mediaTime.doubleValue() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Returns how many buffers have been written per second of elapsed time.
+     */
+    public double getSamplesPerSecond() {
+        return elapsedNanos == 0 ? 0.0 : sampleCount * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "TranscodingProgress{" +
+                "file=" + file +
+                ", mediaTime=" + mediaTime +
+                ", duration=" + duration +
+                ", sampleCount=" + sampleCount +
+                ", elapsedNanos=" + elapsedNanos +
+                ", done=" + done +
+                '}';
+    }
+}
@@ -7,45 +7,50 @@ package org.monte.media.av.codec.audio;
 import org.monte.media.av.Buffer;
 import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys.MediaType;
-import org.monte.media.io.ByteArrayImageInputStream;
-import org.monte.media.io.ByteArrayImageOutputStream;
+import org.monte.media.math.Rational;
 import org.monte.media.util.ArrayUtil;
 
-import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
-import java.io.EOFException;
-import java.io.IOException;
-import java.nio.ByteOrder;
-import java.util.Objects;
-
 import static org.monte.media.av.BufferFlag.DISCARD;
+import static org.monte.media.av.BufferFlag.END_OF_MEDIA;
 import static org.monte.media.av.BufferFlag.KEYFRAME;
 import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
 import static org.monte.media.av.FormatKeys.MIME_JAVA;
 import static org.monte.media.av.FormatKeys.MediaTypeKey;
 import static org.monte.media.av.FormatKeys.MimeTypeKey;
 import static org.monte.media.av.codec.audio.AudioFormatKeys.ByteOrderKey;
 import static org.monte.media.av.codec.audio.AudioFormatKeys.ChannelsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ENCODING_PCM_FLOAT;
 import static org.monte.media.av.codec.audio.AudioFormatKeys.ENCODING_PCM_SIGNED;
 import static org.monte.media.av.codec.audio.AudioFormatKeys.ENCODING_PCM_UNSIGNED;
 import static org.monte.media.av.codec.audio.AudioFormatKeys.FrameSizeKey;
 import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleRateKey;
 import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleSizeInBitsKey;
 import static org.monte.media.av.codec.audio.AudioFormatKeys.SignedKey;
-import static org.monte.media.av.codec.audio.AudioFormatKeys.SilenceBugKey;
-import static org.monte.media.av.codec.audio.AudioFormatKeys.toAudioFormat;
 
 /**
- * {@code AbstractPCMAudioCodec} performs sign conversion, endian conversion and
- * quantization conversion of PCM audio data.
+ * {@code AbstractPCMAudioCodec} performs sign conversion, endian conversion,
+ * quantization conversion, channel conversion and sampling rate conversion
+ * of PCM audio data.
  * <p>
- * Does not perform sampling rate conversion or channel conversion.
+ * The conversion is done by a {@link PCMConverter}.
  *
  * @author Werner Randelshofer
  */
 public abstract class AbstractPCMAudioCodec extends AbstractAudioCodec {
 
-    private final static int UNSIGNED_BASE = 128;
+    /**
+     * Converts the samples. Is created lazily for the format of the input
+     * buffers.
+     */
+    private PCMConverter converter;
+    private Format converterInputFormat;
+    /**
+     * The time stamp of the first output frame, and the number of frames
+     * that have been produced since then.
+     */
+    private Rational outputStartTime;
+    private long outputFrameCount;
 
     public AbstractPCMAudioCodec() {
         super(new Format[]{
@@ -57,6 +62,10 @@ public abstract class AbstractPCMAudioCodec extends AbstractAudioCodec {
                         EncodingKey, ENCODING_PCM_UNSIGNED,//
                         MimeTypeKey, MIME_JAVA,//
                         SignedKey, false),//
+                new Format(MediaTypeKey, MediaType.AUDIO,//
+                        EncodingKey, ENCODING_PCM_FLOAT,//
+                        MimeTypeKey, MIME_JAVA,//
+                        SignedKey, true),//
         });
         name = "PCM Codec";
     }
@@ -73,273 +82,97 @@ public abstract class AbstractPCMAudioCodec extends AbstractAudioCodec {
     public int process(Buffer in, Buffer out) {
         out.setMetaTo(in);
         if (in.isFlag(DISCARD)) {
+            if (in.isFlag(END_OF_MEDIA) && converter != null && converter.isResampling()) {
+                // Emit the frames that the resampler still holds
+                byte[] outData = ArrayUtil.reuseByteArray(out.data, converter.getMaxOutputFrames(0) * converter.getOutputFrameSize());
+                int frames = converter.flush(outData, 0);
+                if (frames > 0) {
+                    out.clearFlag(DISCARD);
+                    setOutputData(out, outData, frames);
+                }
+                outputStartTime = null;
+            }
             return CODEC_OK;
         }
 
         Format inFormat = in.format;
-        Format outFormat = outputFormat;
-        if (inFormat.get(SampleRateKey) == null || !inFormat.get(SampleRateKey).equals(outFormat.get(SampleRateKey))) {
-            out.setFlag(DISCARD);
-            out.exception = new UnsupportedOperationException("Sample Rate conversion not supported. in:" + inFormat + ", out:" + outFormat);
-            return CODEC_FAILED;
-        }
-        if (!Objects.equals(inFormat.get(ChannelsKey), outFormat.get(ChannelsKey))) {
-            out.setFlag(DISCARD);
-            out.exception = new UnsupportedOperationException("Channel conversion not supported. in:" + inFormat + ", out:" + outFormat);
-            return CODEC_FAILED;
-        }
-
-        boolean fixSilenceBug = inFormat.get(SilenceBugKey, false);
-        
-        byte[] inData = (byte[]) in.data;
-        byte[] outData = ArrayUtil.reuseByteArray(out.data, inData.length);
-        if (outData.length < inData.length * outFormat.get(FrameSizeKey) / inFormat.get(FrameSizeKey)) {
-            outData = new byte[inData.length * outFormat.get(FrameSizeKey) / inFormat.get(FrameSizeKey)];
-        }
-
-        // Fast array copy if formats are identical 
-        // or if 8-bit data with endian differences
-        if (toAudioFormat(inFormat).matches(toAudioFormat(outFormat))) {
-            System.arraycopy(inData, in.offset, outData, 0, in.length);
-        } else {
-
-            // Byte order conversion is done using ImageInputStream/ImageOutputStream.
-            ByteOrder inOrder = inFormat.get(ByteOrderKey);
-            boolean inSigned = inFormat.get(SignedKey);
-            ByteArrayImageInputStream inStream = new ByteArrayImageInputStream(inData, in.offset, in.length, inOrder);
-            ByteOrder outOrder = outFormat.get(ByteOrderKey);
-            boolean outSigned = outFormat.get(SignedKey);
-            ByteArrayImageOutputStream outStream = new ByteArrayImageOutputStream(outData, outOrder);
+        if (converter == null || inFormat != converterInputFormat
+                && !(inFormat.matches(converterInputFormat) && converterInputFormat.matches(inFormat))) {
             try {
-                // Now, we only have to care about sign conversion and 
-                // quantization conversion
-                int inSS = inFormat.get(SampleSizeInBitsKey);
-                int outSS = outFormat.get(SampleSizeInBitsKey);
-
-                switch ((inSS << 16) | outSS) {
-                    case (16 << 16) | 16:
-                        if (inSigned == outSigned) {
-                            write16To16(inStream, outStream);
-                        } else if (inSigned) {
-                            write16STo16U(inStream, outStream);
-                        } else {
-                            write16UTo16S(inStream, outStream);
-                        }
-                        break;
-                    case (16 << 16) | 8:
-                        if (inSigned == outSigned) {
-                            throw new UnsupportedOperationException("Unsupported sample size. in:" + inFormat + ", out:" + outFormat);
-                        } else if (inSigned) {
-                            write16STo8U(inStream, outStream);
-                        } else {
-                            throw new UnsupportedOperationException("Unsupported sample size. in:" + inFormat + ", out:" + outFormat);
-                        }
-                        break;
-                    case (8 << 16) | 8:
-                        if (inSigned == outSigned) {
-                            write8STo8S(inStream, outStream, fixSilenceBug);
-                        } else if (inSigned) {
-                            write8STo8U(inStream, outStream, fixSilenceBug);
-                        } else if (outSigned) {
-                            write8UTo8S(inStream, outStream, fixSilenceBug);
-                        }
-                        break;
-                    default:
-                        // FIXME - The PCM Audio Codec should handle unsupported
-                        //         sample size when the output format is set.
-                        throw new UnsupportedOperationException("Unsupported sample size. in:" + inFormat + ", out:" + outFormat);
-                        //out.setFlag(Buffer.FLAG_DISCARD);
-                        //return BUFFER_PROCESSED_FAILED;
-
-                }
-            } catch (IOException ex) {
-                out.flags.add(DISCARD);
+                converter = new PCMConverter(inFormat, outputFormat);
+            } catch (UnsupportedOperationException e) {
+                converter = null;
+                out.setFlag(DISCARD);
+                out.exception = e;
                 return CODEC_FAILED;
-                //throw new InternalError(ex.getMessage());
             }
-
-        }
-
-        // Configure the buffer
-        out.flags.add(KEYFRAME);
-        out.format = outFormat;
-        out.data = outData;
-        out.offset = 0;
-        out.length = in.length;
-        return CODEC_OK;
-    }
-
-    /**
-     * 16-bit audio data in and out. No sign conversion. Endian conversion is
-     * performed by the stream objects.
-     */
-    protected void write16To16(ImageInputStream in, ImageOutputStream out) throws IOException {
-        try {
-            while (true) {
-                out.writeShort(in.readShort());
-            }
-        } catch (EOFException e) {
-            // end of data reached
+            converterInputFormat = inFormat;
+            outputStartTime = null;
         }
-    }
 
-    /**
-     * 16-bit audio data unsigned in and signed out. Endian conversion is
-     * performed by the stream objects.
-     */
-    protected void write16UTo16S(ImageInputStream in, ImageOutputStream out) throws IOException {
-        try {
-            while (true) {
-                out.writeShort((in.readShort() & 0xffff) - (1 << 15));
-            }
-        } catch (EOFException e) {
-            // end of data reached
+        if (outputStartTime == null) {
+            outputStartTime = in.timeStamp;
+            outputFrameCount = 0;
         }
-    }
-
-    /**
-     * 16-bit audio data signed in and unsigned out. Endian conversion is
-     * performed by the stream objects.
-     */
-    protected void write16STo16U(ImageInputStream in, ImageOutputStream out) throws IOException {
-        try {
-            while (true) {
-                out.writeShort(in.readShort() + (1 << 15));
-            }
-        } catch (EOFException e) {
-            // end of data reached
-        }
-    }
-
-    /**
-     * Signed 16-bit audio data in, unsigned 8-bit out. Endian conversion is
-     * performed by the stream objects.
-     */
-    protected void write16STo8U(ImageInputStream in, ImageOutputStream out) throws IOException {
-        try {
-            while (true) {
-                out.writeByte((in.readShort() >> 8) + UNSIGNED_BASE);
-            }
-        } catch (EOFException e) {
-            // end of data reached
-        }
-    }
-
-    /**
-     * 8-bit audio data in and out. No sign conversion.
-     */
-    protected void write8To8(ImageInputStream in, ImageOutputStream out) throws IOException {
-        try {
-            byte[] buf = new byte[512];
-            while (true) {
-                int count = in.read(buf, 0, buf.length);
-                if (count == -1) {
-                    break;
-                }
-                out.write(buf, 0, count);
-            }
-        } catch (EOFException e) {
-            // end of data reached
+        int inFrames = in.length / converter.getInputFrameSize();
+        byte[] outData = ArrayUtil.reuseByteArray(out.data, converter.getMaxOutputFrames(inFrames) * converter.getOutputFrameSize());
+        int frames = converter.convert((byte[]) in.data, in.offset, inFrames, outData, 0);
+        setOutputData(out, outData, frames);
+        if (frames == 0 && converter.isResampling()) {
+            // The resampler needs more input
+            out.setFlag(DISCARD);
+            return CODEC_OUTPUT_NOT_FILLED;
         }
+        return CODEC_OK;
     }
 
-    /**
-     * Unsigned 8-bit audio data in, signed out.
-     */
-    protected void write8UTo8S(ImageInputStream in, ImageOutputStream out, boolean fixSilenceBug) throws IOException {
-        try {
-            byte[] buf = new byte[512];
-            while (true) {
-                int count = in.read(buf, 0, buf.length);
-                if (count == -1) {
-                    break;
-                }
-                if (fixSilenceBug) {
-                    for (int i = 0; i < count; i++) {
-                        if (buf[i] == 0) {
-                            buf[i] = (byte) UNSIGNED_BASE;
-                        }
-                        buf[i] = (byte) ((buf[i] & 0xff) - UNSIGNED_BASE);
-                    }
-                } else {
-                    for (int i = 0; i < count; i++) {
-                        buf[i] = (byte) ((buf[i] & 0xff) - UNSIGNED_BASE);
-                    }
-                }
-                out.write(buf, 0, count);
-            }
-        } catch (EOFException e) {
-            // end of data reached
+    private void setOutputData(Buffer out, byte[] outData, int frames) {
+        out.flags.add(KEYFRAME);
+        out.format = outputFormat;
+        out.data = outData;
+        out.offset = 0;
+        out.length = frames * converter.getOutputFrameSize();
+        out.sampleCount = frames;
+        if (converter.isResampling()) {
+            // The time stamps follow the output frames, because the
+            // resampler delays the output
+            Rational sampleRate = outputFormat.get(SampleRateKey);
+            out.sampleDuration = sampleRate.inverse();
+            out.timeStamp = outputStartTime.add(new Rational(outputFrameCount, 1).divide(sampleRate));
         }
+        outputFrameCount += frames;
     }
 
-    /**
-     * Signed 8-bit audio data in, unsigned out.
-     */
-    protected void write8STo8U(ImageInputStream in, ImageOutputStream out, boolean fixSilenceBug) throws IOException {
-        try {
-            byte[] buf = new byte[512];
-            while (true) {
-                int count = in.read(buf, 0, buf.length);
-                if (count == -1) {
-                    break;
-                }
-                if (fixSilenceBug) {
-                    for (int i = 0; i < count; i++) {
-                        // FIXME - For some reason, the Java sound system records
-                        //         silence as -128 instead of 0.
-                        buf[i] = (byte) (buf[i] == -128 ? -UNSIGNED_BASE : buf[i] + UNSIGNED_BASE);
-                    }
-                } else {
-                    for (int i = 0; i < count; i++) {
-                        buf[i] = (byte) (buf[i] + UNSIGNED_BASE);
-                    }
-                }
-
-                out.write(buf, 0, count);
-            }
-        } catch (EOFException e) {
-            // end of data reached
+    @Override
+    public void reset() {
+        if (converter != null) {
+            converter.reset();
         }
+        outputStartTime = null;
     }
 
     /**
-     * Signed 8-bit audio data in, signed out.
+     * Sets the output format. The sample rate, the channels and the sample
+     * size are taken from the input format, unless they are specified.
      */
-    protected void write8STo8S(ImageInputStream in, ImageOutputStream out, boolean fixSilenceBug) throws IOException {
-        try {
-            byte[] buf = new byte[512];
-            while (true) {
-                int count = in.read(buf, 0, buf.length);
-                if (count == -1) {
-                    break;
-                }
-                if (fixSilenceBug) {
-                    for (int i = 0; i < count; i++) {
-                        // FIXME - For some reason, the Java sound system records
-                        //         silence as -128 instead of 0.
-                        buf[i] = (buf[i] == -128 ? 0 : buf[i]);
-                    }
-                }
-                out.write(buf, 0, count);
-            }
-        } catch (EOFException e) {
-            // end of data reached
-        }
-    }
-
     @Override
     public Format setOutputFormat(Format f) {
         Format out = super.setOutputFormat(f);
-        if (inputFormat != null) {
-            out = out.prepend(SampleRateKey, inputFormat.get(SampleRateKey),
-                    ChannelsKey, inputFormat.get(ChannelsKey));
-            out = out.append(ByteOrderKey, inputFormat.get(ByteOrderKey),
+        if (out != null && inputFormat != null) {
+            out = out.append(SampleRateKey, inputFormat.get(SampleRateKey),
+                    ChannelsKey, inputFormat.get(ChannelsKey),
+                    ByteOrderKey, inputFormat.get(ByteOrderKey),
                     SampleSizeInBitsKey, inputFormat.get(SampleSizeInBitsKey),
-                    FrameSizeKey, inputFormat.get(FrameSizeKey),
                     SignedKey, inputFormat.get(SignedKey));
+            if (!out.containsKey(FrameSizeKey)) {
+                out = out.append(FrameSizeKey, out.get(ChannelsKey, 1) * ((out.get(SampleSizeInBitsKey, 16) + 7) / 8));
+            }
+            if (out.containsKey(FrameRateKey) && out.containsKey(SampleRateKey)) {
+                out = out.prepend(FrameRateKey, out.get(SampleRateKey));
+            }
         }
         outputFormat = out;
+        converter = null;
         return out;
     }
 }
@@ -29,6 +29,10 @@ public class AudioFormatKeys extends FormatKeys {
      * Specifies unsigned, linear PCM data.
      */
     public static final String ENCODING_PCM_UNSIGNED = javax.sound.sampled.AudioFormat.Encoding.PCM_UNSIGNED.toString();
+    /**
+     * Specifies floating point, linear PCM data.
+     */
+    public static final String ENCODING_PCM_FLOAT = javax.sound.sampled.AudioFormat.Encoding.PCM_FLOAT.toString();
     /**
      * Specifies u-law encoded data.
      */
@@ -0,0 +1,497 @@
+/*
+ * @(#)PCMConverter.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av.codec.audio;
+
+import org.monte.media.av.Format;
+import org.monte.media.math.Rational;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ByteOrderKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ChannelsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ENCODING_PCM_FLOAT;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.FrameSizeKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleRateKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleSizeInBitsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SignedKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SilenceBugKey;
+
+/**
+ * Converts interleaved PCM audio frames from one format into another.
+ * <p>
+ * Supports 8, 16, 24 and 32-bit integer samples, signed and unsigned, and
+ * 32 and 64-bit floating point samples, in both byte orders. Multi-byte
+ * samples are accessed through {@link VarHandle} views of the byte arrays.
+ * <p>
+ * The samples are first decoded into 32-bit integers. If the sample rate
+ * and the channels are the same, these are encoded directly into the
+ * output format, which is lossless for all integer formats of the same or
+ * a higher sample size. Otherwise, the samples are converted to floating
+ * point, mixed with a channel matrix, resampled with a
+ * {@link PolyphaseResampler}, and rounded to the output sample size.
+ * <p>
+ * The converter keeps state across calls if it resamples. Call
+ * {@link #flush(byte[], int)} at the end of the input to obtain the last
+ * frames.
+ */
+public class PCMConverter {
+    private final static VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private final static VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private final static VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private final static VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private final static VarHandle FLOAT_BE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+    private final static VarHandle FLOAT_LE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+    private final static VarHandle DOUBLE_BE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
+    private final static VarHandle DOUBLE_LE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The scale from a 32-bit integer sample to a float sample in the range
+     * [-1, 1).
+     */
+    private final static float INT_TO_FLOAT = 1f / 2147483648f;
+
+    /**
+     * The storage of a sample.
+     */
+    private enum Kind {
+        S8, U8, S16BE, S16LE, S24BE, S24LE, S32BE, S32LE, F32BE, F32LE, F64BE, F64LE
+    }
+
+    /**
+     * Describes how the samples of a format are stored.
+     */
+    private static class Layout {
+        final Kind kind;
+        /**
+         * Whether a multi-byte integer sample is unsigned.
+         */
+        final boolean unsigned;
+        final int bytesPerSample;
+        final int channels;
+        final int frameSize;
+        final Rational sampleRate;
+        final boolean silenceBug;
+
+        Layout(Format f) {
+            int bits = f.get(SampleSizeInBitsKey, 16);
+            boolean floating = ENCODING_PCM_FLOAT.equals(f.get(EncodingKey));
+            boolean signed = floating || f.get(SignedKey, true);
+            boolean bigEndian = f.get(ByteOrderKey, ByteOrder.BIG_ENDIAN) == ByteOrder.BIG_ENDIAN;
+            bytesPerSample = (bits + 7) / 8;
+            channels = f.get(ChannelsKey, 1);
+            frameSize = f.get(FrameSizeKey, bytesPerSample * channels);
+            sampleRate = f.get(SampleRateKey);
+            silenceBug = f.get(SilenceBugKey, false);
+            unsigned = !signed && bytesPerSample > 1;
+            kind = switch (floating ? -bytesPerSample : bytesPerSample) {
+                case 1 -> signed ? Kind.S8 : Kind.U8;
+                case 2 -> bigEndian ? Kind.S16BE : Kind.S16LE;
+                case 3 -> bigEndian ? Kind.S24BE : Kind.S24LE;
+                case 4 -> bigEndian ? Kind.S32BE : Kind.S32LE;
+                case -4 -> bigEndian ? Kind.F32BE : Kind.F32LE;
+                case -8 -> bigEndian ? Kind.F64BE : Kind.F64LE;
+                default -> throw new UnsupportedOperationException("Unsupported sample size: " + f);
+            };
+            if (frameSize != bytesPerSample * channels) {
+                throw new UnsupportedOperationException("Unsupported frame size: " + f);
+            }
+            if (sampleRate == null) {
+                throw new UnsupportedOperationException("Sample rate missing: " + f);
+            }
+        }
+
+        boolean isFloat() {
+            return kind.compareTo(Kind.F32BE) >= 0;
+        }
+
+        boolean sameAs(Layout that) {
+            return kind == that.kind && unsigned == that.unsigned && channels == that.channels
+                    && sampleRate.equals(that.sampleRate) && !silenceBug && !that.silenceBug;
+        }
+    }
+
+    private final Layout in;
+    private final Layout out;
+    private final PolyphaseResampler resampler;
+    private float[] matrix;
+    private boolean identity;
+    private boolean direct;
+
+    private int[] intSamples = new int[0];
+    private float[] floatSamples = new float[0];
+    private float[] mixedSamples = new float[0];
+    private float[] resampledSamples = new float[0];
+
+    /**
+     * Creates a new converter.
+     *
+     * @param inputFormat  the input format
+     * @param outputFormat the output format
+     * @throws UnsupportedOperationException if one of the formats is not
+     *                                       supported
+     */
+    public PCMConverter(Format inputFormat, Format outputFormat) {
+        this.in = new Layout(inputFormat);
+        this.out = new Layout(outputFormat);
+        this.resampler = in.sampleRate.equals(out.sampleRate) ? null
+                : new PolyphaseResampler(out.channels, in.sampleRate, out.sampleRate);
+        setChannelMatrix(null);
+    }
+
+    /**
+     * Sets the matrix that mixes the input channels into the output
+     * channels. {@code matrix[o][i]} is the gain of input channel
+     * {@code i} in output channel {@code o}.
+     * <p>
+     * If the matrix is null, a default matrix is used: if there are at least
+     * as many output channels as input channels, output channel {@code o} is
+     * a copy of input channel {@code o % inputChannels}. Otherwise, output
+     * channel {@code o} is the mean of all input channels {@code i} with
+     * {@code i % outputChannels == o}. For example, mono is copied into both
+     * channels of stereo, and stereo is mixed down to mono by averaging the
+     * left and the right channel.
+     *
+     * @param matrix the matrix or null
+     */
+    public void setChannelMatrix(float[][] matrix) {
+        int ic = in.channels, oc = out.channels;
+        float[] m = new float[oc * ic];
+        if (matrix == null) {
+            for (int o = 0; o < oc; o++) {
+                int count = 0;
+                for (int i = o % ic; i < ic; i += oc) {
+                    count++;
+                }
+                for (int i = o % ic; i < ic; i += oc) {
+                    m[o * ic + i] = 1f / count;
+                }
+            }
+        } else {
+            if (matrix.length != oc) {
+                throw new IllegalArgumentException("matrix must have " + oc + " rows");
+            }
+            for (int o = 0; o < oc; o++) {
+                if (matrix[o].length != ic) {
+                    throw new IllegalArgumentException("matrix must have " + ic + " columns");
+                }
+                System.arraycopy(matrix[o], 0, m, o * ic, ic);
+            }
+        }
+        this.matrix = m;
+        boolean identity = ic == oc;
+        for (int o = 0; o < oc && identity; o++) {
+            for (int i = 0; i < ic; i++) {
+                if (m[o * ic + i] != (o == i ? 1f : 0f)) {
+                    identity = false;
+                    break;
+                }
+            }
+        }
+        this.identity = identity;
+        this.direct = identity && resampler == null;
+    }
+
+    /**
+     * Returns true if the converter changes the sample rate.
+     */
+    public boolean isResampling() {
+        return resampler != null;
+    }
+
+    public int getInputFrameSize() {
+        return in.frameSize;
+    }
+
+    public int getOutputFrameSize() {
+        return out.frameSize;
+    }
+
+    /**
+     * Returns the maximal number of frames that {@link #convert} produces
+     * for the specified number of input frames.
+     */
+    public int getMaxOutputFrames(int inputFrames) {
+        return resampler == null ? inputFrames : resampler.getMaxOutputFrames(inputFrames);
+    }
+
+    /**
+     * Converts interleaved frames.
+     *
+     * @param src       the input data
+     * @param srcOffset the offset of the first input frame
+     * @param frames    the number of input frames
+     * @param dst       the output data, must have room for
+     *                  {@link #getMaxOutputFrames(int)} frames
+     * @param dstOffset the offset of the first output frame
+     * @return the number of output frames
+     */
+    public int convert(byte[] src, int srcOffset, int frames, byte[] dst, int dstOffset) {
+        if (direct && in.sameAs(out)) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, frames * in.frameSize);
+            return frames;
+        }
+        int inSamples = frames * in.channels;
+        int[] ints = intSamples = grow(intSamples, Math.max(inSamples, getMaxOutputFrames(frames) * out.channels));
+        decode(in, src, srcOffset, inSamples, ints);
+        if (direct) {
+            encode(out, ints, inSamples, dst, dstOffset);
+            return frames;
+        }
+
+        float[] floats = floatSamples = grow(floatSamples, inSamples);
+        for (int i = 0; i < inSamples; i++) {
+            floats[i] = ints[i] * INT_TO_FLOAT;
+        }
+        float[] mixed = mix(floats, frames);
+        int outFrames = frames;
+        if (resampler != null) {
+            float[] resampled = resampledSamples = grow(resampledSamples, resampler.getMaxOutputFrames(frames) * out.channels);
+            outFrames = resampler.process(mixed, 0, frames, resampled, 0);
+            mixed = resampled;
+        }
+        quantize(mixed, outFrames * out.channels, ints);
+        encode(out, ints, outFrames * out.channels, dst, dstOffset);
+        return outFrames;
+    }
+
+    /**
+     * Produces the frames that the resampler still holds, and resets the
+     * converter.
+     *
+     * @param dst       the output data, must have room for
+     *                  {@link #getMaxOutputFrames(int)} frames for 0 input
+     *                  frames
+     * @param dstOffset the offset of the first output frame
+     * @return the number of output frames
+     */
+    public int flush(byte[] dst, int dstOffset) {
+        if (resampler == null) {
+            return 0;
+        }
+        int samples = resampler.getMaxOutputFrames(0) * out.channels;
+        float[] resampled = resampledSamples = grow(resampledSamples, samples);
+        int outFrames = resampler.flush(resampled, 0);
+        int[] ints = intSamples = grow(intSamples, samples);
+        quantize(resampled, outFrames * out.channels, ints);
+        encode(out, ints, outFrames * out.channels, dst, dstOffset);
+        return outFrames;
+    }
+
+    /**
+     * Discards the state of the resampler.
+     */
+    public void reset() {
+        if (resampler != null) {
+            resampler.reset();
+        }
+    }
+
+    private float[] mix(float[] src, int frames) {
+        int ic = in.channels, oc = out.channels;
+        if (identity) {
+            return src;
+        }
+        float[] m = matrix;
+        float[] dst = mixedSamples = grow(mixedSamples, frames * oc);
+        for (int f = 0, s = 0, d = 0; f < frames; f++, s += ic) {
+            for (int o = 0; o < oc; o++) {
+                float sum = 0f;
+                for (int i = 0, mi = o * ic; i < ic; i++, mi++) {
+                    sum += m[mi] * src[s + i];
+                }
+                dst[d++] = sum;
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Rounds float samples to the sample size of the output format, clips
+     * them, and stores them as left-justified 32-bit integers.
+     */
+    private void quantize(float[] src, int count, int[] dst) {
+        int bits = out.isFloat() ? 32 : out.bytesPerSample * 8;
+        double scale = (double) (1L << (bits - 1));
+        long max = (1L << (bits - 1)) - 1, min = -(1L << (bits - 1));
+        int shift = 32 - bits;
+        for (int i = 0; i < count; i++) {
+            long q = Math.round(src[i] * scale);
+            dst[i] = (int) (q > max ? max : q < min ? min : q) << shift;
+        }
+    }
+
+    /**
+     * Decodes samples into left-justified signed 32-bit integers.
+     */
+    private static void decode(Layout l, byte[] src, int off, int count, int[] dst) {
+        switch (l.kind) {
+            case S8 -> {
+                for (int i = 0; i < count; i++) {
+                    int b = src[off + i];
+                    // Java sound records silence as -128 instead of 0
+                    dst[i] = (l.silenceBug && b == -128 ? 0 : b) << 24;
+                }
+            }
+            case U8 -> {
+                for (int i = 0; i < count; i++) {
+                    int b = src[off + i] & 0xff;
+                    dst[i] = (l.silenceBug && b == 0 ? 0 : b - 128) << 24;
+                }
+            }
+            case S16BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 2) {
+                    dst[i] = (short) SHORT_BE.get(src, p) << 16;
+                }
+            }
+            case S16LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 2) {
+                    dst[i] = (short) SHORT_LE.get(src, p) << 16;
+                }
+            }
+            case S24BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 3) {
+                    dst[i] = (src[p] << 24) | ((src[p + 1] & 0xff) << 16) | ((src[p + 2] & 0xff) << 8);
+                }
+            }
+            case S24LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 3) {
+                    dst[i] = (src[p + 2] << 24) | ((src[p + 1] & 0xff) << 16) | ((src[p] & 0xff) << 8);
+                }
+            }
+            case S32BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 4) {
+                    dst[i] = (int) INT_BE.get(src, p);
+                }
+            }
+            case S32LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 4) {
+                    dst[i] = (int) INT_LE.get(src, p);
+                }
+            }
+            case F32BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 4) {
+                    dst[i] = floatToInt((float) FLOAT_BE.get(src, p));
+                }
+            }
+            case F32LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 4) {
+                    dst[i] = floatToInt((float) FLOAT_LE.get(src, p));
+                }
+            }
+            case F64BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 8) {
+                    dst[i] = floatToInt((double) DOUBLE_BE.get(src, p));
+                }
+            }
+            case F64LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 8) {
+                    dst[i] = floatToInt((double) DOUBLE_LE.get(src, p));
+                }
+            }
+        }
+        if (l.unsigned) {
+            for (int i = 0; i < count; i++) {
+                dst[i] ^= Integer.MIN_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Encodes left-justified signed 32-bit integers. The low bits that do
+     * not fit into the sample size are truncated.
+     */
+    private static void encode(Layout l, int[] src, int count, byte[] dst, int off) {
+        if (l.unsigned) {
+            for (int i = 0; i < count; i++) {
+                src[i] ^= Integer.MIN_VALUE;
+            }
+        }
+        switch (l.kind) {
+            case S8 -> {
+                for (int i = 0; i < count; i++) {
+                    dst[off + i] = (byte) (src[i] >> 24);
+                }
+            }
+            case U8 -> {
+                for (int i = 0; i < count; i++) {
+                    dst[off + i] = (byte) ((src[i] >> 24) + 128);
+                }
+            }
+            case S16BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 2) {
+                    SHORT_BE.set(dst, p, (short) (src[i] >> 16));
+                }
+            }
+            case S16LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 2) {
+                    SHORT_LE.set(dst, p, (short) (src[i] >> 16));
+                }
+            }
+            case S24BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 3) {
+                    int v = src[i];
+                    dst[p] = (byte) (v >> 24);
+                    dst[p + 1] = (byte) (v >> 16);
+                    dst[p + 2] = (byte) (v >> 8);
+                }
+            }
+            case S24LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 3) {
+                    int v = src[i];
+                    dst[p] = (byte) (v >> 8);
+                    dst[p + 1] = (byte) (v >> 16);
+                    dst[p + 2] = (byte) (v >> 24);
+                }
+            }
+            case S32BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 4) {
+                    INT_BE.set(dst, p, src[i]);
+                }
+            }
+            case S32LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 4) {
+                    INT_LE.set(dst, p, src[i]);
+                }
+            }
+            case F32BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 4) {
+                    FLOAT_BE.set(dst, p, src[i] * INT_TO_FLOAT);
+                }
+            }
+            case F32LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 4) {
+                    FLOAT_LE.set(dst, p, src[i] * INT_TO_FLOAT);
+                }
+            }
+            case F64BE -> {
+                for (int i = 0, p = off; i < count; i++, p += 8) {
+                    DOUBLE_BE.set(dst, p, (double) src[i] * INT_TO_FLOAT);
+                }
+            }
+            case F64LE -> {
+                for (int i = 0, p = off; i < count; i++, p += 8) {
+                    DOUBLE_LE.set(dst, p, (double) src[i] * INT_TO_FLOAT);
+                }
+            }
+        }
+    }
+
+    private static int floatToInt(double v) {
+        long q = Math.round(v * 2147483648.0);
+        return (int) (q > Integer.MAX_VALUE ? Integer.MAX_VALUE : q < Integer.MIN_VALUE ? Integer.MIN_VALUE : q);
+    }
+
+    private static int[] grow(int[] a, int minLength) {
+        return a.length >= minLength ? a : new int[minLength];
+    }
+
+    private static float[] grow(float[] a, int minLength) {
+        return a.length >= minLength ? a : new float[minLength];
+    }
+}
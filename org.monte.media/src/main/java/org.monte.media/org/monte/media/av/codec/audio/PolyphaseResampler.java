@@ -0,0 +1,257 @@
+/*
+ * @(#)PolyphaseResampler.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av.codec.audio;
+
+import org.monte.media.math.Rational;
+
+import java.util.Arrays;
+
+/**
+ * Converts the sample rate of interleaved audio frames with a band-limited
+ * polyphase filter.
+ * <p>
+ * The ratio of the output rate to the input rate is reduced to a fraction
+ * {@code L/M}. Conceptually, the input is upsampled by {@code L}, low-pass
+ * filtered, and downsampled by {@code M}. The filter is a Kaiser-windowed
+ * sinc, whose cutoff frequency is slightly below the lower of the two
+ * Nyquist frequencies. Its coefficients are precomputed for each phase.
+ * If {@code L} is large, the phases are quantized to {@value #MAX_PHASES}
+ * steps.
+ * <p>
+ * The resampler is streaming: it keeps the input frames that the filter
+ * still needs, so that the output does not depend on how the input is split
+ * into buffers. The output lags the input by half the filter length until
+ * {@link #flush(float[], int)} is called.
+ */
+public class PolyphaseResampler {
+    /**
+     * The maximal number of precomputed filter phases.
+     */
+    private final static int MAX_PHASES = 1024;
+    /**
+     * The number of zero crossings of the sinc function on each side of
+     * the filter.
+     */
+    private final static int ZERO_CROSSINGS = 16;
+    /**
+     * The cutoff frequency relative to the lower Nyquist frequency.
+     */
+    private final static double ROLLOFF = 0.95;
+    /**
+     * The beta parameter of the Kaiser window. Gives about 85 dB of
+     * stop-band attenuation.
+     */
+    private final static double KAISER_BETA = 8.6;
+
+    private final int channels;
+    private final long upFactor;
+    private final long downFactor;
+    private final int phases;
+    private final int halfTaps;
+    private final int taps;
+    private final float[] coefficients;
+
+    /**
+     * Interleaved input frames that the filter still needs.
+     */
+    private float[] history;
+    private int historyFrames;
+    /**
+     * The index of the input frame at or before the time of the next
+     * output frame.
+     */
+    private long position;
+    /**
+     * The fraction of the time of the next output frame after
+     * {@code position}, in units of {@code 1/upFactor}.
+     */
+    private long phase;
+    private long inputFrameCount;
+    private long outputFrameCount;
+
+    /**
+     * Creates a new resampler.
+     *
+     * @param channels   the number of channels
+     * @param inputRate  the input sample rate
+     * @param outputRate the output sample rate
+     */
+    public PolyphaseResampler(int channels, Rational inputRate, Rational outputRate) {
+        if (channels < 1) {
+            throw new IllegalArgumentException("channels=" + channels);
+        }
+        Rational ratio = outputRate.divide(inputRate);
+        if (ratio.getNumerator() <= 0 || ratio.getDenominator() <= 0) {
+            throw new IllegalArgumentException("Illegal sample rates: in=" + inputRate + ", out=" + outputRate);
+        }
+        this.channels = channels;
+        this.upFactor = ratio.getNumerator();
+        this.downFactor = ratio.getDenominator();
+        this.phases = (int) Math.min(upFactor, MAX_PHASES);
+
+        double cutoff = 0.5 * Math.min(1.0, (double) upFactor / downFactor) * ROLLOFF;
+        this.halfTaps = (int) Math.ceil(ZERO_CROSSINGS / (2 * cutoff));
+        this.taps = 2 * halfTaps;
+        this.coefficients = new float[phases * taps];
+        double i0Beta = besselI0(KAISER_BETA);
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                double x = (k - halfTaps + 1) - (double) p / phases;
+                double y = 2 * cutoff * x;
+                double sinc = y == 0 ? 1.0 : Math.sin(Math.PI * y) / (Math.PI * y);
+                double r = x / halfTaps;
+                double window = r * r >= 1 ? 0.0 : besselI0(KAISER_BETA * Math.sqrt(1 - r * r)) / i0Beta;
+                double c = sinc * window;
+                coefficients[p * taps + k] = (float) c;
+                sum += c;
+            }
+            // Normalize to unity gain at zero frequency
+            for (int k = 0; k < taps; k++) {
+                coefficients[p * taps + k] /= (float) sum;
+            }
+        }
+        this.history = new float[taps * 2 * channels];
+        reset();
+    }
+
+    /**
+     * Returns the number of input frames on each side of an output frame
+     * that contribute to it.
+     */
+    public int getHalfFilterLength() {
+        return halfTaps;
+    }
+
+    /**
+     * Returns the maximal number of frames that {@link #process} produces
+     * for the specified number of input frames.
+     */
+    public int getMaxOutputFrames(int inputFrames) {
+        long available = historyFrames + inputFrames + halfTaps;
+        return (int) Math.min(Integer.MAX_VALUE, ((available - position) * upFactor) / downFactor + 2);
+    }
+
+    /**
+     * Returns the number of frames that have been produced since the last
+     * reset.
+     */
+    public long getOutputFrameCount() {
+        return outputFrameCount;
+    }
+
+    /**
+     * Resamples interleaved frames.
+     *
+     * @param src       the input frames
+     * @param srcOffset the index of the first input sample
+     * @param frames    the number of input frames
+     * @param dst       the output frames, must have room for
+     *                  {@link #getMaxOutputFrames(int)} frames
+     * @param dstOffset the index of the first output sample
+     * @return the number of output frames
+     */
+    public int process(float[] src, int srcOffset, int frames, float[] dst, int dstOffset) {
+        append(src, srcOffset, frames);
+        inputFrameCount += frames;
+        return drain(dst, dstOffset, Long.MAX_VALUE);
+    }
+
+    /**
+     * Produces the remaining output frames, as if the input were followed
+     * by silence, and resets the resampler.
+     *
+     * @param dst       the output frames, must have room for
+     *                  {@link #getMaxOutputFrames(int)} frames for 0 input
+     *                  frames
+     * @param dstOffset the index of the first output sample
+     * @return the number of output frames
+     */
+    public int flush(float[] dst, int dstOffset) {
+        long expected = (inputFrameCount * upFactor + downFactor - 1) / downFactor;
+        append(null, 0, halfTaps);
+        int n = drain(dst, dstOffset, expected - outputFrameCount);
+        reset();
+        return n;
+    }
+
+    /**
+     * Discards all state.
+     */
+    public void reset() {
+        // The first output frame is centered on the first input frame
+        historyFrames = halfTaps - 1;
+        Arrays.fill(history, 0, historyFrames * channels, 0f);
+        position = halfTaps - 1;
+        phase = 0;
+        inputFrameCount = 0;
+        outputFrameCount = 0;
+    }
+
+    /**
+     * Appends frames to the history. Appends silence if src is null.
+     */
+    private void append(float[] src, int srcOffset, int frames) {
+        int needed = (historyFrames + frames) * channels;
+        if (needed > history.length) {
+            history = Arrays.copyOf(history, Math.max(needed, history.length * 2));
+        }
+        if (src == null) {
+            Arrays.fill(history, historyFrames * channels, needed, 0f);
+        } else {
+            System.arraycopy(src, srcOffset, history, historyFrames * channels, frames * channels);
+        }
+        historyFrames += frames;
+    }
+
+    private int drain(float[] dst, int dstOffset, long limit) {
+        final int channels = this.channels;
+        final int taps = this.taps;
+        final float[] h = history;
+        final float[] coef = coefficients;
+        int n = 0;
+        while (position + halfTaps < historyFrames && n < limit) {
+            int c0 = (int) (phase * phases / upFactor) * taps;
+            int first = (int) (position - halfTaps + 1) * channels;
+            for (int c = 0; c < channels; c++) {
+                float sum = 0f;
+                for (int k = 0, j = first + c; k < taps; k++, j += channels) {
+                    sum += coef[c0 + k] * h[j];
+                }
+                dst[dstOffset++] = sum;
+            }
+            n++;
+            phase += downFactor;
+            position += phase / upFactor;
+            phase %= upFactor;
+        }
+        outputFrameCount += n;
+
+        // Discard the frames that the filter does not need anymore
+        int discard = (int) Math.min(historyFrames, Math.max(0, position - halfTaps + 1));
+        if (discard > 0) {
+            System.arraycopy(h, discard * channels, h, 0, (historyFrames - discard) * channels);
+            historyFrames -= discard;
+            position -= discard;
+        }
+        return n;
+    }
+
+    /**
+     * Computes the modified Bessel function of the first kind of order 0.
+     */
+    private static double besselI0(double x) {
+        double sum = 1.0, term = 1.0, q = x * x / 4;
+        for (int k = 1; k < 50; k++) {
+            term *= q / ((double) k * k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+}
@@ -70,6 +70,8 @@ public class TrimTimeCodec extends AbstractCodec {
             return CODEC_OK;
         }
         int flags = out.setDataTo(in);
+        // this codec may discard frames
+        out.dirtyRegions = null;
 
         Rational bufStartTS = out.timeStamp;
         Rational bufEndTS = out.timeStamp.add(out.sampleDuration.multiply(out.sampleCount));
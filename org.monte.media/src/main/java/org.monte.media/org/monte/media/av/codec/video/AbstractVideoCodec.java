@@ -9,20 +9,22 @@ import org.monte.media.av.Buffer;
 import org.monte.media.av.Format;
 
 import javax.imageio.stream.ImageOutputStream;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferShort;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.DirectColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 
-import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.PaletteKey;
-import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
 
 /**
  * {@code AbstractVideoCodec}.
@@ -31,7 +33,27 @@ import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
  */
 public abstract class AbstractVideoCodec extends AbstractCodec {
 
-    private BufferedImage imgConverter;
+    /**
+     * Reused by {@link #getIntPixels} and {@link #getShortPixels} for
+     * images that must be converted.
+     */
+    private int[] intPixels;
+    private short[] shortPixels;
+    /**
+     * Scales 5-bit and 6-bit color components to 8 bits in the same way as
+     * {@link DirectColorModel} does.
+     */
+    private final static int[] SCALE5 = new int[32], SCALE6 = new int[64];
+
+    static {
+        DirectColorModel rgb565 = new DirectColorModel(16, 0xf800, 0x7e0, 0x1f);
+        for (int v = 0; v < 32; v++) {
+            SCALE5[v] = rgb565.getBlue(v);
+        }
+        for (int v = 0; v < 64; v++) {
+            SCALE6[v] = rgb565.getGreen(v << 5);
+        }
+    }
 
     public AbstractVideoCodec(Format[] supportedInputFormats, Format[] supportedOutputFormats) {
         super(supportedInputFormats, supportedOutputFormats);
@@ -68,29 +90,11 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
      * Gets 15-bit RGB pixels from a buffer. Returns null if conversion failed.
      */
     protected short[] getRGB15(Buffer buf) {
-        if (buf.data instanceof int[]) {
+        if (buf.data instanceof short[]) {
             return (short[]) buf.data;
         }
         if (buf.data instanceof BufferedImage) {
-            BufferedImage image = (BufferedImage) buf.data;
-            if (image.getColorModel() instanceof DirectColorModel) {
-                if (image.getRaster().getDataBuffer() instanceof DataBufferShort) {
-                    // FIXME - Implement additional checks
-                    return ((DataBufferShort) image.getRaster().getDataBuffer()).getData();
-                } else if (image.getRaster().getDataBuffer() instanceof DataBufferUShort) {
-                    // FIXME - Implement additional checks
-                    return ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
-                }
-            }
-            if (imgConverter == null) {
-                int width = outputFormat.get(WidthKey);
-                int height = outputFormat.get(HeightKey);
-                imgConverter = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_555_RGB);
-            }
-            Graphics2D g = imgConverter.createGraphics();
-            g.drawImage(image, 0, 0, null);
-            g.dispose();
-            return ((DataBufferUShort) imgConverter.getRaster().getDataBuffer()).getData();
+            return getShortPixels((BufferedImage) buf.data, 0x7c00, 0x3e0, 0x1f);
         }
         return null;
     }
@@ -99,30 +103,11 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
      * Gets 16-bit RGB-5-6-5 pixels from a buffer. Returns null if conversion failed.
      */
     protected short[] getRGB16(Buffer buf) {
-        if (buf.data instanceof int[]) {
+        if (buf.data instanceof short[]) {
             return (short[]) buf.data;
         }
         if (buf.data instanceof BufferedImage) {
-            BufferedImage image = (BufferedImage) buf.data;
-            if (image.getColorModel() instanceof DirectColorModel) {
-                DirectColorModel dcm = (DirectColorModel) image.getColorModel();
-                if (image.getRaster().getDataBuffer() instanceof DataBufferShort) {
-                    // FIXME - Implement additional checks
-                    return ((DataBufferShort) image.getRaster().getDataBuffer()).getData();
-                } else if (image.getRaster().getDataBuffer() instanceof DataBufferUShort) {
-                    // FIXME - Implement additional checks
-                    return ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
-                }
-            }
-            if (imgConverter == null) {
-                int width = outputFormat.get(WidthKey);
-                int height = outputFormat.get(HeightKey);
-                imgConverter = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_565_RGB);
-            }
-            Graphics2D g = imgConverter.createGraphics();
-            g.drawImage(image, 0, 0, null);
-            g.dispose();
-            return ((DataBufferUShort) imgConverter.getRaster().getDataBuffer()).getData();
+            return getShortPixels((BufferedImage) buf.data, 0xf800, 0x7e0, 0x1f);
         }
         return null;
     }
@@ -136,18 +121,7 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
             return (int[]) buf.data;
         }
         if (buf.data instanceof BufferedImage) {
-            BufferedImage image = (BufferedImage) buf.data;
-            if (image.getColorModel() instanceof DirectColorModel) {
-                DirectColorModel dcm = (DirectColorModel) image.getColorModel();
-                if (dcm.getBlueMask() == 0xff && dcm.getGreenMask() == 0xff00 && dcm.getRedMask() == 0xff0000) {
-                    if (image.getRaster().getDataBuffer() instanceof DataBufferInt) {
-                        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-                    }
-                }
-            }
-            return image.getRGB(0, 0, //
-                    outputFormat.get(WidthKey), outputFormat.get(HeightKey), //
-                    null, 0, outputFormat.get(WidthKey));
+            return getIntPixels((BufferedImage) buf.data);
         }
         return null;
     }
@@ -160,20 +134,188 @@ public abstract class AbstractVideoCodec extends AbstractCodec {
             return (int[]) buf.data;
         }
         if (buf.data instanceof BufferedImage) {
-            BufferedImage image = (BufferedImage) buf.data;
-            if (image.getColorModel() instanceof DirectColorModel) {
-                DirectColorModel dcm = (DirectColorModel) image.getColorModel();
-                if (dcm.getBlueMask() == 0xff && dcm.getGreenMask() == 0xff00 && dcm.getRedMask() == 0xff0000) {
-                    if (image.getRaster().getDataBuffer() instanceof DataBufferInt) {
-                        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            return getIntPixels((BufferedImage) buf.data);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the pixels of an image as 32-bit ARGB values.
+     * <p>
+     * Returns the data array of the image, if it already has this layout.
+     * Otherwise, converts the pixels into an array that is reused for every
+     * frame. The converted array has the same layout as the sample model of
+     * the image, so that the scanline stride and the offset of the image
+     * can be used to access it.
+     */
+    private int[] getIntPixels(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (isPacked(image, DataBufferInt.class, 0xff0000, 0xff00, 0xff)) {
+            return ((DataBufferInt) raster.getDataBuffer()).getData();
+        }
+        SampleModel sm = raster.getSampleModel();
+        int length = sm.getWidth() * sm.getHeight();
+        if (intPixels == null || intPixels.length != length) {
+            intPixels = new int[length];
+        }
+        convertToARGB(image, intPixels);
+        return intPixels;
+    }
+
+    /**
+     * Gets the pixels of an image as 16-bit values with the specified masks.
+     * <p>
+     * Returns the data array of the image, if it already has this layout.
+     * Otherwise, converts the pixels into an array that is reused for every
+     * frame, see {@link #getIntPixels}.
+     */
+    private short[] getShortPixels(BufferedImage image, int redMask, int greenMask, int blueMask) {
+        WritableRaster raster = image.getRaster();
+        if (isPacked(image, DataBufferUShort.class, redMask, greenMask, blueMask)) {
+            return ((DataBufferUShort) raster.getDataBuffer()).getData();
+        }
+        if (isPacked(image, DataBufferShort.class, redMask, greenMask, blueMask)) {
+            return ((DataBufferShort) raster.getDataBuffer()).getData();
+        }
+        SampleModel sm = raster.getSampleModel();
+        int length = sm.getWidth() * sm.getHeight();
+        if (intPixels == null || intPixels.length != length) {
+            intPixels = new int[length];
+        }
+        if (shortPixels == null || shortPixels.length != length) {
+            shortPixels = new short[length];
+        }
+        int[] argb = intPixels;
+        short[] pixels = shortPixels;
+        convertToARGB(image, argb);
+
+        int stride = sm.getWidth();
+        int width = raster.getWidth(), height = raster.getHeight();
+        int offset = raster.getMinX() - raster.getSampleModelTranslateX()
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * stride;
+        boolean is565 = greenMask == 0x7e0;
+        for (int y = 0; y < height; y++) {
+            for (int i = offset + y * stride, end = i + width; i < end; i++) {
+                int p = argb[i];
+                int r = (p >>> 19) & 0x1f;
+                int b = (p >>> 3) & 0x1f;
+                pixels[i] = (short) (is565
+                        ? r << 11 | ((p >>> 10) & 0x3f) << 5 | b
+                        : r << 10 | ((p >>> 11) & 0x1f) << 5 | b);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns true if the image has a non-premultiplied direct color model
+     * with the specified masks, and if its pixels are packed into a single
+     * bank of the specified data buffer class.
+     */
+    private static boolean isPacked(BufferedImage image, Class<? extends DataBuffer> dataBufferClass,
+                                    int redMask, int greenMask, int blueMask) {
+        return image.getColorModel() instanceof DirectColorModel dcm
+                && !dcm.isAlphaPremultiplied()
+                && dcm.getRedMask() == redMask && dcm.getGreenMask() == greenMask && dcm.getBlueMask() == blueMask
+                && image.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && dataBufferClass.isInstance(image.getRaster().getDataBuffer())
+                && image.getRaster().getDataBuffer().getNumBanks() == 1
+                && image.getRaster().getDataBuffer().getOffset() == 0;
+    }
+
+    /**
+     * Converts the pixels of an image into 32-bit ARGB values. The pixels
+     * are stored in the layout of the sample model of the image.
+     * <p>
+     * Has fast paths for packed int images, for packed 15-bit and 16-bit
+     * images and for interleaved byte images. Other images are converted
+     * with {@link BufferedImage#getRGB}.
+     */
+    private static void convertToARGB(BufferedImage image, int[] dst) {
+        WritableRaster raster = image.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        ColorModel cm = image.getColorModel();
+        int stride = sm.getWidth();
+        int width = raster.getWidth(), height = raster.getHeight();
+        int x0 = raster.getMinX() - raster.getSampleModelTranslateX();
+        int y0 = raster.getMinY() - raster.getSampleModelTranslateY();
+        int offset = x0 + y0 * stride;
+        DataBuffer db = raster.getDataBuffer();
+
+        if (!cm.isAlphaPremultiplied() && db.getNumBanks() == 1) {
+            if (cm instanceof DirectColorModel dcm && sm instanceof SinglePixelPackedSampleModel sppsm) {
+                int srcStride = sppsm.getScanlineStride();
+                int srcOffset = db.getOffset() + x0 + y0 * srcStride;
+                int alpha = dcm.getAlphaMask() == 0 ? 0xff000000 : 0;
+                if (db instanceof DataBufferInt dbi && (alpha != 0 || dcm.getAlphaMask() == 0xff000000)) {
+                    int[] src = dbi.getData();
+                    if (dcm.getRedMask() == 0xff0000 && dcm.getGreenMask() == 0xff00 && dcm.getBlueMask() == 0xff) {
+                        for (int y = 0; y < height; y++) {
+                            int s = srcOffset + y * srcStride;
+                            for (int i = offset + y * stride, end = i + width; i < end; i++) {
+                                dst[i] = src[s++] | alpha;
+                            }
+                        }
+                        return;
+                    }
+                    if (dcm.getRedMask() == 0xff && dcm.getGreenMask() == 0xff00 && dcm.getBlueMask() == 0xff0000) {
+                        for (int y = 0; y < height; y++) {
+                            int s = srcOffset + y * srcStride;
+                            for (int i = offset + y * stride, end = i + width; i < end; i++) {
+                                int p = src[s++];
+                                dst[i] = (p & 0xff00ff00) | (p & 0xff) << 16 | (p >>> 16) & 0xff | alpha;
+                            }
+                        }
+                        return;
+                    }
+                }
+                if (db instanceof DataBufferUShort dbu && dcm.getAlphaMask() == 0 && dcm.getBlueMask() == 0x1f) {
+                    short[] src = dbu.getData();
+                    boolean is565 = dcm.getRedMask() == 0xf800 && dcm.getGreenMask() == 0x7e0;
+                    boolean is555 = dcm.getRedMask() == 0x7c00 && dcm.getGreenMask() == 0x3e0;
+                    if (is555 || is565) {
+                        int redShift = is565 ? 11 : 10;
+                        int[] g = is565 ? SCALE6 : SCALE5;
+                        int greenMask = g.length - 1;
+                        for (int y = 0; y < height; y++) {
+                            int s = srcOffset + y * srcStride;
+                            for (int i = offset + y * stride, end = i + width; i < end; i++) {
+                                int p = src[s++];
+                                dst[i] = 0xff000000 | SCALE5[(p >>> redShift) & 0x1f] << 16 | g[(p >>> 5) & greenMask] << 8 | SCALE5[p & 0x1f];
+                            }
+                        }
+                        return;
                     }
                 }
+            } else if (cm instanceof ComponentColorModel && cm.getColorSpace().isCS_sRGB()
+                    && sm instanceof ComponentSampleModel csm && db instanceof DataBufferByte dbb
+                    && (csm.getNumBands() == 3 || csm.getNumBands() == 4)) {
+                byte[] src = dbb.getData();
+                int[] bandOffsets = csm.getBandOffsets();
+                int pixelStride = csm.getPixelStride();
+                int srcStride = csm.getScanlineStride();
+                int srcOffset = db.getOffset() + x0 * pixelStride + y0 * srcStride;
+                int r = bandOffsets[0], g = bandOffsets[1], b = bandOffsets[2];
+                if (csm.getNumBands() == 3) {
+                    for (int y = 0; y < height; y++) {
+                        int s = srcOffset + y * srcStride;
+                        for (int i = offset + y * stride, end = i + width; i < end; i++, s += pixelStride) {
+                            dst[i] = 0xff000000 | (src[s + r] & 0xff) << 16 | (src[s + g] & 0xff) << 8 | (src[s + b] & 0xff);
+                        }
+                    }
+                } else {
+                    int a = bandOffsets[3];
+                    for (int y = 0; y < height; y++) {
+                        int s = srcOffset + y * srcStride;
+                        for (int i = offset + y * stride, end = i + width; i < end; i++, s += pixelStride) {
+                            dst[i] = (src[s + a] & 0xff) << 24 | (src[s + r] & 0xff) << 16 | (src[s + g] & 0xff) << 8 | (src[s + b] & 0xff);
+                        }
+                    }
+                }
+                return;
             }
-            return image.getRGB(0, 0, //
-                    outputFormat.get(WidthKey), outputFormat.get(HeightKey), //
-                    null, 0, outputFormat.get(WidthKey));
         }
-        return null;
+        image.getRGB(0, 0, width, height, dst, offset, stride);
     }
 
     /**
@@ -127,6 +127,8 @@ public class FrameRateConverter extends AbstractVideoCodec {
         // Produce time converted frame.
         out.format = outputFormat;
         int flags = out.setDataTo(in);
+        // this codec may discard frames
+        out.dirtyRegions = null;
         out.timeStamp = outputTime;
         out.sampleDuration = outputDuration;
         outputTime = outputTime.add(outputDuration);
@@ -7,6 +7,7 @@ package org.monte.media.av.codec.video;
 import org.monte.media.av.Buffer;
 import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.image.ImageResampler;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
@@ -20,16 +21,26 @@ import static org.monte.media.av.FormatKeys.MimeTypeKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
 import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ScalingFilterKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
 
 /**
  * Scales a buffered image.
+ * <p>
+ * The image is scaled with an {@link ImageResampler}. The filter can be
+ * selected with the {@code ScalingFilterKey} of the output format. If the
+ * output format does not specify a filter, the filter is derived from the
+ * interpolation rendering hint.
+ * <p>
+ * Images with an {@code IndexColorModel}, and images that are scaled with
+ * nearest neighbor interpolation are scaled with {@code Graphics2D}.
  *
  * @author Werner Randelshofer
  */
 public class ScaleImageCodec extends AbstractVideoCodec {
 
     private Object interpolationRenderingHint = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+    private ImageResampler resampler;
 
     public ScaleImageCodec() {
         super(new Format[]{
@@ -84,17 +95,45 @@ public class ScaleImageCodec extends AbstractVideoCodec {
             }
 
         }
-        Graphics2D g = imgOut.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolationRenderingHint);
-        g.drawImage(imgIn, 0, 0, imgOut.getWidth() - 1, imgOut.getHeight() - 1, 0, 0, imgIn.getWidth() - 1, imgIn.getHeight() - 1, null);
-        g.dispose();
+        ImageResampler.Filter filter = outputFormat.get(ScalingFilterKey, getFilter(interpolationRenderingHint));
+        if (filter != null && ImageResampler.isSupported(imgIn)) {
+            if (resampler == null || resampler.getFilter() != filter) {
+                resampler = new ImageResampler(filter);
+            }
+            resampler.resample(imgIn, imgOut);
+        } else {
+            Graphics2D g = imgOut.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolationRenderingHint);
+            g.drawImage(imgIn, 0, 0, imgOut.getWidth() - 1, imgOut.getHeight() - 1, 0, 0, imgIn.getWidth() - 1, imgIn.getHeight() - 1, null);
+            g.dispose();
+        }
 
         out.data = imgOut;
 
         return CODEC_OK;
     }
 
+    /**
+     * Sets the interpolation rendering hint. The hint is used if the output
+     * format does not specify a {@code ScalingFilterKey}.
+     *
+     * @param interpolationRenderingHint a value of
+     *                                   {@link RenderingHints#KEY_INTERPOLATION}
+     */
     public void setInterpolationRenderingHint(Object interpolationRenderingHint) {
         this.interpolationRenderingHint = interpolationRenderingHint;
     }
+
+    /**
+     * Returns the filter for an interpolation rendering hint, or null
+     * for nearest neighbor interpolation.
+     */
+    private static ImageResampler.Filter getFilter(Object interpolationRenderingHint) {
+        if (interpolationRenderingHint == RenderingHints.VALUE_INTERPOLATION_BILINEAR) {
+            return ImageResampler.Filter.BILINEAR;
+        } else if (interpolationRenderingHint == RenderingHints.VALUE_INTERPOLATION_BICUBIC) {
+            return ImageResampler.Filter.BICUBIC;
+        }
+        return null;
+    }
 }
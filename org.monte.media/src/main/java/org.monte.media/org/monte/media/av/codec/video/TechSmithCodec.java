@@ -22,6 +22,8 @@ import java.awt.image.DirectColorModel;
 import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
 import static org.monte.media.av.BufferFlag.DISCARD;
 import static org.monte.media.av.BufferFlag.KEYFRAME;
@@ -35,6 +37,8 @@ import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
 import static org.monte.media.av.FormatKeys.MediaTypeKey;
 import static org.monte.media.av.FormatKeys.MimeTypeKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.COMPRESSOR_NAME_AVI_TECHSMITH_SCREEN_CAPTURE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.CompressionLevelKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.CompressionStrategyKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.CompressorNameKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
@@ -69,7 +73,10 @@ import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
  * <p>
  * Compression of a frame is performed in two steps: In the first, step a frame
  * is compressed line by line from bottom to top. In the second step the
- * resulting data is compressed again using zlib compression.
+ * resulting data is compressed again using zlib compression. The zlib
+ * compression level and strategy can be set with the
+ * {@code CompressionLevelKey} and {@code CompressionStrategyKey} of the
+ * output format.
  * <p>
  * Apart from the second compression step and the support for 16- and 24-bit
  * data, this encoder is identical to the {@link org.monte.media.avi.codec.video.RunLengthCodec}.
@@ -117,9 +124,18 @@ public class TechSmithCodec extends AbstractVideoCodec {
 
     private TechSmithCodecCore state;
     private Object previousPixels;
+    /**
+     * Reusable array for {@link #getDirtyLines}.
+     */
+    private boolean[] dirtyLines;
     private int frameCounter;
     private ColorModel previousColorModel;
     private Object newPixels;
+    /**
+     * The output stream of the previous frame. It is reused if the output
+     * buffer still holds its array.
+     */
+    private ByteArrayImageOutputStream tmp;
 
     public TechSmithCodec() {
         super(new Format[]{
@@ -206,9 +222,52 @@ public class TechSmithCodec extends AbstractVideoCodec {
         return this.outputFormat;
     }
 
+    /**
+     * Returns one flag per line of the image, which is true if the line
+     * intersects with a dirty region of the buffer; or null if the buffer
+     * does not specify dirty regions.
+     */
+    private boolean[] getDirtyLines(Buffer in, int height) {
+        if (in.dirtyRegions == null) {
+            return null;
+        }
+        boolean[] lines = dirtyLines;
+        if (lines == null || lines.length != height) {
+            lines = dirtyLines = new boolean[height];
+        } else {
+            Arrays.fill(lines, false);
+        }
+        for (Rectangle region : in.dirtyRegions) {
+            for (int y = Math.max(0, region.y), ymax = Math.min(height, region.y + region.height); y < ymax; y++) {
+                lines[y] = true;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Copies the pixels into the previous pixels. If dirty lines are
+     * specified, only copies these lines.
+     */
+    private static void copyPixels(Object pixels, Object previousPixels, int length, int width, int offset, int scanlineStride, boolean[] dirtyLines) {
+        if (dirtyLines == null) {
+            System.arraycopy(pixels, 0, previousPixels, 0, length);
+        } else {
+            for (int y = 0; y < dirtyLines.length; y++) {
+                if (dirtyLines[y]) {
+                    System.arraycopy(pixels, offset + y * scanlineStride, previousPixels, offset + y * scanlineStride, width);
+                }
+            }
+        }
+    }
+
     @Override
     public void reset() {
+        if (state != null) {
+            state.dispose();
+        }
         state = null;
+        tmp = null;
         frameCounter = 0;
     }
 
@@ -328,8 +387,13 @@ public class TechSmithCodec extends AbstractVideoCodec {
             return CODEC_OK;
         }
 
-        ByteArrayImageOutputStream tmp = new ByteArrayImageOutputStream(ArrayUtil.reuseByteArray(out.data, 32));
+        ByteArrayImageOutputStream tmp = this.tmp;
+        if (tmp == null || tmp.getBuffer() != out.data) {
+            tmp = this.tmp = new ByteArrayImageOutputStream(ArrayUtil.reuseByteArray(out.data, 32));
+        }
         tmp.clear();
+        state.setCompressionLevel(outputFormat.get(CompressionLevelKey, Deflater.DEFAULT_COMPRESSION));
+        state.setCompressionStrategy(outputFormat.get(CompressionStrategyKey, Deflater.DEFAULT_STRATEGY));
 
         Integer keyFrameInterval = outputFormat.get(KeyFrameIntervalKey, outputFormat.get(FrameRateKey).intValue());
         boolean isKeyframe = frameCounter == 0
@@ -356,6 +420,7 @@ public class TechSmithCodec extends AbstractVideoCodec {
             out.header = null;
         }
         int offset = r.x + r.y * scanlineStride;
+        boolean[] dirtyLines = isKeyframe ? null : getDirtyLines(in, outputFormat.get(HeightKey));
 
         try {
             switch (outputFormat.get(DepthKey)) {
@@ -378,14 +443,14 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         if (in.isFlag(SAME_DATA)) {
                             state.encodeSameDelta8(tmp, pixels, (byte[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride);
                         } else {
-                            state.encodeDelta8(tmp, pixels, (byte[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride);
+                            state.encodeDelta8(tmp, pixels, (byte[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride, dirtyLines);
                         }
                         out.clearFlag(KEYFRAME);
                     }
                     if (previousPixels == null) {
                         previousPixels = pixels.clone();
                     } else {
-                        System.arraycopy(pixels, 0, (byte[]) previousPixels, 0, pixels.length);
+                        copyPixels(pixels, previousPixels, pixels.length, outputFormat.get(WidthKey), offset, scanlineStride, dirtyLines);
                     }
                     break;
                 }
@@ -402,13 +467,13 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         if (in.isFlag(SAME_DATA)) {
                             state.encodeSameDelta16(tmp, pixels, (short[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride);
                         } else {
-                            state.encodeDelta16(tmp, pixels, (short[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride);
+                            state.encodeDelta16(tmp, pixels, (short[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride, dirtyLines);
                         }
                     }
                     if (previousPixels == null) {
                         previousPixels = pixels.clone();
                     } else {
-                        System.arraycopy(pixels, 0, (short[]) previousPixels, 0, pixels.length);
+                        copyPixels(pixels, previousPixels, pixels.length, outputFormat.get(WidthKey), offset, scanlineStride, dirtyLines);
                     }
                     break;
                 }
@@ -426,14 +491,14 @@ public class TechSmithCodec extends AbstractVideoCodec {
                         if (in.isFlag(SAME_DATA)) {
                             state.encodeSameDelta24(tmp, pixels, (int[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride);
                         } else {
-                            state.encodeDelta24(tmp, pixels, (int[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride);
+                            state.encodeDelta24(tmp, pixels, (int[]) previousPixels, outputFormat.get(WidthKey), outputFormat.get(HeightKey), offset, scanlineStride, dirtyLines);
                         }
                         out.clearFlag(KEYFRAME);
                     }
                     if (previousPixels == null) {
                         previousPixels = pixels.clone();
                     } else {
-                        System.arraycopy(pixels, 0, (int[]) previousPixels, 0, pixels.length);
+                        copyPixels(pixels, previousPixels, pixels.length, outputFormat.get(WidthKey), offset, scanlineStride, dirtyLines);
                     }
                     break;
                 }
@@ -5,8 +5,8 @@
 package org.monte.media.av.codec.video;
 
 import org.monte.media.io.ByteArrayImageInputStream;
-import org.monte.media.io.ImageOutputStreamAdapter;
 import org.monte.media.io.UncachedImageInputStream;
+import org.monte.media.util.ArrayUtil;
 
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
@@ -15,7 +15,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipException;
 
@@ -171,21 +171,62 @@ public class TechSmithCodecCore extends AbstractVideoCodecCore {
     private byte[] temp2;
     private int[] palette;
     private ByteBuffer bbuf;
+    /**
+     * The deflater is reused for all frames.
+     */
+    private final Deflater deflater = new Deflater();
+    private byte[] deflateBuf;
 
     public TechSmithCodecCore() {
         reset();
     }
 
+    /**
+     * Sets the compression level of the deflate stage.
+     *
+     * @param level a value between 0 and 9, or
+     *              {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public void setCompressionLevel(int level) {
+        deflater.setLevel(level);
+    }
+
+    /**
+     * Sets the compression strategy of the deflate stage.
+     *
+     * @param strategy {@link Deflater#DEFAULT_STRATEGY},
+     *                 {@link Deflater#FILTERED} or
+     *                 {@link Deflater#HUFFMAN_ONLY}
+     */
+    public void setCompressionStrategy(int strategy) {
+        deflater.setStrategy(strategy);
+    }
+
     private void deflateBBuf(ImageOutputStream out) throws IOException {
         if (bbuf.position() == 2) {
             out.write(bbuf.array(), 0, 2);
         } else {
-            DeflaterOutputStream defl = new DeflaterOutputStream(new ImageOutputStreamAdapter(out));
-            defl.write(bbuf.array(), 0, bbuf.position());
-            defl.finish();
+            deflater.reset();
+            deflater.setInput(bbuf.array(), 0, bbuf.position());
+            deflater.finish();
+            // Deflate into a buffer that is large enough to hold incompressible
+            // data, so that we usually write the output in a single step.
+            deflateBuf = ArrayUtil.reuseByteArray(deflateBuf, bbuf.position() + (bbuf.position() >>> 10) + 64);
+            while (!deflater.finished()) {
+                int n = deflater.deflate(deflateBuf);
+                out.write(deflateBuf, 0, n);
+            }
         }
     }
 
+    /**
+     * Releases the native resources of the deflater. The encode methods must
+     * not be called after this method has been called.
+     */
+    public void dispose() {
+        deflater.end();
+    }
+
     private void ensureBBufCapacity(int width, int height, int depth) {
         final int needed;
         if (depth == 1) {
@@ -593,6 +634,27 @@ public class TechSmithCodecCore extends AbstractVideoCodecCore {
      */
     public void encodeDelta8(ImageOutputStream out, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        encodeDelta8(out, data, prev, width, height, offset, scanlineStride, null);
+    }
+
+    /**
+     * Encodes an 8-bit delta frame with indexed colors.
+     *
+     * @param out            The output stream.
+     * @param data           The image data.
+     * @param prev           The image data of the previous frame.
+     * @param offset         The offset to the first pixel in the data array.
+     * @param width          The width of the image in data elements.
+     * @param scanlineStride The number to add to offset to get to the next
+     *                       scanline.
+     * @param dirtyLines     One flag per line of the image, from top to bottom.
+     *                       Lines whose flag is false are not compared with
+     *                       the previous frame and are encoded as unchanged.
+     *                       Null if any line may have changed.
+     */
+    public void encodeDelta8(ImageOutputStream out, byte[] data, byte[] prev, int width, int height, int offset, int scanlineStride,
+                              boolean[] dirtyLines)
+            throws IOException {
 
         ensureBBufCapacity(width, height, 1);
 
@@ -605,6 +667,12 @@ public class TechSmithCodecCore extends AbstractVideoCodecCore {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
+            if (dirtyLines != null && !dirtyLines[(xy - offset) / scanlineStride]) {
+                // => the line has not changed
+                ++verticalOffset;
+                continue;
+            }
+
             // determine skip count
             int mismatch = Arrays.mismatch(data, xy, xymax, prev, xy, xymax);
             int skipCount = mismatch < 0 ? xymax - xy : mismatch;
@@ -1106,6 +1174,27 @@ public class TechSmithCodecCore extends AbstractVideoCodecCore {
      */
     public void encodeDelta16(ImageOutputStream out, short[] data, short[] prev, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        encodeDelta16(out, data, prev, width, height, offset, scanlineStride, null);
+    }
+
+    /**
+     * Encodes a 16-bit delta frame.
+     *
+     * @param out            The output stream.
+     * @param data           The image data.
+     * @param prev           The image data of the previous frame.
+     * @param offset         The offset to the first pixel in the data array.
+     * @param width          The width of the image in data elements.
+     * @param scanlineStride The number to add to offset to get to the next
+     *                       scanline.
+     * @param dirtyLines     One flag per line of the image, from top to bottom.
+     *                       Lines whose flag is false are not compared with
+     *                       the previous frame and are encoded as unchanged.
+     *                       Null if any line may have changed.
+     */
+    public void encodeDelta16(ImageOutputStream out, short[] data, short[] prev, int width, int height, int offset, int scanlineStride,
+                              boolean[] dirtyLines)
+            throws IOException {
 
         ensureBBufCapacity(width, height, 2);
 
@@ -1118,6 +1207,12 @@ public class TechSmithCodecCore extends AbstractVideoCodecCore {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
+            if (dirtyLines != null && !dirtyLines[(xy - offset) / scanlineStride]) {
+                // => the line has not changed
+                ++verticalOffset;
+                continue;
+            }
+
             // determine skip count
             int mismatch = Arrays.mismatch(data, xy, xymax, prev, xy, xymax);
             int skipCount = mismatch < 0 ? xymax - xy : mismatch;
@@ -1319,6 +1414,27 @@ public class TechSmithCodecCore extends AbstractVideoCodecCore {
      */
     public void encodeDelta24(ImageOutputStream out, int[] data, int[] prev, int width, int height, int offset, int scanlineStride)
             throws IOException {
+        encodeDelta24(out, data, prev, width, height, offset, scanlineStride, null);
+    }
+
+    /**
+     * Encodes a 24-bit delta frame.
+     *
+     * @param out            The output stream.
+     * @param data           The image data.
+     * @param prev           The image data of the previous frame.
+     * @param offset         The offset to the first pixel in the data array.
+     * @param width          The width of the image in data elements.
+     * @param scanlineStride The number to add to offset to get to the next
+     *                       scanline.
+     * @param dirtyLines     One flag per line of the image, from top to bottom.
+     *                       Lines whose flag is false are not compared with
+     *                       the previous frame and are encoded as unchanged.
+     *                       Null if any line may have changed.
+     */
+    public void encodeDelta24(ImageOutputStream out, int[] data, int[] prev, int width, int height, int offset, int scanlineStride,
+                              boolean[] dirtyLines)
+            throws IOException {
         ensureBBufCapacity(width, height, 3);
 
         int ymax = offset + height * scanlineStride;
@@ -1331,6 +1447,12 @@ public class TechSmithCodecCore extends AbstractVideoCodecCore {
             int xy = upsideDown - y;
             int xymax = xy + width;
 
+            if (dirtyLines != null && !dirtyLines[(xy - offset) / scanlineStride]) {
+                // => the line has not changed
+                ++verticalOffset;
+                continue;
+            }
+
             // determine skip count
             int mismatch = Arrays.mismatch(data, xy, xymax, prev, xy, xymax);
             int skipCount = mismatch < 0 ? xymax - xy : mismatch;
@@ -6,6 +6,7 @@ package org.monte.media.av.codec.video;
 
 import org.monte.media.av.FormatKey;
 import org.monte.media.av.FormatKeys;
+import org.monte.media.image.ImageResampler;
 import org.monte.media.math.Rational;
 
 import java.awt.image.ColorModel;
@@ -22,6 +23,22 @@ public class VideoFormatKeys extends FormatKeys {
     public static final String COMPRESSOR_NAME_QUICKTIME_JPEG = "Photo - JPEG";
     public static final String COMPRESSOR_NAME_QUICKTIME_PNG = "PNG";
     public static final String COMPRESSOR_NAME_QUICKTIME_RAW = "NONE";
+    /**
+     * Compression level of codecs that use the deflate algorithm. Value
+     * between 0 (no compression) and 9 (best compression), or -1 for the
+     * default level.
+     */
+    public final static FormatKey<Integer> CompressionLevelKey = new FormatKey<>("compressionLevel", Integer.class);
+    /**
+     * Compression strategy of codecs that use the deflate algorithm. One of
+     * {@link java.util.zip.Deflater#DEFAULT_STRATEGY},
+     * {@link java.util.zip.Deflater#FILTERED} or
+     * {@link java.util.zip.Deflater#HUFFMAN_ONLY}.
+     * <p>
+     * {@code HUFFMAN_ONLY} is much faster than the other strategies, and is
+     * a good choice for screen capture.
+     */
+    public final static FormatKey<Integer> CompressionStrategyKey = new FormatKey<>("compressionStrategy", Integer.class);
     /**
      * The compressor name.
      */
@@ -136,6 +153,22 @@ public class VideoFormatKeys extends FormatKeys {
      * Encoding quality. Value between 0 and 1.
      */
     public final static FormatKey<Float> QualityKey = new FormatKey<>("quality", Float.class);
+    /**
+     * The filter that is used for scaling images.
+     * <p>
+     * The default value of the {@link ScaleImageCodec} is
+     * {@link ImageResampler.Filter#BICUBIC}.
+     */
+    public final static FormatKey<ImageResampler.Filter> ScalingFilterKey = new FormatKey<>("scalingFilter", ImageResampler.Filter.class);
+    /**
+     * Number of slices per frame.
+     * <p>
+     * Codecs that support slices, encode the slices of a frame in parallel.
+     * A reasonable value is the number of available processors.
+     * <p>
+     * Set this value to 1 to encode each frame as a single slice.
+     */
+    public final static FormatKey<Integer> SliceCountKey = new FormatKey<>("sliceCount", Integer.class);
     /**
      * The affine transformation matrix of the video.
      */
@@ -10,6 +10,8 @@ import org.monte.media.av.codec.video.AffineTransform;
 import org.monte.media.exception.AbortException;
 import org.monte.media.exception.ParseException;
 import org.monte.media.io.ByteArrayImageInputStream;
+import org.monte.media.io.ImageInputStreams;
+import org.monte.media.io.MappedFileImageInputStream;
 import org.monte.media.math.Rational;
 import org.monte.media.riff.RIFFChunk;
 import org.monte.media.riff.RIFFParser;
@@ -23,9 +25,12 @@ import java.awt.image.IndexColorModel;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.monte.media.av.FormatKeys.EncodingKey;
 import static org.monte.media.av.FormatKeys.FrameRateKey;
@@ -55,11 +60,16 @@ import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
  * This class supports lengths of up to 4 GB, but such files may not work on
  * all players.
  * <p>
- * Support for AVI 2.0 file is incomplete.
- * This class currently ignores the extended index chunks. Instead all chunks
- * in the "movi" list are scanned. With scanning, the reader is not able to
- * distinguish between keyframes and non-keyframes. As a consequence opening an
- * AVI 2.0 file is very slow, and decoding of frames may fail.
+ * If all tracks of an AVI 2.0 file have an OpenDML super index ("indx" chunk),
+ * the reader only reads the headers of the file and the headers of the
+ * standard index chunks ("ix##" chunks). The entries of a standard index chunk
+ * are read when a sample in it is accessed. See {@link SuperIndexSampleList}.
+ * <p>
+ * Otherwise, the reader uses the "idx1" chunk if present, and scans all
+ * chunks in the "movi" lists that are not covered by it. With scanning, the
+ * reader is not able to distinguish between keyframes and non-keyframes. As a
+ * consequence opening a large file without index is very slow, and decoding
+ * of frames may fail.
  * <p>
  * For detailed information about the AVI 1.0 file format see:<br>
  * <a href="http://msdn.microsoft.com/en-us/library/ms779636.aspx">msdn.microsoft.com AVI RIFF</a><br>
@@ -85,11 +95,34 @@ public class AVIInputStream extends AbstractAVIStream {
      */
     private boolean isRealized = false;
     protected MainHeader mainHeader;
-    protected ArrayList<Sample> idx1 = new ArrayList<>();
     private long moviOffset = 0;
+    /**
+     * The OpenDML super indexes of the tracks.
+     */
+    private final Map<Track, SuperIndex> superIndexes = new HashMap<>();
+
+    /**
+     * An OpenDML super index.
+     *
+     * @param chunkId      the chunk id of the indexed samples
+     * @param indexOffsets the offsets of the standard index chunks
+     * @param durations    the durations of the standard index chunks in
+     *                     stream ticks
+     */
+    private record SuperIndex(int chunkId, long[] indexOffsets, long[] durations) {
+    }
+    /**
+     * The range of the file that has been read by {@link #prefetch}, or null.
+     */
+    private ByteBuffer prefetched;
+    private long prefetchedOffset;
 
     /**
      * Creates a new instance.
+     * <p>
+     * The file is read with a {@link FileImageInputStream}. To read the file
+     * through memory mapping, pass a {@link MappedFileImageInputStream} to
+     * {@link #AVIInputStream(ImageInputStream)}.
      *
      * @param file the input file
      */
@@ -248,6 +281,10 @@ public class AVIInputStream extends AbstractAVIStream {
                     }
 
                     if (group.getType() == MOVI_ID && group.getID() == LIST_ID) {
+                        if (hasSuperIndex()) {
+                            // => skip all movi lists if we have an OpenDML index
+                            return false;
+                        }
                         if (mainHeader != null
                                 && (mainHeader.flags & AVIH_FLAG_HAS_INDEX) != 0
                                 && p.getStreamOffset() == 0) {
@@ -312,6 +349,9 @@ public class AVIInputStream extends AbstractAVIStream {
                                     case STRN_ID:
                                         readSTRN(currentTrack, chunk.getData());
                                         break;
+                                    case INDX_ID:
+                                        readINDX(currentTrack, chunk.getData());
+                                        break;
                                     default:
                                         currentTrack.extraHeaders.add(chunk);
                                         break;
@@ -320,8 +360,8 @@ public class AVIInputStream extends AbstractAVIStream {
                             case AVI_ID:
                                 switch (chunk.getID()) {
                                     case IDX1_ID:
-                                        if (isFlagSet(mainHeader.flags, AVIH_FLAG_HAS_INDEX)) {
-                                            readIDX1(tracks, idx1, chunk.getData());
+                                        if (isFlagSet(mainHeader.flags, AVIH_FLAG_HAS_INDEX) && !hasSuperIndex()) {
+                                            readIDX1(tracks, chunk.getData());
                                         }
                                         break;
                                     default:
@@ -348,7 +388,6 @@ public class AVIInputStream extends AbstractAVIStream {
                                         s.timeStamp = lastSample.timeStamp + lastSample.duration;
                                     }
                                     tr.length = s.timeStamp + s.duration;
-                                    idx1.add(s);
                                     tr.samples.add(s);
 
                                 }
@@ -381,6 +420,23 @@ public class AVIInputStream extends AbstractAVIStream {
         } catch (AbortException ex) {
             throw new IOException("Parsing aborted", ex);
         }
+
+        if (hasSuperIndex()) {
+            for (Track tr : tracks) {
+                SuperIndex si = superIndexes.get(tr);
+                int frameSize = tr.mediaType == AVIMediaType.AUDIO ? tr.format.get(FrameSizeKey) : 0;
+                SuperIndexSampleList samples = new SuperIndexSampleList(in, si.chunkId(), frameSize, si.indexOffsets(), si.durations());
+                tr.samples = samples;
+                tr.length = samples.getDuration();
+            }
+        }
+    }
+
+    /**
+     * Returns true if all tracks have an OpenDML super index.
+     */
+    private boolean hasSuperIndex() {
+        return !tracks.isEmpty() && superIndexes.size() == tracks.size();
     }
 
     /**
@@ -412,8 +468,7 @@ public class AVIInputStream extends AbstractAVIStream {
      */
     public int getSampleSize(int track, int sample) throws IOException {
         AbstractAVIStream.Track tr = tracks.get(track);
-        AbstractAVIStream.Sample s = tr.samples.get(sample);
-        return (int) s.length;
+        return (int) tr.samples.getLength(sample);
     }
 
     /**
@@ -429,6 +484,22 @@ public class AVIInputStream extends AbstractAVIStream {
     }
 
 
+    /**
+     * Reads a sample from a track into a read-only buffer.
+     * <p>
+     * If the file is memory mapped, the buffer shares its content with the
+     * file and no data is copied.
+     *
+     * @param track  The track index.
+     * @param sample The sample index.
+     * @return the sample data
+     * @throws IOException if reading the sample data failed.
+     */
+    public ByteBuffer readSample(int track, int sample) throws IOException {
+        SampleList samples = tracks.get(track).samples;
+        return ImageInputStreams.readFully(in, samples.getOffset(sample), (int) samples.getLength(sample));
+    }
+
     /**
      * Reads a sample from a track into a byte array.
      *
@@ -442,14 +513,50 @@ public class AVIInputStream extends AbstractAVIStream {
      */
     public int readSample(int track, int sample, byte[] data, int off, int len) throws IOException {
         AbstractAVIStream.Track tr = tracks.get(track);
-        AbstractAVIStream.Sample s = tr.samples.get(sample);
-        in.seek(s.offset);
-        if (len < s.length) throw new IOException("len=" + len + " is too small. Should be at least len=" + s.length);
-        int bytesRead = Math.min((int) s.length, len);
-        in.readFully(data, off, bytesRead);
+        long length = tr.samples.getLength(sample);
+        if (len < length) throw new IOException("len=" + len + " is too small. Should be at least len=" + length);
+        int bytesRead = Math.min((int) length, len);
+        readRange(tr.samples.getOffset(sample), data, off, bytesRead);
         return bytesRead;
     }
 
+    /**
+     * Reads the specified range of the file in advance. Until the next call
+     * of this method, data that lies completely inside the range is read
+     * from memory.
+     *
+     * @param offset the position of the range in the file
+     * @param length the length of the range, 0 releases the range
+     * @throws IOException if reading fails
+     */
+    public void prefetch(long offset, int length) throws IOException {
+        prefetched = null;
+        if (length > 0) {
+            prefetched = ImageInputStreams.prefetch(in, offset, length);
+            prefetchedOffset = offset;
+        }
+    }
+
+    /**
+     * Reads the specified range of the file into a byte array. The data is
+     * copied from the prefetched range if it lies completely inside of it.
+     *
+     * @param offset the position in the file
+     * @param data   the byte array
+     * @param off    the offset in the byte array
+     * @param len    the number of bytes
+     * @throws IOException if reading fails
+     */
+    protected void readRange(long offset, byte[] data, int off, int len) throws IOException {
+        if (prefetched != null && offset >= prefetchedOffset
+                && offset + len <= prefetchedOffset + prefetched.limit()) {
+            prefetched.get((int) (offset - prefetchedOffset), data, off, len);
+        } else {
+            in.seek(offset);
+            in.readFully(data, off, len);
+        }
+    }
+
     /**
      * Reads an AVI Stream Header and returns a Track object.
      */
@@ -531,6 +638,53 @@ public class AVIInputStream extends AbstractAVIStream {
         tr.name = new String(data, 0, data.length - 1, StandardCharsets.US_ASCII);
     }
 
+    /**
+     * Reads an OpenDML super index.
+     * <pre>
+     * typedef struct {
+     *   WORD wLongsPerEntry; // must be 4 (size of each entry in aIndex array)
+     *   BYTE bIndexSubType; // must be 0 or AVI_INDEX_2FIELD
+     *   BYTE bIndexType; // must be AVI_INDEX_OF_INDEXES = 0
+     *   DWORD nEntriesInUse; // number of entries in aIndex array that are used
+     *   DWORD dwChunkId; // "##dc" or "##db" or "##wb", etc.
+     *   DWORD dwReserved[3]; // must be 0
+     *   struct {
+     *     QWORD qwOffset; // absolute file offset of the "ix##" chunk
+     *     DWORD dwSize; // size of the "ix##" chunk
+     *     DWORD dwDuration; // time span in stream ticks
+     *   } aIndex[nEntriesInUse];
+     * } AVISUPERINDEX;
+     * </pre>
+     * Other index types are ignored.
+     *
+     * @param tr   the track
+     * @param data the contents of the "indx" chunk
+     * @throws IOException if reading fails
+     */
+    private void readINDX(Track tr, byte[] data) throws IOException {
+        ByteArrayImageInputStream in = new ByteArrayImageInputStream(data, ByteOrder.LITTLE_ENDIAN);
+        int longsPerEntry = in.readUnsignedShort();
+        in.readUnsignedByte();// bIndexSubType
+        int indexType = in.readUnsignedByte();
+        long entriesInUse = in.readUnsignedInt();
+        in.setByteOrder(ByteOrder.BIG_ENDIAN);
+        int chunkId = in.readInt();
+        in.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        in.skipBytes(12);
+        if (longsPerEntry != 4 || indexType != 0
+                || entriesInUse > (data.length - 24) / 16) {
+            return;
+        }
+        long[] indexOffsets = new long[(int) entriesInUse];
+        long[] durations = new long[(int) entriesInUse];
+        for (int i = 0; i < entriesInUse; i++) {
+            indexOffsets[i] = in.readLong();
+            in.readUnsignedInt();// dwSize
+            durations[i] = in.readUnsignedInt();
+        }
+        superIndexes.put(tr, new SuperIndex(chunkId, indexOffsets, durations));
+    }
+
     /**
      * Reads an AVI bitmap info header for a video track.
      * </pre>
@@ -726,10 +880,9 @@ public class AVIInputStream extends AbstractAVIStream {
      *
      * @param tracks
      * @param data
-     * @return The idx1 list of samples.
      * @throws IOException
      */
-    private void readIDX1(ArrayList<Track> tracks, ArrayList<Sample> idx1, byte[] data) throws IOException {
+    private void readIDX1(ArrayList<Track> tracks, byte[] data) throws IOException {
         ByteArrayImageInputStream in = new ByteArrayImageInputStream(data, ByteOrder.LITTLE_ENDIAN);
 
         long[] trReadTimeStamp = new long[tracks.size()];
@@ -756,7 +909,6 @@ public class AVIInputStream extends AbstractAVIStream {
             }
             Sample s = new Sample(chunkId, duration, offset + moviOffset, size, (flags & 0x10) != 0);
             s.timeStamp = trReadTimeStamp[track];
-            idx1.add(s);
             trReadTimeStamp[track] += duration;
 
             // special treatment for palette changes
@@ -782,5 +934,6 @@ public class AVIInputStream extends AbstractAVIStream {
             tr.samples.clear();
         }
         tracks.clear();
+        superIndexes.clear();
     }
 }
@@ -5,13 +5,13 @@
 package org.monte.media.avi;
 
 import org.monte.media.av.Format;
+import org.monte.media.io.AsyncFileImageOutputStream;
 import org.monte.media.io.IOStreams;
 import org.monte.media.math.Rational;
 import org.monte.media.riff.RIFFChunk;
 import org.monte.media.riff.RIFFParser;
 import org.monte.media.util.MathUtil;
 
-import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageOutputStream;
 import java.awt.Dimension;
 import java.awt.image.ColorModel;
@@ -22,7 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 import static java.lang.Math.max;
 import static org.monte.media.av.FormatKeys.EncodingKey;
@@ -88,7 +88,13 @@ public class AVIOutputStream extends AbstractAVIStream {
      * This chunk holds the AVI Main Header.
      */
     protected FixedSizeDataChunk avihChunk;
-    ArrayList<Sample> idx1 = new ArrayList<>();
+    /**
+     * The track index of each sample, in the order in which the samples were
+     * written. This is all we need for writing the "idx1" chunk, the samples
+     * themselves are stored in the tracks.
+     */
+    private int[] idx1 = new int[64];
+    private int idx1Size;
 
     /**
      * Creates a new instance.
@@ -99,7 +105,7 @@ public class AVIOutputStream extends AbstractAVIStream {
         if (file.exists()) {
             file.delete();
         }
-        this.out = new FileImageOutputStream(file);
+        this.out = new AsyncFileImageOutputStream(file);
         out.setByteOrder(ByteOrder.LITTLE_ENDIAN);
         this.streamOffset = 0;
     }
@@ -371,6 +377,13 @@ public class AVIOutputStream extends AbstractAVIStream {
         }
     }
 
+    private void addToIdx1(int track) {
+        if (idx1Size == idx1.length) {
+            idx1 = Arrays.copyOf(idx1, idx1Size * 2);
+        }
+        idx1[idx1Size++] = track;
+    }
+
     /**
      * Writes an already encoded palette change into the specified track. <p> If
      * a track contains palette changes, then all key frames must be immediately
@@ -401,7 +414,7 @@ public class AVIOutputStream extends AbstractAVIStream {
         long length = getRelativeStreamPosition() - offset;
         Sample s = new Sample(paletteChangeChunk.chunkType, 0, offset, length, isKeyframe);
         tr.addSample(s);
-        idx1.add(s);
+        addToIdx1(track);
         //tr.length+=0;  Length is not affected by this chunk!
         offset = getRelativeStreamPosition();
     }
@@ -462,6 +475,7 @@ public class AVIOutputStream extends AbstractAVIStream {
                 Sample s = tr.samples.get(tr.samples.size() - 1);
                 if ((s.chunkType & 0xffff) == PC_ID) {
                     s.isKeyframe = true;
+                    tr.samples.set(tr.samples.size() - 1, s);
                 }
             }
             isKeyframe = false;
@@ -477,7 +491,7 @@ public class AVIOutputStream extends AbstractAVIStream {
         dc.finish();
         Sample s = new Sample(dc.chunkType, 1, offset, length, isKeyframe);
         tr.addSample(s);
-        idx1.add(s);
+        addToIdx1(track);
         tr.length++;
         if (getRelativeStreamPosition() > 1L << 32) {
             throw new IOException("AVI file is larger than 4 GB");
@@ -526,7 +540,7 @@ public class AVIOutputStream extends AbstractAVIStream {
         dc.finish();
         Sample s = new Sample(dc.chunkType, 1, offset, length, isKeyframe);
         tr.addSample(s);
-        idx1.add(s);
+        addToIdx1(track);
         if (getRelativeStreamPosition() > 1L << 32) {
             throw new IOException("AVI file is larger than 4 GB");
         }
@@ -561,7 +575,7 @@ public class AVIOutputStream extends AbstractAVIStream {
             dc.finish();
             Sample s = new Sample(dc.chunkType, sampleCount, offset, length, isKeyframe | tr.samples.isEmpty());
             tr.addSample(s);
-            idx1.add(s);
+            addToIdx1(track);
             tr.length += sampleCount;
             if (getRelativeStreamPosition() > 1L << 32) {
                 throw new IOException("AVI file is larger than 4 GB");
@@ -735,7 +749,9 @@ public class AVIOutputStream extends AbstractAVIStream {
             long moviListOffset = moviChunk.offset + 8 + 8;
 
             {
-                for (Sample s : idx1) {
+                int[] trackSampleIndex = new int[tracks.size()];
+                for (int i = 0; i < idx1Size; i++) {
+                    Sample s = tracks.get(idx1[i]).samples.get(trackSampleIndex[idx1[i]]++);
                     d.setByteOrder(ByteOrder.BIG_ENDIAN);
                     d.writeInt(s.chunkType); // dwChunkId
                     d.setByteOrder(ByteOrder.LITTLE_ENDIAN);
@@ -9,20 +9,17 @@ import org.monte.media.av.BufferFlag;
 import org.monte.media.av.Codec;
 import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys.MediaType;
-import org.monte.media.av.MovieReader;
+import org.monte.media.av.PrefetchableMovieReader;
 import org.monte.media.av.Registry;
 import org.monte.media.av.codec.video.VideoFormatKeys;
 import org.monte.media.math.Rational;
 import org.monte.media.util.ArrayUtil;
-import org.monte.media.util.MathUtil;
 
 import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.List;
 
@@ -46,7 +43,7 @@ import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_I
  *
  * @author Werner Randelshofer
  */
-public class AVIReader extends AVIInputStream implements MovieReader {
+public class AVIReader extends AVIInputStream implements PrefetchableMovieReader {
     private static class TrackEncoder {
         /**
          * The codec.
@@ -60,10 +57,27 @@ public class AVIReader extends AVIInputStream implements MovieReader {
     public final static Format AVI = new Format(MediaTypeKey, MediaType.FILE, MimeTypeKey, MIME_AVI);
     private Rational movieDuration = null;
 
+    /**
+     * Creates a new instance.
+     * <p>
+     * If the stream is a {@link org.monte.media.io.MappedFileImageInputStream},
+     * the samples are read from memory mapped file content. The mapping is
+     * only released by the garbage collector, so on some operating systems
+     * the file can not be deleted or overwritten for a while after the reader
+     * has been closed.
+     *
+     * @param in the input stream.
+     */
     public AVIReader(ImageInputStream in) throws IOException {
         super(in);
     }
 
+    /**
+     * Creates a new instance that reads the file with a
+     * {@link javax.imageio.stream.FileImageInputStream}.
+     *
+     * @param file the input file
+     */
     public AVIReader(File file) throws IOException {
         super(file);
     }
@@ -107,23 +121,21 @@ public class AVIReader extends AVIInputStream implements MovieReader {
         }
 
         buffer.sequenceNumber = tr.readIndex;
-        AbstractAVIStream.Sample s = tr.samples.get((int) tr.readIndex);
+        AbstractAVIStream.Sample header = tr.samples.getHeader(sampleIndex);
 
         // FIXME - This should be done using AVIInputStream.readPalette()
-        if (s.header != null) {
+        if (header != null) {
             byte[] b;
-            buffer.header = b = ArrayUtil.reuseByteArray(buffer.header, (int) s.header.length);
-            buffer.headerLength = (int) s.header.length;
-            in.seek(s.header.offset);
-            in.readFully(b, 0, (int) s.header.length);
+            buffer.header = b = ArrayUtil.reuseByteArray(buffer.header, (int) header.length);
+            buffer.headerLength = (int) header.length;
+            readRange(header.offset, b, 0, (int) header.length);
         } else {
             buffer.headerLength = 0;
         }
 
         buffer.offset = 0;
         buffer.length = getSampleSize(track, sampleIndex);
-        buffer.data = ArrayUtil.reuseByteArray(buffer.data, buffer.length);
-        readSample(track, sampleIndex, (byte[]) buffer.data, 0, buffer.length);
+        readSample(track, sampleIndex, buffer.reuseByteArray(buffer.length), 0, buffer.length);
 
         switch (tr.mediaType) {
             case AUDIO: {
@@ -143,8 +155,8 @@ public class AVIReader extends AVIInputStream implements MovieReader {
         buffer.format = tr.format;
         buffer.track = track;
         buffer.sampleDuration = new Rational(tr.scale, tr.rate);
-        buffer.timeStamp = new Rational((s.timeStamp + tr.startTime) * tr.scale, tr.rate);
-        buffer.flags = s.isKeyframe ? EnumSet.of(KEYFRAME) : EnumSet.noneOf(BufferFlag.class);
+        buffer.timeStamp = new Rational((tr.samples.getTimeStamp(sampleIndex) + tr.startTime) * tr.scale, tr.rate);
+        buffer.flags = tr.samples.isKeyframe(sampleIndex) ? EnumSet.of(KEYFRAME) : EnumSet.noneOf(BufferFlag.class);
 
 
         tr.readIndex++;
@@ -247,12 +259,29 @@ public class AVIReader extends AVIInputStream implements MovieReader {
     public Rational getReadTime(int track) throws IOException {
         AbstractAVIStream.Track tr = tracks.get(track);
         if (tr.samples.size() > tr.readIndex) {
-            AbstractAVIStream.Sample s = tr.samples.get((int) tr.readIndex);
-            return new Rational((s.timeStamp + tr.startTime) * tr.scale, tr.rate);
+            return new Rational((tr.samples.getTimeStamp(tr.readIndex) + tr.startTime) * tr.scale, tr.rate);
         }
         return new Rational(0, 1);
     }
 
+    @Override
+    public long getReadIndex(int track) throws IOException {
+        ensureRealized();
+        return tracks.get(track).readIndex;
+    }
+
+    @Override
+    public long getSampleOffset(int track, long sample) throws IOException {
+        ensureRealized();
+        return tracks.get(track).samples.getOffset((int) sample);
+    }
+
+    @Override
+    public long getSampleLength(int track, long sample) throws IOException {
+        ensureRealized();
+        return tracks.get(track).samples.getLength((int) sample);
+    }
+
     @Override
     public int nextTrack() throws IOException {
         ensureRealized();
@@ -265,11 +294,11 @@ public class AVIReader extends AVIInputStream implements MovieReader {
                 continue;
             }
 
-            AbstractAVIStream.Sample currentSample = tr.readIndex < tr.samples.size() ? tr.samples.get((int) tr.readIndex) : tr.samples.get(tr.samples.size() - 1);
+            int currentSample = min(tr.readIndex, tr.samples.size() - 1);
 
-            long readTimeStamp = currentSample.timeStamp;
+            long readTimeStamp = tr.samples.getTimeStamp(currentSample);
             if (tr.readIndex >= tr.samples.size()) {
-                readTimeStamp += currentSample.duration;
+                readTimeStamp += tr.samples.getDuration(currentSample);
             }
 
             Rational trts = new Rational((readTimeStamp + tr.startTime) * tr.scale, tr.rate);
@@ -314,22 +343,18 @@ public class AVIReader extends AVIInputStream implements MovieReader {
     @Override
     public long findSampleAtTime(int track, Rational time) {
         AbstractAVIStream.Track tr = tracks.get(track);
-        Sample key = new Sample(0, 0, 0, 0, false);
-        key.timeStamp = time.multiply(new Rational(tr.rate, tr.scale)).longValue();
-        int result = Collections.binarySearch(tr.samples, key, Comparator.comparingLong(a -> a.timeStamp));
-        if (result < 0) result = ~result - 1;
-        result = MathUtil.clamp(result, 0, tr.samples.size() - 1);
-        return result;
+        long timeStamp = time.multiply(new Rational(tr.rate, tr.scale)).longValue();
+        return max(0, tr.samples.findSampleAtTime(timeStamp));
     }
 
     @Override
     public Rational getSampleTime(int track, long sampleIndex) throws IOException {
         ensureRealized();
         AbstractAVIStream.Track tr = tracks.get(track);
-        AbstractAVIStream.Sample sample = tr.samples.get((int) max(0, min(tr.samples.size() - 1, sampleIndex)));
-        long time = (tr.startTime + sample.timeStamp) * tr.scale;//
+        int sample = (int) max(0, min(tr.samples.size() - 1, sampleIndex));
+        long time = (tr.startTime + tr.samples.getTimeStamp(sample)) * tr.scale;//
         if (sampleIndex >= tr.samples.size()) {
-            time += sample.duration * tr.scale;
+            time += tr.samples.getDuration(sample) * tr.scale;
         }
         return new Rational(time, tr.rate);
     }
@@ -338,12 +363,11 @@ public class AVIReader extends AVIInputStream implements MovieReader {
     public Rational getSampleDuration(int track, long sampleIndex) throws IOException {
         ensureRealized();
         AbstractAVIStream.Track tr = tracks.get(track);
-        AbstractAVIStream.Sample sample = tr.samples.get((int) max(0, min(tr.samples.size() - 1, sampleIndex)));
         Rational duration;
         if (sampleIndex >= tr.samples.size()) {
             duration = Rational.ZERO;
         } else {
-            duration = new Rational(sample.duration * tr.scale, tr.rate);
+            duration = new Rational(tr.samples.getDuration((int) max(0, sampleIndex)) * tr.scale, tr.rate);
 
         }
         return duration;
@@ -354,9 +378,8 @@ public class AVIReader extends AVIInputStream implements MovieReader {
         ensureRealized();
         for (int t = 0, n = tracks.size(); t < n; t++) {
             AbstractAVIStream.Track tr = tracks.get(t);
-            int sample = (int) min(findSampleAtTime(t, newValue), tr.samples.size() - 1);
-            for (; sample > 0 && !tr.samples.get(sample).isKeyframe; sample--) ;
-            tr.readIndex = sample;
+            int sample = tr.samples.findSampleAtTime(newValue.multiply(new Rational(tr.rate, tr.scale)).longValue());
+            tr.readIndex = sample < 0 ? 0 : max(0, tr.samples.findKeyframeAtOrBefore(sample));
         }
     }
 
@@ -19,6 +19,7 @@ import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -74,6 +75,11 @@ public class AVIWriter extends AVIOutputStream implements MovieWriter {
         public Codec codec;
         public Buffer outputBuffer;
         public Buffer inputBuffer;
+        /**
+         * Holds the data of an input buffer with a {@code ByteBuffer} as a
+         * {@code byte} array.
+         */
+        public Buffer byteArrayView;
     }
 
     private List<TrackEncoder> trackEncoders = new ArrayList<>();
@@ -289,6 +295,12 @@ public class AVIWriter extends AVIOutputStream implements MovieWriter {
 
         AbstractAVIStream.Track tr = tracks.get(track);
         TrackEncoder tre = getTrackEncoder(track);
+        if (buf.data instanceof ByteBuffer) {
+            if (tre.byteArrayView == null) {
+                tre.byteArrayView = new Buffer();
+            }
+            buf = buf.asByteArrayBuffer(tre.byteArrayView);
+        }
 
         boolean isKeyframe = buf.flags.contains(KEYFRAME);
         if (buf.data instanceof BufferedImage) {
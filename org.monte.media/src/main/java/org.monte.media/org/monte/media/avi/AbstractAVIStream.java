@@ -60,6 +60,7 @@ public abstract class AbstractAVIStream {
     protected final static int STRF_ID = 0x73747266;// "strf"
     protected final static int STRD_ID = 0x73747264;// "strd"
     protected final static int IDX1_ID = 0x69647831;// "idx1"
+    protected final static int INDX_ID = 0x696e6478;// "indx"
     protected final static int REC_ID = 0x72656320;// "rec "
     protected final static int CHUNK_SUBTYPE_MASK = 0xffff;// "??xx"
     protected final static int PC_ID = 0x00007063;// "??pc"
@@ -344,9 +345,10 @@ public abstract class AbstractAVIStream {
          * @see scale
          */
         /**
-         * List of samples.
+         * List of samples. The elements of the list are snapshots, a changed
+         * sample must be written back with {@link SampleList#set}.
          */
-        public ArrayList<Sample> samples;
+        public SampleList samples;
         /**
          * Interval between sync samples (keyframes). 0 = automatic. 1 = write
          * all samples as sync samples. n = sync every n-th sample.
@@ -505,7 +507,7 @@ public abstract class AbstractAVIStream {
             twoCC = (('0' + trackIndex / 10) << 24) | (('0' + trackIndex % 10) << 16);
 
             this.fccHandler = fourCC;
-            this.samples = new ArrayList<>();
+            this.samples = new SampleTableList();
             this.extraHeaders = new ArrayList<>();
         }
 
@@ -515,7 +517,8 @@ public abstract class AbstractAVIStream {
 
         public void addSample(Sample s) {
             if (!samples.isEmpty()) {
-                s.timeStamp = samples.get(samples.size() - 1).timeStamp + samples.get(samples.size() - 1).duration;
+                Sample last = samples.get(samples.size() - 1);
+                s.timeStamp = last.timeStamp + last.duration;
             }
             samples.add(s);
             length++;
@@ -0,0 +1,92 @@
+/*
+ * @(#)SampleList.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.avi;
+
+import org.monte.media.avi.AbstractAVIStream.Sample;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A list of the samples of an AVI track, that provides access to the
+ * properties of a sample without creating {@link Sample} objects.
+ * <p>
+ * The list does not hold {@code Sample} objects. {@link #get} returns a
+ * snapshot of a sample, changes to the snapshot do not affect the list.
+ * A changed sample must be written back with {@link #set}. Implementations
+ * may only support changes of some of the properties of a sample.
+ */
+public abstract class SampleList extends AbstractList<Sample> implements RandomAccess {
+
+    /**
+     * Creates a new instance. Only the AVI streams provide implementations.
+     */
+    SampleList() {
+    }
+
+    /**
+     * Returns the time stamp of the specified sample.
+     */
+    abstract long getTimeStamp(int index);
+
+    /**
+     * Returns the duration of the specified sample.
+     */
+    abstract int getDuration(int index);
+
+    /**
+     * Returns the position of the data of the specified sample in the file.
+     */
+    abstract long getOffset(int index);
+
+    /**
+     * Returns the length of the data of the specified sample.
+     */
+    abstract long getLength(int index);
+
+    /**
+     * Returns the palette change that precedes the specified sample, or null.
+     */
+    abstract Sample getHeader(int index);
+
+    /**
+     * Returns true if the specified sample is a keyframe.
+     */
+    abstract boolean isKeyframe(int index);
+
+    /**
+     * Returns the index of the last sample with a time stamp less than or
+     * equal to the specified time stamp.
+     *
+     * @param timeStamp a time stamp
+     * @return the index of the sample, 0 if the time stamp is before the first
+     * sample, or -1 if the list is empty
+     */
+    int findSampleAtTime(long timeStamp) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getTimeStamp(mid) <= timeStamp) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return isEmpty() ? -1 : Math.max(0, low - 1);
+    }
+
+    /**
+     * Returns the index of the last keyframe at or before the specified
+     * sample.
+     *
+     * @param index a sample index
+     * @return the index of the keyframe, or -1 if there is none
+     */
+    int findKeyframeAtOrBefore(int index) {
+        for (; index >= 0 && !isKeyframe(index); index--) ;
+        return index;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * @(#)SampleTableList.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.avi;
+
+import org.monte.media.avi.AbstractAVIStream.Sample;
+import org.monte.media.util.SampleTable;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of the samples of an AVI track, that is backed by a
+ * {@link SampleTable}.
+ * <p>
+ * The list does not hold on to the {@link Sample} objects. {@link #get} returns
+ * a new object on each call. Changes to it must be written back with
+ * {@link #set}.
+ * <p>
+ * A palette change usually applies to a long run of consecutive samples.
+ * Therefore, the list only stores the index of the first sample of each run.
+ */
+class SampleTableList extends SampleList {
+    private final SampleTable table = new SampleTable();
+    /**
+     * The index of the first sample of each run of samples that are preceded
+     * by the same palette change, in ascending order.
+     */
+    private int[] headerStarts = new int[0];
+    /**
+     * The palette change of each run, null if the samples of the run are not
+     * preceded by a palette change.
+     */
+    private Sample[] headers = new Sample[0];
+    /**
+     * The number of runs.
+     */
+    private int headerCount;
+
+    @Override
+    public Sample get(int index) {
+        Sample s = new Sample(table.getType(index), table.getDuration(index), table.getOffset(index),
+                table.getLength(index), table.isKeyframe(index));
+        s.timeStamp = table.getTimeStamp(index);
+        s.header = getHeader(index);
+        return s;
+    }
+
+    /**
+     * Replaces the keyframe flag and the palette change of the specified
+     * sample. All other properties of a sample can not be changed.
+     */
+    @Override
+    public Sample set(int index, Sample s) {
+        Sample old = get(index);
+        if (s.chunkType != old.chunkType || s.offset != old.offset || s.length != old.length
+                || s.duration != old.duration || s.timeStamp != old.timeStamp) {
+            throw new UnsupportedOperationException("Only isKeyframe and header can be changed.");
+        }
+        table.setKeyframe(index, s.isKeyframe);
+        setHeader(index, s.header);
+        return old;
+    }
+
+    @Override
+    public boolean add(Sample s) {
+        int index = table.add(s.chunkType, s.offset, s.length, s.timeStamp, s.duration, s.isKeyframe);
+        setHeader(index, s.header);
+        modCount++;
+        return true;
+    }
+
+    private void setHeader(int index, Sample header) {
+        if (getHeader(index) == header) {
+            return;
+        }
+        // Split the run, so that only the specified sample is changed
+        if (index + 1 < table.size()) {
+            putRun(index + 1, getHeader(index + 1));
+        }
+        putRun(index, header);
+        removeRedundantRun(findRun(index + 1));
+        removeRedundantRun(findRun(index));
+    }
+
+    /**
+     * Returns the run that contains the specified sample, or -1.
+     */
+    private int findRun(int index) {
+        int i = Arrays.binarySearch(headerStarts, 0, headerCount, index);
+        return i < 0 ? ~i - 1 : i;
+    }
+
+    /**
+     * Starts a run at the specified sample.
+     */
+    private void putRun(int index, Sample header) {
+        int i = Arrays.binarySearch(headerStarts, 0, headerCount, index);
+        if (i < 0) {
+            i = ~i;
+            if (headerCount == headerStarts.length) {
+                int capacity = Math.max(4, headerCount * 2);
+                headerStarts = Arrays.copyOf(headerStarts, capacity);
+                headers = Arrays.copyOf(headers, capacity);
+            }
+            System.arraycopy(headerStarts, i, headerStarts, i + 1, headerCount - i);
+            System.arraycopy(headers, i, headers, i + 1, headerCount - i);
+            headerStarts[i] = index;
+            headerCount++;
+        }
+        headers[i] = header;
+    }
+
+    /**
+     * Removes the specified run if it has the same palette change as the
+     * run before it.
+     */
+    private void removeRedundantRun(int i) {
+        if (i >= 0 && headers[i] == (i == 0 ? null : headers[i - 1])) {
+            System.arraycopy(headerStarts, i + 1, headerStarts, i, headerCount - i - 1);
+            System.arraycopy(headers, i + 1, headers, i, headerCount - i - 1);
+            headers[--headerCount] = null;
+        }
+    }
+
+    @Override
+    public int size() {
+        return table.size();
+    }
+
+    @Override
+    public void clear() {
+        table.clear();
+        headerStarts = new int[0];
+        headers = new Sample[0];
+        headerCount = 0;
+        modCount++;
+    }
+
+    @Override
+    long getTimeStamp(int index) {
+        return table.getTimeStamp(index);
+    }
+
+    @Override
+    boolean isKeyframe(int index) {
+        return table.isKeyframe(index);
+    }
+
+    @Override
+    int getDuration(int index) {
+        return table.getDuration(index);
+    }
+
+    @Override
+    long getOffset(int index) {
+        return table.getOffset(index);
+    }
+
+    @Override
+    long getLength(int index) {
+        return table.getLength(index);
+    }
+
+    @Override
+    Sample getHeader(int index) {
+        int i = findRun(index);
+        return i < 0 ? null : headers[i];
+    }
+
+    @Override
+    int findSampleAtTime(long timeStamp) {
+        return table.findSampleAtTime(timeStamp);
+    }
+
+    @Override
+    int findKeyframeAtOrBefore(int index) {
+        return table.findKeyframeAtOrBefore(index);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * @(#)SuperIndexSampleList.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.avi;
+
+import org.monte.media.avi.AbstractAVIStream.Sample;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A read-only list of the samples of an AVI track, which is backed by the
+ * OpenDML index of the track.
+ * <p>
+ * The OpenDML index consists of a super index ("indx" chunk) in the stream
+ * header list, which points to standard index chunks ("ix##" chunks). Each
+ * standard index chunk lists the data chunks of the track in one segment of
+ * the file.
+ * <p>
+ * When the list is created, only the headers of the standard index chunks are
+ * read. The entries of a standard index chunk are read when one of its
+ * samples is accessed. At most {@value #MAX_LOADED_SEGMENTS} standard index
+ * chunks are held in memory.
+ * <pre>
+ * typedef struct {
+ *     FOURCC fcc; // "ix##"
+ *     DWORD cb;
+ *     WORD wLongsPerEntry; // 2
+ *     BYTE bIndexSubType; // 0
+ *     BYTE bIndexType; // AVI_INDEX_OF_CHUNKS = 1
+ *     DWORD nEntriesInUse;
+ *     DWORD dwChunkId;
+ *     QWORD qwBaseOffset; // all dwOffsets in aIndex array are relative to this
+ *     DWORD dwReserved3;
+ *     struct {
+ *         DWORD dwOffset; // offset of the chunk data, relative to qwBaseOffset
+ *         DWORD dwSize; // bit 31 is set if this is NOT a keyframe
+ *     } aIndex[nEntriesInUse];
+ * } AVISTDINDEX;
+ * </pre>
+ *
+ * @author Werner Randelshofer
+ */
+class SuperIndexSampleList extends SampleList {
+    private final static int MAX_LOADED_SEGMENTS = 8;
+    private final static int AVI_INDEX_OF_CHUNKS = 1;
+    private final static int STDINDEX_HEADER_SIZE = 32;
+
+    private final ImageInputStream in;
+    private final int chunkId;
+    /**
+     * The number of bytes per audio frame, or 0 for video tracks.
+     */
+    private final int frameSize;
+    /**
+     * Offsets of the standard index chunks in the file.
+     */
+    private long[] indexOffsets;
+    /**
+     * Index of the first sample in each standard index chunk. The last
+     * element holds the total number of samples.
+     */
+    private int[] firstSamples;
+    /**
+     * Time stamp of the first sample in each standard index chunk.
+     */
+    private long[] firstTimeStamps;
+    private final Map<Integer, Sample[]> loadedSegments = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Sample[]> eldest) {
+            return size() > MAX_LOADED_SEGMENTS;
+        }
+    };
+
+    /**
+     * Creates a new instance, and reads the headers of the standard index
+     * chunks.
+     *
+     * @param in           the input stream, must have little endian byte order
+     * @param chunkId      the chunk id of the samples
+     * @param frameSize    the number of bytes per audio frame, or 0 for video
+     * @param indexOffsets the offsets of the standard index chunks from the
+     *                     super index
+     * @param durations    the durations of the standard index chunks from the
+     *                     super index
+     * @throws IOException if the standard index chunks can not be read
+     */
+    SuperIndexSampleList(ImageInputStream in, int chunkId, int frameSize, long[] indexOffsets, long[] durations) throws IOException {
+        this.in = in;
+        this.chunkId = chunkId;
+        this.frameSize = frameSize;
+        this.indexOffsets = indexOffsets;
+        int n = indexOffsets.length;
+        firstSamples = new int[n + 1];
+        firstTimeStamps = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            in.seek(indexOffsets[i] + 8);
+            int longsPerEntry = in.readUnsignedShort();
+            in.readUnsignedByte();// bIndexSubType
+            int indexType = in.readUnsignedByte();
+            long entriesInUse = in.readUnsignedInt();
+            if (longsPerEntry != 2 || indexType != AVI_INDEX_OF_CHUNKS
+                    || entriesInUse > Integer.MAX_VALUE - firstSamples[i]) {
+                throw new IOException("Illegal standard index chunk at offset " + indexOffsets[i]);
+            }
+            firstSamples[i + 1] = firstSamples[i] + (int) entriesInUse;
+            // Each video chunk has a duration of 1
+            firstTimeStamps[i + 1] = firstTimeStamps[i] + (frameSize == 0 ? entriesInUse : durations[i]);
+        }
+    }
+
+    @Override
+    public Sample get(int index) {
+        Objects.checkIndex(index, size());
+        int segment = Arrays.binarySearch(firstSamples, index);
+        if (segment < 0) {
+            segment = ~segment - 1;
+        } else {
+            // skip empty segments
+            while (firstSamples[segment + 1] == index) {
+                segment++;
+            }
+        }
+        return getSegment(segment)[index - firstSamples[segment]];
+    }
+
+    @Override
+    public int size() {
+        return firstSamples[firstSamples.length - 1];
+    }
+
+    @Override
+    long getTimeStamp(int index) {
+        return get(index).timeStamp;
+    }
+
+    @Override
+    boolean isKeyframe(int index) {
+        return get(index).isKeyframe;
+    }
+
+    @Override
+    int getDuration(int index) {
+        return get(index).duration;
+    }
+
+    @Override
+    long getOffset(int index) {
+        return get(index).offset;
+    }
+
+    @Override
+    long getLength(int index) {
+        return get(index).length;
+    }
+
+    /**
+     * Returns null, because standard index chunks do not index palette
+     * changes.
+     */
+    @Override
+    Sample getHeader(int index) {
+        return null;
+    }
+
+    /**
+     * Returns the index of the last sample with a time stamp less than or
+     * equal to the specified time stamp. Only reads the standard index chunk
+     * that contains the sample.
+     */
+    @Override
+    int findSampleAtTime(long timeStamp) {
+        if (isEmpty()) {
+            return -1;
+        }
+        int segment = Arrays.binarySearch(firstTimeStamps, 0, firstTimeStamps.length - 1, timeStamp);
+        if (segment < 0) {
+            segment = Math.max(0, ~segment - 1);
+        }
+        // skip empty segments, and segments that end before the time stamp
+        while (segment < firstSamples.length - 2
+                && (firstSamples[segment] == firstSamples[segment + 1] || firstTimeStamps[segment + 1] <= timeStamp)) {
+            segment++;
+        }
+        while (firstSamples[segment] == firstSamples[segment + 1]) {
+            segment--;
+        }
+        Sample[] samples = getSegment(segment);
+        int low = 0;
+        int high = samples.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (samples[mid].timeStamp <= timeStamp) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return firstSamples[segment] + Math.max(0, low - 1);
+    }
+
+    /**
+     * Returns the total duration of the samples in stream ticks.
+     */
+    long getDuration() {
+        return firstTimeStamps[firstTimeStamps.length - 1];
+    }
+
+    /**
+     * Removes all samples and releases the loaded standard index chunks.
+     */
+    @Override
+    public void clear() {
+        indexOffsets = new long[0];
+        firstSamples = new int[1];
+        firstTimeStamps = new long[1];
+        loadedSegments.clear();
+    }
+
+    private Sample[] getSegment(int segment) {
+        Sample[] samples = loadedSegments.get(segment);
+        if (samples == null) {
+            try {
+                samples = readSegment(segment);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            loadedSegments.put(segment, samples);
+        }
+        return samples;
+    }
+
+    private Sample[] readSegment(int segment) throws IOException {
+        in.seek(indexOffsets[segment] + 20);
+        long baseOffset = in.readLong();
+        in.seek(indexOffsets[segment] + STDINDEX_HEADER_SIZE);
+        int count = firstSamples[segment + 1] - firstSamples[segment];
+        int[] entries = new int[count * 2];
+        in.readFully(entries, 0, entries.length);
+
+        Sample[] samples = new Sample[count];
+        long timeStamp = firstTimeStamps[segment];
+        for (int i = 0; i < count; i++) {
+            long offset = baseOffset + (entries[i * 2] & 0xffffffffL);
+            int size = entries[i * 2 + 1] & 0x7fffffff;
+            boolean isKeyframe = (entries[i * 2 + 1] & 0x80000000) == 0;
+            int duration = frameSize == 0 ? 1 : size / frameSize;
+            // all audio samples are keyframes
+            Sample s = new Sample(chunkId, duration, offset, size, isKeyframe || frameSize != 0);
+            s.timeStamp = timeStamp;
+            timeStamp += duration;
+            samples[i] = s;
+        }
+        return samples;
+    }
+}
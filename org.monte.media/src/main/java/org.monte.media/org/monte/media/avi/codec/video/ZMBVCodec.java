@@ -9,39 +9,57 @@ import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys.MediaType;
 import org.monte.media.av.codec.video.AbstractVideoCodec;
 import org.monte.media.image.BufferedImageWithColorModel;
+import org.monte.media.io.ByteArrayImageOutputStream;
+import org.monte.media.util.ArrayUtil;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.DirectColorModel;
 import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.zip.Deflater;
 
 import static java.lang.Math.abs;
 import static org.monte.media.av.BufferFlag.DISCARD;
 import static org.monte.media.av.BufferFlag.KEYFRAME;
+import static org.monte.media.av.BufferFlag.SAME_DATA;
 import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.KeyFrameIntervalKey;
+import static org.monte.media.av.FormatKeys.MIME_AVI;
 import static org.monte.media.av.FormatKeys.MIME_JAVA;
 import static org.monte.media.av.FormatKeys.MediaTypeKey;
 import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.CompressionLevelKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVI_DOSBOX_SCREEN_CAPTURE;
 import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
 import static org.monte.media.av.codec.video.VideoFormatKeys.FixedFrameRateKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.MotionSearchRangeKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
 
 
 /**
  * Implements the DosBox Capture Codec {@code "ZMBV"}.
  * <p>
- * This codec currently only supports decoding from the file format into
- * a {@code BufferedImage}. Encoding support may be added in the future.
+ * This codec supports encoding from a {@code BufferedImage} into the file
+ * format with 8, 15, 16 or 32 bits per pixel, and decoding from the file
+ * format into a {@code BufferedImage}.
  * <p>
- * For details seee {@link ZMBVCodecCore}.
+ * The motion search range of the encoder can be set with the
+ * {@code MotionSearchRangeKey}, and the zlib compression level with the
+ * {@code CompressionLevelKey} of the output format.
+ * <p>
+ * For details see {@link ZMBVCodecCore}.
  * </p>
  *
  * @author Werner Randelshofer
@@ -51,15 +69,35 @@ public class ZMBVCodec extends AbstractVideoCodec {
     private ZMBVCodecCore state;
     private Object oldPixels;
     private Object newPixels;
+    private int frameCounter;
+    /**
+     * The output stream of the previous frame. It is reused if the output
+     * buffer still holds its array.
+     */
+    private ByteArrayImageOutputStream tmp;
 
     public ZMBVCodec() {
         super(new Format[]{
+                        new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                                EncodingKey, ENCODING_BUFFERED_IMAGE, FixedFrameRateKey, true), //
                         new Format(MediaTypeKey, MediaType.VIDEO,
                                 EncodingKey, ENCODING_AVI_DOSBOX_SCREEN_CAPTURE, DataClassKey, byte[].class, FixedFrameRateKey, true), //
                 },
                 new Format[]{
                         new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
                                 EncodingKey, ENCODING_BUFFERED_IMAGE, FixedFrameRateKey, true), //
+                        new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                                EncodingKey, ENCODING_AVI_DOSBOX_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                                FixedFrameRateKey, true, DepthKey, 8), //
+                        new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                                EncodingKey, ENCODING_AVI_DOSBOX_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                                FixedFrameRateKey, true, DepthKey, 15), //
+                        new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                                EncodingKey, ENCODING_AVI_DOSBOX_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                                FixedFrameRateKey, true, DepthKey, 16), //
+                        new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                                EncodingKey, ENCODING_AVI_DOSBOX_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                                FixedFrameRateKey, true, DepthKey, 32), //
                 });
         name = "ZMBV Codec";
     }
@@ -68,20 +106,142 @@ public class ZMBVCodec extends AbstractVideoCodec {
     public Format setOutputFormat(Format f) {
         super.setOutputFormat(f);
 
-        // This codec can not scale an image nor change pixel depth.
-        // Enforce these properties
+        // This codec can not scale an image. When decoding, it can not change
+        // the pixel depth either. Enforce these properties
         if (outputFormat != null) {
             if (inputFormat != null) {
-                outputFormat = outputFormat.prepend(inputFormat.intersectKeys(WidthKey, HeightKey, DepthKey));
+                if (ENCODING_AVI_DOSBOX_SCREEN_CAPTURE.equals(outputFormat.get(EncodingKey))) {
+                    outputFormat = outputFormat.prepend(inputFormat.intersectKeys(WidthKey, HeightKey));
+                } else {
+                    outputFormat = outputFormat.prepend(inputFormat.intersectKeys(WidthKey, HeightKey, DepthKey));
+                }
             }
         }
         return this.outputFormat;
     }
 
 
+    @Override
+    public void reset() {
+        if (state != null) {
+            state.dispose();
+        }
+        state = null;
+        tmp = null;
+        frameCounter = 0;
+    }
+
     @Override
     public int process(Buffer in, Buffer out) {
-        return decode(in, out);
+        if (outputFormat.get(EncodingKey).equals(ENCODING_AVI_DOSBOX_SCREEN_CAPTURE)) {
+            return encode(in, out);
+        } else {
+            return decode(in, out);
+        }
+    }
+
+    public int encode(Buffer in, Buffer out) {
+        out.setMetaTo(in);
+        out.format = outputFormat;
+        if (in.isFlag(DISCARD)) {
+            return CODEC_OK;
+        }
+        if (state == null) {
+            state = new ZMBVCodecCore();
+        }
+
+        ByteArrayImageOutputStream tmp = this.tmp;
+        if (tmp == null || tmp.getBuffer() != out.data) {
+            tmp = this.tmp = new ByteArrayImageOutputStream(ArrayUtil.reuseByteArray(out.data, 32));
+        }
+        tmp.clear();
+        state.setCompressionLevel(outputFormat.get(CompressionLevelKey, Deflater.DEFAULT_COMPRESSION));
+        int motionSearchRange = outputFormat.get(MotionSearchRangeKey, ZMBVCodecCore.MAX_MOTION_SEARCH_RANGE);
+        state.setMotionSearchRange(motionSearchRange < 0 ? ZMBVCodecCore.MAX_MOTION_SEARCH_RANGE : motionSearchRange);
+
+        int keyFrameInterval = outputFormat.get(KeyFrameIntervalKey, outputFormat.get(FrameRateKey).intValue());
+        boolean isKeyframe = frameCounter == 0
+                || keyFrameInterval == 0
+                || frameCounter % keyFrameInterval == 0;
+        frameCounter++;
+
+        // Handle sub-image
+        int width = outputFormat.get(WidthKey);
+        int height = outputFormat.get(HeightKey);
+        int offset = 0;
+        int scanlineStride = width;
+        if (in.data instanceof BufferedImage image) {
+            WritableRaster raster = image.getRaster();
+            scanlineStride = raster.getSampleModel().getWidth();
+            Rectangle r = raster.getBounds();
+            r.x -= raster.getSampleModelTranslateX();
+            r.y -= raster.getSampleModelTranslateY();
+            offset = r.x + r.y * scanlineStride;
+        }
+
+        try {
+            switch (outputFormat.get(DepthKey)) {
+                case 8: {
+                    byte[] pixels = getIndexed8(in);
+                    if (pixels == null) {
+                        out.setFlag(DISCARD);
+                        return CODEC_FAILED;
+                    }
+                    int[] palette = null;
+                    if (getColorModel(in) instanceof IndexColorModel icm) {
+                        palette = new int[icm.getMapSize()];
+                        icm.getRGBs(palette);
+                    }
+                    isKeyframe = state.encode8(tmp, pixels, palette, width, height, offset, scanlineStride, isKeyframe);
+                    break;
+                }
+                case 15: {
+                    short[] pixels = getRGB15(in);
+                    if (pixels == null) {
+                        out.setFlag(DISCARD);
+                        return CODEC_FAILED;
+                    }
+                    isKeyframe = state.encode15(tmp, pixels, width, height, offset, scanlineStride, isKeyframe);
+                    break;
+                }
+                case 16: {
+                    short[] pixels = getRGB16(in);
+                    if (pixels == null) {
+                        out.setFlag(DISCARD);
+                        return CODEC_FAILED;
+                    }
+                    isKeyframe = state.encode16(tmp, pixels, width, height, offset, scanlineStride, isKeyframe);
+                    break;
+                }
+                case 32: {
+                    int[] pixels = getRGB24(in);
+                    if (pixels == null) {
+                        out.setFlag(DISCARD);
+                        return CODEC_FAILED;
+                    }
+                    isKeyframe = state.encode32(tmp, pixels, width, height, offset, scanlineStride, isKeyframe);
+                    break;
+                }
+                default: {
+                    out.setFlag(DISCARD);
+                    return CODEC_FAILED;
+                }
+            }
+        } catch (IOException ex) {
+            out.exception = ex;
+            out.setFlag(DISCARD);
+            return CODEC_FAILED;
+        }
+
+        // The palette is part of the encoded data.
+        out.header = null;
+        out.setFlag(KEYFRAME, isKeyframe);
+        out.clearFlag(SAME_DATA);
+        out.data = tmp.getBuffer();
+        out.offset = 0;
+        out.sampleCount = 1;
+        out.length = (int) tmp.length();
+        return CODEC_OK;
     }
 
     public int decode(Buffer in, Buffer out) {
@@ -147,7 +307,7 @@ public class ZMBVCodec extends AbstractVideoCodec {
             case 16: {
                 int imgType = BufferedImage.TYPE_USHORT_565_RGB;
                 if (img == null || img.getWidth() != width || img.getHeight() != height || img.getType() != imgType) {
-                    DirectColorModel cm = new DirectColorModel(15, 0x1f << 11, 0x3f << 5, 0x1f << 0);
+                    DirectColorModel cm = new DirectColorModel(16, 0x1f << 11, 0x3f << 5, 0x1f << 0);
                     img = new BufferedImageWithColorModel(cm, Raster.createWritableRaster(cm.createCompatibleSampleModel(width, height), new Point(0, 0)), false);
                 } else {
                     BufferedImageWithColorModel oldImg = img;
@@ -157,7 +317,19 @@ public class ZMBVCodec extends AbstractVideoCodec {
                 System.arraycopy((short[]) newPixels, 0, pixels, 0, width * height);
             }
             break;
-            case 32:
+            case 32: {
+                int imgType = BufferedImage.TYPE_INT_RGB;
+                if (img == null || img.getWidth() != width || img.getHeight() != height || img.getType() != imgType) {
+                    DirectColorModel cm = new DirectColorModel(24, 0xff << 16, 0xff << 8, 0xff);
+                    img = new BufferedImageWithColorModel(cm, cm.createCompatibleWritableRaster(width, height), false);
+                } else {
+                    BufferedImageWithColorModel oldImg = img;
+                    img = new BufferedImageWithColorModel(oldImg.getColorModel(), oldImg.getRaster(), oldImg.isAlphaPremultiplied(), null);
+                }
+                int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+                System.arraycopy((int[]) newPixels, 0, pixels, 0, width * height);
+            }
+            break;
             default:
                 throw new UnsupportedOperationException("Unsupported depth:" + depth);
         }
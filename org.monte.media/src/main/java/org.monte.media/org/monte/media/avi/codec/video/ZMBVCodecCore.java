@@ -10,10 +10,15 @@ import org.monte.media.io.UncachedImageInputStream;
 import org.monte.media.util.ArrayUtil;
 
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
 import java.util.zip.InflaterInputStream;
 
+import static java.lang.Math.abs;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
@@ -65,6 +70,13 @@ import static java.lang.Math.min;
  * <p>Presently, only modes 4 (8 bpp), 5 (15 bpp), 6 (16 bpp) and 8 (32 bpp) are
  * supported.</p>
  *
+ * <p>The encoder uses blocks of 16 x 16 pixels. For each block of a delta
+ * frame it searches the motion vector in the previous frame which leaves the
+ * least number of differing pixels. The rows of blocks are searched in
+ * parallel. Since the zlib stream is only reset on key frames, the encoder
+ * keeps its {@code Deflater} from frame to frame, and ends each frame with
+ * a sync flush.</p>
+ *
  * <p>If the compression type is 1, the remainder of the data chunk is compressed
  * using the standard zlib package. Decompress the data before proceeding with
  * the next step. Otherwise, proceed to the next step. Also note that you must
@@ -1121,6 +1133,450 @@ public class ZMBVCodecCore {
         }
     }
 
+    /**
+     * Width and height of the blocks that the encoder uses for motion
+     * compensation.
+     */
+    public final static int ENCODER_BLOCK_SIZE = 16;
+    /**
+     * The largest motion vector component that the format supports.
+     */
+    public final static int MAX_MOTION_SEARCH_RANGE = 16;
+    /**
+     * Block rows are searched in parallel if the image has at least this
+     * many pixels.
+     */
+    private final static int MIN_PARALLEL_PIXELS = 1 << 16;
+    /**
+     * Candidate motion vectors {dx0, dy0, dx1, dy1, ...} ordered by
+     * increasing distance from the origin. Does not include the zero vector.
+     */
+    private final static int[] MOTION_VECTORS = createMotionVectors(MAX_MOTION_SEARCH_RANGE);
+
+    /**
+     * The deflater of the encoder. The format requires that the deflater
+     * stream is only reset on key frames.
+     */
+    private Deflater deflater;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int motionSearchRange = MAX_MOTION_SEARCH_RANGE;
+    /**
+     * The frames of the encoder. One int per pixel regardless of the video
+     * format.
+     */
+    private int[] encodedFrame, previousEncodedFrame;
+    private int encodedVideoFormat, encodedWidth, encodedHeight;
+    /**
+     * The palette of the previous frame (8 bits per pixel only).
+     */
+    private int[] encodedPalette;
+    /**
+     * The motion vectors of the previous frame. One entry per block, holds the
+     * first two bytes of the block header.
+     */
+    private short[] motionVectors;
+    /**
+     * Holds the uncompressed data of a frame.
+     */
+    private byte[] workBuf;
+    /**
+     * Holds the XOR data of the block rows. Each block row has a fixed
+     * region that is large enough to hold the XOR data of all its blocks.
+     */
+    private byte[] xorBuf;
+    private int[] xorLength;
+    private byte[] deflateBuf;
+
+    /**
+     * Sets the compression level of the deflate stage of the encoder.
+     *
+     * @param level a value between 0 and 9, or
+     *              {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public void setCompressionLevel(int level) {
+        compressionLevel = level;
+        if (deflater != null) {
+            deflater.setLevel(level);
+        }
+    }
+
+    /**
+     * Sets the motion search range of the encoder.
+     *
+     * @param range a value between 0 and {@link #MAX_MOTION_SEARCH_RANGE}.
+     *              Set this value to 0 to disable motion search.
+     */
+    public void setMotionSearchRange(int range) {
+        motionSearchRange = max(0, min(range, MAX_MOTION_SEARCH_RANGE));
+    }
+
+    /**
+     * Releases the native resources of the encoder.
+     */
+    public void dispose() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /**
+     * Encodes an 8-bit palettized frame.
+     *
+     * @param out            the output stream
+     * @param data           the palette indices
+     * @param palette        the palette with 256 RGB entries, null for a
+     *                       grayscale palette
+     * @param width          the image width
+     * @param height         the image height
+     * @param offset         the offset of the first pixel in the data array
+     * @param scanlineStride the number of array elements between two lines
+     * @param isKeyframe     whether a key frame is requested
+     * @return true if a key frame was encoded. A key frame is also encoded
+     * if the video format or the size differ from the previous frame
+     */
+    public boolean encode8(ImageOutputStream out, byte[] data, int[] palette, int width, int height, int offset, int scanlineStride, boolean isKeyframe) throws IOException {
+        isKeyframe = startEncoding(VIDEOMODE_8_BIT_PALETTIZED, width, height, isKeyframe);
+        if (palette == null) {
+            palette = getGrayPalette();
+        }
+        int[] frame = encodedFrame;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0, i = offset + y * scanlineStride, j = y * width; x < width; x++) {
+                frame[j++] = data[i++] & 0xff;
+            }
+        }
+        return encodeFrame(out, palette, 1, isKeyframe);
+    }
+
+    /**
+     * Encodes a 15-bit RGB 5-5-5 frame.
+     *
+     * @see #encode8
+     */
+    public boolean encode15(ImageOutputStream out, short[] data, int width, int height, int offset, int scanlineStride, boolean isKeyframe) throws IOException {
+        return encode16(out, data, VIDEOMODE_15_BIT_BGR, width, height, offset, scanlineStride, isKeyframe);
+    }
+
+    /**
+     * Encodes a 16-bit RGB 5-6-5 frame.
+     *
+     * @see #encode8
+     */
+    public boolean encode16(ImageOutputStream out, short[] data, int width, int height, int offset, int scanlineStride, boolean isKeyframe) throws IOException {
+        return encode16(out, data, VIDEOMODE_16_BIT_BGR, width, height, offset, scanlineStride, isKeyframe);
+    }
+
+    private boolean encode16(ImageOutputStream out, short[] data, int videoFormat, int width, int height, int offset, int scanlineStride, boolean isKeyframe) throws IOException {
+        isKeyframe = startEncoding(videoFormat, width, height, isKeyframe);
+        int[] frame = encodedFrame;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0, i = offset + y * scanlineStride, j = y * width; x < width; x++) {
+                frame[j++] = data[i++] & 0xffff;
+            }
+        }
+        return encodeFrame(out, null, 2, isKeyframe);
+    }
+
+    /**
+     * Encodes a 32-bit RGB frame. The alpha channel is not encoded.
+     *
+     * @see #encode8
+     */
+    public boolean encode32(ImageOutputStream out, int[] data, int width, int height, int offset, int scanlineStride, boolean isKeyframe) throws IOException {
+        isKeyframe = startEncoding(VIDEOMODE_32_BIT_BGR, width, height, isKeyframe);
+        int[] frame = encodedFrame;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0, i = offset + y * scanlineStride, j = y * width; x < width; x++) {
+                frame[j++] = data[i++] & 0xffffff;
+            }
+        }
+        return encodeFrame(out, null, 4, isKeyframe);
+    }
+
+    /**
+     * Prepares the encoder for a frame. Returns true if a key frame must be
+     * encoded.
+     */
+    private boolean startEncoding(int videoFormat, int width, int height, boolean isKeyframe) {
+        if (previousEncodedFrame == null || videoFormat != encodedVideoFormat
+                || width != encodedWidth || height != encodedHeight) {
+            isKeyframe = true;
+            encodedVideoFormat = videoFormat;
+            encodedWidth = width;
+            encodedHeight = height;
+            previousEncodedFrame = new int[width * height];
+            encodedFrame = new int[width * height];
+            int nbx = (width + ENCODER_BLOCK_SIZE - 1) / ENCODER_BLOCK_SIZE;
+            int nby = (height + ENCODER_BLOCK_SIZE - 1) / ENCODER_BLOCK_SIZE;
+            motionVectors = new short[nbx * nby];
+            xorLength = new int[nby];
+        }
+        if (deflater == null) {
+            deflater = new Deflater(compressionLevel);
+        }
+        return isKeyframe;
+    }
+
+    /**
+     * Encodes the pixels in {@link #encodedFrame} and makes them the previous
+     * frame.
+     */
+    private boolean encodeFrame(ImageOutputStream out, int[] palette, int bytesPerPixel, boolean isKeyframe) throws IOException {
+        int width = encodedWidth, height = encodedHeight;
+        int[] frame = encodedFrame;
+        int nbx = (width + ENCODER_BLOCK_SIZE - 1) / ENCODER_BLOCK_SIZE;
+        int nby = (height + ENCODER_BLOCK_SIZE - 1) / ENCODER_BLOCK_SIZE;
+        int blockHeaderSize = ((nbx * nby * 2 + 3) & ~3);
+        workBuf = ArrayUtil.reuseByteArray(workBuf, 768 + blockHeaderSize + width * height * bytesPerPixel);
+        byte[] work = workBuf;
+        int workLength = 0;
+
+        int flags = isKeyframe ? 1 : 0;
+        if (palette != null) {
+            if (isKeyframe) {
+                for (int i = 0; i < 256; i++) {
+                    int rgb = i < palette.length ? palette[i] : 0;
+                    work[workLength++] = (byte) (rgb >>> 16);
+                    work[workLength++] = (byte) (rgb >>> 8);
+                    work[workLength++] = (byte) rgb;
+                }
+            } else if (!paletteEquals(palette, encodedPalette)) {
+                flags |= 2;
+                for (int i = 0; i < 256; i++) {
+                    int rgb = (i < palette.length ? palette[i] : 0) ^ encodedPalette[i];
+                    work[workLength++] = (byte) (rgb >>> 16);
+                    work[workLength++] = (byte) (rgb >>> 8);
+                    work[workLength++] = (byte) rgb;
+                }
+            }
+            encodedPalette = ArrayUtil.reuseIntArray(encodedPalette, 256);
+            for (int i = 0; i < 256; i++) {
+                encodedPalette[i] = (i < palette.length ? palette[i] : 0) & 0xffffff;
+            }
+        }
+
+        if (isKeyframe) {
+            for (int i = 0, n = width * height; i < n; i++) {
+                int v = frame[i];
+                switch (bytesPerPixel) {
+                    case 1 -> work[workLength++] = (byte) v;
+                    case 2 -> {
+                        work[workLength++] = (byte) v;
+                        work[workLength++] = (byte) (v >>> 8);
+                    }
+                    default -> {
+                        work[workLength++] = (byte) v;
+                        work[workLength++] = (byte) (v >>> 8);
+                        work[workLength++] = (byte) (v >>> 16);
+                        work[workLength++] = (byte) (v >>> 24);
+                    }
+                }
+            }
+            Arrays.fill(motionVectors, (short) 0);
+        } else {
+            // Search the block rows in parallel. Each task writes the headers
+            // of its blocks into the work buffer and its XOR data into its own
+            // region of the XOR buffer.
+            xorBuf = ArrayUtil.reuseByteArray(xorBuf, width * height * bytesPerPixel);
+            int headerOffset = workLength;
+            IntStream rows = IntStream.range(0, nby);
+            if (nby > 1 && width * height >= MIN_PARALLEL_PIXELS) {
+                rows = rows.parallel();
+            }
+            rows.forEach(row -> encodeBlockRow(row, nbx, bytesPerPixel, headerOffset));
+            workLength += blockHeaderSize;
+            for (int i = headerOffset + nbx * nby * 2; i < workLength; i++) {
+                work[i] = 0;
+            }
+            for (int row = 0; row < nby; row++) {
+                System.arraycopy(xorBuf, row * ENCODER_BLOCK_SIZE * width * bytesPerPixel, work, workLength, xorLength[row]);
+                workLength += xorLength[row];
+            }
+        }
+
+        out.writeByte(flags);
+        if (isKeyframe) {
+            out.writeByte(0); // major version
+            out.writeByte(1); // minor version
+            out.writeByte(COMPRESSION_ZLIB);
+            out.writeByte(encodedVideoFormat);
+            out.writeByte(ENCODER_BLOCK_SIZE);
+            out.writeByte(ENCODER_BLOCK_SIZE);
+            deflater.reset();
+        }
+        deflater.setInput(work, 0, workLength);
+        deflateBuf = ArrayUtil.reuseByteArray(deflateBuf, workLength + (workLength >>> 10) + 64);
+        int n;
+        do {
+            n = deflater.deflate(deflateBuf, 0, deflateBuf.length, Deflater.SYNC_FLUSH);
+            out.write(deflateBuf, 0, n);
+        } while (n == deflateBuf.length);
+
+        encodedFrame = previousEncodedFrame;
+        previousEncodedFrame = frame;
+        return isKeyframe;
+    }
+
+    /**
+     * Searches a motion vector for each block in a row of blocks, and writes
+     * the block headers and the XOR data.
+     */
+    private void encodeBlockRow(int row, int nbx, int bytesPerPixel, int headerOffset) {
+        int width = encodedWidth, height = encodedHeight;
+        int[] cur = encodedFrame;
+        int[] prev = previousEncodedFrame;
+        byte[] work = workBuf;
+        byte[] xor = xorBuf;
+        int by = row * ENCODER_BLOCK_SIZE;
+        int bh = min(height - by, ENCODER_BLOCK_SIZE);
+        int xorStart = by * width * bytesPerPixel;
+        int xorPos = xorStart;
+        int range = motionSearchRange;
+        int leftVector = 0;
+        for (int bx = 0, block = row * nbx; bx < width; bx += ENCODER_BLOCK_SIZE, block++) {
+            int bw = min(width - bx, ENCODER_BLOCK_SIZE);
+
+            // Try the zero vector first. Then try the vector of the block to
+            // the left and the vector of this block in the previous frame,
+            // because they usually match on scrolling content. Then try all
+            // vectors in the search range.
+            int bestDx = 0, bestDy = 0;
+            int best = countChanges(cur, prev, width, bx, by, bw, bh, 0, 0, Integer.MAX_VALUE);
+            for (int k = 0, n = 2 + (2 * range + 1) * (2 * range + 1) - 1; k < n && best != 0 && range > 0; k++) {
+                int dx, dy;
+                if (k < 2) {
+                    int predicted = k == 0 ? leftVector : motionVectors[block];
+                    dx = (byte) predicted >> 1;
+                    dy = (byte) (predicted >> 8) >> 1;
+                    if (dx == 0 && dy == 0) {
+                        continue;
+                    }
+                } else {
+                    dx = MOTION_VECTORS[2 * k - 4];
+                    dy = MOTION_VECTORS[2 * k - 3];
+                }
+                if (abs(dx) > range || abs(dy) > range
+                        || bx + dx < 0 || bx + dx + bw > width || by + dy < 0 || by + dy + bh > height) {
+                    continue;
+                }
+                if (k >= 2 && countSparseChanges(cur, prev, width, bx, by, bw, bh, dx, dy) >= 4) {
+                    continue;
+                }
+                int changes = countChanges(cur, prev, width, bx, by, bw, bh, dx, dy, best);
+                if (changes < best) {
+                    best = changes;
+                    bestDx = dx;
+                    bestDy = dy;
+                }
+            }
+
+            int flag = best == 0 ? 0 : 1;
+            int vector = ((bestDx << 1) | flag) & 0xff | ((bestDy << 1) & 0xff) << 8;
+            work[headerOffset + block * 2] = (byte) vector;
+            work[headerOffset + block * 2 + 1] = (byte) (vector >>> 8);
+            motionVectors[block] = (short) (vector & ~1);
+            leftVector = vector & ~1;
+
+            if (flag != 0) {
+                for (int y = 0; y < bh; y++) {
+                    int i = bx + (by + y) * width;
+                    int j = i + bestDx + bestDy * width;
+                    for (int x = 0; x < bw; x++) {
+                        int v = cur[i++] ^ prev[j++];
+                        switch (bytesPerPixel) {
+                            case 1 -> xor[xorPos++] = (byte) v;
+                            case 2 -> {
+                                xor[xorPos++] = (byte) v;
+                                xor[xorPos++] = (byte) (v >>> 8);
+                            }
+                            default -> {
+                                xor[xorPos++] = (byte) v;
+                                xor[xorPos++] = (byte) (v >>> 8);
+                                xor[xorPos++] = (byte) (v >>> 16);
+                                xor[xorPos++] = (byte) (v >>> 24);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        xorLength[row] = xorPos - xorStart;
+    }
+
+    /**
+     * Counts the pixels of a block that differ from the block at the
+     * offset dx, dy in the previous frame. Stops counting when the limit
+     * is reached.
+     */
+    private static int countChanges(int[] cur, int[] prev, int width, int bx, int by, int bw, int bh, int dx, int dy, int limit) {
+        int count = 0;
+        for (int y = 0; y < bh; y++) {
+            int i = bx + (by + y) * width;
+            int j = i + dx + dy * width;
+            for (int x = 0; x < bw; x++) {
+                if (cur[i + x] != prev[j + x]) {
+                    count++;
+                }
+            }
+            if (count >= limit) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the differences on every fourth pixel of every fourth line.
+     * Stops counting at 4.
+     */
+    private static int countSparseChanges(int[] cur, int[] prev, int width, int bx, int by, int bw, int bh, int dx, int dy) {
+        int count = 0;
+        for (int y = 0; y < bh; y += 4) {
+            int i = bx + (by + y) * width;
+            int j = i + dx + dy * width;
+            for (int x = 0; x < bw; x += 4) {
+                if (cur[i + x] != prev[j + x] && ++count >= 4) {
+                    return count;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int[] createMotionVectors(int range) {
+        int[] vectors = new int[((2 * range + 1) * (2 * range + 1) - 1) * 2];
+        int i = 0;
+        for (int s = 1; s <= range; s++) {
+            for (int dy = -s; dy <= s; dy++) {
+                for (int dx = -s; dx <= s; dx++) {
+                    if (abs(dx) == s || abs(dy) == s) {
+                        vectors[i++] = dx;
+                        vectors[i++] = dy;
+                    }
+                }
+            }
+        }
+        return vectors;
+    }
+
+    private static boolean paletteEquals(int[] palette, int[] encodedPalette) {
+        for (int i = 0; i < 256; i++) {
+            if (((i < palette.length ? palette[i] : 0) & 0xffffff) != encodedPalette[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] getGrayPalette() {
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = (i) | (i << 8) | (i << 16);
+        }
+        return palette;
+    }
+
     public int[] getPalette() {
         if (palette == null) {
             palette = new int[256];
@@ -0,0 +1,439 @@
+/*
+ * @(#)ImageResampler.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Resamples a {@link BufferedImage} to a different size with a separable
+ * filter.
+ * <p>
+ * The image is first filtered horizontally into an intermediate buffer with
+ * one plane per color channel, and then vertically into the target image. Both passes are divided into
+ * horizontal bands which are processed in parallel.
+ * <p>
+ * When the image is downscaled, the filter is stretched by the scale factor,
+ * so that every source pixel contributes to the target image.
+ * <p>
+ * The filter kernels are computed once for each pair of source and target
+ * lengths and are then reused. Images with integer RGB pixels, and images
+ * with 3-byte BGR or 4-byte ABGR pixels are read and written directly from
+ * their data buffer. Images with an {@link IndexColorModel} are not
+ * supported.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Werner Randelshofer
+ */
+public class ImageResampler {
+    /**
+     * Resampling filters.
+     */
+    public enum Filter {
+        /**
+         * Averages the source pixels that are covered by a target pixel.
+         */
+        BOX(0.5),
+        /**
+         * Interpolates linearly between the two nearest source pixels.
+         */
+        BILINEAR(1),
+        /**
+         * Interpolates with a cubic convolution (Keys, a = -0.5) over the 4
+         * nearest source pixels.
+         */
+        BICUBIC(2),
+        /**
+         * Interpolates with a Lanczos window over the 6 nearest source pixels.
+         * This filter gives the sharpest results.
+         */
+        LANCZOS3(3);
+
+        private final double radius;
+
+        Filter(double radius) {
+            this.radius = radius;
+        }
+
+        private double weight(double x) {
+            x = Math.abs(x);
+            switch (this) {
+                case BOX:
+                    return x < 0.5 ? 1 : 0;
+                case BILINEAR:
+                    return x < 1 ? 1 - x : 0;
+                case BICUBIC:
+                    if (x < 1) {
+                        return (1.5 * x - 2.5) * x * x + 1;
+                    } else if (x < 2) {
+                        return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                    }
+                    return 0;
+                case LANCZOS3:
+                default:
+                    if (x == 0) {
+                        return 1;
+                    } else if (x < 3) {
+                        double px = Math.PI * x;
+                        return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+                    }
+                    return 0;
+            }
+        }
+    }
+
+    /**
+     * Number of fraction bits of the filter weights.
+     */
+    private final static int WEIGHT_BITS = 14;
+    /**
+     * Bands with fewer rows are not worth a task of their own.
+     */
+    private final static int MIN_ROWS_PER_BAND = 16;
+
+    private final Filter filter;
+    /**
+     * Filter kernels by source length and target length.
+     */
+    private final Map<Long, Kernel> kernels = new HashMap<>();
+    /**
+     * Holds the horizontally filtered rows with one plane per channel.
+     */
+    private byte[][] intermediate;
+
+    /**
+     * Filter kernel for resampling a row or a column of pixels.
+     */
+    private static class Kernel {
+        /**
+         * The maximal number of weights per target pixel.
+         */
+        final int taps;
+        /**
+         * The index of the first source pixel of each target pixel.
+         */
+        final int[] start;
+        /**
+         * The number of source pixels of each target pixel.
+         */
+        final int[] count;
+        /**
+         * The weights of the source pixels. The weights of a target pixel
+         * start at index {@code taps * i} and add up to
+         * {@code 1 << WEIGHT_BITS}.
+         */
+        final int[] weights;
+
+        Kernel(Filter filter, int srcLength, int dstLength) {
+            start = new int[dstLength];
+            count = new int[dstLength];
+            if (srcLength == dstLength) {
+                taps = 1;
+                weights = new int[dstLength];
+                for (int i = 0; i < dstLength; i++) {
+                    start[i] = i;
+                    count[i] = 1;
+                    weights[i] = 1 << WEIGHT_BITS;
+                }
+                return;
+            }
+
+            double scale = (double) srcLength / dstLength;
+            double stretch = Math.max(1, scale);
+            double support = filter.radius * stretch;
+            taps = (int) Math.ceil(2 * support) + 2;
+            weights = new int[taps * dstLength];
+            double[] w = new double[taps];
+            for (int i = 0; i < dstLength; i++) {
+                double center = (i + 0.5) * scale;
+                int from = Math.max(0, (int) Math.floor(center - support));
+                int to = Math.min(srcLength, (int) Math.ceil(center + support));
+                double sum = 0;
+                int n = 0;
+                for (int j = from; j < to && n < taps; j++) {
+                    w[n] = filter.weight((j + 0.5 - center) / stretch);
+                    sum += w[n++];
+                }
+                if (sum == 0) {
+                    // The filter does not cover a source pixel: use the nearest one.
+                    from = Math.min(srcLength - 1, (int) center);
+                    n = 1;
+                    w[0] = sum = 1;
+                }
+
+                // Convert to fixed point and put the rounding error into the
+                // largest weight.
+                int fixedSum = 0, largest = 0;
+                for (int k = 0; k < n; k++) {
+                    int fixed = (int) Math.round(w[k] / sum * (1 << WEIGHT_BITS));
+                    weights[i * taps + k] = fixed;
+                    fixedSum += fixed;
+                    if (fixed > weights[i * taps + largest]) {
+                        largest = k;
+                    }
+                }
+                weights[i * taps + largest] += (1 << WEIGHT_BITS) - fixedSum;
+                start[i] = from;
+                count[i] = n;
+            }
+        }
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param filter the resampling filter
+     */
+    public ImageResampler(Filter filter) {
+        this.filter = filter;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns true if this class can resample the specified image.
+     *
+     * @param img an image
+     * @return true if the image does not have an {@link IndexColorModel}
+     */
+    public static boolean isSupported(BufferedImage img) {
+        return !(img.getColorModel() instanceof IndexColorModel);
+    }
+
+    /**
+     * Resamples the source image into the target image.
+     *
+     * @param src the source image
+     * @param dst the target image
+     * @throws IllegalArgumentException if one of the images is not supported
+     */
+    public void resample(BufferedImage src, BufferedImage dst) {
+        if (!isSupported(src) || !isSupported(dst)) {
+            throw new IllegalArgumentException("Images with an IndexColorModel are not supported.");
+        }
+        int srcWidth = src.getWidth(), srcHeight = src.getHeight();
+        int dstWidth = dst.getWidth(), dstHeight = dst.getHeight();
+        Kernel hk = getKernel(srcWidth, dstWidth);
+        Kernel vk = getKernel(srcHeight, dstHeight);
+        // Opaque images are resampled without the alpha channel.
+        int channels = src.getColorModel().hasAlpha() && dst.getColorModel().hasAlpha() ? 4 : 3;
+        byte[][] tmp = intermediate;
+        if (tmp == null || tmp[0].length < srcHeight * dstWidth) {
+            tmp = intermediate = new byte[4][srcHeight * dstWidth];
+        }
+        byte[][] planes = tmp;
+
+        forEachBand(srcHeight, (from, to) -> {
+            int[] row = new int[srcWidth];
+            int[] unpacked = new int[srcWidth * channels];
+            for (int y = from; y < to; y++) {
+                readRow(src, y, row);
+                for (int x = 0; x < srcWidth; x++) {
+                    int p = row[x];
+                    unpacked[x] = (p >>> 16) & 0xff;
+                    unpacked[srcWidth + x] = (p >>> 8) & 0xff;
+                    unpacked[2 * srcWidth + x] = p & 0xff;
+                }
+                if (channels == 4) {
+                    for (int x = 0; x < srcWidth; x++) {
+                        unpacked[3 * srcWidth + x] = row[x] >>> 24;
+                    }
+                }
+                for (int c = 0; c < channels; c++) {
+                    filterRow(hk, unpacked, c * srcWidth, planes[c], y * dstWidth, dstWidth);
+                }
+            }
+        });
+        forEachBand(dstHeight, (from, to) -> {
+            int[] row = new int[dstWidth];
+            int[] acc = new int[dstWidth];
+            for (int y = from; y < to; y++) {
+                Arrays.fill(row, channels == 4 ? 0 : 0xff000000);
+                for (int c = 0; c < channels; c++) {
+                    filterColumns(vk, y, planes[c], dstWidth, acc, row, c == 3 ? 24 : 16 - 8 * c);
+                }
+                writeRow(dst, y, row);
+            }
+        });
+    }
+
+    private Kernel getKernel(int srcLength, int dstLength) {
+        return kernels.computeIfAbsent(((long) srcLength << 32) | dstLength,
+                k -> new Kernel(filter, srcLength, dstLength));
+    }
+
+    private interface BandTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Divides the rows into bands and processes them in parallel.
+     */
+    private static void forEachBand(int rows, BandTask task) {
+        int bands = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), rows / MIN_ROWS_PER_BAND));
+        IntStream stream = IntStream.range(0, bands);
+        if (bands > 1) {
+            stream = stream.parallel();
+        }
+        stream.forEach(band -> task.run(rows * band / bands, rows * (band + 1) / bands));
+    }
+
+    /**
+     * Filters a row of channel values horizontally.
+     */
+    private static void filterRow(Kernel k, int[] src, int srcOffset, byte[] dst, int dstOffset, int dstWidth) {
+        int[] weights = k.weights;
+        int[] start = k.start;
+        int[] count = k.count;
+        int taps = k.taps;
+        for (int x = 0; x < dstWidth; x++) {
+            int sum = 0;
+            for (int i = 0, n = count[x], s = srcOffset + start[x], w = x * taps; i < n; i++) {
+                sum += src[s + i] * weights[w + i];
+            }
+            dst[dstOffset + x] = (byte) clamp(sum);
+        }
+    }
+
+    /**
+     * Filters a channel of the intermediate buffer vertically, and puts the
+     * values into the specified bits of a target row. The rows are
+     * accumulated one after the other, so that the intermediate buffer is
+     * read sequentially.
+     */
+    private static void filterColumns(Kernel k, int y, byte[] src, int width, int[] acc, int[] dst, int shift) {
+        int[] weights = k.weights;
+        int n = k.count[y], s = k.start[y], w = y * k.taps;
+        Arrays.fill(acc, 0, width, 0);
+        for (int i = 0; i < n; i++) {
+            int weight = weights[w + i];
+            for (int x = 0, index = (s + i) * width; x < width; x++) {
+                acc[x] += (src[index + x] & 0xff) * weight;
+            }
+        }
+        for (int x = 0; x < width; x++) {
+            dst[x] |= clamp(acc[x]) << shift;
+        }
+    }
+
+    /**
+     * Converts a weighted sum to a channel value.
+     */
+    private static int clamp(int v) {
+        v = (v + (1 << (WEIGHT_BITS - 1))) >> WEIGHT_BITS;
+        return v < 0 ? 0 : Math.min(v, 255);
+    }
+
+    /**
+     * Reads a row of the image as ARGB pixels.
+     */
+    private static void readRow(BufferedImage img, int y, int[] row) {
+        int width = img.getWidth();
+        WritableRaster raster = img.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        int x0 = -raster.getSampleModelTranslateX();
+        int y0 = -raster.getSampleModelTranslateY();
+        switch (img.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                if (sm instanceof SinglePixelPackedSampleModel spsm) {
+                    int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    int offset = raster.getDataBuffer().getOffset() + (y + y0) * spsm.getScanlineStride() + x0;
+                    int alpha = img.getType() == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+                    for (int x = 0; x < width; x++) {
+                        row[x] = data[offset + x] | alpha;
+                    }
+                    return;
+                }
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                if (sm instanceof ComponentSampleModel csm) {
+                    byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                    int pixelStride = csm.getPixelStride();
+                    int[] bandOffsets = csm.getBandOffsets();
+                    int offset = raster.getDataBuffer().getOffset() + (y + y0) * csm.getScanlineStride() + x0 * pixelStride;
+                    int r = offset + bandOffsets[0], g = offset + bandOffsets[1], b = offset + bandOffsets[2];
+                    if (bandOffsets.length > 3) {
+                        int a = offset + bandOffsets[3];
+                        for (int x = 0; x < width; x++, a += pixelStride, r += pixelStride, g += pixelStride, b += pixelStride) {
+                            row[x] = (data[a] & 0xff) << 24 | (data[r] & 0xff) << 16 | (data[g] & 0xff) << 8 | (data[b] & 0xff);
+                        }
+                    } else {
+                        for (int x = 0; x < width; x++, r += pixelStride, g += pixelStride, b += pixelStride) {
+                            row[x] = 0xff000000 | (data[r] & 0xff) << 16 | (data[g] & 0xff) << 8 | (data[b] & 0xff);
+                        }
+                    }
+                    return;
+                }
+                break;
+            }
+        }
+        img.getRGB(0, y, width, 1, row, 0, width);
+    }
+
+    /**
+     * Writes a row of ARGB pixels into the image.
+     */
+    private static void writeRow(BufferedImage img, int y, int[] row) {
+        int width = img.getWidth();
+        WritableRaster raster = img.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        int x0 = -raster.getSampleModelTranslateX();
+        int y0 = -raster.getSampleModelTranslateY();
+        switch (img.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                if (sm instanceof SinglePixelPackedSampleModel spsm) {
+                    int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    int offset = raster.getDataBuffer().getOffset() + (y + y0) * spsm.getScanlineStride() + x0;
+                    System.arraycopy(row, 0, data, offset, width);
+                    return;
+                }
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                if (sm instanceof ComponentSampleModel csm) {
+                    byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                    int pixelStride = csm.getPixelStride();
+                    int[] bandOffsets = csm.getBandOffsets();
+                    int offset = raster.getDataBuffer().getOffset() + (y + y0) * csm.getScanlineStride() + x0 * pixelStride;
+                    int r = offset + bandOffsets[0], g = offset + bandOffsets[1], b = offset + bandOffsets[2];
+                    int a = bandOffsets.length > 3 ? offset + bandOffsets[3] : -1;
+                    for (int x = 0; x < width; x++, r += pixelStride, g += pixelStride, b += pixelStride) {
+                        int p = row[x];
+                        data[r] = (byte) (p >>> 16);
+                        data[g] = (byte) (p >>> 8);
+                        data[b] = (byte) p;
+                        if (a >= 0) {
+                            data[a] = (byte) (p >>> 24);
+                            a += pixelStride;
+                        }
+                    }
+                    return;
+                }
+                break;
+            }
+        }
+        img.setRGB(0, y, width, 1, row, 0, width);
+    }
+}
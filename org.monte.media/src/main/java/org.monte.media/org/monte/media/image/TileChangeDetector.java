@@ -0,0 +1,288 @@
+/*
+ * @(#)TileChangeDetector.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Detects which parts of an image have changed since the previous image.
+ * <p>
+ * The image is divided into square tiles. {@link #detect} compares each tile
+ * with the same tile of a reference image, and returns the changed tiles as a
+ * list of rectangles. Adjacent changed tiles in the same row of tiles are
+ * merged into one rectangle. The rows of tiles are compared in parallel.
+ * <p>
+ * The reference image is only updated by {@link #update}. This allows the
+ * caller to detect changes against the last image that it has actually
+ * consumed, for example, when an image is dropped because a queue is full.
+ * <p>
+ * Supports images with a single bank of {@code int}, {@code short} or
+ * {@code byte} data elements, and a {@link SinglePixelPackedSampleModel} or a
+ * {@link ComponentSampleModel}. This includes the image types that are used
+ * for screen capture. For all other images, {@link #detect} reports the entire
+ * image as changed.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Werner Randelshofer
+ */
+public class TileChangeDetector {
+    /**
+     * The default tile size.
+     */
+    public final static int DEFAULT_TILE_SIZE = 64;
+    /**
+     * Images with fewer rows of tiles are compared on the calling thread.
+     */
+    private final static int MIN_PARALLEL_TILE_ROWS = 4;
+
+    private final int tileSize;
+    /**
+     * Copy of the data elements of the reference image, or null.
+     */
+    private Object reference;
+    private int width;
+    private int height;
+    private int scanlineStride;
+    private int pixelStride;
+
+    /**
+     * Creates a new instance with tiles of {@value #DEFAULT_TILE_SIZE} by
+     * {@value #DEFAULT_TILE_SIZE} pixels.
+     */
+    public TileChangeDetector() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param tileSize the width and height of a tile in pixels
+     */
+    public TileChangeDetector(int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tileSize=" + tileSize + " must be at least 1");
+        }
+        this.tileSize = tileSize;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the regions of the image that differ from the reference image.
+     * Does not change the reference image.
+     *
+     * @param img an image
+     * @return an unmodifiable list of the changed regions, which is empty if
+     * the image is identical to the reference image; or null if the entire
+     * image must be treated as changed, because there is no reference image,
+     * because the image has a different layout than the reference image, or
+     * because the image is not supported
+     */
+    public List<Rectangle> detect(BufferedImage img) {
+        Object data = getData(img);
+        if (data == null || reference == null || data.getClass() != reference.getClass()
+                || !hasSameLayout(img)) {
+            return null;
+        }
+        int tileCols = (width + tileSize - 1) / tileSize;
+        int tileRows = (height + tileSize - 1) / tileSize;
+        int dataOffset = getDataOffset(img);
+        boolean[][] dirty = new boolean[tileRows][];
+        IntStream rows = IntStream.range(0, tileRows);
+        if (tileRows >= MIN_PARALLEL_TILE_ROWS) {
+            rows = rows.parallel();
+        }
+        rows.forEach(tileRow -> dirty[tileRow] = compareTileRow(data, dataOffset, tileRow, tileCols));
+
+        List<Rectangle> regions = new ArrayList<>();
+        for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+            int y = tileRow * tileSize;
+            int h = Math.min(tileSize, height - y);
+            boolean[] d = dirty[tileRow];
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                if (d[tileCol]) {
+                    int start = tileCol;
+                    while (tileCol + 1 < tileCols && d[tileCol + 1]) {
+                        tileCol++;
+                    }
+                    int x = start * tileSize;
+                    regions.add(new Rectangle(x, y, Math.min(width, (tileCol + 1) * tileSize) - x, h));
+                }
+            }
+        }
+        return Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * Compares one row of tiles with the reference image.
+     *
+     * @return one flag per tile, the flag is true if the tile has changed
+     */
+    private boolean[] compareTileRow(Object data, int dataOffset, int tileRow, int tileCols) {
+        boolean[] dirty = new boolean[tileCols];
+        int ymin = tileRow * tileSize;
+        int ymax = Math.min(height, ymin + tileSize);
+        int remaining = tileCols;
+        for (int y = ymin; y < ymax && remaining > 0; y++) {
+            int rowOffset = y * scanlineStride;
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                if (dirty[tileCol]) {
+                    continue;
+                }
+                int from = tileCol * tileSize * pixelStride;
+                int to = Math.min(width, (tileCol + 1) * tileSize) * pixelStride;
+                if (mismatch(data, dataOffset + rowOffset + from, dataOffset + rowOffset + to, rowOffset + from)) {
+                    dirty[tileCol] = true;
+                    remaining--;
+                }
+            }
+        }
+        return dirty;
+    }
+
+    private boolean mismatch(Object data, int from, int to, int refFrom) {
+        int refTo = refFrom + to - from;
+        if (data instanceof int[]) {
+            return Arrays.mismatch((int[]) data, from, to, (int[]) reference, refFrom, refTo) >= 0;
+        } else if (data instanceof short[]) {
+            return Arrays.mismatch((short[]) data, from, to, (short[]) reference, refFrom, refTo) >= 0;
+        } else {
+            return Arrays.mismatch((byte[]) data, from, to, (byte[]) reference, refFrom, refTo) >= 0;
+        }
+    }
+
+    /**
+     * Copies the specified regions of the image into the reference image.
+     * <p>
+     * If the regions are null, or if the image has a different layout than
+     * the reference image, the entire image is copied.
+     *
+     * @param img     an image
+     * @param regions the regions that have changed, as returned by
+     *                {@link #detect}, or null
+     */
+    public void update(BufferedImage img, List<Rectangle> regions) {
+        Object data = getData(img);
+        if (data == null) {
+            reference = null;
+            return;
+        }
+        int dataOffset = getDataOffset(img);
+        if (regions == null || reference == null || data.getClass() != reference.getClass()
+                || !hasSameLayout(img)) {
+            SampleModel sm = img.getSampleModel();
+            width = img.getWidth();
+            height = img.getHeight();
+            scanlineStride = getScanlineStride(sm);
+            pixelStride = getPixelStride(sm);
+            int length = (height - 1) * scanlineStride + width * pixelStride;
+            reference = allocate(data, length);
+            System.arraycopy(data, dataOffset, reference, 0, length);
+            return;
+        }
+        for (Rectangle r : regions) {
+            for (int y = r.y, ymax = r.y + r.height; y < ymax; y++) {
+                int refOffset = y * scanlineStride + r.x * pixelStride;
+                System.arraycopy(data, dataOffset + refOffset, reference, refOffset, r.width * pixelStride);
+            }
+        }
+    }
+
+    /**
+     * Discards the reference image. The next call to {@link #detect} reports
+     * the entire image as changed.
+     */
+    public void reset() {
+        reference = null;
+    }
+
+    private boolean hasSameLayout(BufferedImage img) {
+        SampleModel sm = img.getSampleModel();
+        return img.getWidth() == width && img.getHeight() == height
+                && getScanlineStride(sm) == scanlineStride && getPixelStride(sm) == pixelStride;
+    }
+
+    private static Object allocate(Object data, int length) {
+        if (data instanceof int[]) {
+            return new int[length];
+        } else if (data instanceof short[]) {
+            return new short[length];
+        } else {
+            return new byte[length];
+        }
+    }
+
+    /**
+     * Returns the data elements of the image, or null if the image is not
+     * supported.
+     */
+    private static Object getData(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        if (raster.getParent() != null
+                || !(sm instanceof SinglePixelPackedSampleModel || sm instanceof ComponentSampleModel)) {
+            return null;
+        }
+        DataBuffer db = raster.getDataBuffer();
+        if (db.getNumBanks() != 1) {
+            return null;
+        }
+        if (db instanceof DataBufferInt) {
+            return ((DataBufferInt) db).getData();
+        } else if (db instanceof DataBufferUShort) {
+            return ((DataBufferUShort) db).getData();
+        } else if (db instanceof DataBufferShort) {
+            return ((DataBufferShort) db).getData();
+        } else if (db instanceof DataBufferByte) {
+            return ((DataBufferByte) db).getData();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of the first data element of the image.
+     */
+    private static int getDataOffset(BufferedImage img) {
+        SampleModel sm = img.getSampleModel();
+        int offset = img.getRaster().getDataBuffer().getOffset();
+        if (sm instanceof ComponentSampleModel) {
+            int[] bandOffsets = ((ComponentSampleModel) sm).getBandOffsets();
+            int min = Integer.MAX_VALUE;
+            for (int b : bandOffsets) {
+                min = Math.min(min, b);
+            }
+            offset += min;
+        }
+        return offset;
+    }
+
+    private static int getScanlineStride(SampleModel sm) {
+        return sm instanceof SinglePixelPackedSampleModel
+                ? ((SinglePixelPackedSampleModel) sm).getScanlineStride()
+                : ((ComponentSampleModel) sm).getScanlineStride();
+    }
+
+    private static int getPixelStride(SampleModel sm) {
+        return sm instanceof SinglePixelPackedSampleModel ? 1 : ((ComponentSampleModel) sm).getPixelStride();
+    }
+}
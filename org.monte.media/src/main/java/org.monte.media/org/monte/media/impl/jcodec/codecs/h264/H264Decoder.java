@@ -75,6 +75,21 @@ public class H264Decoder extends VideoDecoder {
         reader = new FrameReader();
     }
 
+    /**
+     * Creates a decoder that decodes the slices of a frame in parallel on the
+     * specified executor.
+     *
+     * @param tp the executor, or null to decode all slices on the calling
+     *           thread
+     */
+    public H264Decoder(ExecutorService tp) {
+        pictureBuffer = new ArrayList<Frame>();
+        poc = new POCManager();
+        this.tp = tp;
+        this.threaded = tp != null && Runtime.getRuntime().availableProcessors() > 1;
+        reader = new FrameReader();
+    }
+
     /**
      * Constructs this decoder from a portion of a stream that contains AnnexB
      * delimited (00 00 00 01) SPS/PPS NAL units. SPS/PPS NAL units are 0x67 and
@@ -35,8 +35,13 @@ import org.monte.media.impl.jcodec.common.model.Size;
 import org.monte.media.impl.jcodec.common.tools.MathUtil;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static org.monte.media.impl.jcodec.codecs.h264.H264Utils.escapeNAL;
 
@@ -47,6 +52,13 @@ import static org.monte.media.impl.jcodec.codecs.h264.H264Utils.escapeNAL;
  * MPEG 4 AVC ( H.264 ) Encoder
  * <p>
  * Conforms to H.264 ( ISO/IEC 14496-10 ) specifications
+ * <p>
+ * If the slice count is greater than 1, each frame is split into horizontal
+ * slices of macroblock rows, which are encoded in parallel on a
+ * {@link ForkJoinPool}. The slices are independent of each other: intra
+ * prediction, motion vector prediction and the deblocking filter do not
+ * cross slice boundaries ({@code disable_deblocking_filter_idc = 2}).
+ * All slices of a frame are emitted in a single access unit.
  *
  * @author The JCodec project
  */
@@ -73,24 +85,36 @@ public class H264Encoder extends VideoEncoder {
 
     private PictureParameterSet pps;
 
-    private MBWriterI16x16 mbEncoderI16x16;
-    private MBWriterINxN mbEncoderINxN;
-    private MBWriterP16x16 mbEncoderP16x16;
+    private final MBWriterI16x16 mbEncoderI16x16 = new MBWriterI16x16();
+    private final MBWriterINxN mbEncoderINxN = new MBWriterINxN();
 
     private Picture ref;
     private Picture picOut;
-    private EncodedMB[] topEncoded;
 
     private boolean psnrEn;
     private long[] sum_se = new long[3];
     private long[] g_sum_se = new long[3];
     private int frameCount;
     private long totalSize;
-    private EncodingContext context;
     private H264Decoder decoder;
     private boolean enableRdo;
     private String decodedDump;
     private FileChannelWrapper dumpOut;
+    /**
+     * The requested number of slices per frame.
+     */
+    private int sliceCount = 1;
+    /**
+     * The number of slices per frame in the current coded video sequence.
+     * The slice count can only change at an IDR frame, because the PPS
+     * depends on it.
+     */
+    private int activeSliceCount = 1;
+    private ForkJoinPool executor = ForkJoinPool.commonPool();
+    /**
+     * Reusable pictures that hold the input pixels of each slice.
+     */
+    private Picture[] slicePics = new Picture[0];
 
     public H264Encoder(RateControl rc) {
         this.rc = rc;
@@ -134,6 +158,33 @@ public class H264Encoder extends VideoEncoder {
         this.decodedDump = decodedDump;
     }
 
+    public int getSliceCount() {
+        return sliceCount;
+    }
+
+    /**
+     * Sets the number of slices per frame. The new value takes effect with the
+     * next IDR frame.
+     *
+     * @param sliceCount the number of slices, values smaller than 1 are
+     *                   treated as 1
+     */
+    public void setSliceCount(int sliceCount) {
+        this.sliceCount = Math.max(1, sliceCount);
+    }
+
+    public ForkJoinPool getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the pool on which the slices of a frame are encoded.
+     * The default is {@link ForkJoinPool#commonPool()}.
+     */
+    public void setExecutor(ForkJoinPool executor) {
+        this.executor = executor;
+    }
+
     /**
      * Encode this picture into h.264 frame. Frame type will be selected by encoder.
      */
@@ -226,7 +277,9 @@ public class H264Encoder extends VideoEncoder {
 
         if (idr) {
             sps = initSPS(new Size(pic.getCroppedWidth(), pic.getCroppedHeight()));
+            activeSliceCount = Math.min(sliceCount, sps.picHeightInMapUnitsMinus1 + 1);
             pps = initPPS();
+            pps.deblockingFilterControlPresentFlag = activeSliceCount > 1;
 
             maxPOC = 1 << (sps.log2MaxPicOrderCntLsbMinus4 + 4);
             maxFrameNumber = 1 << (sps.log2MaxFrameNumMinus4 + 4);
@@ -245,15 +298,13 @@ public class H264Encoder extends VideoEncoder {
         int mbWidth = sps.picWidthInMbsMinus1 + 1;
         int mbHeight = sps.picHeightInMapUnitsMinus1 + 1;
 
-        context = new EncodingContext(mbWidth, mbHeight);
-
         picOut = Picture.create(mbWidth << 4, mbHeight << 4, ColorSpace.YUV420J);
 
-        topEncoded = new EncodedMB[mbWidth];
-
-        encodeSlice(sps, pps, pic, dup, idr, frameNumber, frameType, qp);
-
-        putLastMBLine();
+        if (activeSliceCount == 1) {
+            encodeSlice(sps, pps, pic, dup, idr, frameNumber, frameType, qp, rc, 0, mbHeight, sum_se);
+        } else {
+            encodeSlicesInParallel(pic, dup, idr, frameNumber, frameType, qp, mbHeight);
+        }
 
         ref = picOut;
 
@@ -261,6 +312,70 @@ public class H264Encoder extends VideoEncoder {
         return dup;
     }
 
+    private void encodeSlicesInParallel(Picture pic, ByteBuffer dup, boolean idr, int frameNumber,
+                                        SliceType frameType, int qp, int mbHeight) {
+        final SeqParameterSet sps = this.sps;
+        final PictureParameterSet pps = this.pps;
+        if (slicePics.length != activeSliceCount) {
+            slicePics = new Picture[activeSliceCount];
+        }
+        List<Callable<ByteBuffer>> tasks = new ArrayList<>(activeSliceCount);
+        List<long[]> sliceSe = new ArrayList<>(activeSliceCount);
+        List<RateControl> sliceRcs = new ArrayList<>(activeSliceCount);
+        for (int i = 0; i < activeSliceCount; i++) {
+            final int firstMbY = i * mbHeight / activeSliceCount;
+            final int lastMbY = (i + 1) * mbHeight / activeSliceCount;
+            final Picture slicePic = slicePic(pic, i, firstMbY, lastMbY);
+            final RateControl sliceRc = rc.fork();
+            sliceRcs.add(sliceRc);
+            final long[] se = new long[3];
+            sliceSe.add(se);
+            tasks.add(() -> {
+                ByteBuffer out = ByteBuffer.allocate(Math.max(1 << 12, slicePic.getWidth() * slicePic.getHeight() * 2));
+                encodeSlice(sps, pps, slicePic, out, idr, frameNumber, frameType, qp, sliceRc, firstMbY, lastMbY, se);
+                out.flip();
+                return out;
+            });
+        }
+        try {
+            for (Future<ByteBuffer> f : executor.invokeAll(tasks)) {
+                dup.put(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while encoding slices.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not encode slice.", e.getCause());
+        }
+        for (long[] se : sliceSe) {
+            for (int p = 0; p < 3; p++) {
+                sum_se[p] += se[p];
+            }
+        }
+        for (RateControl sliceRc : sliceRcs) {
+            rc.join(sliceRc);
+        }
+    }
+
+    /**
+     * Copies the macroblock rows {@code firstMbY} to {@code lastMbY} of the
+     * specified picture into a reusable picture.
+     */
+    private Picture slicePic(Picture pic, int slice, int firstMbY, int lastMbY) {
+        int height = Math.min(pic.getHeight(), lastMbY << 4) - (firstMbY << 4);
+        Picture slicePic = slicePics[slice];
+        if (slicePic == null || slicePic.getWidth() != pic.getWidth() || slicePic.getHeight() != height) {
+            slicePic = slicePics[slice] = Picture.create(pic.getWidth(), height, pic.getColor());
+        }
+        for (int p = 0; p < 3; p++) {
+            int planeWidth = pic.getPlaneWidth(p);
+            int from = (firstMbY << 4 >> pic.getColor().compHeight[p]) * planeWidth;
+            System.arraycopy(pic.getPlaneData(p), from, slicePic.getPlaneData(p), 0,
+                    slicePic.getPlaneHeight(p) * planeWidth);
+        }
+        return slicePic;
+    }
+
     private void writePPS(ByteBuffer dup, PictureParameterSet pps) {
         ByteBuffer tmp = ByteBuffer.allocate(1024);
         pps.write(tmp);
@@ -301,16 +416,27 @@ public class H264Encoder extends VideoEncoder {
         return sps;
     }
 
+    /**
+     * Encodes the macroblock rows {@code firstMbY} to {@code lastMbY} as a
+     * slice.
+     *
+     * @param pic      the pixels of the slice, the first row of this picture
+     *                 is macroblock row {@code firstMbY} of the frame
+     * @param se       receives the squared errors if PSNR is enabled
+     */
     private void encodeSlice(SeqParameterSet sps, PictureParameterSet pps, Picture pic, ByteBuffer dup, boolean idr,
-                             int frameNum, SliceType sliceType, int sliceQp) {
+                             int frameNum, SliceType sliceType, int sliceQp, RateControl rc, int firstMbY, int lastMbY,
+                             long[] se) {
         if (idr && sliceType != SliceType.I) {
             idr = false;
             Logger.warn("Illegal value of idr = true when sliceType != I");
         }
+        int mbWidth = sps.picWidthInMbsMinus1 + 1;
+        int mbHeight = sps.picHeightInMapUnitsMinus1 + 1;
+        EncodingContext context = new EncodingContext(mbWidth, mbHeight);
         context.cavlc = new CAVLC[]{new CAVLC(sps, pps, 2, 2), new CAVLC(sps, pps, 1, 1), new CAVLC(sps, pps, 1, 1)};
-        mbEncoderI16x16 = new MBWriterI16x16();
-        mbEncoderINxN = new MBWriterINxN();
-        mbEncoderP16x16 = new MBWriterP16x16(sps, ref);
+        MBWriterP16x16 mbEncoderP16x16 = new MBWriterP16x16(sps, ref, firstMbY);
+        EncodedMB[] topEncoded = new EncodedMB[mbWidth];
 
         dup.putInt(0x1);
         new NALUnit(idr ? NALUnitType.IDR_SLICE : NALUnitType.NON_IDR_SLICE, 3).write(dup);
@@ -320,20 +446,25 @@ public class H264Encoder extends VideoEncoder {
             sh.refPicMarkingIDR = new RefPicMarkingIDR(false, false);
         sh.pps = pps;
         sh.sps = sps;
+        sh.firstMbInSlice = firstMbY * mbWidth;
+        if (pps.deblockingFilterControlPresentFlag) {
+            sh.disableDeblockingFilterIdc = 2;
+        }
         sh.picOrderCntLsb = (frameNum << 1) % maxPOC;
         sh.frameNum = frameNum % maxFrameNumber;
         sh.sliceQpDelta = sliceQp - (pps.picInitQpMinus26 + 26);
 
-        ByteBuffer buf = ByteBuffer.allocate(pic.getWidth() * pic.getHeight());
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(1 << 12, pic.getWidth() * pic.getHeight()));
         BitWriter sliceData = new BitWriter(buf);
         SliceHeaderWriter.write(sh, idr, 2, sliceData);
-        MotionEstimator estimator = new MotionEstimator(ref, sps, motionSearchRange);
+        MotionEstimator estimator = new MotionEstimator(ref, sps, motionSearchRange, firstMbY);
         context.prevQp = sliceQp;
 
-        int mbWidth = sps.picWidthInMbsMinus1 + 1;
-        int mbHeight = sps.picHeightInMapUnitsMinus1 + 1;
+        // Within the slice, macroblock rows are numbered relative to the
+        // first row of the slice.
+        int sliceMbHeight = lastMbY - firstMbY;
         int oldQp = sliceQp;
-        for (int mbY = 0, mbAddr = 0; mbY < mbHeight; mbY++) {
+        for (int mbY = 0, mbAddr = 0; mbY < sliceMbHeight; mbY++) {
             for (int mbX = 0; mbX < mbWidth; mbX++, mbAddr++) {
                 if (sliceType == SliceType.P) {
                     CAVLCWriter.writeUE(sliceData, 0); // number of skipped mbs
@@ -359,7 +490,8 @@ public class H264Encoder extends VideoEncoder {
                 do {
                     candidate = sliceData.fork();
                     fork = context.fork();
-                    rdMacroblock(fork, outMB, sliceType, pic, mbX, mbY, candidate, sliceQp, mbQp, params);
+                    rdMacroblock(fork, mbEncoderP16x16, outMB, sliceType, pic, mbX, mbY, candidate, sliceQp, mbQp,
+                            params);
                     qpDelta = rc.accept(candidate.position() - sliceData.position());
                     if (qpDelta != 0)
                         mbQp += qpDelta;
@@ -371,13 +503,14 @@ public class H264Encoder extends VideoEncoder {
 
                 context.update(outMB);
                 if (psnrEn)
-                    calcMse(pic, outMB, mbX, mbY, sum_se);
+                    calcMse(pic, outMB, mbX, mbY, se);
 
                 new MBDeblocker().deblockMBP(outMB, mbX > 0 ? topEncoded[mbX - 1] : null,
                         mbY > 0 ? topEncoded[mbX] : null);
-                addToReference(outMB, mbX, mbY);
+                addToReference(topEncoded, outMB, mbX, firstMbY + mbY);
             }
         }
+        putLastMBLine(topEncoded, lastMbY);
         sliceData.write1Bit(1);
         sliceData.flush();
         buf = sliceData.getBuffer();
@@ -424,12 +557,13 @@ public class H264Encoder extends VideoEncoder {
         }
     }
 
-    private void rdMacroblock(EncodingContext ctx, EncodedMB outMB, SliceType sliceType, Picture pic, int mbX, int mbY,
+    private void rdMacroblock(EncodingContext ctx, MBWriterP16x16 mbEncoderP16x16, EncodedMB outMB,
+                              SliceType sliceType, Picture pic, int mbX, int mbY,
                               BitWriter candidate, int sliceQp, int mbQp, NonRdVector params) {
         if (!enableRdo) {
             RdVector vector = sliceType == SliceType.P ? new RdVector(MBType.P_16x16, mbQp)
                     : new RdVector(MBType.I_16x16, mbQp);
-            encodeCand(ctx, outMB, sliceType, pic, mbX, mbY, candidate, params, vector);
+            encodeCand(ctx, mbEncoderP16x16, outMB, sliceType, pic, mbX, mbY, candidate, params, vector);
             return;
         }
 
@@ -445,21 +579,22 @@ public class H264Encoder extends VideoEncoder {
         for (RdVector rdVector : cands) {
             EncodingContext candCtx = ctx.fork();
             BitWriter candBits = candidate.fork();
-            long rdCost = tryVector(candCtx, sliceType, pic, mbX, mbY, candBits, sliceQp, params, rdVector);
+            long rdCost = tryVector(candCtx, mbEncoderP16x16, sliceType, pic, mbX, mbY, candBits, sliceQp, params,
+                    rdVector);
             if (rdCost < bestRd) {
                 bestRd = rdCost;
                 bestVector = rdVector;
             }
         }
-        encodeCand(ctx, outMB, sliceType, pic, mbX, mbY, candidate, params, bestVector);
+        encodeCand(ctx, mbEncoderP16x16, outMB, sliceType, pic, mbX, mbY, candidate, params, bestVector);
     }
 
-    private long tryVector(EncodingContext ctx, SliceType sliceType, Picture pic, int mbX, int mbY, BitWriter candidate,
-                           int sliceQp, NonRdVector params, RdVector vector) {
+    private long tryVector(EncodingContext ctx, MBWriterP16x16 mbEncoderP16x16, SliceType sliceType, Picture pic,
+                           int mbX, int mbY, BitWriter candidate, int sliceQp, NonRdVector params, RdVector vector) {
         int start = candidate.position();
         EncodedMB outMB = new EncodedMB();
         outMB.setPos(mbX, mbY);
-        encodeCand(ctx, outMB, sliceType, pic, mbX, mbY, candidate, params, vector);
+        encodeCand(ctx, mbEncoderP16x16, outMB, sliceType, pic, mbX, mbY, candidate, params, vector);
 
         long[] se = new long[3];
         calcMse(pic, outMB, mbX, mbY, se);
@@ -472,7 +607,8 @@ public class H264Encoder extends VideoEncoder {
         return mse + ((lambda * bits) >> 8);
     }
 
-    private void encodeCand(EncodingContext ctx, EncodedMB outMB, SliceType sliceType, Picture pic, int mbX, int mbY,
+    private void encodeCand(EncodingContext ctx, MBWriterP16x16 mbEncoderP16x16, EncodedMB outMB,
+                            SliceType sliceType, Picture pic, int mbX, int mbY,
                             BitWriter candidate, NonRdVector params, RdVector vector) {
         if (vector.mbType == MBType.I_16x16) {
             BitWriter tmp = new BitWriter(ByteBuffer.allocate(1024));
@@ -494,17 +630,15 @@ public class H264Encoder extends VideoEncoder {
             throw new RuntimeException("Macroblock of type " + vector.mbType + " is not supported.");
     }
 
-    private void addToReference(EncodedMB outMB, int mbX, int mbY) {
-        if (mbY > 0)
+    private void addToReference(EncodedMB[] topEncoded, EncodedMB outMB, int mbX, int mbY) {
+        if (topEncoded[mbX] != null)
             MBEncoderHelper.putBlkPic(picOut, topEncoded[mbX].getPixels(), mbX << 4, (mbY - 1) << 4);
         topEncoded[mbX] = outMB;
     }
 
-    private void putLastMBLine() {
-        int mbWidth = sps.picWidthInMbsMinus1 + 1;
-        int mbHeight = sps.picHeightInMapUnitsMinus1 + 1;
-        for (int mbX = 0; mbX < mbWidth; mbX++)
-            MBEncoderHelper.putBlkPic(picOut, topEncoded[mbX].getPixels(), mbX << 4, (mbHeight - 1) << 4);
+    private void putLastMBLine(EncodedMB[] topEncoded, int lastMbY) {
+        for (int mbX = 0; mbX < topEncoded.length; mbX++)
+            MBEncoderHelper.putBlkPic(picOut, topEncoded[mbX].getPixels(), mbX << 4, (lastMbY - 1) << 4);
     }
 
     @Override
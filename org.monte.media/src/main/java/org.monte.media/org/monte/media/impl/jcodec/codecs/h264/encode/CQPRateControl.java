@@ -30,6 +30,20 @@ public class CQPRateControl implements RateControl {
         return qp;
     }
 
+    @Override
+    public RateControl fork() {
+        CQPRateControl ret = new CQPRateControl(initialQp);
+        ret.qp = qp;
+        ret.oldQp = oldQp;
+        ret.sliceType = sliceType;
+        return ret;
+    }
+
+    @Override
+    public void join(RateControl fork) {
+        // the state only applies to the current picture
+    }
+
     @Override
     public int accept(int bits) {
         return 0;
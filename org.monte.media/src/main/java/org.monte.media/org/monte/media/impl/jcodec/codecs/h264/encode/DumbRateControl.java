@@ -37,6 +37,22 @@ public class DumbRateControl implements RateControl {
         }
     }
 
+    @Override
+    public RateControl fork() {
+        DumbRateControl ret = new DumbRateControl();
+        ret.bitsPerMb = bitsPerMb;
+        ret.totalQpDelta = totalQpDelta;
+        ret.justSwitched = justSwitched;
+        return ret;
+    }
+
+    @Override
+    public void join(RateControl fork) {
+        DumbRateControl f = (DumbRateControl) fork;
+        totalQpDelta = f.totalQpDelta;
+        justSwitched = f.justSwitched;
+    }
+
     @Override
     public int startPicture(Size sz, int maxSize, SliceType sliceType) {
         int totalMb = ((sz.getWidth() + 15) >> 4) * ((sz.getHeight() + 15) >> 4);
@@ -16,6 +16,10 @@ import org.monte.media.impl.jcodec.common.tools.MathUtil;
 public class H264FixedRateControl implements RateControl {
     private static final int INIT_QP = 26;
     private int balance;
+    /**
+     * The balance of the rate control from which this one has been forked.
+     */
+    private int forkBalance;
     private int perMb;
     private int curQp;
 
@@ -37,6 +41,22 @@ public class H264FixedRateControl implements RateControl {
         return 0;
     }
 
+    @Override
+    public RateControl fork() {
+        H264FixedRateControl ret = new H264FixedRateControl(perMb);
+        ret.balance = balance;
+        ret.forkBalance = balance;
+        ret.curQp = curQp;
+        return ret;
+    }
+
+    @Override
+    public void join(RateControl fork) {
+        H264FixedRateControl f = (H264FixedRateControl) fork;
+        balance += f.balance - f.forkBalance;
+        curQp = f.curQp;
+    }
+
     public void reset() {
         balance = 0;
         curQp = INIT_QP;
@@ -30,10 +30,20 @@ public class MBWriterP16x16 {
     private Picture ref;
 
     private BlockInterpolator interpolator;
+    /**
+     * The macroblock row in the reference picture that corresponds to
+     * macroblock row 0 of the current picture.
+     */
+    private int mbOffY;
 
     public MBWriterP16x16(SeqParameterSet sps, Picture ref) {
+        this(sps, ref, 0);
+    }
+
+    public MBWriterP16x16(SeqParameterSet sps, Picture ref, int mbOffY) {
         this.sps = sps;
         this.ref = ref;
+        this.mbOffY = mbOffY;
         interpolator = new BlockInterpolator();
     }
 
@@ -74,13 +84,14 @@ public class MBWriterP16x16 {
         Picture mbRef = Picture.create(16, 16, sps.chromaFormatIdc);
         int[][] mb = new int[][]{new int[256], new int[64], new int[64]};
 
-        interpolator.getBlockLuma(ref, mbRef, 0, (mbX << 6) + params.mv[0], (mbY << 6) + params.mv[1], 16, 16);
+        interpolator.getBlockLuma(ref, mbRef, 0, (mbX << 6) + params.mv[0], ((mbY + mbOffY) << 6) + params.mv[1],
+                16, 16);
 
         BlockInterpolator.getBlockChroma(ref.getPlaneData(1), ref.getPlaneWidth(1), ref.getPlaneHeight(1),
-                mbRef.getPlaneData(1), 0, mbRef.getPlaneWidth(1), (mbX << 6) + params.mv[0], (mbY << 6) + params.mv[1],
+                mbRef.getPlaneData(1), 0, mbRef.getPlaneWidth(1), (mbX << 6) + params.mv[0], ((mbY + mbOffY) << 6) + params.mv[1],
                 8, 8);
         BlockInterpolator.getBlockChroma(ref.getPlaneData(2), ref.getPlaneWidth(2), ref.getPlaneHeight(2),
-                mbRef.getPlaneData(2), 0, mbRef.getPlaneWidth(2), (mbX << 6) + params.mv[0], (mbY << 6) + params.mv[1],
+                mbRef.getPlaneData(2), 0, mbRef.getPlaneWidth(2), (mbX << 6) + params.mv[0], ((mbY + mbOffY) << 6) + params.mv[1],
                 8, 8);
 
         MBEncoderHelper.takeSubtract(pic.getPlaneData(0), pic.getPlaneWidth(0), pic.getPlaneHeight(0), mbX << 4,
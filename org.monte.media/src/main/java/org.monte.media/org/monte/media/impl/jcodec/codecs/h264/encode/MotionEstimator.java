@@ -29,8 +29,18 @@ public class MotionEstimator {
     private int mvTopLeftR;
     private SeqParameterSet sps;
     private Picture ref;
+    /**
+     * The macroblock row in the reference picture that corresponds to
+     * macroblock row 0 of the current picture.
+     */
+    private int mbOffY;
 
     public MotionEstimator(Picture ref, SeqParameterSet sps, int maxSearchRange) {
+        this(ref, sps, maxSearchRange, 0);
+    }
+
+    public MotionEstimator(Picture ref, SeqParameterSet sps, int maxSearchRange, int mbOffY) {
+        this.mbOffY = mbOffY;
         this.sps = sps;
         this.ref = ref;
         mvTopX = new int[sps.picWidthInMbsMinus1 + 1];
@@ -68,8 +78,8 @@ public class MotionEstimator {
         int mvpy = median(ay, ar, by, br, cy, cr, dy, dr, mbX > 0, mbY > 0, trAvb, tlAvb);
         MBEncoderHelper.take(pic.getPlaneData(0), pic.getPlaneWidth(0), pic.getPlaneHeight(0), mbX << 4, mbY << 4,
                 patch, 16, 16);
-        int[] fullPix = estimateFullPix(ref, patch, mbX, mbY, mvpx, mvpy);
-        return estimateQPix(ref, patch, fullPix, mbX, mbY);
+        int[] fullPix = estimateFullPix(ref, patch, mbX, mbY + mbOffY, mvpx, mvpy);
+        return estimateQPix(ref, patch, fullPix, mbX, mbY + mbOffY);
     }
 
     private static final int[] SUB_X_OFF = {0, -2, 2, 0, 0, -2, -2, 2, 2, -1, 1, 0, 0, -1, -2, -1, -2, 1, 2, 1, 2, -1, 1, -1, 1};
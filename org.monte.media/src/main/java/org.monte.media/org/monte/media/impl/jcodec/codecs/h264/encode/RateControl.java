@@ -19,4 +19,22 @@ public interface RateControl {
     int initialQpDelta(Picture pic, int mbX, int mbY);
 
     int accept(int bits);
+
+    /**
+     * Creates a rate control with the same state as this one. The encoder
+     * uses one fork per slice, if it encodes the slices of a picture in
+     * parallel.
+     */
+    RateControl fork();
+
+    /**
+     * Merges the state of a fork back into this rate control, after the
+     * fork has encoded its slice. The encoder joins the forks in the order
+     * of the slices, so that the rate control keeps adapting from picture
+     * to picture.
+     *
+     * @param fork a rate control created by {@link #fork()} of this rate
+     *             control
+     */
+    void join(RateControl fork);
 }
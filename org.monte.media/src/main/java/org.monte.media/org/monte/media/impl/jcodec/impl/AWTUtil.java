@@ -76,6 +76,9 @@ public class AWTUtil {
     }
 
     public static Picture fromBufferedImage(BufferedImage src, ColorSpace tgtColor) {
+        if (tgtColor == ColorSpace.YUV420J) {
+            return ImageToYuv420j.transform(src, null);
+        }
         return convertColorSpace(fromBufferedImageRGB(src), tgtColor);
     }
 
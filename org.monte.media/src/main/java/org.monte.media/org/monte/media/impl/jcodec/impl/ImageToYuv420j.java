@@ -0,0 +1,216 @@
+/*
+ * @(#)ImageToYuv420j.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.impl.jcodec.impl;
+
+import org.monte.media.impl.jcodec.common.model.ColorSpace;
+import org.monte.media.impl.jcodec.common.model.Picture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Converts a {@link BufferedImage} into a {@link Picture} in the
+ * {@link ColorSpace#YUV420J} color space.
+ * <p>
+ * The result is identical to {@link AWTUtil#fromBufferedImageRGB} followed by
+ * {@link org.monte.media.impl.jcodec.scale.RgbToYuv420j}, but the conversion
+ * is done in a single pass over the image:
+ * <ul>
+ *     <li>Images with integer RGB pixels, and images with 3-byte BGR or
+ *     4-byte ABGR pixels are read directly from their data buffer. All other
+ *     images are read one row at a time with
+ *     {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.</li>
+ *     <li>The image is divided into horizontal bands which are converted in
+ *     parallel.</li>
+ *     <li>The destination picture is reused if it has the right size.</li>
+ * </ul>
+ *
+ * @author Werner Randelshofer
+ */
+public class ImageToYuv420j {
+    /**
+     * Bands with fewer pairs of rows are not worth a task of their own.
+     */
+    private final static int MIN_ROW_PAIRS_PER_BAND = 32;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private ImageToYuv420j() {
+    }
+
+    /**
+     * Converts an image.
+     *
+     * @param src the image, must have an even width and height
+     * @param dst a picture that is reused if it has the size of the image and
+     *            the {@link ColorSpace#YUV420J} color space, or null
+     * @return the picture
+     */
+    public static Picture transform(BufferedImage src, Picture dst) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        if (dst == null || dst.getWidth() != width || dst.getHeight() != height
+                || dst.getColor() != ColorSpace.YUV420J || dst.getCrop() != null) {
+            dst = Picture.create(width, height, ColorSpace.YUV420J);
+        }
+        Picture picture = dst;
+        int rowPairs = height >> 1;
+        int bands = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), rowPairs / MIN_ROW_PAIRS_PER_BAND));
+        IntStream stream = IntStream.range(0, bands);
+        if (bands > 1) {
+            stream = stream.parallel();
+        }
+        stream.forEach(band -> transformBand(src, picture,
+                rowPairs * band / bands, rowPairs * (band + 1) / bands));
+        return picture;
+    }
+
+    /**
+     * Converts the specified pairs of rows.
+     */
+    private static void transformBand(BufferedImage src, Picture dst, int fromPair, int toPair) {
+        int width = src.getWidth();
+        byte[] yPlane = dst.getPlaneData(0);
+        byte[] uPlane = dst.getPlaneData(1);
+        byte[] vPlane = dst.getPlaneData(2);
+        int chromaWidth = width >> 1;
+
+        WritableRaster raster = src.getRaster();
+        int type = src.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getParent() == null
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel sm) {
+            // Read the pixels directly from the data buffer.
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            int stride = sm.getScanlineStride();
+            boolean hasAlpha = type == BufferedImage.TYPE_INT_ARGB;
+            for (int pair = fromPair; pair < toPair; pair++) {
+                int row = offset + 2 * pair * stride;
+                transformRowPair(data, row, data, row + stride, hasAlpha, width,
+                        yPlane, 2 * pair * width, uPlane, vPlane, pair * chromaWidth);
+            }
+            return;
+        }
+
+        int[] row0 = new int[width];
+        int[] row1 = new int[width];
+        if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+                && raster.getParent() == null
+                && raster.getSampleModel() instanceof ComponentSampleModel sm) {
+            // Unpack the bytes of a pair of rows from the data buffer.
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            int stride = sm.getScanlineStride();
+            int pixelStride = sm.getPixelStride();
+            int[] bandOffsets = sm.getBandOffsets();
+            boolean hasAlpha = type == BufferedImage.TYPE_4BYTE_ABGR;
+            for (int pair = fromPair; pair < toPair; pair++) {
+                int row = offset + 2 * pair * stride;
+                unpackRow(data, row, pixelStride, bandOffsets, hasAlpha, row0, width);
+                unpackRow(data, row + stride, pixelStride, bandOffsets, hasAlpha, row1, width);
+                transformRowPair(row0, 0, row1, 0, hasAlpha, width,
+                        yPlane, 2 * pair * width, uPlane, vPlane, pair * chromaWidth);
+            }
+            return;
+        }
+
+        // Let the image convert its pixels to ARGB.
+        for (int pair = fromPair; pair < toPair; pair++) {
+            src.getRGB(0, 2 * pair, width, 1, row0, 0, width);
+            src.getRGB(0, 2 * pair + 1, width, 1, row1, 0, width);
+            transformRowPair(row0, 0, row1, 0, true, width,
+                    yPlane, 2 * pair * width, uPlane, vPlane, pair * chromaWidth);
+        }
+    }
+
+    /**
+     * Unpacks a row of byte pixels into ARGB pixels.
+     */
+    private static void unpackRow(byte[] data, int offset, int pixelStride, int[] bandOffsets, boolean hasAlpha,
+                                  int[] row, int width) {
+        int r = offset + bandOffsets[0];
+        int g = offset + bandOffsets[1];
+        int b = offset + bandOffsets[2];
+        if (hasAlpha) {
+            int a = offset + bandOffsets[3];
+            for (int x = 0; x < width; x++, r += pixelStride, g += pixelStride, b += pixelStride, a += pixelStride) {
+                row[x] = (data[a] & 0xff) << 24 | (data[r] & 0xff) << 16 | (data[g] & 0xff) << 8 | (data[b] & 0xff);
+            }
+        } else {
+            for (int x = 0; x < width; x++, r += pixelStride, g += pixelStride, b += pixelStride) {
+                row[x] = (data[r] & 0xff) << 16 | (data[g] & 0xff) << 8 | (data[b] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Converts two rows of ARGB pixels into two rows of luma samples and one
+     * row of chroma samples.
+     * <p>
+     * Uses the same integer arithmetic as
+     * {@link org.monte.media.impl.jcodec.scale.RgbToYuv420j#rgb2yuv}.
+     * Translucent pixels are blended with white, as in
+     * {@link AWTUtil#bufImgToPicture}.
+     */
+    private static void transformRowPair(int[] row0, int off0, int[] row1, int off1, boolean hasAlpha, int width,
+                                         byte[] yPlane, int yOff, byte[] uPlane, byte[] vPlane, int cOff) {
+        for (int x = 0; x < width; x += 2, cOff++) {
+            int p00 = row0[off0 + x];
+            int p01 = row0[off0 + x + 1];
+            int p10 = row1[off1 + x];
+            int p11 = row1[off1 + x + 1];
+            if (hasAlpha) {
+                p00 = blendWithWhite(p00);
+                p01 = blendWithWhite(p01);
+                p10 = blendWithWhite(p10);
+                p11 = blendWithWhite(p11);
+            }
+            yPlane[yOff + x] = (byte) luma(p00);
+            yPlane[yOff + x + 1] = (byte) luma(p01);
+            yPlane[yOff + width + x] = (byte) luma(p10);
+            yPlane[yOff + width + x + 1] = (byte) luma(p11);
+            uPlane[cOff] = (byte) ((cb(p00) + cb(p01) + cb(p10) + cb(p11) + 2) >> 2);
+            vPlane[cOff] = (byte) ((cr(p00) + cr(p01) + cr(p10) + cr(p11) + 2) >> 2);
+        }
+    }
+
+    private static int blendWithWhite(int argb) {
+        int alpha = argb >>> 24;
+        if (alpha == 0xff) {
+            return argb;
+        }
+        int nalpha = 255 - alpha;
+        int r = (((argb >> 16) & 0xff) * alpha + 0xff * nalpha) >> 8;
+        int g = (((argb >> 8) & 0xff) * alpha + 0xff * nalpha) >> 8;
+        int b = ((argb & 0xff) * alpha + 0xff * nalpha) >> 8;
+        return r << 16 | g << 8 | b;
+    }
+
+    private static int luma(int rgb) {
+        int y = (77 * ((rgb >> 16) & 0xff) + 150 * ((rgb >> 8) & 0xff) + 15 * (rgb & 0xff) + 128) >> 8;
+        return clip(y - 128);
+    }
+
+    private static int cb(int rgb) {
+        return clip((-43 * ((rgb >> 16) & 0xff) - 85 * ((rgb >> 8) & 0xff) + 128 * (rgb & 0xff) + 128) >> 8);
+    }
+
+    private static int cr(int rgb) {
+        return clip((128 * ((rgb >> 16) & 0xff) - 107 * ((rgb >> 8) & 0xff) - 21 * (rgb & 0xff) + 128) >> 8);
+    }
+
+    private static int clip(int value) {
+        return value < -128 ? -128 : Math.min(value, 127);
+    }
+}
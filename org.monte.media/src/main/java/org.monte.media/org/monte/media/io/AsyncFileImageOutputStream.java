@@ -0,0 +1,295 @@
+/*
+ * @(#)AsyncFileImageOutputStream.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.io;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An {@code ImageOutputStream} that writes into a file on a background
+ * thread.
+ * <p>
+ * Writes are collected in one of two direct buffers. When the buffer is
+ * full, it is handed over to the background thread, which writes it into
+ * the file with a single call, while the other buffer is being filled.
+ * Thus, many small writes are coalesced into large sequential writes, and
+ * the writing thread only blocks if the disk can not keep up with two
+ * buffers.
+ * <p>
+ * Seeking back and overwriting already written data is supported, but it
+ * hands over the current buffer, and should therefore only be done
+ * occasionally, for example for updating a header. Reading waits until
+ * all buffers have been written.
+ * <p>
+ * Errors that occur on the background thread are thrown by the next
+ * method that writes, reads or closes the stream.
+ * <p>
+ * The stream must be closed, otherwise the last buffer is not written.
+ */
+public class AsyncFileImageOutputStream extends ImageOutputStreamImpl {
+    /**
+     * The default buffer size is 4 MiB.
+     */
+    public final static int DEFAULT_BUFFER_SIZE = 1 << 22;
+
+    /**
+     * Specifies when the content of the file is forced to the storage
+     * device.
+     */
+    public enum SyncPolicy {
+        /**
+         * The operating system decides when the content is written to the
+         * storage device.
+         */
+        NONE,
+        /**
+         * The content is forced to the storage device when the stream is
+         * closed.
+         */
+        ON_CLOSE,
+        /**
+         * The content is forced to the storage device after each buffer
+         * has been written.
+         */
+        EVERY_BUFFER
+    }
+
+    private final FileChannel channel;
+    private final SyncPolicy syncPolicy;
+    private final ExecutorService writer;
+    /**
+     * The buffer that is being filled. The content of the buffer goes
+     * into the file at {@code fillStart}.
+     */
+    private ByteBuffer fill;
+    private long fillStart;
+    private int fillLength;
+    /**
+     * The buffer that is being written by the background thread, or is
+     * ready for being filled if {@code pendingWrite} is done.
+     */
+    private ByteBuffer spare;
+    private Future<?> pendingWrite;
+    /**
+     * The length of the file including the data in the buffers.
+     */
+    private long length;
+
+    public AsyncFileImageOutputStream(File file) throws IOException {
+        this(file.toPath(), DEFAULT_BUFFER_SIZE, SyncPolicy.NONE);
+    }
+
+    public AsyncFileImageOutputStream(Path path) throws IOException {
+        this(path, DEFAULT_BUFFER_SIZE, SyncPolicy.NONE);
+    }
+
+    /**
+     * Creates a new instance. If the file exists, it is truncated.
+     *
+     * @param path       the file
+     * @param bufferSize the size of each of the two buffers, must be at
+     *                   least 1
+     * @param syncPolicy specifies when the content of the file is forced
+     *                   to the storage device
+     * @throws IOException if the file can not be opened
+     */
+    public AsyncFileImageOutputStream(Path path, int bufferSize, SyncPolicy syncPolicy) throws IOException {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize=" + bufferSize + " must be at least 1");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.syncPolicy = syncPolicy;
+        this.fill = ByteBuffer.allocateDirect(bufferSize);
+        this.spare = ByteBuffer.allocateDirect(bufferSize);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "AsyncFileImageOutputStream " + path.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        ByteBuffer buf = prepareWrite();
+        int index = (int) (streamPos - fillStart);
+        buf.put(index, (byte) b);
+        didWrite(index + 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", b.length=" + b.length);
+        }
+        flushBits();
+        while (len > 0) {
+            ByteBuffer buf = prepareWrite();
+            int index = (int) (streamPos - fillStart);
+            int n = Math.min(len, buf.capacity() - index);
+            buf.put(index, b, off, n);
+            off += n;
+            len -= n;
+            didWrite(index + n);
+        }
+    }
+
+    /**
+     * Returns the fill buffer, after making sure that the stream position
+     * is inside the buffer, or directly after its content.
+     */
+    private ByteBuffer prepareWrite() throws IOException {
+        checkClosed();
+        long index = streamPos - fillStart;
+        if (index < 0 || index > fillLength || index >= fill.capacity()) {
+            handOver();
+            fillStart = streamPos;
+        }
+        return fill;
+    }
+
+    /**
+     * Updates the state after bytes have been put into the fill buffer up
+     * to the specified index.
+     */
+    private void didWrite(int end) throws IOException {
+        streamPos = fillStart + end;
+        fillLength = Math.max(fillLength, end);
+        length = Math.max(length, streamPos);
+        if (end == fill.capacity()) {
+            handOver();
+            fillStart = streamPos;
+        }
+    }
+
+    /**
+     * Hands the content of the fill buffer over to the background thread,
+     * and swaps the buffers. Blocks until the previous content of the spare
+     * buffer has been written.
+     */
+    private void handOver() throws IOException {
+        if (fillLength == 0) {
+            return;
+        }
+        awaitPendingWrite();
+        ByteBuffer buf = fill;
+        long position = fillStart;
+        buf.limit(fillLength).position(0);
+        pendingWrite = writer.submit(() -> {
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + buf.position());
+            }
+            if (syncPolicy == SyncPolicy.EVERY_BUFFER) {
+                channel.force(false);
+            }
+            return null;
+        });
+        fill = spare;
+        spare = buf;
+        fill.clear();
+        fillLength = 0;
+    }
+
+    /**
+     * Waits until the background thread has written the spare buffer.
+     *
+     * @throws IOException if the background thread failed to write the buffer
+     */
+    private void awaitPendingWrite() throws IOException {
+        if (pendingWrite == null) {
+            return;
+        }
+        try {
+            pendingWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for write");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            pendingWrite = null;
+        }
+    }
+
+    /**
+     * Writes all buffered data into the file and waits until it has been
+     * written.
+     *
+     * @throws IOException if writing failed
+     */
+    public void drain() throws IOException {
+        checkClosed();
+        handOver();
+        awaitPendingWrite();
+    }
+
+    @Override
+    public int read() throws IOException {
+        bitOffset = 0;
+        drain();
+        ByteBuffer b = ByteBuffer.allocate(1);
+        if (channel.read(b, streamPos) <= 0) {
+            return -1;
+        }
+        streamPos++;
+        return b.get(0) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", b.length=" + b.length);
+        }
+        bitOffset = 0;
+        drain();
+        if (len == 0) {
+            return 0;
+        }
+        int n = channel.read(ByteBuffer.wrap(b, off, len), streamPos);
+        if (n <= 0) {
+            return -1;
+        }
+        streamPos += n;
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isClosed()) {
+            return;
+        }
+        try {
+            drain();
+            if (syncPolicy != SyncPolicy.NONE) {
+                channel.force(false);
+            }
+        } finally {
+            writer.shutdown();
+            channel.close();
+            super.close();
+        }
+    }
+
+    private boolean isClosed() {
+        return !channel.isOpen();
+    }
+}
@@ -7,6 +7,8 @@ package org.monte.media.io;
 
 import javax.imageio.stream.ImageInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 
 public class ImageInputStreams {
     /**
@@ -23,4 +25,51 @@ public class ImageInputStreams {
         }
         return nbytes;
     }
+
+    /**
+     * Reads the specified range of the stream into a read-only buffer with
+     * the byte order of the stream.
+     * <p>
+     * If the stream is a {@link MappedFileImageInputStream}, the buffer shares
+     * its content with the mapped file, and the stream position is not
+     * changed. Otherwise, the range is copied into a new buffer, and the
+     * stream position is set to the end of the range.
+     *
+     * @param in  the input stream
+     * @param pos the position in the stream
+     * @param len the number of bytes
+     * @return the buffer
+     * @throws IOException if reading fails
+     */
+    public static ByteBuffer readFully(ImageInputStream in, long pos, int len) throws IOException {
+        if (in instanceof MappedFileImageInputStream m) {
+            return m.slice(pos, len);
+        }
+        byte[] b = new byte[len];
+        in.seek(pos);
+        in.readFully(b, 0, len);
+        return ByteBuffer.wrap(b).asReadOnlyBuffer().order(in.getByteOrder());
+    }
+
+    /**
+     * Reads the specified range of the stream into memory, like
+     * {@link #readFully}.
+     * <p>
+     * If the stream is a {@link MappedFileImageInputStream}, the pages of the
+     * range are loaded into physical memory with a single sequential pass, so
+     * that subsequent reads from the buffer do not wait for the disk.
+     *
+     * @param in  the input stream
+     * @param pos the position in the stream
+     * @param len the number of bytes
+     * @return the buffer
+     * @throws IOException if reading fails
+     */
+    public static ByteBuffer prefetch(ImageInputStream in, long pos, int len) throws IOException {
+        ByteBuffer buf = readFully(in, pos, len);
+        if (buf instanceof MappedByteBuffer m) {
+            m.load();
+        }
+        return buf;
+    }
 }
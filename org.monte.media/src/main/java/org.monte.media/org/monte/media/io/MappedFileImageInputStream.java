@@ -0,0 +1,226 @@
+/*
+ * @(#)MappedFileImageInputStream.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@code ImageInputStream} that reads from a file that is mapped into
+ * memory.
+ * <p>
+ * The file is mapped in windows of at most {@code windowSize} bytes. A window
+ * is remapped when a read operation leaves it. Reads that are contained in the
+ * current window do not need a system call.
+ * <p>
+ * {@link #slice} returns the content of the file as a read-only
+ * {@code ByteBuffer} without copying it.
+ * <p>
+ * Mapped memory is released by the garbage collector. On some operating
+ * systems, the file can not be deleted while a mapping of it is reachable.
+ */
+public class MappedFileImageInputStream extends ImageInputStreamImpl2 {
+    /**
+     * The default window size is 256 MiB.
+     */
+    public final static int DEFAULT_WINDOW_SIZE = 1 << 28;
+    /**
+     * Windows start at a multiple of this value, if possible.
+     */
+    private final static long WINDOW_ALIGNMENT = 1 << 16;
+
+    private final FileChannel channel;
+    private final long length;
+    private final int windowSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLength;
+
+    public MappedFileImageInputStream(File file) throws IOException {
+        this(file.toPath(), DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedFileImageInputStream(Path path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param path       the file
+     * @param windowSize the maximal number of bytes that are mapped at the
+     *                   same time, must be at least 8
+     * @throws IOException if the file can not be opened
+     */
+    public MappedFileImageInputStream(Path path, int windowSize) throws IOException {
+        if (windowSize < 8) {
+            throw new IllegalArgumentException("windowSize=" + windowSize + " must be at least 8");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.length = channel.size();
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Ensures that the specified range of the file is mapped.
+     *
+     * @param pos the position in the file
+     * @param n   the number of bytes
+     * @return the index of the position in the window, or -1 if the range is
+     * not in the file or is larger than the window size
+     */
+    private int map(long pos, int n) throws IOException {
+        if (window != null && pos >= windowStart && pos + n <= windowStart + windowLength) {
+            return (int) (pos - windowStart);
+        }
+        if (pos < 0 || n > windowSize || pos + n > length) {
+            return -1;
+        }
+        long start = pos - pos % WINDOW_ALIGNMENT;
+        if (pos + n > start + windowSize) {
+            start = pos;
+        }
+        int size = (int) Math.min(windowSize, length - start);
+        window = null;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        window.order(byteOrder);
+        windowStart = start;
+        windowLength = size;
+        return (int) (pos - start);
+    }
+
+    @Override
+    public void setByteOrder(ByteOrder byteOrder) {
+        super.setByteOrder(byteOrder);
+        if (window != null) {
+            window.order(byteOrder);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        int index = map(streamPos, 1);
+        streamPos++;
+        return window.get(index) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", b.length=" + b.length);
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= length) {
+            return -1;
+        }
+        len = (int) Math.min(len, length - streamPos);
+        int remaining = len;
+        while (remaining > 0) {
+            int index = map(streamPos, 1);
+            int n = Math.min(remaining, windowLength - index);
+            window.get(index, b, off, n);
+            off += n;
+            remaining -= n;
+            streamPos += n;
+        }
+        return len;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        checkClosed();
+        int index = map(streamPos, 2);
+        if (index < 0) {
+            return super.readShort();
+        }
+        bitOffset = 0;
+        streamPos += 2;
+        return window.getShort(index);
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        checkClosed();
+        int index = map(streamPos, 4);
+        if (index < 0) {
+            return super.readInt();
+        }
+        bitOffset = 0;
+        streamPos += 4;
+        return window.getInt(index);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        checkClosed();
+        int index = map(streamPos, 8);
+        if (index < 0) {
+            return super.readLong();
+        }
+        bitOffset = 0;
+        streamPos += 8;
+        return window.getLong(index);
+    }
+
+    /**
+     * Returns the specified range of the file as a read-only buffer with the
+     * byte order of this stream. Does not change the stream position.
+     * <p>
+     * If the range fits into the window size, the returned buffer shares its
+     * content with the mapped file. Otherwise, the range is read into a new
+     * buffer.
+     *
+     * @param pos the position in the file
+     * @param len the number of bytes
+     * @return the buffer
+     * @throws EOFException if the range is not in the file
+     * @throws IOException  if reading fails
+     */
+    public ByteBuffer slice(long pos, int len) throws IOException {
+        checkClosed();
+        if (pos < 0 || len < 0 || pos + len > length) {
+            throw new EOFException("pos=" + pos + ", len=" + len + ", length=" + length);
+        }
+        int index = map(pos, len);
+        if (index >= 0) {
+            return window.slice(index, len).order(byteOrder);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buf.flip().asReadOnlyBuffer().order(byteOrder);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        window = null;
+        channel.close();
+    }
+}
@@ -6,6 +6,7 @@ package org.monte.media.mp4;
 
 import org.monte.media.av.Format;
 import org.monte.media.av.codec.video.VideoFormatKeys;
+import org.monte.media.io.AsyncFileImageOutputStream;
 import org.monte.media.io.ByteArrayImageOutputStream;
 import org.monte.media.io.IOStreams;
 import org.monte.media.io.ImageOutputStreamAdapter;
@@ -16,7 +17,6 @@ import org.monte.media.qtff.QTFFImageOutputStream;
 import org.monte.media.util.ByteArray;
 import org.monte.media.util.MathUtil;
 
-import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.ColorModel;
@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteOrder;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Objects;
@@ -50,10 +51,57 @@ import static org.monte.media.av.codec.audio.AudioFormatKeys.SignedKey;
 /**
  * This class provides low-level support for writing already encoded audio and
  * video samples into a MP4 file.
+ * <p>
+ * By default, the samples are written into a single "mdat" atom, and the
+ * sample tables are written into the "moov" atom when the movie is finished.
+ * <p>
+ * If a fragment duration is set with {@link #setFragmentDuration(long)}, the
+ * movie is written as a fragmented movie instead. The "moov" atom is written
+ * before the first fragment and describes no samples. The samples are
+ * written in "moof" and "mdat" atom pairs. A new fragment starts at the first
+ * sync sample of the first video track (or of the first track if there is no
+ * video track) after the fragment duration has elapsed. The sample tables of
+ * a fragment are discarded after the fragment has been written. Therefore,
+ * the memory used by the writer does not grow with the duration of the movie,
+ * and all fragments that have been written are playable, even if the movie
+ * is never finished.
  *
  * @author Werner Randelshofer
  */
 public class MP4OutputStream extends AbstractQTFFMovieStream {
+    /**
+     * Sample flags of a sync sample: sample_depends_on = 2.
+     */
+    private final static int SYNC_SAMPLE_FLAGS = 0x02000000;
+    /**
+     * Sample flags of a non-sync sample: sample_depends_on = 1,
+     * sample_is_non_sync_sample = 1.
+     */
+    private final static int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+    /**
+     * If the reference track has no sync sample, a fragment is ended after
+     * this multiple of the fragment duration.
+     */
+    private final static int MAX_FRAGMENT_DURATION_FACTOR = 4;
+
+    /**
+     * The duration of a fragment in the movie time scale, or 0 if the movie
+     * is not fragmented.
+     */
+    private long fragmentDuration;
+    /**
+     * The samples of each track that have not been written yet. Only used
+     * if the movie is fragmented.
+     */
+    private TrackFragment[] fragments = new TrackFragment[0];
+    /**
+     * The sequence number of the next fragment.
+     */
+    private int fragmentSequenceNumber = 1;
+    /**
+     * Whether the "moov" atom of a fragmented movie has been written.
+     */
+    private boolean isMovieHeaderWritten;
 
     /**
      * Creates a new instance.
@@ -64,7 +112,7 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
         if (file.exists()) {
             if (!file.delete()) throw new IOException("can not delete file");
         }
-        this.out = new FileImageOutputStream(file);
+        this.out = new AsyncFileImageOutputStream(file);
         this.streamOffset = 0;
         init();
     }
@@ -108,6 +156,60 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
         return movieTimeScale;
     }
 
+    /**
+     * Sets the duration of a movie fragment in the movie time scale.
+     * <p>
+     * A value greater than 0 turns this stream into a fragmented movie
+     * writer. The value 0 writes a movie with a single "moov" atom. The
+     * default value is 0.
+     * <p>
+     * This method must be called before the first sample is written.
+     *
+     * @param duration the fragment duration, or 0
+     * @throws IllegalArgumentException if the duration is negative
+     * @throws IllegalStateException    if a sample has already been written
+     * @throws IOException              if an I/O error has occurred
+     */
+    public void setFragmentDuration(long duration) throws IOException {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative:" + duration);
+        }
+        for (Track t : tracks) {
+            if (!t.isEmpty()) {
+                throw new IllegalStateException("Can not change the fragment duration after samples have been written.");
+            }
+        }
+        this.fragmentDuration = duration;
+        if (state == States.STARTED) {
+            // The "mdat" atom is still empty, so we can remove it or add it.
+            if (isFragmented() && mdatAtom != null) {
+                out.seek(streamOffset + mdatAtom.getOffset());
+                mdatAtom = null;
+            } else if (!isFragmented() && mdatAtom == null) {
+                mdatAtom = new WideDataAtom("mdat");
+            }
+        }
+    }
+
+    /**
+     * Returns the duration of a movie fragment in the movie time scale.
+     *
+     * @return the fragment duration, or 0 if the movie is not fragmented
+     * @see #setFragmentDuration(long)
+     */
+    public long getFragmentDuration() {
+        return fragmentDuration;
+    }
+
+    /**
+     * Returns true if the movie is written as a fragmented movie.
+     *
+     * @return true if fragmented
+     */
+    public boolean isFragmented() {
+        return fragmentDuration > 0;
+    }
+
     /**
      * Returns the time scale of the media in a track.
      *
@@ -599,7 +701,10 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
         }
         if (state != States.STARTED) {
             writeProlog();
-            mdatAtom = new WideDataAtom("mdat");
+            if (!isFragmented()) {
+                writeFastStartReserve();
+                mdatAtom = new WideDataAtom("mdat");
+            }
             state = States.STARTED;
         }
     }
@@ -677,6 +782,11 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
         Track t = tracks.get(track); // throws index out of bounds exception if illegal track index
         ensureOpen();
         ensureStarted();
+        if (isFragmented()) {
+            byte[] data = in.readAllBytes();
+            writeFragmentSamples(track, 1, data, 0, data.length, duration, isSync);
+            return;
+        }
         long offset = getRelativeStreamPosition();
         QTFFImageOutputStream mdatOut = mdatAtom.getOutputStream();
         IOStreams.copy(in, mdatOut);
@@ -722,6 +832,10 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
         Track t = tracks.get(track); // throws index out of bounds exception if illegal track index
         ensureOpen();
         ensureStarted();
+        if (isFragmented()) {
+            writeFragmentSamples(track, 1, data, off, len, duration, isSync);
+            return;
+        }
         long offset = getRelativeStreamPosition();
         ImageOutputStream mdatOut = mdatAtom.getOutputStream();
         mdatOut.write(data, off, len);
@@ -799,6 +913,10 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
         Track t = tracks.get(track); // throws index out of bounds exception if illegal track index
         ensureOpen();
         ensureStarted();
+        if (isFragmented()) {
+            writeFragmentSamples(track, sampleCount, data, off, len, sampleDuration, isSync);
+            return;
+        }
         long offset = getRelativeStreamPosition();
         ImageOutputStream mdatOut = mdatAtom.getOutputStream();
         mdatOut.write(data, off, len);
@@ -862,10 +980,21 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
     public void finish() throws IOException {
         ensureOpen();
         if (state != States.FINISHED) {
-            for (int i = 0, n = tracks.size(); i < n; i++) {
+            if (isFragmented()) {
+                ensureStarted();
+                writeFragment();
+                if (!isMovieHeaderWritten) {
+                    writeMovieHeader();
+                }
+                state = States.FINISHED;
+                return;
             }
             mdatAtom.finish();
-            writeEpilog();
+            if (fastStartOffset >= 0) {
+                writeMovieHeaderIntoReserve(this::writeEpilog);
+            } else {
+                writeEpilog();
+            }
             state = States.FINISHED;
             /*
              for (int i = 0, n = tracks.size(); i < n; i++) {
@@ -1055,10 +1184,394 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
         }
 
 
+        if (isFragmented()) {
+            writeMovieExtendsAtoms(moovAtom);
+        }
+
         //
         moovAtom.finish();
     }
 
+    /**
+     * Writes the "mvex" atom of a fragmented movie. The "trex" atoms do not
+     * define defaults, because each fragment defines its own.
+     */
+    private void writeMovieExtendsAtoms(CompositeAtom moovAtom) throws IOException {
+        CompositeAtom mvexAtom = new CompositeAtom("mvex");
+        moovAtom.add(mvexAtom);
+        for (int i = 0, n = tracks.size(); i < n; i++) {
+            /* Track Extends Atom -------------
+             typedef struct {
+             byte version;
+             byte[3] flags;
+             int trackId;
+             int defaultSampleDescriptionIndex;
+             int defaultSampleDuration;
+             int defaultSampleSize;
+             int defaultSampleFlags;
+             } trackExtendsAtom;
+             */
+            DataAtom leaf = new DataAtom("trex");
+            mvexAtom.add(leaf);
+            QTFFImageOutputStream d = leaf.getOutputStream();
+            d.writeInt(0); // version and flags
+            d.writeInt(i + 1); // trackId
+            d.writeInt(1); // defaultSampleDescriptionIndex
+            d.writeInt(0); // defaultSampleDuration
+            d.writeInt(0); // defaultSampleSize
+            d.writeInt(0); // defaultSampleFlags
+        }
+        mvexAtom.finish();
+    }
+
+    /**
+     * Writes the "moov" atom of a fragmented movie. The atom describes no
+     * samples, all samples are described by the fragments.
+     */
+    private void writeMovieHeader() throws IOException {
+        long[] mediaDurations = new long[tracks.size()];
+        for (int i = 0; i < mediaDurations.length; i++) {
+            Track t = tracks.get(i);
+            mediaDurations[i] = t.mediaDuration;
+            t.mediaDuration = 0;
+        }
+        try {
+            writeEpilog();
+        } finally {
+            for (int i = 0; i < mediaDurations.length; i++) {
+                tracks.get(i).mediaDuration = mediaDurations[i];
+            }
+        }
+        isMovieHeaderWritten = true;
+    }
+
+    /**
+     * Adds samples to the current fragment of a track. Writes the current
+     * fragment before the samples are added, if the samples start a new
+     * fragment.
+     */
+    private void writeFragmentSamples(int track, int sampleCount, byte[] data, int off, int len, long sampleDuration, boolean isSync) throws IOException {
+        if (sampleDuration > 0xffffffffL) {
+            throw new IllegalArgumentException("sampleDuration must be smaller than 2^32, sampleDuration=" + sampleDuration + " track=" + track);
+        }
+        if (track == getFragmentReferenceTrack()) {
+            TrackFragment f = getTrackFragment(track);
+            long elapsed = f.duration * movieTimeScale / tracks.get(track).mediaTimeScale;
+            if (f.sampleCount > 0 && (isSync && elapsed >= fragmentDuration
+                    || elapsed >= fragmentDuration * MAX_FRAGMENT_DURATION_FACTOR)) {
+                writeFragment();
+            }
+        }
+        Track t = tracks.get(track);
+        TrackFragment f = getTrackFragment(track);
+        f.add(sampleCount, len / sampleCount, (int) sampleDuration, isSync);
+        f.data.write(data, off, len);
+        t.mediaDuration += sampleDuration * sampleCount;
+        t.sampleCount += sampleCount;
+    }
+
+    /**
+     * Returns the track that determines the fragment boundaries: the first
+     * video track, or the first track if there is no video track.
+     */
+    private int getFragmentReferenceTrack() {
+        for (int i = 0, n = tracks.size(); i < n; i++) {
+            if (tracks.get(i).mediaType == MediaType.VIDEO) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private TrackFragment getTrackFragment(int track) {
+        if (fragments.length < tracks.size()) {
+            TrackFragment[] grown = Arrays.copyOf(fragments, tracks.size());
+            for (int i = fragments.length; i < grown.length; i++) {
+                grown[i] = new TrackFragment();
+            }
+            fragments = grown;
+        }
+        return fragments[track];
+    }
+
+    /**
+     * Writes the current fragment as a "moof" and an "mdat" atom, and
+     * discards its samples. Writes the "moov" atom before the first
+     * fragment. Does nothing if the current fragment is empty.
+     */
+    private void writeFragment() throws IOException {
+        getTrackFragment(0);
+        long dataLength = 0;
+        for (TrackFragment f : fragments) {
+            dataLength += f.data.length();
+        }
+        if (dataLength == 0) {
+            return;
+        }
+        if (!isMovieHeaderWritten) {
+            writeMovieHeader();
+        }
+
+        // The data offsets in the "trun" atoms are relative to the start of
+        // the "moof" atom, so we have to compute its size in advance.
+        long moofSize = 8 + 16;
+        for (TrackFragment f : fragments) {
+            if (f.sampleCount > 0) {
+                moofSize += f.getTrafSize();
+            }
+        }
+        long dataOffset = moofSize + 16;// the mdat atom has a 16 byte header
+
+        /* Movie Fragment Atom ========= */
+        CompositeAtom moofAtom = new CompositeAtom("moof");
+
+        /* Movie Fragment Header Atom -------------
+         typedef struct {
+         byte version;
+         byte[3] flags;
+         int sequenceNumber;
+         } movieFragmentHeaderAtom;
+         */
+        DataAtom leaf = new DataAtom("mfhd");
+        moofAtom.add(leaf);
+        QTFFImageOutputStream d = leaf.getOutputStream();
+        d.writeInt(0); // version and flags
+        d.writeInt(fragmentSequenceNumber++); // sequenceNumber
+
+        for (int i = 0; i < fragments.length; i++) {
+            TrackFragment f = fragments[i];
+            if (f.sampleCount > 0) {
+                writeTrackFragmentAtoms(i, f, moofAtom, dataOffset);
+                dataOffset += f.data.length();
+            }
+        }
+        moofAtom.finish();
+
+        WideDataAtom fragmentMdatAtom = new WideDataAtom("mdat");
+        for (TrackFragment f : fragments) {
+            f.data.toImageOutputStream(fragmentMdatAtom.getOutputStream());
+            f.startTime += f.duration;
+            f.clear();
+        }
+        fragmentMdatAtom.finish();
+
+        // The fragment is complete, there is no need to seek back into it.
+        out.flushBefore(out.getStreamPosition());
+    }
+
+    /**
+     * Writes the "traf" atom of a track.
+     *
+     * @param dataOffset the offset of the sample data of the track relative
+     *                   to the start of the "moof" atom
+     */
+    private void writeTrackFragmentAtoms(int trackIndex, TrackFragment f, CompositeAtom moofAtom, long dataOffset) throws IOException {
+        CompositeAtom trafAtom = new CompositeAtom("traf");
+        moofAtom.add(trafAtom);
+
+        /* Track Fragment Header Atom -------------
+         typedef struct {
+         byte version;
+         byte[3] flags;
+         int trackId;
+         // all the following are optional fields
+         int defaultSampleDuration;
+         int defaultSampleSize;
+         int defaultSampleFlags;
+         } trackFragmentHeaderAtom;
+         */
+        DataAtom leaf = new DataAtom("tfhd");
+        trafAtom.add(leaf);
+        QTFFImageOutputStream d = leaf.getOutputStream();
+        int tfhdFlags = TrackFragment.DEFAULT_BASE_IS_MOOF;
+        if (f.isDurationUniform()) {
+            tfhdFlags |= TrackFragment.DEFAULT_SAMPLE_DURATION_PRESENT;
+        }
+        if (f.isSizeUniform()) {
+            tfhdFlags |= TrackFragment.DEFAULT_SAMPLE_SIZE_PRESENT;
+        }
+        if (f.isSyncUniform()) {
+            tfhdFlags |= TrackFragment.DEFAULT_SAMPLE_FLAGS_PRESENT;
+        }
+        d.writeInt(tfhdFlags); // version 0 and flags
+        d.writeInt(trackIndex + 1); // trackId
+        if (f.isDurationUniform()) {
+            d.writeInt(f.runs[2]); // defaultSampleDuration
+        }
+        if (f.isSizeUniform()) {
+            d.writeInt(f.runs[1]); // defaultSampleSize
+        }
+        if (f.isSyncUniform()) {
+            d.writeInt(f.runs[3] != 0 ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS); // defaultSampleFlags
+        }
+
+        /* Track Fragment Decode Time Atom -------------
+         typedef struct {
+         byte version; // 1
+         byte[3] flags;
+         long baseMediaDecodeTime;
+         } trackFragmentDecodeTimeAtom;
+         */
+        leaf = new DataAtom("tfdt");
+        trafAtom.add(leaf);
+        d = leaf.getOutputStream();
+        d.writeInt(0x01000000); // version 1 and flags
+        d.writeLong(f.startTime); // baseMediaDecodeTime
+
+        /* Track Fragment Run Atom -------------
+         typedef struct {
+         byte version;
+         byte[3] flags;
+         int sampleCount;
+         // the following are optional fields
+         int dataOffset;
+         trackRunTable trackRunTable[sampleCount];
+         } trackFragmentRunAtom;
+
+         typedef struct {
+         // all fields are optional
+         int sampleDuration;
+         int sampleSize;
+         int sampleFlags;
+         } trackRunTable;
+         */
+        leaf = new DataAtom("trun");
+        trafAtom.add(leaf);
+        d = leaf.getOutputStream();
+        int trunFlags = f.getTrunFlags();
+        d.writeInt(trunFlags); // version 0 and flags
+        d.writeInt(f.sampleCount); // sampleCount
+        d.writeInt(Math.toIntExact(dataOffset)); // dataOffset
+        if ((trunFlags & TrackFragment.TRUN_PER_SAMPLE_FLAGS) != 0) {
+            for (int r = 0; r < f.runCount; r++) {
+                int count = f.runs[r * 4];
+                int size = f.runs[r * 4 + 1];
+                int duration = f.runs[r * 4 + 2];
+                int flags = f.runs[r * 4 + 3] != 0 ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS;
+                for (int i = 0; i < count; i++) {
+                    if ((trunFlags & TrackFragment.SAMPLE_DURATION_PRESENT) != 0) {
+                        d.writeInt(duration);
+                    }
+                    if ((trunFlags & TrackFragment.SAMPLE_SIZE_PRESENT) != 0) {
+                        d.writeInt(size);
+                    }
+                    if ((trunFlags & TrackFragment.SAMPLE_FLAGS_PRESENT) != 0) {
+                        d.writeInt(flags);
+                    }
+                }
+            }
+        }
+        trafAtom.finish();
+    }
+
+    /**
+     * Holds the samples of a track that have not been written into a
+     * fragment yet.
+     * <p>
+     * Consecutive samples with the same size, duration and sync flag are
+     * stored as a run. Each run takes four elements of the {@code runs}
+     * array: count, size, duration and sync flag.
+     */
+    private static class TrackFragment {
+        final static int DEFAULT_BASE_IS_MOOF = 0x020000;
+        final static int DEFAULT_SAMPLE_DURATION_PRESENT = 0x08;
+        final static int DEFAULT_SAMPLE_SIZE_PRESENT = 0x10;
+        final static int DEFAULT_SAMPLE_FLAGS_PRESENT = 0x20;
+        final static int DATA_OFFSET_PRESENT = 0x001;
+        final static int SAMPLE_DURATION_PRESENT = 0x100;
+        final static int SAMPLE_SIZE_PRESENT = 0x200;
+        final static int SAMPLE_FLAGS_PRESENT = 0x400;
+        final static int TRUN_PER_SAMPLE_FLAGS = SAMPLE_DURATION_PRESENT | SAMPLE_SIZE_PRESENT | SAMPLE_FLAGS_PRESENT;
+
+        final ByteArrayImageOutputStream data = new ByteArrayImageOutputStream();
+        int[] runs = new int[64];
+        int runCount;
+        int sampleCount;
+        /**
+         * The duration of the samples in the media time scale.
+         */
+        long duration;
+        /**
+         * The decode time of the first sample in the media time scale.
+         */
+        long startTime;
+        /**
+         * Whether all runs have the same size, duration or sync flag.
+         */
+        boolean sizeUniform = true, durationUniform = true, syncUniform = true;
+
+        void add(int count, int size, int sampleDuration, boolean isSync) {
+            int sync = isSync ? 1 : 0;
+            if (runCount > 0) {
+                int last = (runCount - 1) * 4;
+                if (runs[last + 1] == size && runs[last + 2] == sampleDuration && runs[last + 3] == sync) {
+                    runs[last] += count;
+                    sampleCount += count;
+                    duration += (long) sampleDuration * count;
+                    return;
+                }
+                sizeUniform &= runs[1] == size;
+                durationUniform &= runs[2] == sampleDuration;
+                syncUniform &= runs[3] == sync;
+            }
+            if (runCount * 4 == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            int i = runCount * 4;
+            runs[i] = count;
+            runs[i + 1] = size;
+            runs[i + 2] = sampleDuration;
+            runs[i + 3] = sync;
+            runCount++;
+            sampleCount += count;
+            duration += (long) sampleDuration * count;
+        }
+
+        boolean isSizeUniform() {
+            return sizeUniform;
+        }
+
+        boolean isDurationUniform() {
+            return durationUniform;
+        }
+
+        boolean isSyncUniform() {
+            return syncUniform;
+        }
+
+        int getTrunFlags() {
+            int flags = DATA_OFFSET_PRESENT;
+            if (!durationUniform) {
+                flags |= SAMPLE_DURATION_PRESENT;
+            }
+            if (!sizeUniform) {
+                flags |= SAMPLE_SIZE_PRESENT;
+            }
+            if (!syncUniform) {
+                flags |= SAMPLE_FLAGS_PRESENT;
+            }
+            return flags;
+        }
+
+        /**
+         * Returns the size of the "traf" atom of this fragment.
+         */
+        long getTrafSize() {
+            long tfhdSize = 16 + (durationUniform ? 4 : 0) + (sizeUniform ? 4 : 0) + (syncUniform ? 4 : 0);
+            long tfdtSize = 20;
+            long trunSize = 20 + (long) sampleCount * 4 * Integer.bitCount(getTrunFlags() & TRUN_PER_SAMPLE_FLAGS);
+            return 8 + tfhdSize + tfdtSize + trunSize;
+        }
+
+        void clear() {
+            data.clear();
+            runCount = 0;
+            sampleCount = 0;
+            duration = 0;
+            sizeUniform = durationUniform = syncUniform = true;
+        }
+    }
+
     protected void writeTrackAtoms(int trackIndex, CompositeAtom moovAtom, Instant modificationTime) throws IOException {
         Track t = tracks.get(trackIndex);
 
@@ -1772,12 +2285,12 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
             d.write(0); // flag[2]
             // A 3-byte space for time-to-sample flags. Set this field to 0.
 
-            d.writeUInt(t.syncSamples.size());
+            d.writeUInt(t.syncSamples.cardinality());
             // Number of entries
             //A 32-bit integer containing the count of entries in the sync sample table.
 
-            for (Long number : t.syncSamples) {
-                d.writeUInt(number);
+            for (int i = t.syncSamples.nextSetBit(0); i >= 0; i = t.syncSamples.nextSetBit(i + 1)) {
+                d.writeUInt(i + 1);
                 // Sync sample table A table of sample numbers; each sample
                 // number corresponds to a key frame.
             }
@@ -1863,7 +2376,7 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
         // 32-bit or 64-bit offsets. The latter is useful when managing very
         // large movies. Only one of these variants occurs in any single
         // instance of a sample table atom.
-        if (t.chunks.isEmpty() || t.chunks.get(t.chunks.size() - 1).getChunkOffset() <= 0xffffffffL) {
+        if (t.chunks.isEmpty() || t.chunks.get(t.chunks.size() - 1).getChunkOffset() + mdatOffset <= 0xffffffffL) {
             /* 32-bit chunk offset atom -------- */
             leaf = new DataAtom("stco");
             stblAtom.add(leaf);
@@ -1928,7 +2441,7 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
             // offset table.
 
             for (Chunk c : t.chunks) {
-                d.writeLong(c.getChunkOffset()); // offset
+                d.writeLong(c.getChunkOffset() + mdatOffset); // offset
                 // The offset contains the byte offset from the beginning of the
                 // data stream to the chunk. The table is indexed by chunk
                 // number—the first table entry corresponds to the first chunk,
@@ -1949,8 +2462,17 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
      *
      * @param outputFile     The output file
      * @param compressHeader Whether the movie header shall be compressed.
+     * @throws IllegalStateException if the movie is fragmented, or if space
+     *                               for the movie header has been reserved
+     *                               with {@link #setFastStartReserve(long)}
      */
     public void toWebOptimizedMovie(File outputFile, boolean compressHeader) throws IOException {
+        if (isFragmented()) {
+            throw new IllegalStateException("A fragmented movie already starts with the movie header.");
+        }
+        if (fastStartOffset >= 0) {
+            throw new IllegalStateException("The movie header has already been written in front of the media data.");
+        }
         finish();
         long originalMdatOffset = mdatAtom.getOffset();
         CompositeAtom originalMoovAtom = moovAtom;
@@ -1991,7 +2513,7 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
                     compressHeader = false;
                     System.err.println("WARNING MP4Writer failed to compress header.");
                 } else {
-                    out = new FileImageOutputStream(outputFile);
+                    out = new AsyncFileImageOutputStream(outputFile);
                     writeProlog();
 
                     // 40 bytes compression headers
@@ -2021,7 +2543,7 @@ public class MP4OutputStream extends AbstractQTFFMovieStream {
                 }
             }
             if (!compressHeader) {
-                out = new FileImageOutputStream(outputFile);
+                out = new AsyncFileImageOutputStream(outputFile);
                 mdatOffset = moovAtom.size();
                 writeProlog();
                 writeEpilog();
@@ -0,0 +1,1079 @@
+/*
+ * @(#)MP4Reader.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.mp4;
+
+import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferFlag;
+import org.monte.media.av.Codec;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.av.MovieReader;
+import org.monte.media.av.Registry;
+import org.monte.media.io.MappedFileImageInputStream;
+import org.monte.media.math.Rational;
+import org.monte.media.qtff.AvcDecoderConfigurationRecord;
+import org.monte.media.qtff.QTFFImageInputStream;
+import org.monte.media.util.SampleTable;
+
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.monte.media.av.BufferFlag.DISCARD;
+import static org.monte.media.av.BufferFlag.END_OF_MEDIA;
+import static org.monte.media.av.BufferFlag.KEYFRAME;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.MIME_JAVA;
+import static org.monte.media.av.FormatKeys.MIME_MP4;
+import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ByteOrderKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ChannelsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.FrameSizeKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleRateKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleSizeInBitsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SignedKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.CompressorNameKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+
+/**
+ * Reads time-based video and audio data from a MP4 movie file (.MP4).
+ * <p>
+ * The reader only reads the headers of the atoms when it is realized. The
+ * sample tables of a track ("stsz", "stts", "stsc", "stco", "co64" and
+ * "stss") are decoded when the samples of the track are accessed for the
+ * first time. The samples are stored in a {@link SampleTable}, so that a
+ * sample can be found by its time in O(log n).
+ * <p>
+ * Fragmented movies are supported. The samples of the "moof" atoms are
+ * appended to the samples of the "moov" atom. A fragment that has been
+ * truncated, for example because the writer has crashed, is ignored.
+ * <p>
+ * All times are given in decoding order. Edit lists and composition time
+ * offsets are ignored.
+ *
+ * @author Werner Randelshofer
+ */
+public class MP4Reader implements MovieReader {
+    public final static Format MP4 = new Format(MediaTypeKey, MediaType.FILE, MimeTypeKey, MIME_MP4);
+
+    /**
+     * The flag in the sample flags of a fragment, that is set if a sample is
+     * not a sync sample.
+     */
+    private final static int SAMPLE_IS_NON_SYNC_SAMPLE = 0x10000;
+
+    /**
+     * The stream from which the atoms are read.
+     */
+    private QTFFImageInputStream in;
+    /**
+     * The underlying stream.
+     */
+    private ImageInputStream iin;
+    /**
+     * This variable is set to non-null, when the atom headers have been read.
+     */
+    private List<Track> tracks;
+    private long movieTimeScale = 600;
+    private long movieDuration;
+    private Codec[] codecs;
+
+    /**
+     * An atom.
+     *
+     * @param type       the type of the atom
+     * @param offset     the offset of the atom
+     * @param dataOffset the offset of the data of the atom
+     * @param end        the offset after the last byte of the atom
+     * @param truncated  whether the atom extends beyond its parent or beyond
+     *                   the end of the file
+     */
+    private record Atom(String type, long offset, long dataOffset, long end, boolean truncated) {
+    }
+
+    /**
+     * A track fragment ("traf"-atom) in a movie fragment ("moof"-atom).
+     */
+    private static class TrackFragment {
+        /**
+         * The id of the track.
+         */
+        final int trackId;
+        /**
+         * The offset of the movie fragment.
+         */
+        final long moofOffset;
+        /**
+         * The track fragment.
+         */
+        final Atom traf;
+        /**
+         * The preceding track fragment in the same movie fragment, or null
+         * if this is the first one. If the track fragment header specifies
+         * neither a base data offset nor that the base is the movie
+         * fragment, the data of this track fragment starts where the data
+         * of the preceding track fragment ends.
+         */
+        final TrackFragment previous;
+        /**
+         * The offset after the last byte of the data of this track fragment,
+         * or -1 if the track fragment has not been decoded yet.
+         */
+        long dataEnd = -1;
+
+        TrackFragment(int trackId, long moofOffset, Atom traf, TrackFragment previous) {
+            this.trackId = trackId;
+            this.moofOffset = moofOffset;
+            this.traf = traf;
+            this.previous = previous;
+        }
+    }
+
+    private static class Track {
+        int trackId;
+        MediaType mediaType = MediaType.UNKNOWN;
+        long mediaTimeScale = 1;
+        long mediaDuration;
+        /**
+         * The sample table atoms, or null if the track does not have them.
+         */
+        Atom stts, stss, stsz, stsc, stco, co64;
+        /**
+         * The first entry of the sample description table.
+         */
+        String dataFormat;
+        int videoWidth, videoHeight, videoDepth;
+        String videoCompressorName;
+        AvcDecoderConfigurationRecord avcDecoderConfigurationRecord;
+        int soundNumberOfChannels, soundSampleSize, soundCompressionId;
+        double soundSampleRate;
+        long soundBytesPerFrame;
+        /**
+         * The defaults from the track extends atom ("trex").
+         */
+        int defaultSampleDuration, defaultSampleSize, defaultSampleFlags;
+        final List<TrackFragment> fragments = new ArrayList<>();
+        Format format;
+        /**
+         * The samples, or null if the sample tables have not been decoded
+         * yet.
+         */
+        SampleTable samples;
+        int readIndex;
+        Buffer inputBuffer;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param file the input file
+     */
+    public MP4Reader(File file) throws IOException {
+        this(new MappedFileImageInputStream(file));
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param in the input stream.
+     */
+    public MP4Reader(ImageInputStream in) throws IOException {
+        this.iin = in;
+        in.setByteOrder(ByteOrder.BIG_ENDIAN);
+        this.in = new QTFFImageInputStream(in);
+    }
+
+    /**
+     * Ensures that the atom headers have been read from the file.
+     */
+    protected void ensureRealized() throws IOException {
+        if (in == null) {
+            throw new IOException("Stream is closed.");
+        }
+        if (tracks == null) {
+            readMetadata();
+            codecs = new Codec[tracks.size()];
+        }
+    }
+
+    private void readMetadata() throws IOException {
+        List<Track> trackList = new ArrayList<>();
+        List<TrackFragment> fragments = new ArrayList<>();
+        List<int[]> trackExtends = new ArrayList<>();
+        long length = in.length() < 0 ? Long.MAX_VALUE : in.length();
+        boolean hasMovieHeader = false;
+        for (Atom atom : readChildren(0, length)) {
+            switch (atom.type()) {
+                case "moov" -> {
+                    if (atom.truncated()) {
+                        throw new IOException("The movie atom is truncated.");
+                    }
+                    hasMovieHeader = true;
+                    readMovie(atom, trackList, trackExtends);
+                }
+                case "moof" -> {
+                    if (!atom.truncated()) {
+                        readMovieFragment(atom, fragments);
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        if (!hasMovieHeader) {
+            throw new IOException("The file does not contain a movie atom.");
+        }
+        for (int[] trex : trackExtends) {
+            Track t = findTrackById(trackList, trex[0]);
+            if (t != null) {
+                t.defaultSampleDuration = trex[1];
+                t.defaultSampleSize = trex[2];
+                t.defaultSampleFlags = trex[3];
+            }
+        }
+        for (TrackFragment f : fragments) {
+            Track t = findTrackById(trackList, f.trackId);
+            if (t != null) {
+                t.fragments.add(f);
+            }
+        }
+        tracks = trackList;
+    }
+
+    private static Track findTrackById(List<Track> trackList, int trackId) {
+        for (Track t : trackList) {
+            if (t.trackId == trackId) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the headers of the atoms in the specified range.
+     *
+     * @param offset the offset of the first atom
+     * @param end    the offset after the last atom
+     * @return the atoms
+     */
+    private List<Atom> readChildren(long offset, long end) throws IOException {
+        List<Atom> children = new ArrayList<>();
+        while (offset + 8 <= end) {
+            in.seek(offset);
+            long size;
+            String type;
+            try {
+                size = in.readUnsignedInt();
+                type = in.readType();
+            } catch (EOFException e) {
+                break;
+            }
+            long headerSize = 8;
+            if (size == 1) {
+                size = in.readLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                // A zero size indicates that the atom extends to the end of its parent.
+                size = end - offset;
+            }
+            if (size < headerSize) {
+                break;
+            }
+            boolean truncated = size > end - offset;
+            children.add(new Atom(type, offset, offset + headerSize, truncated ? end : offset + size, truncated));
+            if (truncated) {
+                break;
+            }
+            offset += size;
+        }
+        return children;
+    }
+
+    private void readMovie(Atom moov, List<Track> trackList, List<int[]> trackExtends) throws IOException {
+        for (Atom atom : readChildren(moov.dataOffset(), moov.end())) {
+            switch (atom.type()) {
+                case "mvhd" -> readMovieHeader(atom);
+                case "trak" -> {
+                    Track t = new Track();
+                    trackList.add(t);
+                    readTrack(atom, t);
+                }
+                case "mvex" -> {
+                    for (Atom trex : readChildren(atom.dataOffset(), atom.end())) {
+                        if ("trex".equals(trex.type())) {
+                            /* Track Extends Atom -------------
+                             typedef struct {
+                             byte version;
+                             byte[3] flags;
+                             int trackId;
+                             int defaultSampleDescriptionIndex;
+                             int defaultSampleDuration;
+                             int defaultSampleSize;
+                             int defaultSampleFlags;
+                             } trackExtendsAtom;
+                             */
+                            in.seek(trex.dataOffset() + 4);
+                            int trackId = in.readInt();
+                            in.skipBytes(4);
+                            trackExtends.add(new int[]{trackId, in.readInt(), in.readInt(), in.readInt()});
+                        }
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+    }
+
+    private void readMovieHeader(Atom mvhd) throws IOException {
+        in.seek(mvhd.dataOffset());
+        int version = in.readUnsignedByte();
+        in.skipBytes(3);
+        if (version == 1) {
+            in.skipBytes(16);// creation and modification time
+            movieTimeScale = in.readUnsignedInt();
+            movieDuration = in.readLong();
+        } else {
+            in.skipBytes(8);// creation and modification time
+            movieTimeScale = in.readUnsignedInt();
+            movieDuration = in.readUnsignedInt();
+        }
+    }
+
+    private void readTrack(Atom trak, Track t) throws IOException {
+        for (Atom atom : readChildren(trak.dataOffset(), trak.end())) {
+            switch (atom.type()) {
+                case "tkhd" -> {
+                    in.seek(atom.dataOffset());
+                    int version = in.readUnsignedByte();
+                    in.skipBytes(3 + (version == 1 ? 16 : 8));// flags, creation and modification time
+                    t.trackId = in.readInt();
+                }
+                case "mdia" -> readMedia(atom, t);
+                default -> {
+                }
+            }
+        }
+    }
+
+    private void readMedia(Atom mdia, Track t) throws IOException {
+        Atom stbl = null;
+        for (Atom atom : readChildren(mdia.dataOffset(), mdia.end())) {
+            switch (atom.type()) {
+                case "mdhd" -> {
+                    in.seek(atom.dataOffset());
+                    int version = in.readUnsignedByte();
+                    in.skipBytes(3 + (version == 1 ? 16 : 8));// flags, creation and modification time
+                    t.mediaTimeScale = in.readUnsignedInt();
+                    t.mediaDuration = version == 1 ? in.readLong() : in.readUnsignedInt();
+                }
+                case "hdlr" -> {
+                    in.seek(atom.dataOffset() + 8);// version, flags, componentType
+                    t.mediaType = switch (in.readType()) {
+                        case "vide" -> MediaType.VIDEO;
+                        case "soun" -> MediaType.AUDIO;
+                        case "text", "sbtl", "subt" -> MediaType.TEXT;
+                        case "meta" -> MediaType.META;
+                        default -> MediaType.UNKNOWN;
+                    };
+                }
+                case "minf" -> {
+                    for (Atom minfChild : readChildren(atom.dataOffset(), atom.end())) {
+                        if ("stbl".equals(minfChild.type())) {
+                            stbl = minfChild;
+                        }
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        // The sample description depends on the media type, so we read it
+        // after the handler reference.
+        if (stbl != null) {
+            for (Atom atom : readChildren(stbl.dataOffset(), stbl.end())) {
+                switch (atom.type()) {
+                    case "stsd" -> readSampleDescription(atom, t);
+                    case "stts" -> t.stts = atom;
+                    case "stss" -> t.stss = atom;
+                    case "stsz" -> t.stsz = atom;
+                    case "stsc" -> t.stsc = atom;
+                    case "stco" -> t.stco = atom;
+                    case "co64" -> t.co64 = atom;
+                    default -> {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the first entry of the sample description table.
+     */
+    private void readSampleDescription(Atom stsd, Track t) throws IOException {
+        in.seek(stsd.dataOffset() + 4);// version and flags
+        if (in.readInt() < 1) {
+            return;
+        }
+        long entryOffset = in.getStreamPosition();
+        long entryEnd = Math.min(stsd.end(), entryOffset + in.readUnsignedInt());
+        t.dataFormat = in.readType();
+        in.skipBytes(8);// reserved and dataReferenceIndex
+        switch (t.mediaType) {
+            case VIDEO -> {
+                in.skipBytes(16);// version, revisionLevel, vendor, temporal and spatial quality
+                t.videoWidth = in.readUnsignedShort();
+                t.videoHeight = in.readUnsignedShort();
+                in.skipBytes(14);// resolution, dataSize and frameCount
+                t.videoCompressorName = in.readPString(32);
+                t.videoDepth = in.readUnsignedShort();
+                in.skipBytes(2);// colorTableId
+                long extensionsOffset = in.getStreamPosition();
+                if (extensionsOffset < entryEnd) {
+                    byte[] extendData = new byte[(int) (entryEnd - extensionsOffset)];
+                    in.readFully(extendData);
+                    t.avcDecoderConfigurationRecord = AvcDecoderConfigurationRecord.fromSampleDescriptionExtensions(extendData);
+                }
+            }
+            case AUDIO -> {
+                int version = in.readUnsignedShort();
+                in.skipBytes(6);// revisionLevel and vendor
+                t.soundNumberOfChannels = in.readUnsignedShort();
+                t.soundSampleSize = in.readUnsignedShort();
+                t.soundCompressionId = in.readShort();
+                in.skipBytes(2);// packetSize
+                t.soundSampleRate = in.readFixed16D16();
+                if (version == 1) {
+                    in.skipBytes(8);// samplesPerPacket and bytesPerPacket
+                    t.soundBytesPerFrame = in.readUnsignedInt();
+                } else {
+                    t.soundBytesPerFrame = (t.soundNumberOfChannels * t.soundSampleSize + 7) / 8;
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Reads the track ids of the track fragments in a movie fragment. The
+     * track fragments are decoded when the samples of the track are accessed
+     * for the first time.
+     */
+    private void readMovieFragment(Atom moof, List<TrackFragment> fragments) throws IOException {
+        TrackFragment previous = null;
+        for (Atom traf : readChildren(moof.dataOffset(), moof.end())) {
+            if ("traf".equals(traf.type())) {
+                for (Atom atom : readChildren(traf.dataOffset(), traf.end())) {
+                    if ("tfhd".equals(atom.type())) {
+                        in.seek(atom.dataOffset() + 4);
+                        previous = new TrackFragment(in.readInt(), moof.offset(), traf, previous);
+                        fragments.add(previous);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Ensures that the sample tables of the specified track have been
+     * decoded.
+     */
+    private SampleTable ensureSamples(int track) throws IOException {
+        ensureRealized();
+        Track t = tracks.get(track);
+        if (t.samples == null) {
+            SampleTable samples = new SampleTable();
+            long length = in.length() < 0 ? Long.MAX_VALUE : in.length();
+            if (t.stsz != null && t.stts != null && t.stsc != null && (t.stco != null || t.co64 != null)) {
+                readSampleTables(t, samples, length);
+            }
+            for (TrackFragment f : t.fragments) {
+                readTrackFragment(t, f, samples, length);
+            }
+            t.samples = samples;
+        }
+        return t.samples;
+    }
+
+    /**
+     * Decodes the sample tables of the "moov" atom.
+     */
+    private void readSampleTables(Track t, SampleTable samples, long length) throws IOException {
+        /* Sample Size Atom -------------
+         typedef struct {
+         byte version;
+         byte[3] flags;
+         int sampleSize;
+         int numberOfEntries;
+         int sampleSizeTable[numberOfEntries]; // only if sampleSize is 0
+         } sampleSizeAtom;
+         */
+        in.seek(t.stsz.dataOffset() + 4);
+        int uniformSize = in.readInt();
+        int sampleCount = in.readInt();
+        int[] sizes = null;
+        if (uniformSize == 0) {
+            sizes = new int[sampleCount];
+            in.readFully(sizes, 0, sampleCount);
+        } else if (uniformSize == 1 && t.mediaType == MediaType.AUDIO && t.soundCompressionId != -2) {
+            // QuickTime stores the size of uncompressed sound samples in frames
+            uniformSize = (int) Math.max(1, t.soundBytesPerFrame);
+        }
+
+        /* Time To Sample Atom -------------
+         typedef struct {
+         byte version;
+         byte[3] flags;
+         int numberOfEntries;
+         {int sampleCount; int sampleDuration;} timeToSampleTable[numberOfEntries];
+         } timeToSampleAtom;
+         */
+        int[] timeToSample = readTable(t.stts, 2);
+
+        /* Sample To Chunk Atom -------------
+         typedef struct {
+         byte version;
+         byte[3] flags;
+         int numberOfEntries;
+         {int firstChunk; int samplesPerChunk; int sampleDescription;} sampleToChunkTable[numberOfEntries];
+         } sampleToChunkAtom;
+         */
+        int[] sampleToChunk = readTable(t.stsc, 3);
+
+        /* Chunk Offset Atoms -------------
+         typedef struct {
+         byte version;
+         byte[3] flags;
+         int numberOfEntries;
+         int chunkOffsetTable[numberOfEntries]; // long in a "co64" atom
+         } chunkOffsetAtom;
+         */
+        long[] chunkOffsets;
+        if (t.co64 != null) {
+            in.seek(t.co64.dataOffset() + 4);
+            chunkOffsets = new long[in.readInt()];
+            in.readFully(chunkOffsets, 0, chunkOffsets.length);
+        } else {
+            in.seek(t.stco.dataOffset() + 4);
+            int[] offsets = new int[in.readInt()];
+            in.readFully(offsets, 0, offsets.length);
+            chunkOffsets = new long[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                chunkOffsets[i] = offsets[i] & 0xffffffffL;
+            }
+        }
+
+        // Iterate over the chunks and the time-to-sample entries in parallel.
+        long timeStamp = 0;
+        int sttsIndex = 0, sttsRemaining = timeToSample.length > 0 ? timeToSample[0] : 0;
+        int stscIndex = 0;
+        int sample = 0;
+        boolean isSync = t.stss == null;
+        decode:
+        for (int chunk = 0; chunk < chunkOffsets.length && sample < sampleCount; chunk++) {
+            while (stscIndex + 3 < sampleToChunk.length && sampleToChunk[stscIndex + 3] - 1 <= chunk) {
+                stscIndex += 3;
+            }
+            int samplesPerChunk = sampleToChunk.length == 0 ? 0 : sampleToChunk[stscIndex + 1];
+            long offset = chunkOffsets[chunk];
+            for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++, sample++) {
+                while (sttsRemaining == 0 && sttsIndex + 2 < timeToSample.length) {
+                    sttsIndex += 2;
+                    sttsRemaining = timeToSample[sttsIndex];
+                }
+                int duration = sttsIndex + 1 < timeToSample.length ? timeToSample[sttsIndex + 1] : 0;
+                sttsRemaining--;
+                long size = sizes == null ? uniformSize & 0xffffffffL : sizes[sample] & 0xffffffffL;
+                if (offset + size > length) {
+                    // the sample data has been truncated
+                    break decode;
+                }
+                samples.add(0, offset, size, timeStamp, duration, isSync);
+                offset += size;
+                timeStamp += duration & 0xffffffffL;
+            }
+        }
+
+        /* Sync Sample Atom -------------
+         typedef struct {
+         byte version;
+         byte[3] flags;
+         int numberOfEntries;
+         int syncSampleTable[numberOfEntries];
+         } syncSampleAtom;
+         */
+        if (t.stss != null) {
+            for (int syncSample : readTable(t.stss, 1)) {
+                if (syncSample >= 1 && syncSample <= samples.size()) {
+                    samples.setKeyframe(syncSample - 1, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of a table atom with the layout: version, flags,
+     * numberOfEntries, entries.
+     *
+     * @param atom          the atom
+     * @param entryElements the number of int elements of an entry
+     * @return the table
+     */
+    private int[] readTable(Atom atom, int entryElements) throws IOException {
+        in.seek(atom.dataOffset() + 4);
+        long entryCount = in.readUnsignedInt();
+        long maxEntryCount = (atom.end() - in.getStreamPosition()) / (4L * entryElements);
+        int[] table = new int[(int) Math.min(entryCount, maxEntryCount) * entryElements];
+        in.readFully(table, 0, table.length);
+        return table;
+    }
+
+    /**
+     * Returns the offset after the last byte of the data of a track fragment.
+     * Decodes the track fragment if this has not been done yet.
+     */
+    private long getDataEnd(TrackFragment f, long length) throws IOException {
+        if (f.dataEnd == -1) {
+            readTrackFragment(findTrackById(tracks, f.trackId), f, null, length);
+        }
+        return f.dataEnd;
+    }
+
+    /**
+     * Decodes a track fragment and appends its samples.
+     *
+     * @param t       the track, or null if the track fragment belongs to an
+     *                unknown track
+     * @param f       the track fragment
+     * @param samples the sample table, or null if only the end of the data
+     *                of the track fragment is needed
+     * @param length  the length of the file
+     */
+    private void readTrackFragment(Track t, TrackFragment f, SampleTable samples, long length) throws IOException {
+        long baseDataOffset = f.moofOffset;
+        int defaultDuration = t == null ? 0 : t.defaultSampleDuration;
+        int defaultSize = t == null ? 0 : t.defaultSampleSize;
+        int defaultFlags = t == null ? 0 : t.defaultSampleFlags;
+        long decodeTime = samples == null ? 0 : samples.getEndTime();
+        long dataOffset = baseDataOffset;
+        boolean truncated = false;
+        for (Atom atom : readChildren(f.traf.dataOffset(), f.traf.end())) {
+            switch (atom.type()) {
+                case "tfhd" -> {
+                    /* Track Fragment Header Atom -------------
+                     typedef struct {
+                     byte version;
+                     byte[3] flags;
+                     int trackId;
+                     // all the following are optional fields
+                     long baseDataOffset;
+                     int sampleDescriptionIndex;
+                     int defaultSampleDuration;
+                     int defaultSampleSize;
+                     int defaultSampleFlags;
+                     } trackFragmentHeaderAtom;
+                     */
+                    in.seek(atom.dataOffset());
+                    int flags = in.readInt() & 0xffffff;
+                    in.skipBytes(4);// trackId
+                    if ((flags & 0x01) != 0) {
+                        baseDataOffset = in.readLong();
+                    } else if ((flags & 0x020000) == 0 && f.previous != null) {
+                        // neither base-data-offset-present nor default-base-is-moof
+                        long position = in.getStreamPosition();
+                        baseDataOffset = getDataEnd(f.previous, length);
+                        in.seek(position);
+                    }
+                    if ((flags & 0x02) != 0) {
+                        in.skipBytes(4);// sampleDescriptionIndex
+                    }
+                    if ((flags & 0x08) != 0) {
+                        defaultDuration = in.readInt();
+                    }
+                    if ((flags & 0x10) != 0) {
+                        defaultSize = in.readInt();
+                    }
+                    if ((flags & 0x20) != 0) {
+                        defaultFlags = in.readInt();
+                    }
+                    dataOffset = baseDataOffset;
+                }
+                case "tfdt" -> {
+                    /* Track Fragment Decode Time Atom -------------
+                     typedef struct {
+                     byte version;
+                     byte[3] flags;
+                     int or long baseMediaDecodeTime; // long if version is 1
+                     } trackFragmentDecodeTimeAtom;
+                     */
+                    in.seek(atom.dataOffset());
+                    int version = in.readUnsignedByte();
+                    in.skipBytes(3);
+                    decodeTime = version == 1 ? in.readLong() : in.readUnsignedInt();
+                }
+                case "trun" -> {
+                    /* Track Fragment Run Atom -------------
+                     typedef struct {
+                     byte version;
+                     byte[3] flags;
+                     int sampleCount;
+                     // the following are optional fields
+                     int dataOffset;
+                     int firstSampleFlags;
+                     trackRunTable trackRunTable[sampleCount];
+                     } trackFragmentRunAtom;
+
+                     typedef struct {
+                     // all fields are optional
+                     int sampleDuration;
+                     int sampleSize;
+                     int sampleFlags;
+                     int sampleCompositionTimeOffset;
+                     } trackRunTable;
+                     */
+                    in.seek(atom.dataOffset());
+                    int flags = in.readInt() & 0xffffff;
+                    int sampleCount = in.readInt();
+                    if ((flags & 0x001) != 0) {
+                        dataOffset = baseDataOffset + in.readInt();
+                    }
+                    int firstSampleFlags = (flags & 0x004) != 0 ? in.readInt() : defaultFlags;
+                    boolean hasDuration = (flags & 0x100) != 0;
+                    boolean hasSize = (flags & 0x200) != 0;
+                    boolean hasFlags = (flags & 0x400) != 0;
+                    int fieldCount = (hasDuration ? 1 : 0) + (hasSize ? 1 : 0) + (hasFlags ? 1 : 0)
+                            + ((flags & 0x800) != 0 ? 1 : 0);
+                    int[] table = new int[(int) Math.min((long) sampleCount * fieldCount,
+                            (atom.end() - in.getStreamPosition()) / 4)];
+                    in.readFully(table, 0, table.length);
+                    if (fieldCount > 0) {
+                        sampleCount = Math.min(sampleCount, table.length / fieldCount);
+                    }
+                    for (int i = 0, j = 0; i < sampleCount; i++) {
+                        int duration = hasDuration ? table[j++] : defaultDuration;
+                        long size = (hasSize ? table[j++] : defaultSize) & 0xffffffffL;
+                        int sampleFlags = hasFlags ? table[j++] : i == 0 ? firstSampleFlags : defaultFlags;
+                        if ((flags & 0x800) != 0) {
+                            j++;// sampleCompositionTimeOffset
+                        }
+                        if (dataOffset + size > length) {
+                            // the sample data has been truncated
+                            truncated = true;
+                        }
+                        if (samples != null && !truncated) {
+                            samples.add(0, dataOffset, size, decodeTime, duration,
+                                    (sampleFlags & SAMPLE_IS_NON_SYNC_SAMPLE) == 0);
+                        }
+                        dataOffset += size;
+                        decodeTime += duration & 0xffffffffL;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        f.dataEnd = dataOffset;
+    }
+
+    @Override
+    public int getSampleCount(int track) throws IOException {
+        return ensureSamples(track).size();
+    }
+
+    @Override
+    public int getTrackCount() throws IOException {
+        ensureRealized();
+        return tracks.size();
+    }
+
+    @Override
+    public int findTrack(int fromTrack, Format format) throws IOException {
+        for (int i = fromTrack, n = getTrackCount(); i < n; i++) {
+            if (getFormat(i).matches(format)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the total duration of the movie. If the movie is fragmented,
+     * the sample tables of all tracks are decoded.
+     */
+    @Override
+    public Rational getMovieDuration() throws IOException {
+        ensureRealized();
+        Rational duration = new Rational(movieDuration, movieTimeScale);
+        for (int i = 0, n = tracks.size(); i < n; i++) {
+            if (!tracks.get(i).fragments.isEmpty()) {
+                duration = Rational.max(duration, getTrackDuration(i));
+            }
+        }
+        return duration;
+    }
+
+    /**
+     * Returns the duration of the media of the specified track. If the track
+     * is fragmented, the sample tables of the track are decoded.
+     */
+    @Override
+    public Rational getTrackDuration(int track) throws IOException {
+        ensureRealized();
+        Track t = tracks.get(track);
+        long duration = t.fragments.isEmpty() ? t.mediaDuration : ensureSamples(track).getEndTime();
+        return new Rational(duration, t.mediaTimeScale);
+    }
+
+    @Override
+    public long findSampleAtTime(int track, Rational seconds) throws IOException {
+        SampleTable samples = ensureSamples(track);
+        long timeStamp = seconds.multiply(tracks.get(track).mediaTimeScale).floor(1).longValue();
+        return Math.max(0, samples.findSampleAtTime(timeStamp));
+    }
+
+    @Override
+    public Rational getSampleTime(int track, long sample) throws IOException {
+        SampleTable samples = ensureSamples(track);
+        return new Rational(samples.getTimeStamp((int) sample), tracks.get(track).mediaTimeScale);
+    }
+
+    @Override
+    public Rational getSampleDuration(int track, long sample) throws IOException {
+        SampleTable samples = ensureSamples(track);
+        return new Rational(samples.getDuration((int) sample) & 0xffffffffL, tracks.get(track).mediaTimeScale);
+    }
+
+    @Override
+    public Format getFileFormat() throws IOException {
+        return MP4;
+    }
+
+    @Override
+    public Format getFormat(int track) throws IOException {
+        ensureRealized();
+        Track t = tracks.get(track);
+        if (t.format == null) {
+            t.format = deriveTrackFormat(track);
+        }
+        return t.format;
+    }
+
+    private Format deriveTrackFormat(int track) throws IOException {
+        Track t = tracks.get(track);
+        Format format = new Format(MimeTypeKey, MIME_MP4, MediaTypeKey, t.mediaType);
+        if (t.dataFormat != null) {
+            format = format.append(EncodingKey, t.dataFormat);
+        }
+        switch (t.mediaType) {
+            case VIDEO -> {
+                format = format.append(
+                        WidthKey, t.videoWidth,
+                        HeightKey, t.videoHeight,
+                        DepthKey, t.videoDepth);
+                if (t.videoCompressorName != null && !t.videoCompressorName.isEmpty()) {
+                    format = format.append(CompressorNameKey, t.videoCompressorName);
+                }
+                // The frame rate is derived from the duration of the first sample.
+                long frameDuration = getFirstSampleDuration(track);
+                if (frameDuration > 0) {
+                    format = format.append(FrameRateKey, new Rational(t.mediaTimeScale, frameDuration));
+                }
+            }
+            case AUDIO -> {
+                Rational sampleRate = Rational.valueOf(t.soundSampleRate);
+                format = format.append(
+                        SampleRateKey, sampleRate,
+                        FrameRateKey, sampleRate,
+                        SampleSizeInBitsKey, t.soundSampleSize,
+                        ChannelsKey, t.soundNumberOfChannels,
+                        FrameSizeKey, (int) t.soundBytesPerFrame,
+                        ByteOrderKey, "sowt".equals(t.dataFormat) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN,
+                        SignedKey, !"raw ".equals(t.dataFormat));
+            }
+            default -> {
+            }
+        }
+        return format;
+    }
+
+    /**
+     * Returns the duration of the first sample of a track. Reads only the
+     * first entry of the time-to-sample table, if the track has one.
+     */
+    private long getFirstSampleDuration(int track) throws IOException {
+        Track t = tracks.get(track);
+        if (t.stts != null) {
+            in.seek(t.stts.dataOffset() + 4);
+            if (in.readInt() > 0) {
+                in.skipBytes(4);// sampleCount
+                return in.readUnsignedInt();
+            }
+        }
+        SampleTable samples = ensureSamples(track);
+        return samples.isEmpty() ? 0 : samples.getDuration(0) & 0xffffffffL;
+    }
+
+    /**
+     * Returns the number of samples in the specified track. Each sample
+     * is stored in its own chunk.
+     */
+    @Override
+    public long getChunkCount(int track) throws IOException {
+        return getSampleCount(track);
+    }
+
+    @Override
+    public void read(int track, Buffer buffer) throws IOException {
+        SampleTable samples = ensureSamples(track);
+        Track t = tracks.get(track);
+        if (t.readIndex >= samples.size()) {
+            buffer.setFlagsTo(END_OF_MEDIA, DISCARD);
+            buffer.length = 0;
+            return;
+        }
+        int index = t.readIndex;
+        int length = (int) samples.getLength(index);
+        in.seek(samples.getOffset(index));
+        byte[] b = buffer.reuseByteArray(length);
+        in.readFully(b, 0, length);
+        buffer.offset = 0;
+        buffer.length = length;
+        buffer.sequenceNumber = index;
+
+        Format format = getFormat(track);
+        if (t.mediaType == MediaType.AUDIO && t.soundBytesPerFrame > 0) {
+            buffer.sampleCount = length / (int) t.soundBytesPerFrame;
+        } else {
+            buffer.sampleCount = 1;
+        }
+        buffer.format = format;
+        buffer.header = t.mediaType == MediaType.VIDEO ? t.avcDecoderConfigurationRecord : null;
+        buffer.track = track;
+        buffer.sampleDuration = new Rational(samples.getDuration(index) & 0xffffffffL, t.mediaTimeScale);
+        buffer.timeStamp = new Rational(samples.getTimeStamp(index), t.mediaTimeScale);
+        buffer.flags = samples.isKeyframe(index) ? EnumSet.of(KEYFRAME) : EnumSet.noneOf(BufferFlag.class);
+        t.readIndex++;
+    }
+
+    /**
+     * Reads an image.
+     *
+     * @param track The track number
+     * @param img   An image that can be reused if it fits the media format of the
+     *              track. Pass null to create a new image on each read.
+     * @return An image or null if the end of the media has been reached.
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public BufferedImage read(int track, BufferedImage img) throws IOException {
+        ensureRealized();
+        Track t = tracks.get(track);
+        if (codecs[track] == null) {
+            createCodec(track);
+            t.inputBuffer = new Buffer();
+        }
+        Buffer buf = new Buffer();
+        buf.data = img;
+        do {
+            read(track, t.inputBuffer);
+            // FIXME - We assume a one-step codec here!
+            codecs[track].process(t.inputBuffer, buf);
+        } while (buf.isFlag(DISCARD) && !buf.isFlag(END_OF_MEDIA));
+
+        if (buf.isFlag(END_OF_MEDIA)) {
+            return null;
+        }
+        return (BufferedImage) buf.data;
+    }
+
+    private void createCodec(int track) throws IOException {
+        Format fmt = getFormat(track);
+        Codec codec = Registry.getInstance().getDecoder(fmt.prepend(MimeTypeKey, MIME_QUICKTIME));
+        if (codec == null) {
+            throw new IOException("Track " + track + " no codec found for format " + fmt);
+        }
+        if (fmt.get(MediaTypeKey) == MediaType.VIDEO) {
+            if (null == codec.setInputFormat(fmt)) {
+                throw new IOException("Track " + track + " codec " + codec + " does not support input format " + fmt + ". codec=" + codec);
+            }
+            Format outFormat = fmt.prepend(MediaTypeKey, MediaType.VIDEO,//
+                    MimeTypeKey, MIME_JAVA,
+                    EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class);
+            if (null == codec.setOutputFormat(outFormat)) {
+                throw new IOException("Track " + track + " codec does not support output format " + outFormat + ". codec=" + codec);
+            }
+        }
+        codecs[track] = codec;
+    }
+
+    /**
+     * Returns the index of the track with the earliest sample that has not
+     * been read yet.
+     */
+    @Override
+    public int nextTrack() throws IOException {
+        ensureRealized();
+        Rational earliest = null;
+        int nextTrack = -1;
+        for (int i = 0, n = tracks.size(); i < n; i++) {
+            SampleTable samples = ensureSamples(i);
+            Track t = tracks.get(i);
+            if (t.readIndex < samples.size()) {
+                Rational time = new Rational(samples.getTimeStamp(t.readIndex), t.mediaTimeScale);
+                if (earliest == null || time.compareTo(earliest) < 0) {
+                    earliest = time;
+                    nextTrack = i;
+                }
+            }
+        }
+        return nextTrack;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            iin.close();
+            in = null;
+            iin = null;
+        }
+        tracks = null;
+        codecs = null;
+    }
+
+    @Override
+    public void setMovieReadTime(Rational newValue) throws IOException {
+        ensureRealized();
+        for (int i = 0, n = tracks.size(); i < n; i++) {
+            SampleTable samples = ensureSamples(i);
+            if (!samples.isEmpty()) {
+                int keyframe = samples.findKeyframeAtOrBefore((int) findSampleAtTime(i, newValue));
+                tracks.get(i).readIndex = Math.max(0, keyframe);
+            }
+        }
+    }
+
+    @Override
+    public Rational getReadTime(int track) throws IOException {
+        SampleTable samples = ensureSamples(track);
+        Track t = tracks.get(track);
+        long timeStamp = t.readIndex < samples.size() ? samples.getTimeStamp(t.readIndex) : samples.getEndTime();
+        return new Rational(timeStamp, t.mediaTimeScale);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * @(#)MP4ReaderSpi.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.mp4;
+
+import org.monte.media.av.Format;
+import org.monte.media.av.MovieReaderSpi;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * MP4ReaderSpi.
+ *
+ * @author Werner Randelshofer
+ */
+public class MP4ReaderSpi implements MovieReaderSpi {
+
+    private final static List<String> extensions = List.of(new String[]{"mp4", "m4v"});
+
+    @Override
+    public MP4Reader create(ImageInputStream in) throws IOException {
+        return new MP4Reader(in);
+    }
+
+    @Override
+    public MP4Reader create(File file) throws IOException {
+        return new MP4Reader(file);
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return extensions;
+    }
+
+    @Override
+    public Format getFileFormat() {
+        return MP4Reader.MP4;
+    }
+
+}
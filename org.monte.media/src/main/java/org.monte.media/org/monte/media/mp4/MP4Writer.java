@@ -20,6 +20,7 @@ import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
@@ -65,6 +66,11 @@ public class MP4Writer extends MP4OutputStream implements MovieWriter {
         public Codec codec;
         public Buffer outputBuffer;
         public Buffer inputBuffer;
+        /**
+         * Holds the data of an input buffer with a {@code ByteBuffer} as a
+         * {@code byte} array.
+         */
+        public Buffer byteArrayView;
     }
 
     private List<TrackEncoder> trackEncoders = new ArrayList<>();
@@ -270,6 +276,21 @@ public class MP4Writer extends MP4OutputStream implements MovieWriter {
         return new Rational(tr.mediaDuration, tr.mediaTimeScale);
     }
 
+    /**
+     * Sets the duration of a movie fragment in seconds.
+     * <p>
+     * A duration greater than 0 writes a fragmented movie. This method must
+     * be called before the first sample is written.
+     *
+     * @param duration the fragment duration, or 0 for a movie that is not
+     *                 fragmented
+     * @throws IOException if an I/O error has occurred
+     * @see #setFragmentDuration(long)
+     */
+    public void setFragmentDuration(Rational duration) throws IOException {
+        setFragmentDuration(duration.multiply(movieTimeScale).longValue());
+    }
+
     private Codec createCodec(Format fmt) {
         return Registry.getInstance().getEncoder(fmt.prepend(MimeTypeKey, MIME_QUICKTIME));
     }
@@ -331,6 +352,12 @@ public class MP4Writer extends MP4OutputStream implements MovieWriter {
         ensureStarted();
         AbstractQTFFMovieStream.Track tr = tracks.get(track);
         TrackEncoder tre = getTrackEncoder(track);
+        if (buf.data instanceof ByteBuffer) {
+            if (tre.byteArrayView == null) {
+                tre.byteArrayView = new Buffer();
+            }
+            buf = buf.asByteArrayBuffer(tre.byteArrayView);
+        }
 
         // Encode sample data
         {
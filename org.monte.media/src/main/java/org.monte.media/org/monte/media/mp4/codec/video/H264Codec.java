@@ -11,49 +11,114 @@ import org.monte.media.av.FormatKeys;
 import org.monte.media.av.codec.video.AbstractVideoCodec;
 import org.monte.media.impl.jcodec.api.transcode.PixelStore;
 import org.monte.media.impl.jcodec.api.transcode.VideoFrameWithPacket;
+import org.monte.media.impl.jcodec.codecs.h264.H264Const;
+import org.monte.media.impl.jcodec.codecs.h264.H264Decoder;
 import org.monte.media.impl.jcodec.codecs.h264.H264Encoder;
 import org.monte.media.impl.jcodec.codecs.h264.H264Utils;
+import org.monte.media.impl.jcodec.codecs.h264.io.model.Frame;
 import org.monte.media.impl.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.monte.media.impl.jcodec.codecs.h264.io.model.VUIParameters;
 import org.monte.media.impl.jcodec.common.VideoEncoder;
 import org.monte.media.impl.jcodec.common.io.NIOUtils;
 import org.monte.media.impl.jcodec.common.model.ColorSpace;
 import org.monte.media.impl.jcodec.common.model.Packet;
 import org.monte.media.impl.jcodec.common.model.Picture;
-import org.monte.media.impl.jcodec.impl.AWTUtil;
+import org.monte.media.impl.jcodec.common.model.Rect;
+import org.monte.media.impl.jcodec.impl.ImageToYuv420j;
+import org.monte.media.impl.jcodec.scale.ColorUtil;
 import org.monte.media.qtff.AvcDecoderConfigurationRecord;
 import org.monte.media.util.ArrayUtil;
 import org.monte.media.util.ByteArray;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static org.monte.media.av.BufferFlag.DISCARD;
+import static org.monte.media.av.BufferFlag.END_OF_MEDIA;
 import static org.monte.media.av.BufferFlag.KEYFRAME;
 import static org.monte.media.av.FormatKeys.EncodingKey;
 import static org.monte.media.av.FormatKeys.FrameRateKey;
 import static org.monte.media.av.FormatKeys.KeyFrameIntervalKey;
+import static org.monte.media.av.FormatKeys.MIME_MP4;
+import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
 import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVC1;
 import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
 import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.MotionSearchRangeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.SliceCountKey;
 import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
 import static org.monte.media.mp4.codec.video.JCodecPictureCodec.ENCODING_PICTURE;
 
 /**
- * Codec for {@link Picture} to {@code H264} byte array.
+ * Codec for {@link Picture} to/from {@code H264} byte array.
+ * <p>
+ * If the output format has a {@code SliceCountKey} greater
+ * than 1, each frame is encoded as multiple independent slices, which are
+ * encoded in parallel on the {@link java.util.concurrent.ForkJoinPool#commonPool()}.
+ * <p>
+ * When decoding, the codec expects the frames in the AVC format used by
+ * MP4 and QuickTime files: each NAL unit is prefixed by its length. The
+ * SPS and PPS are taken from the {@link AvcDecoderConfigurationRecord} in
+ * {@link Buffer#header}, or from the NAL units in the frame. Slices of a
+ * frame are decoded in parallel on the {@code ForkJoinPool.commonPool()}.
+ * Frames are output in presentation order; while a frame is held back for
+ * reordering, the output buffer is discarded. The held back frames are
+ * output when the input buffer has the {@code END_OF_MEDIA} flag.
  */
 public class H264Codec extends AbstractVideoCodec {
     private VideoEncoder videoEncoder = null;
     private ByteBuffer byteBuffer;
 
+    private H264Decoder videoDecoder;
+    private Object decoderHeader;
+    private SeqParameterSet decoderSps;
+    private int nalLengthSize = 4;
+    /**
+     * Number of frames that must be held back until the next frame in
+     * presentation order is known.
+     */
+    private int reorderDepth;
+    /**
+     * Added to the picture order count of a frame to get its presentation
+     * order. Is increased at each IDR frame, because the picture order
+     * count starts over from 0 there.
+     */
+    private long pocBase;
+    private long maxPresentationOrder = -1;
+    private final PriorityQueue<DecodedFrame> reorderQueue = new PriorityQueue<>();
+    /**
+     * Metadata of the decoded input buffers in decoding order. The time
+     * stamps are assigned to the output buffers in presentation order.
+     */
+    private final ArrayDeque<Buffer> reorderMeta = new ArrayDeque<>();
+    private Picture rgbPicture;
+    /**
+     * The picture into which the encoder converts {@code BufferedImage}s.
+     */
+    private Picture yuvPicture;
+    private byte[] nalData;
+
+    private record DecodedFrame(long presentationOrder, Frame frame, boolean keyFrame)
+            implements Comparable<DecodedFrame> {
+        @Override
+        public int compareTo(DecodedFrame that) {
+            return Long.compare(this.presentationOrder, that.presentationOrder);
+        }
+    }
+
     public H264Codec() {
         super(new Format[]{
                         new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
@@ -62,12 +127,27 @@ public class H264Codec extends AbstractVideoCodec {
                         new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
                                 EncodingKey, ENCODING_PICTURE,
                                 DataClassKey, Picture.class), //
+                        // Only QuickTime and MP4 files store the parameter sets in an avcC atom
+                        new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
+                                MimeTypeKey, MIME_QUICKTIME,
+                                EncodingKey, ENCODING_AVC1,
+                                DataClassKey, byte[].class), //
+                        new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
+                                MimeTypeKey, MIME_MP4,
+                                EncodingKey, ENCODING_AVC1,
+                                DataClassKey, byte[].class), //
                 },
                 new Format[]{
                         new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
                                 DepthKey, 24,
                                 EncodingKey, ENCODING_AVC1,
                                 DataClassKey, byte[].class), //
+                        new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
+                                EncodingKey, ENCODING_BUFFERED_IMAGE,
+                                DataClassKey, BufferedImage.class), //
+                        new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
+                                EncodingKey, ENCODING_PICTURE,
+                                DataClassKey, Picture.class), //
                 }//
         );
         name = "JCodec H264 Codec";
@@ -82,32 +162,261 @@ public class H264Codec extends AbstractVideoCodec {
             if (inputFormat != null) {
                 outputFormat = outputFormat.prepend(inputFormat.intersectKeys(WidthKey, HeightKey, DepthKey));
             }
-            // Suggest a keyframe rate and motion compensation
-            outputFormat = outputFormat.append(KeyFrameIntervalKey, 60, MotionSearchRangeKey, 16);
+            if (ENCODING_AVC1.equals(outputFormat.get(EncodingKey))) {
+                // Suggest a keyframe rate and motion compensation
+                outputFormat = outputFormat.append(KeyFrameIntervalKey, 60, MotionSearchRangeKey, 16);
+            }
         }
         return this.outputFormat;
     }
 
+    @Override
+    public void reset() {
+        // Dispose the encoder, so that the next frame is encoded as a key frame
+        videoEncoder = null;
+        // Dispose the decoder, so that decoding can start over at a key frame
+        videoDecoder = null;
+        decoderHeader = null;
+        decoderSps = null;
+        pocBase = 0;
+        maxPresentationOrder = -1;
+        reorderQueue.clear();
+        reorderMeta.clear();
+    }
+
     @Override
     public int process(Buffer in, Buffer out) {
-        if (ENCODING_PICTURE.equals(outputFormat.get(EncodingKey))) {
-            return decode(in, out);
-        } else {
+        if (ENCODING_AVC1.equals(outputFormat.get(EncodingKey))) {
             return encode(in, out);
+        } else {
+            return decode(in, out);
         }
     }
 
     public int decode(Buffer in, Buffer out) {
         out.setMetaTo(in);
         out.format = outputFormat;
+        if (in.isFlag(END_OF_MEDIA)) {
+            // Output the frames that are held back for reordering one by one,
+            // and ask for the end of media buffer again after each frame, so
+            // that the last call passes the end of media on
+            if (reorderQueue.isEmpty()) {
+                return CODEC_OK;
+            }
+            out.clearFlag(END_OF_MEDIA);
+            out.clearFlag(DISCARD);
+            return writeReorderedFrame(out) | CODEC_INPUT_NOT_CONSUMED;
+        }
         if (in.isFlag(DISCARD)) {
             return CODEC_OK;
         }
+        if (!(in.data instanceof byte[])) {
+            out.setFlag(DISCARD);
+            return CODEC_FAILED;
+        }
 
-        out.setException(new UnsupportedOperationException("decoding is not supported"));
-        out.setFlag(DISCARD);
-        return CODEC_FAILED;
+        Frame frame;
+        boolean idr;
+        try {
+            H264Decoder dec = getDecoder(in.header);
+            // The decoder unescapes the NAL units in place, so we decode a copy
+            if (nalData == null || nalData.length < in.length) {
+                nalData = new byte[in.length];
+            }
+            System.arraycopy((byte[]) in.data, in.offset, nalData, 0, in.length);
+            List<ByteBuffer> nalUnits = splitNALUnits(nalData, 0, in.length, nalLengthSize);
+            idr = updateSps(nalUnits);
+            if (decoderSps == null) {
+                throw new IllegalStateException("no SPS received");
+            }
+            int width = decoderSps.picWidthInMbsMinus1 + 1 << 4;
+            int height = SeqParameterSet.getPicHeightInMbs(decoderSps) << 4;
+            frame = dec.decodeFrameFromNals(nalUnits, Picture.create(width, height, ColorSpace.YUV420).getData());
+        } catch (RuntimeException e) {
+            out.setException(e);
+            out.setFlag(DISCARD);
+            return CODEC_FAILED;
+        }
+        if (frame == null) {
+            out.setFlag(DISCARD);
+            return CODEC_OK;
+        }
+        frame.setColor(getDecodedColorSpace(decoderSps));
 
+        if (idr) {
+            pocBase = maxPresentationOrder + 1;
+        }
+        long presentationOrder = pocBase + frame.getPOC();
+        maxPresentationOrder = Math.max(maxPresentationOrder, presentationOrder);
+        reorderQueue.add(new DecodedFrame(presentationOrder, frame, idr));
+        Buffer meta = new Buffer();
+        meta.setMetaTo(in);
+        reorderMeta.add(meta);
+        if (reorderQueue.size() <= reorderDepth) {
+            out.setFlag(DISCARD);
+            return CODEC_OK;
+        }
+        return writeReorderedFrame(out);
+    }
+
+    /**
+     * Writes the next frame in presentation order into the output buffer.
+     */
+    private int writeReorderedFrame(Buffer out) {
+        DecodedFrame decoded = reorderQueue.poll();
+        Buffer meta = reorderMeta.poll();
+        out.timeStamp = meta.timeStamp;
+        out.sampleDuration = meta.sampleDuration;
+        out.sequenceNumber = meta.sequenceNumber;
+        out.setFlag(KEYFRAME, decoded.keyFrame());
+
+        Frame frame = decoded.frame();
+        Picture picture = frame;
+        Rect crop = frame.getCrop();
+        if (crop != null && (crop.getX() != 0 || crop.getY() != 0
+                || crop.getWidth() != frame.getWidth() || crop.getHeight() != frame.getHeight())) {
+            picture = frame.cropped();
+        }
+
+        if (ENCODING_PICTURE.equals(outputFormat.get(EncodingKey))) {
+            // The decoder keeps reference frames, we must not hand them out
+            if (out.data instanceof Picture && ((Picture) out.data).compatible(picture)
+                    && ((Picture) out.data).getCrop() == null) {
+                ((Picture) out.data).copyFrom(picture);
+            } else if (picture == frame) {
+                Picture copy = Picture.create(picture.getWidth(), picture.getHeight(), picture.getColor());
+                copy.copyFrom(picture);
+                out.data = copy;
+            } else {
+                out.data = Picture.createPicture(picture.getWidth(), picture.getHeight(), picture.getData(), picture.getColor());
+            }
+        } else {
+            out.data = toBufferedImage(frame, out.data);
+        }
+        out.offset = 0;
+        out.length = 1;
+        return CODEC_OK;
+    }
+
+    /**
+     * Converts the cropped area of the frame into a {@code TYPE_INT_RGB}
+     * image. Reuses the provided image if it has the same size and type.
+     */
+    private BufferedImage toBufferedImage(Frame frame, Object reuse) {
+        int width = frame.getCroppedWidth();
+        int height = frame.getCroppedHeight();
+        BufferedImage img;
+        if (reuse instanceof BufferedImage
+                && ((BufferedImage) reuse).getType() == BufferedImage.TYPE_INT_RGB
+                && ((BufferedImage) reuse).getWidth() == width
+                && ((BufferedImage) reuse).getHeight() == height) {
+            img = (BufferedImage) reuse;
+        } else {
+            img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        if (rgbPicture == null || rgbPicture.getWidth() != frame.getWidth()
+                || rgbPicture.getHeight() != frame.getHeight()) {
+            rgbPicture = Picture.create(frame.getWidth(), frame.getHeight(), ColorSpace.RGB);
+        }
+        ColorUtil.getTransform(frame.getColor(), ColorSpace.RGB).transform(frame, rgbPicture);
+
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        byte[] rgb = rgbPicture.getPlaneData(0);
+        int srcStride = rgbPicture.getWidth() * 3;
+        for (int y = 0, dst = 0; y < height; y++) {
+            for (int x = 0, src = (y + frame.getStartY()) * srcStride + frame.getStartX() * 3; x < width; x++, src += 3) {
+                pixels[dst++] = (rgb[src] + 128) << 16 | (rgb[src + 1] + 128) << 8 | (rgb[src + 2] + 128);
+            }
+        }
+        return img;
+    }
+
+    private H264Decoder getDecoder(Object header) {
+        if (videoDecoder == null) {
+            videoDecoder = new H264Decoder(ForkJoinPool.commonPool());
+        }
+        if (header instanceof AvcDecoderConfigurationRecord && !header.equals(decoderHeader)) {
+            AvcDecoderConfigurationRecord r = (AvcDecoderConfigurationRecord) header;
+            Function<ByteArray, ByteBuffer> byteArrayFunction = b -> ByteBuffer.wrap(b.getArray());
+            List<ByteBuffer> spsList = r.sequenceParameterSetNALUnit().stream().map(byteArrayFunction).collect(Collectors.toList());
+            videoDecoder.addSps(spsList);
+            videoDecoder.addPps(r.pictureParameterSetNALUnit().stream().map(byteArrayFunction).collect(Collectors.toList()));
+            nalLengthSize = r.nalLengthSize();
+            if (!spsList.isEmpty()) {
+                setDecoderSps(H264Utils.readSPS(spsList.get(0)));
+            }
+            decoderHeader = header;
+        }
+        return videoDecoder;
+    }
+
+    /**
+     * Takes the SPS from the NAL units, if present.
+     *
+     * @return true if the NAL units contain an IDR slice
+     */
+    private boolean updateSps(List<ByteBuffer> nalUnits) {
+        boolean idr = false;
+        for (ByteBuffer nal : nalUnits) {
+            if (!nal.hasRemaining()) {
+                continue;
+            }
+            int type = nal.get(nal.position()) & 0x1f;
+            if (type == 7) {
+                ByteBuffer sps = nal.duplicate();
+                sps.get();// skip NAL unit header
+                setDecoderSps(H264Utils.readSPS(sps));
+            } else if (type == 5) {
+                idr = true;
+            }
+        }
+        return idr;
+    }
+
+    private void setDecoderSps(SeqParameterSet sps) {
+        decoderSps = sps;
+        VUIParameters vui = sps.vuiParams;
+        if (vui != null && vui.bitstreamRestriction != null) {
+            reorderDepth = vui.bitstreamRestriction.numReorderFrames;
+        } else if (sps.profileIdc == H264Const.PROFILE_BASELINE) {
+            // The baseline profile has no B-frames
+            reorderDepth = 0;
+        } else {
+            reorderDepth = sps.numRefFrames;
+        }
+    }
+
+    /**
+     * Our encoder encodes full range YUV but does not write a VUI, so we
+     * assume full range unless the SPS says otherwise.
+     */
+    private static ColorSpace getDecodedColorSpace(SeqParameterSet sps) {
+        VUIParameters vui = sps.vuiParams;
+        return vui != null && vui.videoSignalTypePresentFlag && !vui.videoFullRangeFlag
+                ? ColorSpace.YUV420 : ColorSpace.YUV420J;
+    }
+
+    /**
+     * Splits a frame in AVC format into NAL units. Each NAL unit is prefixed
+     * by its length.
+     */
+    private static List<ByteBuffer> splitNALUnits(byte[] data, int offset, int length, int nalLengthSize) {
+        List<ByteBuffer> nalUnits = new ArrayList<>();
+        int end = offset + length;
+        int p = offset;
+        while (p + nalLengthSize <= end) {
+            int nalLength = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                nalLength = nalLength << 8 | (data[p++] & 0xff);
+            }
+            if (nalLength < 0 || nalLength > end - p) {
+                throw new IllegalArgumentException("illegal NAL unit length: " + nalLength);
+            }
+            nalUnits.add(ByteBuffer.wrap(data, p, nalLength).slice());
+            p += nalLength;
+        }
+        return nalUnits;
     }
 
     public int encode(Buffer in, Buffer out) {
@@ -134,7 +443,7 @@ public class H264Codec extends AbstractVideoCodec {
         VideoFrameWithPacket videoFrame = new VideoFrameWithPacket(pkt, toEncode);
         Packet outputVideoPacket;
         int bufferSize = enc.estimateBufferSize(picture);
-        if (byteBuffer == null || bufferSize < byteBuffer.capacity()) {
+        if (byteBuffer == null || bufferSize > byteBuffer.capacity()) {
             byteBuffer = ByteBuffer.allocate(bufferSize);
         }
         byteBuffer.clear();
@@ -182,6 +491,7 @@ public class H264Codec extends AbstractVideoCodec {
                 enc.setMotionSearchRange(motionSearchRange);
             }
             enc.setKeyInterval(outputFormat.get(KeyFrameIntervalKey));
+            enc.setSliceCount(outputFormat.get(SliceCountKey, 1));
             videoEncoder = enc;
         }
         return videoEncoder;
@@ -190,7 +500,9 @@ public class H264Codec extends AbstractVideoCodec {
     private Picture getPicture(Buffer buf) {
         if (buf.data instanceof BufferedImage) {
             BufferedImage img = (BufferedImage) buf.data;
-            return AWTUtil.fromBufferedImage(img, ColorSpace.YUV420J);
+            // The encoder does not keep a reference to the picture, so we can reuse it.
+            yuvPicture = ImageToYuv420j.transform(img, yuvPicture);
+            return yuvPicture;
         } else if (buf.data instanceof Picture) {
             Picture picture = (Picture) buf.data;
             return picture;
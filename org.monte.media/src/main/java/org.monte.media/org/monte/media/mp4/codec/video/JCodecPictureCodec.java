@@ -10,9 +10,8 @@ import org.monte.media.av.Buffer;
 import org.monte.media.av.BufferFlag;
 import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys;
-import org.monte.media.impl.jcodec.common.model.ColorSpace;
 import org.monte.media.impl.jcodec.common.model.Picture;
-import org.monte.media.impl.jcodec.impl.AWTUtil;
+import org.monte.media.impl.jcodec.impl.ImageToYuv420j;
 
 import java.awt.image.BufferedImage;
 
@@ -50,7 +49,7 @@ public class JCodecPictureCodec extends AbstractCodec {
         }
         if (in.data instanceof BufferedImage) {
             BufferedImage img = (BufferedImage) in.data;
-            out.data = AWTUtil.fromBufferedImage(img, ColorSpace.YUV420J);
+            out.data = ImageToYuv420j.transform(img, out.data instanceof Picture p ? p : null);
             return CODEC_OK;
         }
         return CODEC_FAILED;
@@ -6,13 +6,16 @@ package org.monte.media.qtff;
 
 import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.io.ByteArrayImageOutputStream;
 import org.monte.media.math.Rational;
 
 import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 
 /**
@@ -106,6 +109,16 @@ public class AbstractQTFFMovieStream {
      * The current state of the movie output stream.
      */
     protected States state = States.REALIZED;
+    /**
+     * The size of the "free" atom that is reserved for the movie header in
+     * front of the media data, or 0.
+     */
+    protected long fastStartReserve;
+    /**
+     * The offset of the reserved "free" atom relative to the beginning of
+     * the stream, or -1 if no atom has been reserved.
+     */
+    protected long fastStartOffset = -1;
 
     protected static String intToType(int id) {
         char[] b = new char[4];
@@ -163,6 +176,174 @@ public class AbstractQTFFMovieStream {
         out.seek(newPosition + streamOffset);
     }
 
+    /**
+     * Reserves space for the movie header in front of the media data.
+     * <p>
+     * If a reserve is set, a "free" atom of the specified size is written
+     * in front of the "mdat" atom. When the movie is finished, the movie
+     * header is written into this space, so that the movie can be played
+     * while it is being downloaded. Only the movie header is written, and
+     * the file is not copied, as is done by {@code toWebOptimizedMovie}.
+     * <p>
+     * If the movie header does not fit into the reserved space, the media
+     * data is moved towards the end of the file to make room for it.
+     * {@link #estimateFastStartReserve} returns a reserve that avoids this
+     * in most cases.
+     * <p>
+     * This method must be called before the first sample is written.
+     *
+     * @param reserve the size of the reserved space in bytes, must be 0 or
+     *                at least 8
+     * @throws IllegalArgumentException if the reserve is invalid
+     * @throws IllegalStateException    if a sample has already been written
+     * @throws IOException              if an I/O error has occurred
+     */
+    public void setFastStartReserve(long reserve) throws IOException {
+        if (reserve != 0 && reserve < 8 || reserve > 0xffffffffL) {
+            throw new IllegalArgumentException("reserve must be 0 or between 8 and 2^32-1: " + reserve);
+        }
+        for (Track t : tracks) {
+            if (!t.isEmpty()) {
+                throw new IllegalStateException("Can not change the reserve after samples have been written.");
+            }
+        }
+        this.fastStartReserve = reserve;
+        if (state == States.STARTED && mdatAtom != null) {
+            // The "mdat" atom is still empty, so we can write it again after the reserve.
+            seekRelative(fastStartOffset >= 0 ? fastStartOffset : mdatAtom.getOffset());
+            fastStartOffset = -1;
+            writeFastStartReserve();
+            mdatAtom = new WideDataAtom("mdat");
+        }
+    }
+
+    /**
+     * Returns the space that is reserved for the movie header in front of
+     * the media data.
+     *
+     * @return the reserve in bytes, or 0
+     * @see #setFastStartReserve(long)
+     */
+    public long getFastStartReserve() {
+        return fastStartReserve;
+    }
+
+    /**
+     * Estimates the size of a movie header.
+     * <p>
+     * The estimate allows for 16 bytes in the sample tables per sample.
+     * This covers the sample size, chunk offset and sync sample tables of
+     * a track with one sample per chunk, and a time-to-sample table that
+     * can be compressed.
+     *
+     * @param trackCount       the number of tracks
+     * @param duration         the expected duration of the movie
+     * @param samplesPerSecond the expected number of samples per second
+     *                         and track, for example, the frame rate of a
+     *                         video track
+     * @return the estimated size in bytes
+     */
+    public static long estimateFastStartReserve(int trackCount, Duration duration, double samplesPerSecond) {
+        double samples = duration.toMillis() / 1000.0 * samplesPerSecond;
+        return Math.min(0xffffffffL, 4096 + trackCount * (1024 + (long) Math.ceil(samples) * 16));
+    }
+
+    /**
+     * Writes the "free" atom that reserves space for the movie header, if
+     * a reserve has been set.
+     */
+    protected void writeFastStartReserve() throws IOException {
+        if (fastStartReserve == 0) {
+            return;
+        }
+        fastStartOffset = getRelativeStreamPosition();
+        out.writeInt((int) fastStartReserve);
+        out.writeInt(typeToInt("free"));
+        byte[] zeros = new byte[(int) Math.min(fastStartReserve - 8, 1 << 16)];
+        for (long remaining = fastStartReserve - 8; remaining > 0; remaining -= zeros.length) {
+            out.write(zeros, 0, (int) Math.min(remaining, zeros.length));
+        }
+    }
+
+    /**
+     * Writes the movie header into the space that was reserved with
+     * {@link #writeFastStartReserve()}. The media data must be finished,
+     * and the stream must be positioned at its end.
+     * <p>
+     * The movie header is first written into memory, to find out its size.
+     * If it does not fit, the media data is moved towards the end of the
+     * stream, and the movie header is written again with {@link #mdatOffset}
+     * set to the distance by which the media data was moved.
+     * <p>
+     * The remaining reserved space is filled with a "free" atom.
+     *
+     * @param headerWriter writes the movie header at the current position
+     *                     of {@link #out}
+     */
+    protected void writeMovieHeaderIntoReserve(HeaderWriter headerWriter) throws IOException {
+        long end = getRelativeStreamPosition();
+        long shift = 0;
+        ByteArrayImageOutputStream header;
+        while (true) {
+            header = writeMovieHeaderIntoMemory(headerWriter, shift);
+            long space = fastStartReserve + shift;
+            if (header.length() == space || header.length() + 8 <= space) {
+                break;
+            }
+            // The header can only grow with the shift, if the chunk offsets
+            // no longer fit into 32 bits.
+            shift = Math.max(shift + 1, header.length() - fastStartReserve);
+        }
+
+        if (shift > 0) {
+            long mdatStart = mdatAtom.getOffset();
+            byte[] buf = new byte[1 << 16];
+            for (long pos = end; pos > mdatStart; ) {
+                int n = (int) Math.min(buf.length, pos - mdatStart);
+                pos -= n;
+                seekRelative(pos);
+                out.readFully(buf, 0, n);
+                seekRelative(pos + shift);
+                out.write(buf, 0, n);
+            }
+            mdatAtom.offset += shift;
+        }
+
+        seekRelative(fastStartOffset);
+        out.write(header.getBuffer(), 0, header.size());
+        long free = fastStartReserve + shift - header.length();
+        if (free > 0) {
+            out.writeInt((int) free);
+            out.writeInt(typeToInt("free"));
+        }
+        seekRelative(end + shift);
+    }
+
+    private ByteArrayImageOutputStream writeMovieHeaderIntoMemory(HeaderWriter headerWriter, long shift) throws IOException {
+        ImageOutputStream originalOut = out;
+        long originalStreamOffset = streamOffset;
+        ByteArrayImageOutputStream header = new ByteArrayImageOutputStream();
+        try {
+            out = header;
+            streamOffset = 0;
+            mdatOffset = shift;
+            headerWriter.write();
+        } finally {
+            out = originalOut;
+            streamOffset = originalStreamOffset;
+            mdatOffset = 0;
+        }
+        return header;
+    }
+
+    /**
+     * Writes a movie header.
+     */
+    @FunctionalInterface
+    protected interface HeaderWriter {
+        void write() throws IOException;
+    }
+
     public void setTrackEnabled(int track, boolean newValue) {
         tracks.get(track).setEnabled(newValue);
     }
@@ -839,10 +1020,11 @@ public class AbstractQTFFMovieStream {
          */
         public int syncInterval;
         /**
-         * List of sync samples. This list is null as long as all samples in
-         * this track are sync samples.
+         * Set of sync samples. Bit {@code i} is set if the sample with number
+         * {@code i + 1} is a sync sample. This set is null as long as all
+         * samples in this track are sync samples.
          */
-        public ArrayList<Long> syncSamples = null;
+        public BitSet syncSamples = null;
         /**
          * List of TimeToSample entries.
          */
@@ -861,16 +1043,12 @@ public class AbstractQTFFMovieStream {
             // samples, we do not need to create a syncSample list.
             if (isSyncSample) {
                 if (syncSamples != null) {
-                    for (long i = sampleCount - chunk.sampleCount; i < sampleCount; i++) {
-                        syncSamples.add(i + 1);
-                    }
+                    syncSamples.set(Math.toIntExact(sampleCount - chunk.sampleCount), Math.toIntExact(sampleCount));
                 }
             } else {
                 if (syncSamples == null) {
-                    syncSamples = new ArrayList<>();
-                    for (long i = 1; i < sampleCount; i++) {
-                        syncSamples.add(i);
-                    }
+                    syncSamples = new BitSet();
+                    syncSamples.set(0, Math.toIntExact(sampleCount - chunk.sampleCount));
                 }
             }
 
@@ -897,14 +1075,12 @@ public class AbstractQTFFMovieStream {
             // samples, we do not need to create a syncSample list.
             if (isSyncSample) {
                 if (syncSamples != null) {
-                    syncSamples.add(sampleCount);
+                    syncSamples.set(Math.toIntExact(sampleCount - 1));
                 }
             } else {
                 if (syncSamples == null) {
-                    syncSamples = new ArrayList<>();
-                    for (long i = 1; i < sampleCount; i++) {
-                        syncSamples.add(i);
-                    }
+                    syncSamples = new BitSet();
+                    syncSamples.set(0, Math.toIntExact(sampleCount - 1));
                 }
             }
 
@@ -7,6 +7,9 @@ package org.monte.media.qtff;
 
 import org.monte.media.util.ByteArray;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -55,4 +58,70 @@ public record AvcDecoderConfigurationRecord(
         int avcLevelIndication,
         int nalLengthSize,
         Set<ByteArray> sequenceParameterSetNALUnit, Set<ByteArray> pictureParameterSetNALUnit) {
+    /**
+     * Searches the video sample description extensions for an "avcC" atom
+     * and parses its {@link AvcDecoderConfigurationRecord}.
+     * <pre>
+     * typedef struct {
+     *  ubyte configurationVersion; // always 1
+     *  ubyte AVCProfileIndication;
+     *  ubyte profile_compatibility;
+     *  ubyte AVCLevelIndication;
+     *  uint6 reserved1; // always 111111
+     *  uint2 lengthSizeMinusOne;
+     *  uint3 reserved2; // always 111
+     *  uint5 numOfSequenceParameterSets;
+     *  { uint16 length; ubyte[length] nalUnit; } [numOfSequenceParameterSets];
+     *  uint8 numOfPictureParameterSets;
+     *  { uint16 length; ubyte[length] nalUnit; } [numOfPictureParameterSets];
+     * } AvcDecoderConfigurationRecord;
+     * </pre>
+     * The NAL units in the record do not include the NAL unit header byte.
+     *
+     * @param extendData the video sample description extensions
+     * @return the record or null if there is no well-formed "avcC" atom
+     */
+    public static AvcDecoderConfigurationRecord fromSampleDescriptionExtensions(byte[] extendData) {
+        ByteBuffer buf = ByteBuffer.wrap(extendData);
+        while (buf.remaining() >= 8) {
+            int start = buf.position();
+            long size = buf.getInt() & 0xffffffffL;
+            int type = buf.getInt();
+            if (size < 8 || size > buf.remaining() + 8) {
+                return null;
+            }
+            if (type == 0x61766343) {// "avcC"
+                try {
+                    ByteBuffer r = buf.slice().limit((int) size - 8);
+                    r.get();// configurationVersion
+                    int profile = r.get() & 0xff;
+                    int compatibility = r.get() & 0xff;
+                    int level = r.get() & 0xff;
+                    int nalLengthSize = (r.get() & 0b11) + 1;
+                    Set<ByteArray> spsSet = readParameterSets(r, r.get() & 0b11111);
+                    Set<ByteArray> ppsSet = readParameterSets(r, r.get() & 0xff);
+                    return new AvcDecoderConfigurationRecord(profile, compatibility, level, nalLengthSize, spsSet, ppsSet);
+                } catch (BufferUnderflowException e) {
+                    return null;
+                }
+            }
+            buf.position(start + (int) size);
+        }
+        return null;
+    }
+
+    private static Set<ByteArray> readParameterSets(ByteBuffer r, int count) {
+        Set<ByteArray> set = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            int length = r.getShort() & 0xffff;
+            if (length == 0) {
+                continue;
+            }
+            r.get();// skip NAL unit header
+            byte[] nal = new byte[length - 1];
+            r.get(nal);
+            set.add(new ByteArray(nal));
+        }
+        return set;
+    }
 }
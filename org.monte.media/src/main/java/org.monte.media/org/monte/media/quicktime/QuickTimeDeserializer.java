@@ -6,6 +6,7 @@ package org.monte.media.quicktime;
 
 import org.monte.media.av.FormatKeys.MediaType;
 import org.monte.media.io.UncachedImageInputStream;
+import org.monte.media.qtff.AvcDecoderConfigurationRecord;
 import org.monte.media.qtff.QTFFImageInputStream;
 import org.monte.media.util.MathUtil;
 
@@ -17,10 +18,10 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.zip.InflaterInputStream;
 
 /**
@@ -94,9 +95,6 @@ public class QuickTimeDeserializer {
      */
     protected void parse(QTFFImageInputStream in, QuickTimeMeta m) throws IOException {
         parseRecursively(in, in.length(), m);
-        for (QuickTimeMeta.Track track : m.tracks) {
-            track.buildSamplesTable(m.timeScale);
-        }
     }
 
     /**
@@ -1040,9 +1038,22 @@ public class QuickTimeDeserializer {
 
             d.extendData = new byte[size - 86];
             in.readFully(d.extendData);
+            d.avcDecoderConfigurationRecord = parseAvcDecoderConfigurationRecord(d.extendData);
         }
     }
 
+    /**
+     * Searches the video sample description extensions for an "avcC" atom
+     * and parses its {@link AvcDecoderConfigurationRecord}.
+     *
+     * @param extendData the video sample description extensions
+     * @return the record or null if there is no well-formed "avcC" atom
+     * @see AvcDecoderConfigurationRecord#fromSampleDescriptionExtensions(byte[])
+     */
+    protected AvcDecoderConfigurationRecord parseAvcDecoderConfigurationRecord(byte[] extendData) {
+        return AvcDecoderConfigurationRecord.fromSampleDescriptionExtensions(extendData);
+    }
+
     /**
      * The Time-to-Sample atom ("stts"-Atom in a media information section).
      * Time-to-sample atoms store duration information for the samples in a
@@ -1147,9 +1158,9 @@ public class QuickTimeDeserializer {
         if (version != 0) return;
         in.skipBytes(3);
         int numberOfEntries = in.readInt();
-        m.chunkOffsets.clear();
+        m.chunkOffsets = new long[numberOfEntries];
         for (int i = 0; i < numberOfEntries; i++) {
-            m.chunkOffsets.add(in.readUnsignedInt());
+            m.chunkOffsets[i] = in.readUnsignedInt();
         }
     }
 
@@ -1174,9 +1185,9 @@ public class QuickTimeDeserializer {
         if (version != 0) return;
         in.skipBytes(3);
         int numberOfEntries = in.readInt();
-        m.chunkOffsets.clear();
+        m.chunkOffsets = new long[numberOfEntries];
         for (int i = 0; i < numberOfEntries; i++) {
-            m.chunkOffsets.add(in.readLong());
+            m.chunkOffsets[i] = in.readLong();
         }
     }
 
@@ -1209,11 +1220,12 @@ public class QuickTimeDeserializer {
         if (numberOfEntries == 0) {
             m.syncSamples = null;
         } else {
-            m.syncSamples = new TreeSet<>();
+            m.syncSamples = new int[numberOfEntries];
             for (int i = 0; i < numberOfEntries; i++) {
                 // the sample ids are one-based, but we want zero-based indices
-                m.syncSamples.add(in.readUnsignedInt() - 1);
+                m.syncSamples[i] = (int) (in.readUnsignedInt() - 1);
             }
+            Arrays.sort(m.syncSamples);
         }
     }
 
@@ -1241,22 +1253,15 @@ public class QuickTimeDeserializer {
         in.skipBytes(3);
         int sampleSize = in.readInt();
         int numberOfEntries = in.readInt();
-        m.sampleSizes.clear();
         if (sampleSize != 0) {
             // all samples have the same size
-            QuickTimeMeta.MediaSample firstSample = new QuickTimeMeta.MediaSample(-1, -1, sampleSize);
-            QuickTimeMeta.MediaSample lastSample = new QuickTimeMeta.MediaSample(-1, -1, sampleSize);
-            QuickTimeMeta.SampleSizeGroup ssg = new QuickTimeMeta.SampleSizeGroup(firstSample, lastSample, numberOfEntries);
-            m.sampleSizes.add(ssg);
+            m.sampleSize = sampleSize;
+            m.sampleSizeTable = null;
         } else {
-            QuickTimeMeta.SampleSizeGroup ssg = null;
+            m.sampleSize = 0;
+            m.sampleSizeTable = new int[numberOfEntries];
             for (int i = 0; i < numberOfEntries; i++) {
-                int size = in.readInt();
-                QuickTimeMeta.MediaSample s = new QuickTimeMeta.MediaSample(-1, -1, size);
-                if (ssg == null || !ssg.maybeAddSample(s)) {
-                    ssg = new QuickTimeMeta.SampleSizeGroup(s);
-                    m.sampleSizes.add(ssg);
-                }
+                m.sampleSizeTable[i] = in.readInt();
             }
         }
     }
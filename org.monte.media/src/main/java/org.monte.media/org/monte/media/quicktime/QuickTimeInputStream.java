@@ -4,12 +4,15 @@
  */
 package org.monte.media.quicktime;
 
+import org.monte.media.io.ImageInputStreams;
+import org.monte.media.io.MappedFileImageInputStream;
 import org.monte.media.qtff.QTFFImageInputStream;
 
 import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.time.Instant;
 
@@ -28,8 +31,7 @@ public class QuickTimeInputStream {
      * @throws IOException if reading the sample data failed.
      */
     public int getSampleCount(int track) throws IOException {
-        QuickTimeMeta.Track tr = meta.tracks.get(track);
-        return (int) tr.media.sampleCount;
+        return getSampleIndex(track).getSampleCount();
     }
 
     /**
@@ -41,10 +43,7 @@ public class QuickTimeInputStream {
      * @throws IOException if reading the sample data failed.
      */
     public int getSampleSize(int track, int sample) throws IOException {
-        QuickTimeMeta.Track tr = meta.tracks.get(track);
-        var ts = tr.trackSamplesList.get(sample);
-        var ms = ts.mediaSample;
-        return (int) ms.length;
+        return (int) getSampleIndex(track).getLength(sample);
     }
 
 
@@ -60,16 +59,68 @@ public class QuickTimeInputStream {
      * @throws IOException if reading the sample data failed.
      */
     public int readSample(int track, int sample, byte[] data, int off, int len) throws IOException {
-        QuickTimeMeta.Track tr = meta.tracks.get(track);
-        var ts = tr.trackSamplesList.get(sample);
-        var ms = ts.mediaSample;
-        in.seek(ms.offset);
-        if (len < ms.length) throw new IOException("len=" + len + " is too small. Should be at least len=" + ms.length);
-        int bytesRead = Math.min((int) ms.length, len);
-        in.readFully(data, off, bytesRead);
+        QuickTimeSampleIndex index = getSampleIndex(track);
+        long length = index.getLength(sample);
+        if (len < length) throw new IOException("len=" + len + " is too small. Should be at least len=" + length);
+        int bytesRead = Math.min((int) length, len);
+        long offset = index.getOffset(sample);
+        if (prefetched != null && offset >= prefetchedOffset
+                && offset + bytesRead <= prefetchedOffset + prefetched.limit()) {
+            prefetched.get((int) (offset - prefetchedOffset), data, off, bytesRead);
+        } else {
+            in.seek(offset);
+            in.readFully(data, off, bytesRead);
+        }
         return bytesRead;
     }
 
+    /**
+     * Reads the specified range of the file in advance. Until the next call
+     * of this method, samples that lie completely inside the range are read
+     * from memory.
+     *
+     * @param offset the position of the range in the file
+     * @param length the length of the range, 0 releases the range
+     * @throws IOException if reading fails
+     */
+    public void prefetch(long offset, int length) throws IOException {
+        ensureRealized();
+        prefetched = null;
+        if (length > 0) {
+            prefetched = ImageInputStreams.prefetch(in, offset, length);
+            prefetchedOffset = offset;
+        }
+    }
+
+    /**
+     * Reads a sample from a track into a read-only buffer.
+     * <p>
+     * If the file is memory mapped, the buffer shares its content with the
+     * file and no data is copied.
+     *
+     * @param track  The track index.
+     * @param sample The sample index.
+     * @return the sample data
+     * @throws IOException if reading the sample data failed.
+     */
+    public ByteBuffer readSample(int track, int sample) throws IOException {
+        QuickTimeSampleIndex index = getSampleIndex(track);
+        return ImageInputStreams.readFully(in, index.getOffset(sample), (int) index.getLength(sample));
+    }
+
+    /**
+     * Returns the sample index of a track. The index is built when it is
+     * needed for the first time.
+     *
+     * @param track The track index.
+     * @return the sample index
+     * @throws IOException if the sample tables of the track are incomplete.
+     */
+    QuickTimeSampleIndex getSampleIndex(int track) throws IOException {
+        ensureRealized();
+        return meta.tracks.get(track).getSampleIndex(meta.timeScale);
+    }
+
     /**
      * The image input stream.
      */
@@ -80,11 +131,20 @@ public class QuickTimeInputStream {
     protected QuickTimeMeta meta = null;
 
     protected long streamOffset = 0;
+    /**
+     * The range of the file that has been read by {@link #prefetch}, or null.
+     */
+    private ByteBuffer prefetched;
+    private long prefetchedOffset;
 
     protected long currentTime = 0;
 
     /**
      * Creates a new instance.
+     * <p>
+     * The file is read with a {@link FileImageInputStream}. To read the file
+     * through memory mapping, pass a {@link MappedFileImageInputStream} to
+     * {@link #QuickTimeInputStream(ImageInputStream)}.
      *
      * @param file the input file
      */
@@ -269,5 +329,6 @@ public class QuickTimeInputStream {
         if (meta != null) {
             meta = null;
         }
+        prefetched = null;
     }
 }
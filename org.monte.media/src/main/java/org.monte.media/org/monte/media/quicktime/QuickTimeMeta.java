@@ -10,19 +10,17 @@ import org.monte.media.av.FormatKeys;
 import org.monte.media.av.MovieReader;
 import org.monte.media.color.Colors;
 import org.monte.media.math.Rational;
+import org.monte.media.qtff.AvcDecoderConfigurationRecord;
 
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteOrder;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.NavigableMap;
-import java.util.NavigableSet;
-import java.util.TreeMap;
 
 import static org.monte.media.av.FormatKeys.EncodingKey;
 import static org.monte.media.av.FormatKeys.FrameRateKey;
@@ -406,19 +404,46 @@ public class QuickTimeMeta extends AbstractMovie {
         this.nextTrackId = nextTrackId;
     }
 
+    /**
+     * Returns the duration of the longest track in seconds.
+     */
     @Override
     public Rational getDuration() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        long d = 0;
+        for (Track t : tracks) {
+            d = Math.max(d, t.getTrackDuration(timeScale));
+        }
+        return new Rational(d, timeScale);
     }
 
+    /**
+     * Returns the sample that is presented at the specified time.
+     *
+     * @throws UncheckedIOException if the sample tables of the track are
+     *                              incomplete
+     */
     @Override
     public long timeToSample(int track, Rational seconds) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return getSampleIndex(track).findSampleAtTime(seconds.multiply(timeScale).longValue());
     }
 
+    /**
+     * Returns the time at which the specified sample is presented.
+     *
+     * @throws UncheckedIOException if the sample tables of the track are
+     *                              incomplete
+     */
     @Override
     public Rational sampleToTime(int track, long sample) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return new Rational(getSampleIndex(track).getTimeStamp((int) sample), timeScale);
+    }
+
+    private QuickTimeSampleIndex getSampleIndex(int track) {
+        try {
+            return tracks.get(track).getSampleIndex(timeScale);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
@@ -590,60 +615,6 @@ public class QuickTimeMeta extends AbstractMovie {
         }
     }
 
-    /**
-     * QuickTime plays media in tracks which reference media samples.
-     * <p>
-     * Please note that {@code TrackSample} objects are created on demand. This helps
-     * to save memory, because a highly multiplexed audio track may consist of
-     * many samples per second. As a consequence multiple instances of
-     * {@code TrackSample} objects may represent the same data sample in the movie.
-     */
-    protected static class TrackSample {
-
-        /**
-         * Byte offset of the sample relative to the start of the QuickTime file.
-         * The value -1 is used if the offset is unknown.
-         */
-        MediaSample mediaSample;
-
-        /**
-         * The timestamp of the sample in movie timescale units.
-         */
-        public long timeStamp;
-        /**
-         * The duration of the sample in movie timescale units. The value -1 is
-         * used if the duration is unknown.
-         */
-        long duration;
-
-        /**
-         * The edited start time in the media time sample in media timescale.
-         * <p>
-         * The value is 0 the track sample starts at the beginning of the
-         * media sample.
-         */
-        long startTimeInMediaSample;
-        /**
-         * The edited end time in the media time sample in media timescale.
-         * <p>
-         * The value is mediaSample.duration if the track sample ends at the
-         * end of the media sample.
-         */
-        long endTimeInMediaSample;
-
-        /**
-         * Creates a new sample.
-         */
-        public TrackSample(MediaSample mediaSample, long timeStamp, long duration,
-                           long startTimeInMediaSample, long endTimeInMediaSample) {
-            this.mediaSample = mediaSample;
-            this.timeStamp = timeStamp;
-            this.duration = duration;
-            this.startTimeInMediaSample = startTimeInMediaSample;
-            this.endTimeInMediaSample = endTimeInMediaSample;
-        }
-    }
-
     /**
      * Groups consecutive samples of the same duration.
      */
@@ -836,19 +807,13 @@ public class QuickTimeMeta extends AbstractMovie {
      */
     protected static class Track {
         /**
-         * Table of samples in this track.
+         * Index of the samples in this track.
          * <p>
          * This value is derived from the media data in this track,
-         * and from the edit list of this track.
-         * <p>
-         * This value is set to null to indicate that it must be recomputed.
-         * <dl>
-         *     <dt>Map.key</dt><dd>absolute movie time of a track sample</dd>
-         *     <dt>Map.value</dt><dd>track sample</dd>
-         * </dl>
-         */
-        public NavigableMap<Long, ArrayList<TrackSample>> trackSampleMap = null;
-        public ArrayList<TrackSample> trackSamplesList = null;
+         * and from the edit list of this track. It is built lazily by
+         * {@link #getSampleIndex(long)}.
+         */
+        private volatile QuickTimeSampleIndex sampleIndex;
         public int readIndex;
         /**
          * The media type of the track.
@@ -974,6 +939,10 @@ public class QuickTimeMeta extends AbstractMovie {
 
         /**
          * Gets the track duration in the movie timescale.
+         * <p>
+         * If the track has no edit list, this is the duration from the track
+         * header, or the duration of the media if the header does not
+         * specify it.
          *
          * @param movieTimeScale The timescale of the movie.
          */
@@ -981,7 +950,7 @@ public class QuickTimeMeta extends AbstractMovie {
             long sum = 0;
             if (editList.isEmpty()) {
                 Media m = media;
-                sum += m.mediaDuration * movieTimeScale / m.mediaTimeScale;
+                sum += duration != 0 || m == null ? duration : m.mediaDuration * movieTimeScale / m.mediaTimeScale;
             } else {
                 for (Edit e : editList) {
                     sum += e.trackDuration;
@@ -991,163 +960,25 @@ public class QuickTimeMeta extends AbstractMovie {
         }
 
         /**
-         * Builds the samples table for this track.
-         */
-        public void buildSamplesTable(long movieTimeScale) throws IOException {
-            buildMediaSamplesTable(movieTimeScale);
-            buildTrackSamplesTable(movieTimeScale);
-        }
-
-        public void buildTrackSamplesTable(long movieTimeScale) throws IOException {
-            trackSampleMap = new TreeMap<>();
-            trackSamplesList = new ArrayList<>();
-            NavigableMap<Long, ArrayList<MediaSample>> mediaSamplesMap = media == null ? null : media.mediaSamples;
-            if (mediaSamplesMap == null) {
-                throw new IOException("track " + trackId + ": 'mdia' atom does not exist or is incomplete");
-            }
-
-            long mediaTimeScale = media.mediaTimeScale;
-            if (editList.isEmpty()) {
-                editList.add(new Edit(duration, 0, 1.0));
-            }
-            long editTrackTime = 0;
-            for (final Edit edit : editList) {
-                if (edit.mediaTime == -1) {
-                    editTrackTime += edit.trackDuration;
-                    continue;
-                }
-                double mediaRate = edit.mediaRate;
-                long editMediaEndTime = (long) (edit.mediaTime + edit.trackDuration * mediaRate * mediaTimeScale / movieTimeScale);
-                long sampleTrackTime = editTrackTime;
-                double invMediaRate = 1.0 / edit.mediaRate;
-                long mediaDuration = (long) (edit.trackDuration * mediaRate * mediaTimeScale);
-                //long mediaDurationInMovieTimeScale = (long) (edit.trackDuration * mediaRate * mediaTimeScale / movieTimeScale);
-                Long floorKey = mediaSamplesMap.floorKey(edit.mediaTime);
-                floorKey = media.syncSamples == null ? floorKey : media.syncSamples.floor(floorKey);
-                if (floorKey == null) {
-                    // We do not have a key frame. Skip this edit.
-                    editTrackTime += edit.trackDuration;
-                    continue;
-                }
-
-                for (var entry : mediaSamplesMap.subMap(floorKey, edit.mediaTime + mediaDuration).entrySet()) {
-                    ArrayList<MediaSample> mediaSamples = entry.getValue();
-                    if (mediaSamples.isEmpty()) {
-                        continue;
-                    }
-                    long mediaSampleTime = entry.getKey();
-
-                    // if multiple samples have the same timestamp, then only the last one has a duration >=0
-                    MediaSample lastMediaSample = mediaSamples.get(mediaSamples.size() - 1);
-                    long mediaSampleDuration = lastMediaSample.duration;
-                    // cut duration if the media sample ends after the end time of the edit
-                    long cutStart = Math.max(0, mediaSampleTime + mediaSampleDuration - editMediaEndTime);
-                    // cut duration if the media sample starts before the start time of the edit
-                    long cutEnd = Math.max(0, edit.mediaTime - mediaSampleTime);
-                    mediaSampleDuration = Math.max(0, mediaSampleDuration - cutStart + cutEnd);
-
-                    long trackSampleDuration = Math.max(0, (long) (mediaSampleDuration * invMediaRate * movieTimeScale / mediaTimeScale));
-
-                    for (int i = 0, n = mediaSamples.size(); i < n - 1; i++) {
-                        MediaSample mediaSample = mediaSamples.get(i);
-                        TrackSample trackSample = new TrackSample(mediaSample, sampleTrackTime, 0, 0, 0);
-                        trackSampleMap.computeIfAbsent(sampleTrackTime, k -> new ArrayList<>()).add(trackSample);
-                        trackSamplesList.add(trackSample);
-                    }
-                    TrackSample trackSample = new TrackSample(lastMediaSample, sampleTrackTime, trackSampleDuration, cutStart, mediaSampleDuration);
-                    trackSampleMap.computeIfAbsent(sampleTrackTime, k -> new ArrayList<>()).add(trackSample);
-                    trackSamplesList.add(trackSample);
-
-                    sampleTrackTime += trackSampleDuration;
-                }
-                editTrackTime += edit.trackDuration;
-            }
-        }
-
-        public void buildMediaSamplesTable(long movieTimeScale) throws IOException {
-            // XXX For PCM audio media, we must create one sample per chunk
-
-
-            Media m = media;
-            m.mediaSamples = new TreeMap<>();
-            if (m.sampleSizes.isEmpty()) {
-                throw new IOException("track " + trackId + ": 'mdia' atom does not contain an 'stsz' atom.");
-            }
-            if (m.samplesToChunks.isEmpty()) {
-                throw new IOException("track " + trackId + ": 'mdia' atom does not contain an 'stsc' atom.");
-            }
-            if (m.timeToSamples.isEmpty()) {
-                throw new IOException("track " + trackId + ": 'mdia' atom does not contain an 'stts' atom.");
-            }
-            if (m.chunkOffsets.isEmpty()) {
-                throw new IOException("track " + trackId + ": 'mdia' atom does neither contain an 'stco' nor an 'co64' atom.");
-            }
-
-            TreeMap<Integer, SampleSizeGroup> sampleSizeMap = new TreeMap<>();
-            int sampleIndex = 0;
-            for (SampleSizeGroup ssg : m.sampleSizes) {
-                sampleSizeMap.put(sampleIndex, ssg);
-                sampleIndex += ssg.sampleCount;
-            }
-            TreeMap<Integer, SampleToChunk> sampleChunkMap = new TreeMap<>();
-            sampleIndex = 0;
-            int prevFirstChunk = 1;
-            int prevSamplesPerChunk = 0;
-            for (SampleToChunk stc : m.samplesToChunks) {
-                sampleIndex += (stc.firstChunk - prevFirstChunk) * prevSamplesPerChunk;
-                sampleChunkMap.put(sampleIndex, stc);
-                prevFirstChunk = stc.firstChunk;
-                prevSamplesPerChunk = stc.samplesPerChunk;
-            }
-
-
-            sampleIndex = 0;
-            long time = 0;
-            int firstChunkId = -1;
-            int chunkId = -1;
-            int remainingSamplesInChunk = 0;
-            long offset = -1;
-            for (TimeToSampleGroup tsg : m.timeToSamples) {
-                long duration = tsg.getSampleDuration();
-                for (int i = 0; i < tsg.sampleCount; i++) {
-                    var sizeEntry = sampleSizeMap.floorEntry(sampleIndex);
-                    long length = sizeEntry == null ? -1 : sizeEntry.getValue().getSampleLength();
-
-                    if (remainingSamplesInChunk == 0) {
-                        Map.Entry<Integer, SampleToChunk> chunkEntry = sampleChunkMap.floorEntry(sampleIndex);
-                        if (chunkEntry == null) {
-                            throw new IOException("track " + trackId + ": 'stsc' atom does not contain required chunk entry");
-                        }
-                        SampleToChunk stsc = chunkEntry.getValue();
-                        if (stsc.firstChunk != firstChunkId) {
-                            firstChunkId = stsc.firstChunk;
-                            chunkId = stsc.firstChunk;
-                        } else {
-                            chunkId++;
-                        }
-                        remainingSamplesInChunk = stsc.samplesPerChunk;
-                        if (chunkId < 0 || chunkId > m.chunkOffsets.size()) {
-                            throw new IOException("track " + trackId + ": 'stco' or 'co64' atom does not contain an entry for chunkId=" + chunkId);
-                        }
-                        offset = m.chunkOffsets.get(chunkId - 1);
+         * Returns the index of the samples in this track. The index is built
+         * on the first call.
+         *
+         * @param movieTimeScale The timescale of the movie.
+         * @throws IOException if the sample tables of the media are incomplete
+         */
+        QuickTimeSampleIndex getSampleIndex(long movieTimeScale) throws IOException {
+            QuickTimeSampleIndex index = sampleIndex;
+            if (index == null) {
+                synchronized (this) {
+                    index = sampleIndex;
+                    if (index == null) {
+                        sampleIndex = index = QuickTimeSampleIndex.build(this, movieTimeScale);
                     }
-
-                    // We can have samples with zero duration.
-                    MediaSample sample = new MediaSample(duration, offset, length);
-                    sample.timeStamp = time;
-                    sample.isKeyframe = m.syncSamples == null || m.syncSamples.contains((long) (sampleIndex));
-                    m.mediaSamples.computeIfAbsent(time, k -> new ArrayList<>(1)).add(sample);
-
-                    time += duration;
-                    remainingSamplesInChunk--;
-                    offset += length;
-                    sampleIndex++;
                 }
-                time += duration;
             }
+            return index;
         }
 
-
         @Override
         public String toString() {
             return "Track{" //
@@ -1205,9 +1036,9 @@ public class QuickTimeMeta extends AbstractMovie {
         protected ArrayList<DataReference> dataReferenceList = new ArrayList<>();
         // END Data Reference List
         /**
-         * List of chunk offsets.
+         * Table of chunk offsets.
          */
-        protected ArrayList<Long> chunkOffsets = new ArrayList<>();
+        protected long[] chunkOffsets = new long[0];
         /**
          * List of TimeToSample entries.
          */
@@ -1217,13 +1048,20 @@ public class QuickTimeMeta extends AbstractMovie {
          */
         protected ArrayList<SampleToChunk> samplesToChunks = new ArrayList<>();
         /**
-         * List of SampleSize entries.
+         * The size that all samples share, or 0 if the samples have different
+         * sizes.
+         */
+        protected long sampleSize;
+        /**
+         * Table of sample sizes. This table is null if all samples have the
+         * size {@link #sampleSize}.
          */
-        protected ArrayList<SampleSizeGroup> sampleSizes = new ArrayList<>();
+        protected int[] sampleSizeTable = null;
         /**
-         * List of sync samples. This list is null if all samples are sync samples.
+         * Sorted table of the zero-based indices of the sync samples. This
+         * table is null if all samples are sync samples.
          */
-        protected NavigableSet<Long> syncSamples = null;
+        protected int[] syncSamples = null;
         /**
          * The number of samples in this track.
          */
@@ -1246,25 +1084,18 @@ public class QuickTimeMeta extends AbstractMovie {
         // END Video Media Header
 
         private ArrayList<SampleDescription> sampleDescriptions = new ArrayList<>();
-        /**
-         * Table of samples in the media of this track.
-         * <p>
-         * This value is derived from the media data in this track.
-         * <p>
-         * This value is set to null to indicate that it must be recomputed.
-         * <dl>
-         *     <dt>Map.key</dt><dd>absolute media time of a media sample</dd>
-         *     <dt>Map.value</dt><dd>media samples, may contain multiple
-         *     entries, if there are samples with duration=0. In this
-         *     case, only the last sample has a duration &gt;= 0.</dd>
-         * </dl>
-         */
-        public NavigableMap<Long, ArrayList<MediaSample>> mediaSamples = null;
-
         public void addSampleDescription(SampleDescription d) {
             sampleDescriptions.add(d);
         }
 
+        /**
+         * Returns the decoder configuration record of the first sample
+         * description, or null if the media has none.
+         */
+        public AvcDecoderConfigurationRecord getAvcDecoderConfigurationRecord() {
+            return sampleDescriptions.isEmpty() ? null : sampleDescriptions.get(0).avcDecoderConfigurationRecord;
+        }
+
         /*
                 public void addSample(Sample sample, int sampleDescriptionId, boolean isSyncSample) {
                     mediaDuration += sample.duration;
@@ -1355,10 +1186,10 @@ public class QuickTimeMeta extends AbstractMovie {
                     + ", mediaQuality=" + mediaQuality //
                     + ", soundBalance=" + soundBalance//
                     + ", dataReferenceList=" + dataReferenceList //
-                    + ", chunks=" + chunkOffsets//
+                    + ", chunks=" + chunkOffsets.length//
                     + ", timeToSamples=" + timeToSamples //
-                    + ", sampleSizes=" + sampleSizes
-                    + ", syncSamples=" + syncSamples
+                    + ", sampleSize=" + sampleSize
+                    + ", syncSamples=" + (syncSamples == null ? null : syncSamples.length)
                     + ", sampleCount=" + sampleCount
                     + ", syncInterval=" + syncInterval
                     + ", videoQuality=" + videoQuality
@@ -1396,6 +1227,11 @@ public class QuickTimeMeta extends AbstractMovie {
         protected int videoDepth = -1;
         protected int videoColorTableId = -1;
         protected byte[] extendData;
+        /**
+         * The decoder configuration record of an "avc1" video track, parsed
+         * from the "avcC" atom in {@link #extendData}. Null for other tracks.
+         */
+        protected AvcDecoderConfigurationRecord avcDecoderConfigurationRecord;
         // END Video Sample Description
         // BEGIN Sound Sample Description
         /**
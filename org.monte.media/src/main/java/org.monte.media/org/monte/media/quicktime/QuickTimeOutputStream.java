@@ -6,6 +6,7 @@ package org.monte.media.quicktime;
 
 import org.monte.media.av.Format;
 import org.monte.media.av.codec.video.VideoFormatKeys;
+import org.monte.media.io.AsyncFileImageOutputStream;
 import org.monte.media.io.ByteArrayImageOutputStream;
 import org.monte.media.io.IOStreams;
 import org.monte.media.io.ImageOutputStreamAdapter;
@@ -16,7 +17,6 @@ import org.monte.media.qtff.QTFFImageOutputStream;
 import org.monte.media.util.ByteArray;
 import org.monte.media.util.MathUtil;
 
-import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.ColorModel;
@@ -65,7 +65,7 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
         if (file.exists()) {
             if (!file.delete()) throw new IOException("can not delete file");
         }
-        this.out = new FileImageOutputStream(file);
+        this.out = new AsyncFileImageOutputStream(file);
         this.streamOffset = 0;
         init();
     }
@@ -600,6 +600,7 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
         }
         if (state != States.STARTED) {
             writeProlog();
+            writeFastStartReserve();
             mdatAtom = new WideDataAtom("mdat");
             state = States.STARTED;
         }
@@ -866,7 +867,11 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
             for (int i = 0, n = tracks.size(); i < n; i++) {
             }
             mdatAtom.finish();
-            writeEpilog();
+            if (fastStartOffset >= 0) {
+                writeMovieHeaderIntoReserve(this::writeEpilog);
+            } else {
+                writeEpilog();
+            }
             state = States.FINISHED;
             /*
              for (int i = 0, n = tracks.size(); i < n; i++) {
@@ -1769,12 +1774,12 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
             d.write(0); // flag[2]
             // A 3-byte space for time-to-sample flags. Set this field to 0.
 
-            d.writeUInt(t.syncSamples.size());
+            d.writeUInt(t.syncSamples.cardinality());
             // Number of entries
             //A 32-bit integer containing the count of entries in the sync sample table.
 
-            for (Long number : t.syncSamples) {
-                d.writeUInt(number);
+            for (int i = t.syncSamples.nextSetBit(0); i >= 0; i = t.syncSamples.nextSetBit(i + 1)) {
+                d.writeUInt(i + 1);
                 // Sync sample table A table of sample numbers; each sample
                 // number corresponds to a key frame.
             }
@@ -1860,7 +1865,7 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
         // 32-bit or 64-bit offsets. The latter is useful when managing very
         // large movies. Only one of these variants occurs in any single
         // instance of a sample table atom.
-        if (t.chunks.isEmpty() || t.chunks.get(t.chunks.size() - 1).getChunkOffset() <= 0xffffffffL) {
+        if (t.chunks.isEmpty() || t.chunks.get(t.chunks.size() - 1).getChunkOffset() + mdatOffset <= 0xffffffffL) {
             /* 32-bit chunk offset atom -------- */
             leaf = new DataAtom("stco");
             stblAtom.add(leaf);
@@ -1925,7 +1930,7 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
             // offset table.
 
             for (Chunk c : t.chunks) {
-                d.writeLong(c.getChunkOffset()); // offset
+                d.writeLong(c.getChunkOffset() + mdatOffset); // offset
                 // The offset contains the byte offset from the beginning of the
                 // data stream to the chunk. The table is indexed by chunk
                 // number—the first table entry corresponds to the first chunk,
@@ -1946,8 +1951,13 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
      *
      * @param outputFile     The output file
      * @param compressHeader Whether the movie header shall be compressed.
+     * @throws IllegalStateException if space for the movie header has been
+     *                               reserved with {@link #setFastStartReserve(long)}
      */
     public void toWebOptimizedMovie(File outputFile, boolean compressHeader) throws IOException {
+        if (fastStartOffset >= 0) {
+            throw new IllegalStateException("The movie header has already been written in front of the media data.");
+        }
         finish();
         long originalMdatOffset = mdatAtom.getOffset();
         CompositeAtom originalMoovAtom = moovAtom;
@@ -1988,7 +1998,7 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
                     compressHeader = false;
                     System.err.println("WARNING MP4Writer failed to compress header.");
                 } else {
-                    out = new FileImageOutputStream(outputFile);
+                    out = new AsyncFileImageOutputStream(outputFile);
                     writeProlog();
 
                     // 40 bytes compression headers
@@ -2018,7 +2028,7 @@ public class QuickTimeOutputStream extends AbstractQTFFMovieStream {
                 }
             }
             if (!compressHeader) {
-                out = new FileImageOutputStream(outputFile);
+                out = new AsyncFileImageOutputStream(outputFile);
                 mdatOffset = moovAtom.size();
                 writeProlog();
                 writeEpilog();
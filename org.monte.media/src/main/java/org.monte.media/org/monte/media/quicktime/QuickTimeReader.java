@@ -9,21 +9,16 @@ import org.monte.media.av.BufferFlag;
 import org.monte.media.av.Codec;
 import org.monte.media.av.Format;
 import org.monte.media.av.FormatKeys.MediaType;
-import org.monte.media.av.MovieReader;
+import org.monte.media.av.PrefetchableMovieReader;
 import org.monte.media.av.Registry;
 import org.monte.media.math.Rational;
-import org.monte.media.util.ArrayUtil;
-import org.monte.media.util.MathUtil;
 
 import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.EnumSet;
 
-import static java.lang.Math.min;
 import static org.monte.media.av.BufferFlag.DISCARD;
 import static org.monte.media.av.BufferFlag.END_OF_MEDIA;
 import static org.monte.media.av.BufferFlag.KEYFRAME;
@@ -41,14 +36,15 @@ import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_I
  *
  * @author Werner Randelshofer
  */
-public class QuickTimeReader extends QuickTimeInputStream implements MovieReader {
+public class QuickTimeReader extends QuickTimeInputStream implements PrefetchableMovieReader {
 
     private Buffer[] inputBuffers = null;
     private Codec[] codecs = null;
     public final static Format QUICKTIME = new Format(MediaTypeKey, MediaType.FILE, MimeTypeKey, MIME_QUICKTIME);
 
     /**
-     * Creates a new instance.
+     * Creates a new instance that reads the file with a
+     * {@link javax.imageio.stream.FileImageInputStream}.
      *
      * @param file the input file
      */
@@ -58,6 +54,12 @@ public class QuickTimeReader extends QuickTimeInputStream implements MovieReader
 
     /**
      * Creates a new instance.
+     * <p>
+     * If the stream is a {@link org.monte.media.io.MappedFileImageInputStream},
+     * the samples are read from memory mapped file content. The mapping is
+     * only released by the garbage collector, so on some operating systems
+     * the file can not be deleted or overwritten for a while after the reader
+     * has been closed.
      *
      * @param in the input stream.
      */
@@ -68,27 +70,20 @@ public class QuickTimeReader extends QuickTimeInputStream implements MovieReader
     @Override
     public long findSampleAtTime(int track, Rational seconds) throws IOException {
         ensureRealized();
-        QuickTimeMeta.Track tr = meta.tracks.get(track);
         long timeStamp = seconds.multiply(meta.timeScale).longValue();
-        QuickTimeMeta.TrackSample key = new QuickTimeMeta.TrackSample(null, timeStamp, 0, timeStamp, 0);
-        int result = Collections.binarySearch(tr.trackSamplesList, key, Comparator.comparingLong(a -> a.timeStamp));
-        if (result < 0) result = ~result - 1;
-        result = MathUtil.clamp(result, 0, tr.trackSamplesList.size() - 1);
-        return result;
+        return Math.max(0, getSampleIndex(track).findSampleAtTime(timeStamp));
     }
 
     @Override
     public Rational getSampleTime(int track, long sample) throws IOException {
         ensureRealized();
-        QuickTimeMeta.Track tr = meta.tracks.get(track);
-        return new Rational(tr.trackSamplesList.get((int) sample).timeStamp, meta.timeScale);
+        return new Rational(getSampleIndex(track).getTimeStamp((int) sample), meta.timeScale);
     }
 
     @Override
     public Rational getSampleDuration(int track, long sample) throws IOException {
         ensureRealized();
-        QuickTimeMeta.Track tr = meta.tracks.get(track);
-        return new Rational(tr.trackSamplesList.get((int) sample).duration, meta.timeScale);
+        return new Rational(getSampleIndex(track).getDuration((int) sample), meta.timeScale);
     }
 
     @Override
@@ -154,21 +149,18 @@ public class QuickTimeReader extends QuickTimeInputStream implements MovieReader
     public void read(int track, Buffer buffer) throws IOException {
         ensureRealized();
         QuickTimeMeta.Track tr = meta.tracks.get(track);
-        if (tr.readIndex >= tr.trackSamplesList.size()) {
+        QuickTimeSampleIndex index = getSampleIndex(track);
+        int sample = tr.readIndex;
+        if (sample >= index.getSampleCount()) {
             buffer.setFlagsTo(END_OF_MEDIA, DISCARD);
             buffer.length = 0;
             return;
         }
-        buffer.sequenceNumber = tr.readIndex;
-        var ts = tr.trackSamplesList.get((int) tr.readIndex);
-        var ms = ts.mediaSample;
-
-        in.seek(ms.offset);
-        byte[] b;
-        buffer.data = b = ArrayUtil.reuseByteArray(buffer.data, (int) ms.length);
-        in.readFully(b, 0, (int) ms.length);
+        buffer.sequenceNumber = sample;
+        int length = (int) index.getLength(sample);
+        readSample(track, sample, buffer.reuseByteArray(length), 0, length);
         buffer.offset = 0;
-        buffer.length = (int) ms.length;
+        buffer.length = length;
 
 
         switch (tr.mediaType) {
@@ -179,17 +171,44 @@ public class QuickTimeReader extends QuickTimeInputStream implements MovieReader
             default -> buffer.sampleCount = 1;
         }
         buffer.format = tr.format;
+        buffer.header = tr.mediaType == MediaType.VIDEO ? tr.media.getAvcDecoderConfigurationRecord() : null;
         buffer.track = track;
-        buffer.sampleDuration = new Rational(ts.duration, meta.timeScale);
-        buffer.timeStamp = new Rational(ts.timeStamp, meta.timeScale);
-        buffer.flags = ms.isKeyframe ? EnumSet.of(KEYFRAME) : EnumSet.noneOf(BufferFlag.class);
+        buffer.sampleDuration = new Rational(index.getDuration(sample), meta.timeScale);
+        buffer.timeStamp = new Rational(index.getTimeStamp(sample), meta.timeScale);
+        buffer.flags = index.isSyncSample(sample) ? EnumSet.of(KEYFRAME) : EnumSet.noneOf(BufferFlag.class);
         tr.readIndex++;
     }
 
     @Override
     public int nextTrack() throws IOException {
         ensureRealized();
-        throw new UnsupportedOperationException("nextTrack() not supported yet.");
+        long timeStamp = Long.MAX_VALUE;
+        int nextTrack = -1;
+        for (int t = 0, n = meta.tracks.size(); t < n; t++) {
+            QuickTimeSampleIndex index = getSampleIndex(t);
+            int sample = meta.tracks.get(t).readIndex;
+            if (sample < index.getSampleCount() && index.getTimeStamp(sample) < timeStamp) {
+                timeStamp = index.getTimeStamp(sample);
+                nextTrack = t;
+            }
+        }
+        return nextTrack;
+    }
+
+    @Override
+    public long getReadIndex(int track) throws IOException {
+        ensureRealized();
+        return meta.tracks.get(track).readIndex;
+    }
+
+    @Override
+    public long getSampleOffset(int track, long sample) throws IOException {
+        return getSampleIndex(track).getOffset((int) sample);
+    }
+
+    @Override
+    public long getSampleLength(int track, long sample) throws IOException {
+        return getSampleIndex(track).getLength((int) sample);
     }
 
 
@@ -197,11 +216,11 @@ public class QuickTimeReader extends QuickTimeInputStream implements MovieReader
     @Override
     public void setMovieReadTime(Rational newValue) throws IOException {
         ensureRealized();
+        long timeStamp = newValue.multiply(meta.timeScale).longValue();
         for (int t = 0, n = meta.tracks.size(); t < n; t++) {
-            QuickTimeMeta.Track tr = meta.tracks.get(t);
-            int sample = (int) min(findSampleAtTime(t, newValue), tr.media.sampleCount - 1);
-            for (; sample > 0 && !tr.trackSamplesList.get(sample).mediaSample.isKeyframe; sample--) ;
-            tr.readIndex = sample;
+            QuickTimeSampleIndex index = getSampleIndex(t);
+            int sample = index.findSampleAtTime(timeStamp);
+            meta.tracks.get(t).readIndex = sample < 0 ? 0 : index.findSyncSampleAtOrBefore(sample);
         }
     }
 
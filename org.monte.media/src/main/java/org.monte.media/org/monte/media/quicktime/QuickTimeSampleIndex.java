@@ -0,0 +1,325 @@
+/*
+ * @(#)QuickTimeSampleIndex.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.quicktime;
+
+import org.monte.media.util.SampleTable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The samples of a QuickTime track, as they are presented by the edit list of
+ * the track.
+ * <p>
+ * The media samples are stored in a {@link SampleTable}, which is built once
+ * from the sample tables of the media ("stts", "stsc", "stsz", "stco" and
+ * "stss" atoms). Time stamps in the sample table are in the media time scale.
+ * <p>
+ * The edit list is resolved into segments. Each segment presents a
+ * contiguous range of media samples at a position in the track. A segment
+ * starts with the last sync sample at or before the media time of its
+ * edit, so that the samples can be decoded. Samples that precede the media
+ * time of the edit have a duration of 0. Empty edits only shift the
+ * segments that follow them.
+ * <p>
+ * Track samples are numbered consecutively over all segments. The time of a
+ * track sample is computed from its segment, therefore the index stores a
+ * few values per segment instead of one object per sample, and maps between
+ * time and samples with binary searches.
+ *
+ * @author Werner Randelshofer
+ */
+class QuickTimeSampleIndex {
+    private final SampleTable media;
+    private final long movieTimeScale;
+    private final long mediaTimeScale;
+
+    private final int segmentCount;
+    /**
+     * The start time of each segment in the movie time scale.
+     */
+    private final long[] segmentTrackTime;
+    /**
+     * The start and end time of the media that each segment presents, in the
+     * media time scale.
+     */
+    private final long[] segmentMediaTime;
+    private final long[] segmentMediaEnd;
+    private final double[] segmentRate;
+    /**
+     * The index of the first track sample of each segment. The last element
+     * holds the total number of track samples.
+     */
+    private final int[] segmentFirstSample;
+    /**
+     * The index of the first media sample of each segment.
+     */
+    private final int[] segmentFirstMediaSample;
+
+    private QuickTimeSampleIndex(SampleTable media, long movieTimeScale, long mediaTimeScale, List<QuickTimeMeta.Edit> editList) {
+        this.media = media;
+        this.movieTimeScale = movieTimeScale;
+        this.mediaTimeScale = mediaTimeScale;
+
+        int n = editList.size();
+        long[] trackTime = new long[n];
+        long[] mediaTime = new long[n];
+        long[] mediaEnd = new long[n];
+        double[] rate = new double[n];
+        int[] firstSample = new int[n + 1];
+        int[] firstMediaSample = new int[n];
+        int count = 0;
+        int sampleCount = 0;
+        long editTrackTime = 0;
+        for (QuickTimeMeta.Edit edit : editList) {
+            long start = editTrackTime;
+            editTrackTime += edit.trackDuration;
+            if (edit.mediaTime == -1 || edit.trackDuration == 0 || media.isEmpty()) {
+                continue;
+            }
+            long end = edit.mediaTime + (long) (edit.trackDuration * edit.mediaRate * mediaTimeScale / movieTimeScale);
+            int first = media.findSampleAtTime(edit.mediaTime);
+            int keyframe = media.findKeyframeAtOrBefore(first);
+            if (keyframe >= 0) {
+                first = keyframe;
+            }
+            int last = media.findSampleAtTime(end - 1);
+            if (media.getTimeStamp(last) >= end || last < first) {
+                continue;
+            }
+            trackTime[count] = start;
+            mediaTime[count] = edit.mediaTime;
+            mediaEnd[count] = end;
+            rate[count] = edit.mediaRate;
+            firstSample[count] = sampleCount;
+            firstMediaSample[count] = first;
+            sampleCount += last - first + 1;
+            count++;
+        }
+        firstSample[count] = sampleCount;
+
+        this.segmentCount = count;
+        this.segmentTrackTime = Arrays.copyOf(trackTime, count);
+        this.segmentMediaTime = Arrays.copyOf(mediaTime, count);
+        this.segmentMediaEnd = Arrays.copyOf(mediaEnd, count);
+        this.segmentRate = Arrays.copyOf(rate, count);
+        this.segmentFirstSample = Arrays.copyOf(firstSample, count + 1);
+        this.segmentFirstMediaSample = Arrays.copyOf(firstMediaSample, count);
+    }
+
+    /**
+     * Builds the index of a track.
+     *
+     * @param track          the track
+     * @param movieTimeScale the time scale of the movie
+     * @return the index
+     * @throws IOException if the sample tables of the media are incomplete
+     */
+    static QuickTimeSampleIndex build(QuickTimeMeta.Track track, long movieTimeScale) throws IOException {
+        QuickTimeMeta.Media m = track.media;
+        if (m == null) {
+            throw new IOException("track " + track.trackId + ": 'mdia' atom does not exist or is incomplete");
+        }
+        SampleTable table = buildMediaSamples(track.trackId, m);
+        List<QuickTimeMeta.Edit> editList = track.editList;
+        if (editList.isEmpty()) {
+            // Without an edit list, the entire media is presented at the
+            // start of the track.
+            long mediaEnd = table.getEndTime();
+            long trackDuration = (mediaEnd * movieTimeScale + m.mediaTimeScale - 1) / m.mediaTimeScale;
+            editList = List.of(new QuickTimeMeta.Edit(trackDuration, 0, 1.0));
+        }
+        return new QuickTimeSampleIndex(table, movieTimeScale, m.mediaTimeScale, editList);
+    }
+
+    private static SampleTable buildMediaSamples(int trackId, QuickTimeMeta.Media m) throws IOException {
+        if (m.sampleSizeTable == null && m.sampleSize == 0) {
+            throw new IOException("track " + trackId + ": 'mdia' atom does not contain an 'stsz' atom.");
+        }
+        if (m.samplesToChunks.isEmpty()) {
+            throw new IOException("track " + trackId + ": 'mdia' atom does not contain an 'stsc' atom.");
+        }
+        if (m.timeToSamples.isEmpty()) {
+            throw new IOException("track " + trackId + ": 'mdia' atom does not contain an 'stts' atom.");
+        }
+        if (m.chunkOffsets.length == 0) {
+            throw new IOException("track " + trackId + ": 'mdia' atom does neither contain an 'stco' nor an 'co64' atom.");
+        }
+
+        SampleTable table = new SampleTable();
+        long sampleCount = m.sampleSizeTable == null ? m.sampleCount : Math.min(m.sampleCount, m.sampleSizeTable.length);
+        List<QuickTimeMeta.SampleToChunk> stsc = m.samplesToChunks;
+        List<QuickTimeMeta.TimeToSampleGroup> stts = m.timeToSamples;
+        int[] syncSamples = m.syncSamples;
+
+        int stscIndex = 0;
+        int sttsIndex = 0;
+        long sttsRemaining = stts.get(0).sampleCount;
+        int syncIndex = 0;
+        long time = 0;
+        int sample = 0;
+        for (int chunk = 1; sample < sampleCount; chunk++) {
+            while (stscIndex + 1 < stsc.size() && stsc.get(stscIndex + 1).firstChunk <= chunk) {
+                stscIndex++;
+            }
+            QuickTimeMeta.SampleToChunk entry = stsc.get(stscIndex);
+            if (chunk > m.chunkOffsets.length || entry.firstChunk > chunk) {
+                throw new IOException("track " + trackId + ": 'stco' or 'co64' atom does not contain an entry for chunkId=" + chunk);
+            }
+            long offset = m.chunkOffsets[chunk - 1];
+            for (int i = 0; i < entry.samplesPerChunk && sample < sampleCount; i++) {
+                while (sttsRemaining == 0) {
+                    sttsIndex++;
+                    if (sttsIndex == stts.size()) {
+                        throw new IOException("track " + trackId + ": 'stts' atom does not contain an entry for sample=" + sample);
+                    }
+                    sttsRemaining = stts.get(sttsIndex).sampleCount;
+                }
+                long duration = stts.get(sttsIndex).getSampleDuration();
+                long length = m.sampleSizeTable == null ? m.sampleSize : m.sampleSizeTable[sample];
+                boolean sync = syncSamples == null;
+                if (!sync) {
+                    while (syncIndex < syncSamples.length && syncSamples[syncIndex] < sample) {
+                        syncIndex++;
+                    }
+                    sync = syncIndex < syncSamples.length && syncSamples[syncIndex] == sample;
+                }
+                table.add(entry.sampleDescription, offset, length, time, (int) duration, sync);
+                offset += length;
+                time += duration;
+                sttsRemaining--;
+                sample++;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns the number of samples in the track.
+     */
+    int getSampleCount() {
+        return segmentFirstSample[segmentCount];
+    }
+
+    /**
+     * Returns the index of the media sample that is presented by the
+     * specified track sample.
+     */
+    int getMediaSample(int sample) {
+        int segment = segmentOf(sample);
+        return segmentFirstMediaSample[segment] + sample - segmentFirstSample[segment];
+    }
+
+    /**
+     * Returns the offset of the sample data in the file.
+     */
+    long getOffset(int sample) {
+        return media.getOffset(getMediaSample(sample));
+    }
+
+    /**
+     * Returns the length of the sample data in bytes.
+     */
+    long getLength(int sample) {
+        return media.getLength(getMediaSample(sample));
+    }
+
+    /**
+     * Returns true if the sample is a sync sample (a keyframe).
+     */
+    boolean isSyncSample(int sample) {
+        return media.isKeyframe(getMediaSample(sample));
+    }
+
+    /**
+     * Returns the time stamp of the sample in the movie time scale.
+     */
+    long getTimeStamp(int sample) {
+        int segment = segmentOf(sample);
+        int m = segmentFirstMediaSample[segment] + sample - segmentFirstSample[segment];
+        return toTrackTime(segment, Math.max(media.getTimeStamp(m), segmentMediaTime[segment]));
+    }
+
+    /**
+     * Returns the duration of the sample in the movie time scale.
+     */
+    long getDuration(int sample) {
+        int segment = segmentOf(sample);
+        int m = segmentFirstMediaSample[segment] + sample - segmentFirstSample[segment];
+        long mediaStart = media.getTimeStamp(m);
+        long start = Math.max(mediaStart, segmentMediaTime[segment]);
+        long end = Math.min(mediaStart + media.getDuration(m), segmentMediaEnd[segment]);
+        return end <= start ? 0 : toTrackTime(segment, end) - toTrackTime(segment, start);
+    }
+
+    /**
+     * Returns the index of the sample that is presented at the specified
+     * time.
+     *
+     * @param trackTime a time in the movie time scale
+     * @return the index of the sample, 0 if the time is before the first
+     * sample, the last sample if the time is after the last sample, or -1
+     * if the track has no samples
+     */
+    int findSampleAtTime(long trackTime) {
+        if (segmentCount == 0) {
+            return -1;
+        }
+        int segment = Arrays.binarySearch(segmentTrackTime, trackTime);
+        if (segment < 0) {
+            segment = Math.max(0, ~segment - 1);
+        } else {
+            // Several segments may start at the same time, if the first ones
+            // are presented for a very short time
+            while (segment + 1 < segmentCount && segmentTrackTime[segment + 1] == trackTime) {
+                segment++;
+            }
+        }
+        long mediaTime = toMediaTime(segment, Math.max(trackTime, segmentTrackTime[segment]));
+        mediaTime = Math.min(mediaTime, segmentMediaEnd[segment] - 1);
+        int first = segmentFirstMediaSample[segment];
+        int last = first + segmentFirstSample[segment + 1] - segmentFirstSample[segment] - 1;
+        int m = Math.max(first, Math.min(last, media.findSampleAtTime(mediaTime)));
+        return segmentFirstSample[segment] + m - first;
+    }
+
+    /**
+     * Returns the index of the last sync sample at or before the specified
+     * sample, from where decoding can start. The search does not go past the
+     * first sample of the edit that contains the sample.
+     */
+    int findSyncSampleAtOrBefore(int sample) {
+        int segment = segmentOf(sample);
+        int first = segmentFirstMediaSample[segment];
+        int m = first + sample - segmentFirstSample[segment];
+        int keyframe = media.findKeyframeAtOrBefore(m);
+        return segmentFirstSample[segment] + Math.max(keyframe, first) - first;
+    }
+
+    private int segmentOf(int sample) {
+        if (sample < 0 || sample >= getSampleCount()) {
+            throw new IndexOutOfBoundsException("sample=" + sample + ", sampleCount=" + getSampleCount());
+        }
+        int segment = Arrays.binarySearch(segmentFirstSample, 0, segmentCount, sample);
+        return segment >= 0 ? segment : ~segment - 1;
+    }
+
+    private long toTrackTime(int segment, long mediaTime) {
+        long t = mediaTime - segmentMediaTime[segment];
+        double rate = segmentRate[segment];
+        return segmentTrackTime[segment] + (rate == 1.0
+                ? t * movieTimeScale / mediaTimeScale
+                : (long) (t * movieTimeScale / (rate * mediaTimeScale)));
+    }
+
+    private long toMediaTime(int segment, long trackTime) {
+        long t = trackTime - segmentTrackTime[segment];
+        double rate = segmentRate[segment];
+        return segmentMediaTime[segment] + (rate == 1.0
+                ? t * mediaTimeScale / movieTimeScale
+                : (long) (t * rate * mediaTimeScale / movieTimeScale));
+    }
+}
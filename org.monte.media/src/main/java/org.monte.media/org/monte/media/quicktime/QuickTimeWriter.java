@@ -20,6 +20,7 @@ import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
@@ -162,6 +163,11 @@ public class QuickTimeWriter extends QuickTimeOutputStream implements MovieWrite
         public Codec codec;
         public Buffer outputBuffer;
         public Buffer inputBuffer;
+        /**
+         * Holds the data of an input buffer with a {@code ByteBuffer} as a
+         * {@code byte} array.
+         */
+        public Buffer byteArrayView;
     }
 
     private List<TrackEncoder> trackEncoders = new ArrayList<>();
@@ -449,6 +455,12 @@ public class QuickTimeWriter extends QuickTimeOutputStream implements MovieWrite
         ensureStarted();
         AbstractQTFFMovieStream.Track tr = tracks.get(track);
         TrackEncoder tre = getTrackEncoder(track);
+        if (buf.data instanceof ByteBuffer) {
+            if (tre.byteArrayView == null) {
+                tre.byteArrayView = new Buffer();
+            }
+            buf = buf.asByteArrayBuffer(tre.byteArrayView);
+        }
 
         // Encode sample data
 
@@ -32,7 +32,7 @@ import static org.monte.media.av.codec.audio.AudioFormatKeys.SignedKey;
  * {@code AbstractPCMAudioCodec} performs sign conversion, endian conversion and
  * quantization conversion of PCM audio data.
  * <p>
- * Does not perform sampling rate conversion or channel conversion.
+ * Also performs sampling rate conversion and channel conversion.
  *
  * @author Werner Randelshofer
  */
@@ -0,0 +1,220 @@
+/*
+ * @(#)SampleTable.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.util;
+
+import java.util.Arrays;
+
+/**
+ * Stores the metadata of the samples of a track in primitive arrays.
+ * <p>
+ * Each sample has a type, an offset and a length in the file, a time stamp,
+ * a duration, and a keyframe flag. The values are stored column by column in
+ * pages of {@value #PAGE_SIZE} entries, so that adding a sample never copies
+ * more than the page directory, and so that a track with millions of samples
+ * does not need millions of objects.
+ * <p>
+ * The time stamps of the samples must be non-decreasing.
+ */
+public class SampleTable {
+    private final static int PAGE_SHIFT = 12;
+    private final static int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private final static int PAGE_MASK = PAGE_SIZE - 1;
+
+    private int[][] types = new int[0][];
+    private long[][] offsets = new long[0][];
+    private int[][] lengths = new int[0][];
+    private long[][] timeStamps = new long[0][];
+    private int[][] durations = new int[0][];
+    /**
+     * One bit per sample, the bit is set if the sample is a keyframe.
+     */
+    private long[] keyframes = new long[0];
+    private int size;
+
+    /**
+     * Creates a new empty table.
+     */
+    public SampleTable() {
+    }
+
+    /**
+     * Returns the number of samples.
+     *
+     * @return the number of samples
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the table contains no samples.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param type      the type of the sample, for example an AVI chunk id
+     * @param offset    the offset of the sample data
+     * @param length    the length of the sample data, must be between 0 and
+     *                  {@code 0xffffffffL}
+     * @param timeStamp the time stamp of the sample, must not be smaller than
+     *                  the time stamp of the previous sample
+     * @param duration  the duration of the sample
+     * @param keyframe  whether the sample is a keyframe
+     * @return the index of the sample
+     */
+    public int add(int type, long offset, long length, long timeStamp, int duration, boolean keyframe) {
+        if (length < 0 || length > 0xffffffffL) {
+            throw new IllegalArgumentException("length out of range: " + length);
+        }
+        int index = size;
+        int page = index >>> PAGE_SHIFT;
+        if (page == offsets.length) {
+            addPage();
+        }
+        int i = index & PAGE_MASK;
+        types[page][i] = type;
+        offsets[page][i] = offset;
+        lengths[page][i] = (int) length;
+        timeStamps[page][i] = timeStamp;
+        durations[page][i] = duration;
+        if (keyframe) {
+            keyframes[index >>> 6] |= 1L << index;
+        }
+        size++;
+        return index;
+    }
+
+    private void addPage() {
+        int n = offsets.length;
+        types = Arrays.copyOf(types, n + 1);
+        offsets = Arrays.copyOf(offsets, n + 1);
+        lengths = Arrays.copyOf(lengths, n + 1);
+        timeStamps = Arrays.copyOf(timeStamps, n + 1);
+        durations = Arrays.copyOf(durations, n + 1);
+        types[n] = new int[PAGE_SIZE];
+        offsets[n] = new long[PAGE_SIZE];
+        lengths[n] = new int[PAGE_SIZE];
+        timeStamps[n] = new long[PAGE_SIZE];
+        durations[n] = new int[PAGE_SIZE];
+        keyframes = Arrays.copyOf(keyframes, (n + 1) * (PAGE_SIZE / 64));
+    }
+
+    public int getType(int index) {
+        checkIndex(index);
+        return types[index >>> PAGE_SHIFT][index & PAGE_MASK];
+    }
+
+    public long getOffset(int index) {
+        checkIndex(index);
+        return offsets[index >>> PAGE_SHIFT][index & PAGE_MASK];
+    }
+
+    public long getLength(int index) {
+        checkIndex(index);
+        return lengths[index >>> PAGE_SHIFT][index & PAGE_MASK] & 0xffffffffL;
+    }
+
+    public long getTimeStamp(int index) {
+        checkIndex(index);
+        return timeStamps[index >>> PAGE_SHIFT][index & PAGE_MASK];
+    }
+
+    public int getDuration(int index) {
+        checkIndex(index);
+        return durations[index >>> PAGE_SHIFT][index & PAGE_MASK];
+    }
+
+    public boolean isKeyframe(int index) {
+        checkIndex(index);
+        return (keyframes[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public void setKeyframe(int index, boolean keyframe) {
+        checkIndex(index);
+        if (keyframe) {
+            keyframes[index >>> 6] |= 1L << index;
+        } else {
+            keyframes[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * Returns the time stamp after the last sample.
+     *
+     * @return the time stamp plus the duration of the last sample, or 0 if
+     * the table is empty
+     */
+    public long getEndTime() {
+        return size == 0 ? 0 : getTimeStamp(size - 1) + getDuration(size - 1);
+    }
+
+    /**
+     * Returns the index of the last sample with a time stamp less than or
+     * equal to the specified time stamp.
+     *
+     * @param timeStamp a time stamp
+     * @return the index of the sample, 0 if the time stamp is before the first
+     * sample, or -1 if the table is empty
+     */
+    public int findSampleAtTime(long timeStamp) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (timeStamps[mid >>> PAGE_SHIFT][mid & PAGE_MASK] <= timeStamp) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return size == 0 ? -1 : Math.max(0, low - 1);
+    }
+
+    /**
+     * Returns the index of the last keyframe at or before the specified
+     * sample.
+     *
+     * @param index a sample index
+     * @return the index of the keyframe, or -1 if there is none
+     */
+    public int findKeyframeAtOrBefore(int index) {
+        checkIndex(index);
+        int word = index >>> 6;
+        long bits = keyframes[word] & (-1L >>> (63 - (index & 63)));
+        while (bits == 0) {
+            if (--word < 0) {
+                return -1;
+            }
+            bits = keyframes[word];
+        }
+        return word * 64 + 63 - Long.numberOfLeadingZeros(bits);
+    }
+
+    /**
+     * Removes all samples.
+     */
+    public void clear() {
+        types = new int[0][];
+        offsets = new long[0][];
+        lengths = new int[0][];
+        timeStamps = new long[0][];
+        durations = new int[0][];
+        keyframes = new long[0];
+        size = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * @(#)BufferRingJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares an {@link ArrayBlockingQueue} that receives a new buffer with a
+ * new data array for each sample, with a {@link BufferRing} that reuses its
+ * slots.
+ * <p>
+ * Each operation hands 100'000 samples of 1 KiB from a producer thread over
+ * to the benchmark thread. The score is in operations per second.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class BufferRingJmh {
+    private final static int SAMPLE_COUNT = 100_000;
+    private final static int SAMPLE_SIZE = 1024;
+    private final static int CAPACITY = 16;
+
+    @Param({"YIELD", "PARK"})
+    public BufferRing.WaitStrategy waitStrategy;
+
+    private final byte[] sample = new byte[SAMPLE_SIZE];
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(BufferRingJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Benchmark
+    public long arrayBlockingQueue() throws InterruptedException {
+        ArrayBlockingQueue<Buffer> queue = new ArrayBlockingQueue<>(CAPACITY);
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < SAMPLE_COUNT; i++) {
+                    Buffer buf = new Buffer();
+                    buf.data = sample.clone();
+                    buf.length = SAMPLE_SIZE;
+                    buf.sequenceNumber = i;
+                    queue.put(buf);
+                }
+            } catch (InterruptedException e) {
+                // terminate
+            }
+        });
+        producer.start();
+        long sum = 0;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            Buffer buf = queue.take();
+            sum += buf.sequenceNumber + ((byte[]) buf.data)[i & (SAMPLE_SIZE - 1)];
+        }
+        producer.join();
+        return sum;
+    }
+
+    @Benchmark
+    public long bufferRing() throws InterruptedException {
+        BufferRing ring = new BufferRing(CAPACITY, waitStrategy, b -> b.data = new byte[SAMPLE_SIZE]);
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < SAMPLE_COUNT; i++) {
+                    Buffer buf = ring.claim();
+                    System.arraycopy(sample, 0, (byte[]) buf.data, 0, SAMPLE_SIZE);
+                    buf.length = SAMPLE_SIZE;
+                    buf.sequenceNumber = i;
+                    ring.publish();
+                }
+            } catch (InterruptedException e) {
+                // terminate
+            }
+        });
+        producer.start();
+        long sum = 0;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            Buffer buf = ring.take();
+            sum += buf.sequenceNumber + ((byte[]) buf.data)[i & (SAMPLE_SIZE - 1)];
+            ring.recycle();
+        }
+        producer.join();
+        return sum;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * @(#)BufferRingTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BufferRingTest {
+    @Test
+    public void shouldRoundCapacityUpToPowerOfTwo() {
+        assertEquals(1, new BufferRing(1, BufferRing.WaitStrategy.SPIN).getCapacity());
+        assertEquals(8, new BufferRing(5, BufferRing.WaitStrategy.SPIN).getCapacity());
+        assertEquals(16, new BufferRing(16, BufferRing.WaitStrategy.SPIN).getCapacity());
+        assertThrows(IllegalArgumentException.class, () -> new BufferRing(0, BufferRing.WaitStrategy.SPIN));
+    }
+
+    @Test
+    public void shouldReuseSlotsAndTheirData() {
+        BufferRing ring = new BufferRing(2, BufferRing.WaitStrategy.SPIN, b -> b.data = new byte[16]);
+        Buffer first = ring.tryClaim();
+        Object firstData = first.data;
+        first.sequenceNumber = 1;
+        ring.publish();
+        Buffer second = ring.tryClaim();
+        second.sequenceNumber = 2;
+        ring.publish();
+        assertNull(ring.tryClaim());
+        assertEquals(2, ring.size());
+        assertEquals(2, ring.getMaxSize());
+
+        assertEquals(1, ring.peek().sequenceNumber);
+        ring.recycle();
+        Buffer third = ring.tryClaim();
+        assertSame(first, third);
+        assertSame(firstData, third.data);
+        third.sequenceNumber = 3;
+        ring.publish();
+
+        assertEquals(2, ring.peek().sequenceNumber);
+        ring.recycle();
+        assertEquals(3, ring.peek().sequenceNumber);
+        ring.recycle();
+        assertNull(ring.peek());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void shouldTransferBuffersInOrder() throws Exception {
+        for (BufferRing.WaitStrategy strategy : BufferRing.WaitStrategy.values()) {
+            BufferRing ring = new BufferRing(4, strategy, b -> b.data = new byte[8]);
+            int count = 2_000;
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        Buffer slot = ring.claim();
+                        slot.sequenceNumber = i;
+                        ((byte[]) slot.data)[0] = (byte) i;
+                        ring.publish();
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            producer.start();
+            for (int i = 0; i < count; i++) {
+                Buffer slot = ring.take();
+                assertEquals(i, slot.sequenceNumber, strategy.toString());
+                assertEquals((byte) i, ((byte[]) slot.data)[0], strategy.toString());
+                ring.recycle();
+            }
+            producer.join();
+            assertNull(failure.get());
+            assertTrue(ring.getMaxSize() <= ring.getCapacity());
+        }
+    }
+
+    @Test
+    public void shouldUnparkWaitingThreads() throws Exception {
+        BufferRing ring = new BufferRing(1, BufferRing.WaitStrategy.PARK);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 2; i++) {
+                    assertEquals(i, ring.take().sequenceNumber);
+                    ring.recycle();
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        consumer.start();
+        // Let the consumer park, then publish
+        while (consumer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        ring.claim().sequenceNumber = 0;
+        ring.publish();
+        // The ring is full until the consumer recycles the slot
+        ring.claim().sequenceNumber = 1;
+        ring.publish();
+        consumer.join(5000);
+        assertNull(failure.get());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void shouldStopWaitingWhenInterrupted() throws Exception {
+        BufferRing ring = new BufferRing(1, BufferRing.WaitStrategy.PARK);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                ring.take();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        consumer.start();
+        consumer.interrupt();
+        consumer.join(5000);
+        assertNotNull(failure.get());
+        assertTrue(failure.get() instanceof InterruptedException);
+        assertEquals(1, ring.getEmptyCount());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * @(#)BufferTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BufferTest {
+    @Test
+    public void setDataToShouldReuseCompatibleImage() {
+        BufferedImage img = new BufferedImage(8, 4, BufferedImage.TYPE_INT_RGB);
+        img.setRGB(3, 2, 0x123456);
+        Buffer in = new Buffer();
+        in.data = img;
+        Buffer out = new Buffer();
+        assertEquals(Codec.CODEC_OK, out.setDataTo(in));
+        Object firstCopy = out.data;
+
+        img.setRGB(3, 2, 0x654321);
+        assertEquals(Codec.CODEC_OK, out.setDataTo(in));
+        assertSame(firstCopy, out.data);
+        assertEquals(0x654321, ((BufferedImage) out.data).getRGB(3, 2) & 0xffffff);
+        assertNull(out.header);
+    }
+
+    @Test
+    public void releaseShouldReturnDataToPool() {
+        BufferPool pool = new BufferPool(1 << 20, false);
+        Buffer buf = new Buffer(pool);
+        byte[] borrowed = buf.reuseByteArray(1000);
+        assertEquals(1024, borrowed.length);
+
+        buf.retain();
+        assertFalse(buf.release());
+        assertTrue(buf.release());
+        assertNull(buf.data);
+        assertEquals(1024, pool.getRetainedBytes());
+
+        assertSame(borrowed, pool.borrowByteArray(600));
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void asByteArrayBufferShouldCopyDirectByteBuffer() {
+        ByteBuffer bb = ByteBuffer.allocateDirect(8);
+        bb.put(new byte[]{1, 2, 3, 4, 5}).flip().position(1);
+        Buffer buf = new Buffer();
+        buf.data = bb;
+        buf.track = 3;
+        Buffer view = buf.asByteArrayBuffer(new Buffer());
+        assertEquals(3, view.track);
+        assertEquals(4, view.length);
+        byte[] actual = new byte[view.length];
+        System.arraycopy((byte[]) view.data, view.offset, actual, 0, view.length);
+        assertArrayEquals(new byte[]{2, 3, 4, 5}, actual);
+        assertEquals(1, bb.position());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * @(#)DefaultRegistryJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of a codec lookup with a full scan over all codecs,
+ * with the format index, and with the format index and a codec pool.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class DefaultRegistryJmh {
+    private Format[][] queries;
+    private DefaultRegistry registry;
+    private DefaultRegistry pooledRegistry;
+    private int index;
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(DefaultRegistryJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queries = DefaultRegistryTest.queries();
+        registry = new DefaultRegistry();
+        pooledRegistry = new DefaultRegistry();
+        pooledRegistry.setCodecPoolCapacity(4);
+    }
+
+    private Format[] nextQuery() {
+        index = index + 1;
+        if (index >= queries.length) index = 0;
+        return queries[index];
+    }
+
+    @Benchmark
+    public List<Codec> fullScan() {
+        Format[] q = nextQuery();
+        return DefaultRegistryTest.getCodecsByFullScan(q[0], q[1]);
+    }
+
+    @Benchmark
+    public List<Codec> indexed() {
+        Format[] q = nextQuery();
+        return registry.getCodecs(q[0], q[1]);
+    }
+
+    @Benchmark
+    public List<Codec> indexedAndPooled() {
+        Format[] q = nextQuery();
+        List<Codec> codecs = pooledRegistry.getCodecs(q[0], q[1]);
+        for (Codec c : codecs) {
+            pooledRegistry.releaseCodec(c);
+        }
+        return codecs;
+    }
+}
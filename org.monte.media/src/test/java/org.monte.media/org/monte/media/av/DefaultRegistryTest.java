@@ -0,0 +1,106 @@
+/*
+ * @(#)DefaultRegistryTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.monte.media.math.Rational;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.MIME_AVI;
+import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVC1;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_QUICKTIME_ANIMATION;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+
+public class DefaultRegistryTest {
+    static Format[][] queries() {
+        Format image = new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO, EncodingKey, ENCODING_BUFFERED_IMAGE,
+                DataClassKey, BufferedImage.class, WidthKey, 320, HeightKey, 200, DepthKey, 24);
+        return new Format[][]{
+                {null, new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO, EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, MimeTypeKey, MIME_AVI, DepthKey, 24)},
+                {null, new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO, EncodingKey, ENCODING_QUICKTIME_ANIMATION, MimeTypeKey, MIME_QUICKTIME, DepthKey, 24)},
+                {null, new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO, EncodingKey, ENCODING_AVC1)},
+                {null, new Format(MimeTypeKey, MIME_QUICKTIME, MediaTypeKey, FormatKeys.MediaType.VIDEO)},
+                {new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO, EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE), null},
+                {image, new Format(EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, FrameRateKey, new Rational(30, 1), DepthKey, 24)},
+                {image, null},
+                {null, null},
+        };
+    }
+
+    @TestFactory
+    public Stream<DynamicTest> indexedLookupShouldFindSameCodecsAsFullScan() {
+        List<DynamicTest> tests = new ArrayList<>();
+        for (Format[] q : queries()) {
+            tests.add(dynamicTest(q[0] + " -> " + q[1], () -> testLookup(q[0], q[1])));
+        }
+        return tests.stream();
+    }
+
+    private void testLookup(Format in, Format out) {
+        List<String> expected = new ArrayList<>();
+        for (Codec codec : getCodecsByFullScan(in, out)) {
+            expected.add(codec.getClass().getName());
+        }
+        List<String> actual = new ArrayList<>();
+        for (Codec codec : new DefaultRegistry().getCodecs(in, out)) {
+            actual.add(codec.getClass().getName());
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void releasedCodecShouldBeHandedOutAgain() {
+        Format out = queries()[0][1];
+        DefaultRegistry registry = new DefaultRegistry();
+        Codec first = registry.getCodec(null, out);
+        registry.releaseCodec(first);
+        assertNotSame(first, registry.getCodec(null, out), "pool is disabled by default");
+
+        registry.setCodecPoolCapacity(2);
+        Codec second = registry.getCodec(null, out);
+        registry.releaseCodec(second);
+        assertSame(second, registry.getCodec(null, out));
+    }
+
+    /**
+     * This is how codecs were looked up before the registry had an index.
+     */
+    static List<Codec> getCodecsByFullScan(Format inputFormat, Format outputFormat) {
+        List<Codec> codecs = new ArrayList<>();
+        for (CodecSpi spi : ServiceLoader.load(CodecSpi.class)) {
+            Codec codec = spi.create();
+            if (inputFormat != null && codec.setInputFormat(inputFormat) == null) {
+                continue;
+            }
+            if (outputFormat != null && codec.setOutputFormat(outputFormat) == null) {
+                continue;
+            }
+            codecs.add(codec);
+        }
+        return codecs;
+    }
+}
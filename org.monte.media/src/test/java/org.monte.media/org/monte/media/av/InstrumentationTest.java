@@ -0,0 +1,96 @@
+/*
+ * @(#)InstrumentationTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InstrumentationTest {
+    /**
+     * Copies its input, and discards every second buffer.
+     */
+    public static class HalvingCodec extends AbstractCodec {
+        public HalvingCodec() {
+            super(new Format[]{new Format()});
+        }
+
+        @Override
+        public int process(Buffer in, Buffer out) {
+            out.setMetaTo(in);
+            out.setDataTo(in);
+            out.setFlag(BufferFlag.DISCARD, in.sequenceNumber % 2 == 1);
+            return CODEC_OK;
+        }
+    }
+
+    /**
+     * Copies its input.
+     */
+    public static class CopyingCodec extends AbstractCodec {
+        public CopyingCodec() {
+            super(new Format[]{new Format()});
+        }
+
+        @Override
+        public int process(Buffer in, Buffer out) {
+            out.setMetaTo(in);
+            out.setDataTo(in);
+            return CODEC_OK;
+        }
+    }
+
+    @Test
+    public void shouldNotInstrumentWhenDisabled() {
+        Codec codec = new CopyingCodec();
+        assertSame(codec, Instrumentation.instrument(codec));
+    }
+
+    @Test
+    public void shouldRecordEachStageOfACodecChain() throws Exception {
+        Codec chain;
+        Instrumentation.setEnabled(true);
+        try {
+            chain = Instrumentation.instrument(CodecChain.createCodecChain(new HalvingCodec(), new CopyingCodec()));
+            assertTrue(Instrumentation.instrument(new CopyingCodec()) instanceof InstrumentedCodec);
+        } finally {
+            Instrumentation.setEnabled(false);
+        }
+        StageStatistics halving = Instrumentation.getStatistics("codec HalvingCodec");
+        StageStatistics copying = Instrumentation.getStatistics("codec CopyingCodec");
+        halving.reset();
+        copying.reset();
+
+        Buffer in = new Buffer();
+        in.data = new byte[100];
+        in.length = 100;
+        Buffer out = new Buffer();
+        for (int i = 0; i < 10; i++) {
+            in.sequenceNumber = i;
+            assertEquals(Codec.CODEC_OK, chain.process(in, out));
+        }
+
+        StageStatistics.Snapshot first = halving.getSnapshot();
+        assertEquals(10, first.callCount());
+        assertEquals(5, first.discardCount());
+        assertEquals(1000, first.bytesIn());
+        assertEquals(500, first.bytesOut());
+        assertTrue(first.maxNanos() >= first.p50Nanos());
+
+        StageStatistics.Snapshot second = copying.getSnapshot();
+        assertEquals(10, second.callCount());
+        assertEquals(500, second.bytesIn());
+        assertTrue(Instrumentation.getSnapshots().stream().anyMatch(s -> s.name().equals("codec CopyingCodec")));
+
+        ObjectName name = new ObjectName("org.monte.media:type=Stage,name=" + ObjectName.quote("codec HalvingCodec"));
+        assertEquals(10L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CallCount"));
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * @(#)LatencyHistogramTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void shouldMapEveryValueIntoABucketThatContainsIt() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 65, 1000, 123_456_789L, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long v : values) {
+            int index = LatencyHistogram.indexOf(v);
+            assertTrue(LatencyHistogram.highestValueOf(index) >= v, "value " + v);
+            assertTrue(index == 0 || LatencyHistogram.highestValueOf(index - 1) < v, "value " + v);
+        }
+    }
+
+    @Test
+    public void shouldComputePercentilesWithBoundedError() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 10_000; v++) {
+            h.record(v * 1000);
+        }
+        assertEquals(10_000, h.getCount());
+        assertEquals(10_000_000, h.getMax());
+        assertEquals(5_000_500.0, h.getMean(), 0.001);
+        assertWithin(5_000_000, h.getValueAtPercentile(50));
+        assertWithin(9_900_000, h.getValueAtPercentile(99));
+        assertEquals(10_000_000, h.getValueAtPercentile(100));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 32, "expected ≈" + expected + " but was " + actual);
+    }
+}
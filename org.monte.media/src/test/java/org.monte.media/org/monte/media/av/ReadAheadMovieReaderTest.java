@@ -0,0 +1,230 @@
+/*
+ * @(#)ReadAheadMovieReaderTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.avi.AVIInputStreamTest;
+import org.monte.media.avi.AVIOutputStream;
+import org.monte.media.avi.AVIReader;
+import org.monte.media.math.Rational;
+import org.monte.media.quicktime.QuickTimeOutputStream;
+import org.monte.media.quicktime.QuickTimeReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+
+public class ReadAheadMovieReaderTest {
+    /**
+     * Returns the data of a sample. The samples have different lengths, so
+     * that the tracks are interleaved at odd offsets.
+     */
+    private static byte[] sample(int track, int i) {
+        byte[] data = new byte[5 + (i * 7 + track * 3) % 11];
+        Arrays.fill(data, (byte) (track * 100 + i));
+        return data;
+    }
+
+    /**
+     * Writes a QuickTime movie with a track of 30 samples at 30 fps, and a
+     * track of 10 samples at 10 fps.
+     */
+    private static File writeQuickTime() throws IOException {
+        File file = File.createTempFile("ReadAheadMovieReaderTest", ".mov");
+        file.deleteOnExit();
+        QuickTimeOutputStream out = new QuickTimeOutputStream(file);
+        try {
+            Format format = new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_QUICKTIME, EncodingKey, "raw ");
+            int fast = out.addVideoTrack("raw ", "None", 30, 4, 4, 24, 1, format);
+            int slow = out.addVideoTrack("raw ", "None", 10, 4, 4, 24, 1, format);
+            for (int i = 0; i < 30; i++) {
+                out.writeSample(fast, sample(fast, i), 1, true);
+                if (i % 3 == 0) {
+                    out.writeSample(slow, sample(slow, i / 3), 1, true);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Writes an AVI movie with the same tracks as {@link #writeQuickTime()}.
+     */
+    private static File writeAVI() throws IOException {
+        File file = File.createTempFile("ReadAheadMovieReaderTest", ".avi");
+        file.deleteOnExit();
+        AVIOutputStream out = new AVIOutputStream(file);
+        try {
+            int fast = out.addVideoTrack("DIB ", 1, 30, 4, 4, 24, 1);
+            int slow = out.addVideoTrack("DIB ", 1, 10, 4, 4, 24, 1);
+            for (int i = 0; i < 30; i++) {
+                byte[] data = sample(fast, i);
+                out.writeSample(fast, data, 0, data.length, true);
+                if (i % 3 == 0) {
+                    data = sample(slow, i / 3);
+                    out.writeSample(slow, data, 0, data.length, true);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String describe(Buffer buf) {
+        return buf.track + "@" + buf.timeStamp + ":" + buf.flags
+                + Arrays.toString(Arrays.copyOfRange((byte[]) buf.data, buf.offset, buf.offset + buf.length));
+    }
+
+    private static List<String> readByNextTrack(MovieReader r) throws IOException {
+        List<String> samples = new ArrayList<>();
+        Buffer buf = new Buffer();
+        for (int track = r.nextTrack(); track >= 0; track = r.nextTrack()) {
+            r.read(track, buf);
+            samples.add(describe(buf));
+        }
+        return samples;
+    }
+
+    private static List<String> readTrack(MovieReader r, int track) throws IOException {
+        List<String> samples = new ArrayList<>();
+        Buffer buf = new Buffer();
+        for (r.read(track, buf); !buf.isFlag(BufferFlag.END_OF_MEDIA); r.read(track, buf)) {
+            samples.add(describe(buf));
+        }
+        return samples;
+    }
+
+    @Test
+    public void shouldReadQuickTimeInNextTrackOrder() throws IOException {
+        File file = writeQuickTime();
+        List<String> expected;
+        try (QuickTimeReader in = new QuickTimeReader(file)) {
+            expected = readByNextTrack(in);
+        }
+        assertEquals(40, expected.size());
+        try (MovieReader in = new ReadAheadMovieReader(new QuickTimeReader(file), null, 16, 64)) {
+            assertEquals(expected, readByNextTrack(in));
+        }
+    }
+
+    @Test
+    public void shouldReadAVIInNextTrackOrder() throws IOException {
+        File file = writeAVI();
+        List<String> expected;
+        try (AVIReader in = new AVIReader(file)) {
+            expected = readByNextTrack(in);
+        }
+        assertEquals(40, expected.size());
+        try (MovieReader in = new ReadAheadMovieReader(new AVIReader(file), null, 16, 64)) {
+            assertEquals(expected, readByNextTrack(in));
+        }
+    }
+
+    @Test
+    public void shouldReadTrackSetInAnyOrder() throws IOException {
+        File file = writeQuickTime();
+        List<String> expected0, expected1;
+        try (QuickTimeReader in = new QuickTimeReader(file)) {
+            expected0 = readTrack(in, 0);
+            expected1 = readTrack(in, 1);
+        }
+        // The budget is exceeded while the consumer waits for the track that
+        // is read last
+        try (MovieReader in = new ReadAheadMovieReader(new QuickTimeReader(file), new int[]{0, 1}, 1, 32)) {
+            assertEquals(expected1, readTrack(in, 1));
+            assertEquals(expected0, readTrack(in, 0));
+            assertEquals(-1, in.nextTrack());
+        }
+        try (MovieReader in = new ReadAheadMovieReader(new QuickTimeReader(file), new int[]{1})) {
+            assertEquals(expected1, readTrack(in, 1));
+            assertThrows(IllegalArgumentException.class, () -> in.read(0, new Buffer()));
+        }
+    }
+
+    @Test
+    public void shouldDiscardReadAheadOnSetMovieReadTime() throws IOException {
+        File file = writeQuickTime();
+        Rational time = new Rational(1, 2);
+        List<String> expected;
+        try (QuickTimeReader in = new QuickTimeReader(file)) {
+            in.setMovieReadTime(time);
+            expected = readByNextTrack(in);
+        }
+        try (MovieReader in = new ReadAheadMovieReader(new QuickTimeReader(file), null, 64, 64)) {
+            Buffer buf = new Buffer();
+            in.read(in.nextTrack(), buf);
+            in.read(in.nextTrack(), buf);
+            in.setMovieReadTime(time);
+            assertEquals(time, in.getReadTime(0));
+            assertEquals(expected, readByNextTrack(in));
+        }
+    }
+
+    @Test
+    public void shouldReadOpenDMLWhileAnotherThreadQueriesSampleTimes() throws Exception {
+        // 2000 standard index chunks, far more than the AVI reader keeps in
+        // memory, so that the sample time queries load index chunks from the
+        // stream that the background thread reads samples from
+        boolean[] keyframes = new boolean[4000];
+        Arrays.fill(keyframes, true);
+        File file = File.createTempFile("ReadAheadMovieReaderTest", ".avi");
+        file.deleteOnExit();
+        Files.write(file.toPath(), AVIInputStreamTest.createOpenDMLFile(keyframes, 2));
+        List<String> expected;
+        try (AVIReader in = new AVIReader(file)) {
+            expected = readByNextTrack(in);
+        }
+        assertEquals(keyframes.length, expected.size());
+
+        try (MovieReader in = new ReadAheadMovieReader(new AVIReader(file), null, 1, 1)) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread query = new Thread(() -> {
+                Random random = new Random(0);
+                try {
+                    while (running.get()) {
+                        int sample = random.nextInt(keyframes.length);
+                        Rational time = in.getSampleTime(0, sample);
+                        if (time.compareTo(new Rational(sample, 10)) != 0) {
+                            throw new AssertionError("sample " + sample + " time " + time);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            query.start();
+            try {
+                for (int pass = 0; pass < 3; pass++) {
+                    in.setMovieReadTime(Rational.ZERO);
+                    assertEquals(expected, readByNextTrack(in));
+                }
+            } finally {
+                running.set(false);
+                query.join();
+            }
+            assertNull(failure.get());
+        }
+    }
+}
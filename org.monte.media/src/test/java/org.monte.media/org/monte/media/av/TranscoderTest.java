@@ -0,0 +1,275 @@
+/*
+ * @(#)TranscoderTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.avi.AVIWriter;
+import org.monte.media.math.Rational;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.MIME_AVI;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ByteOrderKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ChannelsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ENCODING_PCM_SIGNED;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.FrameSizeKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleRateKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleSizeInBitsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SignedKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVC1;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_QUICKTIME_PNG;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+
+public class TranscoderTest {
+    private final static int WIDTH = 160, HEIGHT = 120, FRAMES = 20, SAMPLE_RATE = 8000;
+
+    @Test
+    public void shouldTranscodeAllTracks() throws IOException {
+        File input = createInput();
+        File output = File.createTempFile("TranscoderTest", ".mov");
+        try {
+            Transcoder transcoder = new Transcoder(input, output);
+            transcoder.setQueueCapacity(2);
+            List<TranscodingProgress> snapshots = new ArrayList<>();
+            transcoder.setProgressListener(snapshots::add);
+            transcoder.setProgressIntervalMillis(0);
+            TranscodingProgress progress = transcoder.transcode();
+
+            assertTrue(progress.isDone());
+            assertEquals(1.0, progress.getFraction());
+            assertFalse(snapshots.isEmpty());
+            assertTrue(snapshots.get(snapshots.size() - 1).isDone());
+            assertOutput(output, null, 0);
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void shouldUseRequestedOutputFormat() throws IOException {
+        File input = createInput();
+        File output = File.createTempFile("TranscoderTest", ".mov");
+        try {
+            Transcoder transcoder = new Transcoder(input, output);
+            transcoder.setOutputFormat(FormatKeys.MediaType.VIDEO, new Format(EncodingKey, ENCODING_QUICKTIME_PNG));
+            transcoder.transcode();
+            assertOutput(output, ENCODING_QUICKTIME_PNG, 0);
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void shouldTranscodeToH264InMP4() throws IOException {
+        File input = createInput();
+        File output = File.createTempFile("TranscoderTest", ".mp4");
+        try {
+            // There are no MP4 encoders, the transcoder falls back to the
+            // QuickTime encoders
+            Transcoder transcoder = new Transcoder(input, output);
+            transcoder.setOutputFormat(FormatKeys.MediaType.VIDEO, new Format(EncodingKey, ENCODING_AVC1));
+            transcoder.transcode();
+            // H.264 is lossy
+            assertOutput(output, ENCODING_AVC1, 48);
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void shouldRunJobsConcurrentlyWithinCpuBudget() throws Exception {
+        List<File> files = new ArrayList<>();
+        try (TranscodingEngine engine = new TranscodingEngine(1, 3)) {
+            List<Future<TranscodingProgress>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                File input = createInput();
+                File output = File.createTempFile("TranscoderTest", ".mov");
+                files.add(input);
+                files.add(output);
+                Transcoder transcoder = new Transcoder(input, output);
+                transcoder.setOutputFormat(FormatKeys.MediaType.VIDEO, new Format(EncodingKey, ENCODING_QUICKTIME_PNG));
+                futures.add(engine.submit(transcoder));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertTrue(futures.get(i).get().isDone());
+                assertOutput(files.get(2 * i + 1), ENCODING_QUICKTIME_PNG, 0);
+            }
+            assertEquals(1, engine.getAvailableCpuPermits());
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void shouldNeverProcessMoreSamplesConcurrentlyThanTheCpuBudget() throws Exception {
+        int cpuBudget = 2;
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        List<File> files = new ArrayList<>();
+        try (TranscodingEngine engine = new TranscodingEngine(cpuBudget, 4)) {
+            List<Future<TranscodingProgress>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                File input = createInput();
+                File output = File.createTempFile("TranscoderTest", ".mov");
+                files.add(input);
+                files.add(output);
+                Transcoder transcoder = new Transcoder(input, output);
+                transcoder.setOutputFormat(FormatKeys.MediaType.VIDEO, new Format(EncodingKey, ENCODING_QUICKTIME_PNG));
+                transcoder.setFilter(FormatKeys.MediaType.VIDEO, f -> new ProbeFilter(f, active, peak));
+                transcoder.setFilter(FormatKeys.MediaType.AUDIO, f -> new ProbeFilter(f, active, peak));
+                futures.add(engine.submit(transcoder));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertTrue(futures.get(i).get().isDone());
+                assertOutput(files.get(2 * i + 1), ENCODING_QUICKTIME_PNG, 0);
+            }
+            assertEquals(cpuBudget, engine.getAvailableCpuPermits());
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        assertEquals(0, active.get());
+        assertTrue(peak.get() >= 1);
+        assertTrue(peak.get() <= cpuBudget, "peak=" + peak.get());
+    }
+
+    /**
+     * A filter that passes the samples through, and records the peak number
+     * of concurrent {@link #process} calls of all filters that share the
+     * same counters.
+     */
+    private static class ProbeFilter extends AbstractCodec {
+        private final AtomicInteger active;
+        private final AtomicInteger peak;
+
+        ProbeFilter(Format format, AtomicInteger active, AtomicInteger peak) {
+            super(new Format[]{format});
+            this.active = active;
+            this.peak = peak;
+            setInputFormat(format);
+            setOutputFormat(format);
+        }
+
+        @Override
+        public int process(Buffer in, Buffer out) {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                // Give the other stages time to overlap with this one
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                active.decrementAndGet();
+            }
+            out.setMetaTo(in);
+            out.data = in.data;
+            out.offset = in.offset;
+            out.length = in.length;
+            out.header = in.header;
+            return CODEC_OK;
+        }
+    }
+
+    /**
+     * Creates an AVI file with a TechSmith video track and a PCM audio
+     * track.
+     */
+    private static File createInput() throws IOException {
+        File file = File.createTempFile("TranscoderTest", ".avi");
+        try (AVIWriter out = new AVIWriter(file)) {
+            int video = out.addTrack(new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                    EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, FrameRateKey, new Rational(10),
+                    WidthKey, WIDTH, HeightKey, HEIGHT, DepthKey, 24));
+            int audio = out.addTrack(new Format(MediaTypeKey, FormatKeys.MediaType.AUDIO, MimeTypeKey, MIME_AVI,
+                    EncodingKey, ENCODING_PCM_SIGNED, SampleRateKey, new Rational(SAMPLE_RATE),
+                    FrameRateKey, new Rational(SAMPLE_RATE), SampleSizeInBitsKey, 16, ChannelsKey, 1,
+                    FrameSizeKey, 2, SignedKey, true, ByteOrderKey, ByteOrder.LITTLE_ENDIAN));
+            BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+            Buffer buf = new Buffer();
+            buf.format = out.getFormat(audio);
+            buf.sampleDuration = new Rational(1, SAMPLE_RATE);
+            buf.sampleCount = SAMPLE_RATE / 10;
+            buf.data = new byte[buf.sampleCount * 2];
+            buf.length = buf.sampleCount * 2;
+            for (int frame = 0; frame < FRAMES; frame++) {
+                Graphics2D g = img.createGraphics();
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, WIDTH, HEIGHT);
+                g.setColor(Color.RED);
+                g.fillRect(frame * 4, frame * 3, 40, 30);
+                g.dispose();
+                out.write(video, img, 1);
+                buf.timeStamp = new Rational(frame, 10);
+                out.write(audio, buf);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Asserts that the output file has the tracks of the input file.
+     *
+     * @param tolerance the maximal difference of a color component of a
+     *                  pixel from the input
+     */
+    private static void assertOutput(File file, String videoEncoding, int tolerance) throws IOException {
+        try (MovieReader in = Registry.getInstance().getReader(file)) {
+            assertEquals(2, in.getTrackCount());
+            int video = in.findTrack(0, new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO));
+            int audio = in.findTrack(0, new Format(MediaTypeKey, FormatKeys.MediaType.AUDIO));
+            if (videoEncoding != null) {
+                assertEquals(videoEncoding, in.getFormat(video).get(EncodingKey));
+            }
+            assertEquals(new Rational(FRAMES, 10), in.getTrackDuration(video));
+            assertEquals(new Rational(FRAMES, 10), in.getTrackDuration(audio));
+
+            BufferedImage img = null;
+            for (int frame = 0; frame < FRAMES; frame++) {
+                img = in.read(video, img);
+                assertNotNull(img, "frame " + frame);
+                assertColor(Color.RED, img.getRGB(frame * 4 + 20, frame * 3 + 15), tolerance, "frame " + frame);
+                assertColor(Color.WHITE, img.getRGB(WIDTH - 1, HEIGHT - 1), tolerance, "frame " + frame);
+            }
+            assertNull(in.read(video, img));
+        }
+    }
+
+    private static void assertColor(Color expected, int rgb, int tolerance, String message) {
+        Color actual = new Color(rgb);
+        if (Math.abs(expected.getRed() - actual.getRed()) > tolerance
+                || Math.abs(expected.getGreen() - actual.getGreen()) > tolerance
+                || Math.abs(expected.getBlue() - actual.getBlue()) > tolerance) {
+            assertEquals(expected, actual, message);
+        }
+    }
+}
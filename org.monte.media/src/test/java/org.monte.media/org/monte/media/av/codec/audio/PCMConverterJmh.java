@@ -0,0 +1,103 @@
+/*
+ * @(#)PCMConverterJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av.codec.audio;
+
+import org.monte.media.av.Format;
+import org.monte.media.io.ByteArrayImageInputStream;
+import org.monte.media.io.ByteArrayImageOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.monte.media.av.codec.audio.PCMConverterTest.pcm;
+
+/**
+ * Measures the throughput of {@link PCMConverter}.
+ * <p>
+ * Each operation converts one second of 16-bit stereo audio at 48 kHz.
+ * The {@code stream...} benchmark converts the byte order through
+ * image streams, like {@link AbstractPCMAudioCodec} did before it used a
+ * {@link PCMConverter}. The score is in operations per second.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class PCMConverterJmh {
+    private final static int FRAMES = 48000;
+
+    private final byte[] input = new byte[FRAMES * 4];
+    private final byte[] output = new byte[FRAMES * 6];
+    private PCMConverter byteSwap;
+    private PCMConverter to24Bit;
+    private PCMConverter mixDown;
+    private PCMConverter resample;
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PCMConverterJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup
+    public void setup() {
+        new Random(0).nextBytes(input);
+        Format s16be = pcm(16, true, ByteOrder.BIG_ENDIAN, 2, 48000);
+        byteSwap = new PCMConverter(s16be, pcm(16, true, ByteOrder.LITTLE_ENDIAN, 2, 48000));
+        to24Bit = new PCMConverter(s16be, pcm(24, true, ByteOrder.LITTLE_ENDIAN, 2, 48000));
+        mixDown = new PCMConverter(s16be, pcm(16, true, ByteOrder.BIG_ENDIAN, 1, 48000));
+        resample = new PCMConverter(s16be, pcm(16, true, ByteOrder.BIG_ENDIAN, 2, 44100));
+    }
+
+    @Benchmark
+    public int streamByteSwap() throws IOException {
+        ByteArrayImageInputStream in = new ByteArrayImageInputStream(input, 0, input.length, ByteOrder.BIG_ENDIAN);
+        ByteArrayImageOutputStream out = new ByteArrayImageOutputStream(output, ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < FRAMES * 2; i++) {
+            out.writeShort(in.readShort());
+        }
+        return (int) out.getStreamPosition();
+    }
+
+    @Benchmark
+    public int byteSwap() {
+        return byteSwap.convert(input, 0, FRAMES, output, 0);
+    }
+
+    @Benchmark
+    public int to24Bit() {
+        return to24Bit.convert(input, 0, FRAMES, output, 0);
+    }
+
+    @Benchmark
+    public int mixDown() {
+        return mixDown.convert(input, 0, FRAMES, output, 0);
+    }
+
+    @Benchmark
+    public int resample() {
+        return resample.convert(input, 0, FRAMES, output, 0);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * @(#)PCMConverterTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av.codec.audio;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferFlag;
+import org.monte.media.av.Codec;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.math.Rational;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.MIME_JAVA;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ByteOrderKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ChannelsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ENCODING_PCM_FLOAT;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ENCODING_PCM_SIGNED;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ENCODING_PCM_UNSIGNED;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.FrameSizeKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleRateKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleSizeInBitsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SignedKey;
+
+public class PCMConverterTest {
+    static Format pcm(int bits, boolean signed, ByteOrder order, int channels, int sampleRate) {
+        return new Format(MediaTypeKey, MediaType.AUDIO,
+                EncodingKey, signed ? ENCODING_PCM_SIGNED : ENCODING_PCM_UNSIGNED,
+                MimeTypeKey, MIME_JAVA,
+                SampleSizeInBitsKey, bits,
+                SignedKey, signed,
+                ByteOrderKey, order,
+                ChannelsKey, channels,
+                FrameSizeKey, channels * ((bits + 7) / 8),
+                SampleRateKey, new Rational(sampleRate, 1));
+    }
+
+    static Format pcmFloat(int bits, ByteOrder order, int channels, int sampleRate) {
+        return pcm(bits, true, order, channels, sampleRate).prepend(EncodingKey, ENCODING_PCM_FLOAT);
+    }
+
+    static byte[] convert(Format in, Format out, byte[] data) {
+        PCMConverter c = new PCMConverter(in, out);
+        int frames = data.length / c.getInputFrameSize();
+        byte[] result = new byte[c.getMaxOutputFrames(frames) * c.getOutputFrameSize()];
+        int n = c.convert(data, 0, frames, result, 0);
+        return Arrays.copyOf(result, n * c.getOutputFrameSize());
+    }
+
+    @Test
+    public void shouldConvertLosslesslyThroughWiderFormats() {
+        byte[] data = new byte[2 * 2 * 1000];
+        new Random(7).nextBytes(data);
+        Format s16be = pcm(16, true, ByteOrder.BIG_ENDIAN, 2, 44100);
+        Format[] chain = {
+                pcm(24, true, ByteOrder.LITTLE_ENDIAN, 2, 44100),
+                pcm(32, false, ByteOrder.BIG_ENDIAN, 2, 44100),
+                pcmFloat(32, ByteOrder.LITTLE_ENDIAN, 2, 44100),
+                pcmFloat(64, ByteOrder.BIG_ENDIAN, 2, 44100),
+                pcm(16, false, ByteOrder.LITTLE_ENDIAN, 2, 44100),
+                s16be
+        };
+        Format from = s16be;
+        byte[] converted = data;
+        for (Format to : chain) {
+            converted = convert(from, to, converted);
+            from = to;
+        }
+        assertArrayEquals(data, converted);
+    }
+
+    @Test
+    public void shouldConvertSignAndSampleSize() {
+        byte[] s16le = {0x34, 0x12, (byte) 0xff, (byte) 0xff, 0x00, (byte) 0x80};
+        byte[] u8 = convert(pcm(16, true, ByteOrder.LITTLE_ENDIAN, 1, 8000),
+                pcm(8, false, ByteOrder.BIG_ENDIAN, 1, 8000), s16le);
+        assertArrayEquals(new byte[]{(byte) 0x92, 0x7f, 0x00}, u8);
+
+        byte[] s16be = convert(pcm(8, false, ByteOrder.BIG_ENDIAN, 1, 8000),
+                pcm(16, true, ByteOrder.BIG_ENDIAN, 1, 8000), u8);
+        assertArrayEquals(new byte[]{0x12, 0x00, (byte) 0xff, 0x00, (byte) 0x80, 0x00}, s16be);
+    }
+
+    @Test
+    public void shouldMixStereoDownToMonoAndMonoUpToStereo() {
+        ByteBuffer stereo = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        stereo.putShort((short) 1000).putShort((short) 3000).putShort((short) -2000).putShort((short) 0);
+        byte[] mono = convert(pcm(16, true, ByteOrder.BIG_ENDIAN, 2, 22050),
+                pcm(16, true, ByteOrder.BIG_ENDIAN, 1, 22050), stereo.array());
+        ByteBuffer m = ByteBuffer.wrap(mono);
+        assertEquals(2000, m.getShort());
+        assertEquals(-1000, m.getShort());
+
+        byte[] upmixed = convert(pcm(16, true, ByteOrder.BIG_ENDIAN, 1, 22050),
+                pcm(16, true, ByteOrder.BIG_ENDIAN, 2, 22050), mono);
+        ByteBuffer u = ByteBuffer.wrap(upmixed);
+        assertEquals(2000, u.getShort());
+        assertEquals(2000, u.getShort());
+        assertEquals(-1000, u.getShort());
+        assertEquals(-1000, u.getShort());
+    }
+
+    @Test
+    public void shouldApplyChannelMatrix() {
+        ByteBuffer stereo = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+        stereo.putShort((short) 1000).putShort((short) 3000);
+        PCMConverter c = new PCMConverter(pcm(16, true, ByteOrder.BIG_ENDIAN, 2, 22050),
+                pcm(16, true, ByteOrder.BIG_ENDIAN, 2, 22050));
+        c.setChannelMatrix(new float[][]{{0f, 1f}, {1f, 0f}});
+        byte[] swapped = new byte[4];
+        assertEquals(1, c.convert(stereo.array(), 0, 1, swapped, 0));
+        ByteBuffer s = ByteBuffer.wrap(swapped);
+        assertEquals(3000, s.getShort());
+        assertEquals(1000, s.getShort());
+    }
+
+    @Test
+    public void shouldResampleSineWithoutChangingItsFrequency() {
+        int inRate = 48000, outRate = 44100, inFrames = 4800;
+        double frequency = 1000, amplitude = 16384;
+        ByteBuffer buf = ByteBuffer.allocate(inFrames * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < inFrames; i++) {
+            buf.putShort((short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / inRate)));
+        }
+        Format in = pcm(16, true, ByteOrder.LITTLE_ENDIAN, 1, inRate);
+        Format out = pcm(16, true, ByteOrder.LITTLE_ENDIAN, 1, outRate);
+
+        byte[] oneShot = resample(in, out, buf.array(), new int[]{inFrames});
+        byte[] streamed = resample(in, out, buf.array(), new int[]{1, 17, 480, 1000, 3, 3299});
+        assertEquals(inFrames * outRate / inRate * 2, oneShot.length);
+        assertArrayEquals(oneShot, streamed);
+
+        // Compare with the ideal sine, away from the edges
+        ByteBuffer result = ByteBuffer.wrap(oneShot).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 100; i < oneShot.length / 2 - 100; i++) {
+            double expected = amplitude * Math.sin(2 * Math.PI * frequency * i / outRate);
+            double actual = result.getShort(i * 2);
+            assertTrue(Math.abs(expected - actual) < 8, "frame " + i + " expected " + expected + " actual " + actual);
+        }
+    }
+
+    @Test
+    public void shouldResampleAndMixInCodec() {
+        AbstractPCMAudioCodec codec = new AbstractPCMAudioCodec() {
+        };
+        Format in = pcm(16, true, ByteOrder.LITTLE_ENDIAN, 2, 48000);
+        codec.setInputFormat(in);
+        Format out = codec.setOutputFormat(new Format(MediaTypeKey, MediaType.AUDIO,
+                EncodingKey, ENCODING_PCM_SIGNED, MimeTypeKey, MIME_JAVA, SignedKey, true,
+                ChannelsKey, 1, SampleRateKey, new Rational(44100, 1)));
+        assertEquals(2, out.get(FrameSizeKey));
+        assertEquals(ByteOrder.LITTLE_ENDIAN, out.get(ByteOrderKey));
+
+        Buffer inBuf = new Buffer();
+        Buffer outBuf = new Buffer();
+        long frames = 0;
+        for (int i = 0; i < 10; i++) {
+            inBuf.format = in;
+            inBuf.data = new byte[4 * 480];
+            inBuf.length = 4 * 480;
+            inBuf.sampleCount = 480;
+            inBuf.timeStamp = new Rational(i * 480L, 48000);
+            inBuf.sampleDuration = new Rational(1, 48000);
+            int result = codec.process(inBuf, outBuf);
+            assertEquals(Codec.CODEC_OK, result & ~Codec.CODEC_OUTPUT_NOT_FILLED);
+            if (!outBuf.isFlag(BufferFlag.DISCARD)) {
+                assertEquals(new Rational(frames, 44100), outBuf.timeStamp);
+                assertEquals(out, outBuf.format);
+                frames += outBuf.sampleCount;
+            }
+        }
+        inBuf.setFlag(BufferFlag.DISCARD);
+        inBuf.setFlag(BufferFlag.END_OF_MEDIA);
+        assertEquals(Codec.CODEC_OK, codec.process(inBuf, outBuf));
+        frames += outBuf.sampleCount;
+        assertEquals(4410, frames);
+    }
+
+    private static byte[] resample(Format in, Format out, byte[] data, int[] chunks) {
+        PCMConverter c = new PCMConverter(in, out);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        int offset = 0;
+        for (int frames : chunks) {
+            byte[] dst = new byte[c.getMaxOutputFrames(frames) * c.getOutputFrameSize()];
+            int n = c.convert(data, offset, frames, dst, 0);
+            result.write(dst, 0, n * c.getOutputFrameSize());
+            offset += frames * c.getInputFrameSize();
+        }
+        byte[] dst = new byte[c.getMaxOutputFrames(0) * c.getOutputFrameSize()];
+        int n = c.flush(dst, 0);
+        result.write(dst, 0, n * c.getOutputFrameSize());
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * @(#)AbstractVideoCodecJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av.codec.video;
+
+import org.monte.media.av.Buffer;
+import org.monte.media.av.Format;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the pixel accessors of {@link AbstractVideoCodec} with 1080p
+ * images that can not be used directly by the encoders.
+ * <p>
+ * {@code getRGB} is the conversion with {@link BufferedImage#getRGB}, which
+ * the accessors used before they had fast paths.
+ * <p>
+ * The score is in frames per second.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class AbstractVideoCodecJmh {
+    private final static int WIDTH = 1920;
+    private final static int HEIGHT = 1080;
+
+    private BufferedImage bgr;
+    private BufferedImage intBgr;
+    private final Buffer bgrBuffer = new Buffer();
+    private final Buffer intBgrBuffer = new Buffer();
+    private final Codec codec = new Codec();
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AbstractVideoCodecJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BufferedImage rgb = new RgbImageBuilder(WIDTH, HEIGHT).createWhite();
+        new RgbImageBuilder(WIDTH, HEIGHT).fillRectangle(rgb, 100, 100, 800, 600, RgbImageBuilder.BLUE);
+        bgr = convert(rgb, BufferedImage.TYPE_3BYTE_BGR);
+        intBgr = convert(rgb, BufferedImage.TYPE_INT_BGR);
+        bgrBuffer.data = bgr;
+        intBgrBuffer.data = intBgr;
+    }
+
+    private static BufferedImage convert(BufferedImage img, int type) {
+        BufferedImage converted = new BufferedImage(img.getWidth(), img.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    @Benchmark
+    public Object getRGB() {
+        return bgr.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+    }
+
+    @Benchmark
+    public Object getRGB24From3ByteBgr() {
+        return codec.getRGB24(bgrBuffer);
+    }
+
+    @Benchmark
+    public Object getRGB24FromIntBgr() {
+        return codec.getRGB24(intBgrBuffer);
+    }
+
+    @Benchmark
+    public Object getRGB15From3ByteBgr() {
+        return codec.getRGB15(bgrBuffer);
+    }
+
+    private static class Codec extends AbstractVideoCodec {
+        Codec() {
+            super(new Format[0], new Format[0]);
+        }
+
+        @Override
+        public int process(Buffer in, Buffer out) {
+            return CODEC_FAILED;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * @(#)AbstractVideoCodecTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.av.codec.video;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.Format;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class AbstractVideoCodecTest {
+    private final static int[] IMAGE_TYPES = {
+            BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE,
+            BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_4BYTE_ABGR_PRE, BufferedImage.TYPE_USHORT_555_RGB,
+            BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_BYTE_GRAY};
+
+    @Test
+    public void shouldConvertAllImageTypesToARGB32() {
+        for (int type : IMAGE_TYPES) {
+            BufferedImage img = createImage(37, 23, type);
+            int[] expected = img.getRGB(0, 0, 37, 23, null, 0, 37);
+            int[] actual = new TestCodec().getARGB32(bufferOf(img));
+            if (!img.getColorModel().hasAlpha()) {
+                // Opaque images may return their data array with alpha 0
+                for (int i = 0; i < actual.length; i++) {
+                    expected[i] &= 0xffffff;
+                    actual[i] &= 0xffffff;
+                }
+            }
+            assertArrayEquals(expected, actual, "type " + type);
+        }
+    }
+
+    @Test
+    public void shouldConvertAllImageTypesToRGB15AndRGB16() {
+        for (int type : IMAGE_TYPES) {
+            if (type == BufferedImage.TYPE_BYTE_GRAY) {
+                // Graphics2D converts gray to RGB with a different gamma than getRGB
+                continue;
+            }
+            BufferedImage img = createImage(37, 23, type);
+            assertArrayEquals(drawInto(img, BufferedImage.TYPE_USHORT_555_RGB),
+                    new TestCodec().getRGB15(bufferOf(img)), "type " + type);
+            assertArrayEquals(drawInto(img, BufferedImage.TYPE_USHORT_565_RGB),
+                    new TestCodec().getRGB16(bufferOf(img)), "type " + type);
+        }
+    }
+
+    @Test
+    public void shouldReuseConvertedArray() {
+        TestCodec codec = new TestCodec();
+        BufferedImage img = createImage(37, 23, BufferedImage.TYPE_3BYTE_BGR);
+        int[] first = codec.getRGB24(bufferOf(img));
+        assertSame(first, codec.getRGB24(bufferOf(createImage(37, 23, BufferedImage.TYPE_3BYTE_BGR))));
+
+        BufferedImage rgb = createImage(37, 23, BufferedImage.TYPE_INT_RGB);
+        assertNotSame(first, codec.getRGB24(bufferOf(rgb)));
+    }
+
+    @Test
+    public void shouldKeepLayoutOfSubimage() {
+        for (int type : IMAGE_TYPES) {
+            BufferedImage img = createImage(60, 40, type);
+            BufferedImage sub = img.getSubimage(7, 5, 30, 20);
+            int stride = sub.getSampleModel().getWidth();
+            int offset = -sub.getRaster().getSampleModelTranslateX()
+                    - sub.getRaster().getSampleModelTranslateY() * stride;
+            int[] pixels = new TestCodec().getRGB24(bufferOf(sub));
+            for (int y = 0; y < sub.getHeight(); y++) {
+                for (int x = 0; x < sub.getWidth(); x++) {
+                    assertEquals(sub.getRGB(x, y) & 0xffffff, pixels[offset + y * stride + x] & 0xffffff,
+                            "type " + type + " x=" + x + " y=" + y);
+                }
+            }
+        }
+    }
+
+    private static Buffer bufferOf(BufferedImage img) {
+        Buffer buf = new Buffer();
+        buf.data = img;
+        return buf;
+    }
+
+    private static short[] drawInto(BufferedImage img, int type) {
+        BufferedImage converted = new BufferedImage(img.getWidth(), img.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return ((DataBufferUShort) converted.getRaster().getDataBuffer()).getData();
+    }
+
+    private static BufferedImage createImage(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random r = new Random(width * 31 + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Opaque or transparent pixels survive premultiplication unchanged
+                int alpha = r.nextBoolean() ? 0xff000000 : 0;
+                img.setRGB(x, y, alpha == 0 ? 0 : alpha | r.nextInt(0x1000000));
+            }
+        }
+        return img;
+    }
+
+    private static class TestCodec extends AbstractVideoCodec {
+        TestCodec() {
+            super(new Format[0], new Format[0]);
+        }
+
+        @Override
+        public int process(Buffer in, Buffer out) {
+            return CODEC_FAILED;
+        }
+    }
+}
@@ -7,13 +7,18 @@ package org.monte.media.av.codec.video;
 
 import org.junit.jupiter.api.Test;
 import org.monte.media.av.Buffer;
+import org.monte.media.av.Codec;
 import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.image.TileChangeDetector;
 import org.monte.media.io.ByteArrayImageOutputStream;
 import org.monte.media.io.UncachedImageInputStream;
+import org.monte.media.math.Rational;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.awt.image.IndexColorModel;
@@ -23,9 +28,26 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
 import java.util.zip.InflaterInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.KeyFrameIntervalKey;
+import static org.monte.media.av.FormatKeys.MIME_AVI;
+import static org.monte.media.av.FormatKeys.MIME_JAVA;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.CompressionStrategyKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
 
 public class TechSmithCodecTest {
     @Test
@@ -77,6 +99,90 @@ public class TechSmithCodecTest {
         assertArrayEquals(rgb24, actualPixels);
     }
 
+    @Test
+    public void shouldEncodeDecodeWithHuffmanOnlyStrategy() throws IOException {
+        int width = 40, height = 30;
+        TechSmithCodec encoder = new TechSmithCodec();
+        encoder.setInputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class,
+                WidthKey, width, HeightKey, height, DepthKey, 24));
+        Format encodedFormat = encoder.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                WidthKey, width, HeightKey, height, DepthKey, 24, FrameRateKey, new Rational(30, 1), KeyFrameIntervalKey, 10,
+                CompressionStrategyKey, Deflater.HUFFMAN_ONLY));
+        TechSmithCodec decoder = new TechSmithCodec();
+        decoder.setInputFormat(encodedFormat);
+        decoder.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class,
+                WidthKey, width, HeightKey, height, DepthKey, 24));
+
+        Buffer in = new Buffer();
+        Buffer encoded = new Buffer();
+        Buffer decoded = new Buffer();
+        Object firstData = null;
+        for (int frame = 0; frame < 4; frame++) {
+            BufferedImage img = createFrame(width, height, frame / 4f, BufferedImage.TYPE_INT_RGB);
+            in.data = img;
+            in.format = encoder.getInputFormat();
+            assertEquals(Codec.CODEC_OK, encoder.process(in, encoded));
+            if (frame == 0) {
+                firstData = encoded.data;
+            } else {
+                assertSame(firstData, encoded.data, "the output array should be reused");
+            }
+            assertEquals(Codec.CODEC_OK, decoder.process(encoded, decoded));
+            assertArrayEquals(toRgb24(img, true), toRgb24((BufferedImage) decoded.data, true), "frame " + frame);
+        }
+    }
+
+    @Test
+    public void shouldEncodeDecodeDeltaFramesWithDirtyRegions() throws IOException {
+        int width = 40, height = 30;
+        TechSmithCodec encoder = new TechSmithCodec();
+        encoder.setInputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class,
+                WidthKey, width, HeightKey, height, DepthKey, 24));
+        Format encodedFormat = encoder.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                WidthKey, width, HeightKey, height, DepthKey, 24, FrameRateKey, new Rational(30, 1), KeyFrameIntervalKey, 10));
+        TechSmithCodec decoder = new TechSmithCodec();
+        decoder.setInputFormat(encodedFormat);
+        decoder.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class,
+                WidthKey, width, HeightKey, height, DepthKey, 24));
+
+        TileChangeDetector detector = new TileChangeDetector(8);
+        Buffer in = new Buffer();
+        Buffer encoded = new Buffer();
+        Buffer decoded = new Buffer();
+        BufferedImage img = createFrame(width, height, 0f, BufferedImage.TYPE_INT_RGB);
+        for (int frame = 0; frame < 5; frame++) {
+            if (frame > 0) {
+                // change a small area of the image
+                Graphics2D g = img.createGraphics();
+                g.setColor(new Color(frame * 40, 255 - frame * 40, 128));
+                g.fillRect(frame * 6, frame * 4, 5, 3);
+                g.dispose();
+            }
+            List<Rectangle> dirtyRegions = detector.detect(img);
+            detector.update(img, dirtyRegions);
+            in.data = img;
+            in.dirtyRegions = dirtyRegions;
+            in.format = encoder.getInputFormat();
+            assertEquals(Codec.CODEC_OK, encoder.process(in, encoded));
+            assertEquals(Codec.CODEC_OK, decoder.process(encoded, decoded));
+            assertArrayEquals(toRgb24(img, true), toRgb24((BufferedImage) decoded.data, true), "frame " + frame);
+        }
+
+        // lines outside the dirty regions are not compared with the previous frame
+        int[] previous = toRgb24(img, true).clone();
+        img.setRGB(0, 0, ~img.getRGB(0, 0));
+        in.dirtyRegions = List.of(new Rectangle(0, 10, width, 5));
+        assertEquals(Codec.CODEC_OK, encoder.process(in, encoded));
+        assertEquals(Codec.CODEC_OK, decoder.process(encoded, decoded));
+        assertArrayEquals(previous, toRgb24((BufferedImage) decoded.data, true));
+    }
+
     private static final byte ESCAPE_OP = (byte) 0x00;
     private static final byte PADDING_OP = (byte) 0x00;
     private static final byte END_OF_LINE_OP = (byte) 0x00;
@@ -0,0 +1,148 @@
+/*
+ * @(#)AVIInputStreamTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.avi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+public class AVIInputStreamTest {
+    @Test
+    public void openDMLIndexShouldBeUsed() throws IOException {
+        boolean[] keyframes = {true, false, false, true, false};
+        File file = File.createTempFile("opendml", ".avi");
+        try {
+            Files.write(file.toPath(), createOpenDMLFile(keyframes, 3));
+            AVIInputStream in = new AVIInputStream(file);
+            try {
+                assertEquals(1, in.getTrackCount());
+                assertEquals(keyframes.length, in.getSampleCount(0));
+                assertInstanceOf(SuperIndexSampleList.class, in.tracks.get(0).samples);
+                assertEquals(keyframes.length, in.tracks.get(0).length);
+                for (int i = 0; i < keyframes.length; i++) {
+                    AbstractAVIStream.Sample s = in.tracks.get(0).samples.get(i);
+                    assertEquals(keyframes[i], s.isKeyframe, "keyframe " + i);
+                    assertEquals(i, s.timeStamp, "timeStamp " + i);
+                    byte[] data = new byte[in.getSampleSize(0, i)];
+                    in.readSample(0, i, data, 0, data.length);
+                    assertArrayEquals(new byte[]{(byte) i, (byte) i, (byte) i}, data, "sample " + i);
+                    assertEquals(i, in.tracks.get(0).samples.findSampleAtTime(i), "findSampleAtTime " + i);
+                }
+                assertEquals(0, in.tracks.get(0).samples.findSampleAtTime(-1));
+                assertEquals(keyframes.length - 1, in.tracks.get(0).samples.findSampleAtTime(100));
+                assertEquals(3, in.tracks.get(0).samples.findKeyframeAtOrBefore(4));
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Creates a video-only AVI 2.0 file with one "RIFF AVI" structure and as
+     * many "RIFF AVIX" structures as needed for the specified number of
+     * frames per structure. Each structure has a standard index chunk, that
+     * is referenced by the super index of the track. Frame i consists of
+     * three bytes with value i.
+     */
+    public static byte[] createOpenDMLFile(boolean[] keyframes, int framesPerRiff) {
+        int segments = (keyframes.length + framesPerRiff - 1) / framesPerRiff;
+        ByteBuffer b = ByteBuffer.allocate(4096 + segments * 128 + keyframes.length * 32).order(ByteOrder.LITTLE_ENDIAN);
+        int riff = beginChunk(b, "RIFF", "AVI ");
+        int hdrl = beginChunk(b, "LIST", "hdrl");
+        int avih = beginChunk(b, "avih", null);
+        b.putInt(100_000).putInt(0).putInt(0).putInt(0).putInt(framesPerRiff).putInt(0).putInt(1).putInt(0)
+                .putInt(1).putInt(1).putInt(0).putInt(0).putInt(0).putInt(0);
+        endChunk(b, avih);
+        int strl = beginChunk(b, "LIST", "strl");
+        int strh = beginChunk(b, "strh", null);
+        putFourCC(b, "vids");
+        putFourCC(b, "DIB ");
+        b.putInt(0).putShort((short) 0).putShort((short) 0).putInt(0).putInt(1).putInt(10).putInt(0)
+                .putInt(keyframes.length).putInt(3).putInt(-1).putInt(0)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 1);
+        endChunk(b, strh);
+        int strf = beginChunk(b, "strf", null);
+        b.putInt(40).putInt(1).putInt(1).putShort((short) 1).putShort((short) 24);
+        putFourCC(b, "DIB ");
+        b.putInt(3).putInt(0).putInt(0).putInt(0).putInt(0);
+        endChunk(b, strf);
+        int indx = beginChunk(b, "indx", null);
+        b.putShort((short) 4).put((byte) 0).put((byte) 0).putInt(segments);
+        putFourCC(b, "00dc");
+        b.putInt(0).putInt(0).putInt(0);
+        int superIndexEntries = b.position();
+        b.position(superIndexEntries + segments * 16);
+        endChunk(b, indx);
+        endChunk(b, strl);
+        endChunk(b, hdrl);
+
+        int first = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            int last = Math.min(first + framesPerRiff, keyframes.length);
+            if (segment > 0) {
+                riff = beginChunk(b, "RIFF", "AVIX");
+            }
+            int movi = beginChunk(b, "LIST", "movi");
+            int[] dataOffsets = new int[last - first];
+            for (int i = first; i < last; i++) {
+                int chunk = beginChunk(b, "00dc", null);
+                dataOffsets[i - first] = b.position();
+                b.put((byte) i).put((byte) i).put((byte) i);
+                endChunk(b, chunk);
+            }
+            int ix = beginChunk(b, "ix00", null);
+            b.putShort((short) 2).put((byte) 0).put((byte) 1).putInt(last - first);
+            putFourCC(b, "00dc");
+            b.putLong(movi).putInt(0);
+            for (int i = first; i < last; i++) {
+                b.putInt(dataOffsets[i - first] - movi).putInt(3 | (keyframes[i] ? 0 : 0x80000000));
+            }
+            endChunk(b, ix);
+            endChunk(b, movi);
+            endChunk(b, riff);
+            b.putLong(superIndexEntries + segment * 16, ix)
+                    .putInt(superIndexEntries + segment * 16 + 8, b.getInt(ix + 4) + 8)
+                    .putInt(superIndexEntries + segment * 16 + 12, last - first);
+            first = last;
+        }
+
+        byte[] data = new byte[b.position()];
+        b.flip().get(data);
+        return data;
+    }
+
+    private static void putFourCC(ByteBuffer b, String fourCC) {
+        b.put(fourCC.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static int beginChunk(ByteBuffer b, String id, String type) {
+        int start = b.position();
+        putFourCC(b, id);
+        b.putInt(0);
+        if (type != null) {
+            putFourCC(b, type);
+        }
+        return start;
+    }
+
+    private static void endChunk(ByteBuffer b, int start) {
+        b.putInt(start + 4, b.position() - start - 8);
+        if ((b.position() & 1) != 0) {
+            b.put((byte) 0);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * @(#)SampleTableListTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.avi;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.avi.AbstractAVIStream.Sample;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class SampleTableListTest {
+    private static Sample sample(int i, Sample header) {
+        Sample s = new Sample(0x63643030, 1, 1000L * i, 10 + i, i % 3 == 0);
+        s.timeStamp = i;
+        s.header = header;
+        return s;
+    }
+
+    @Test
+    public void accessorsShouldMatchSamples() {
+        SampleTableList list = new SampleTableList();
+        for (int i = 0; i < 100; i++) {
+            list.add(sample(i, null));
+        }
+        for (int i = 0; i < 100; i++) {
+            Sample s = list.get(i);
+            assertEquals(s.offset, list.getOffset(i));
+            assertEquals(s.length, list.getLength(i));
+            assertEquals(s.duration, list.getDuration(i));
+            assertEquals(s.timeStamp, list.getTimeStamp(i));
+            assertEquals(s.isKeyframe, list.isKeyframe(i));
+            assertEquals(1000L * i, s.offset);
+            assertEquals(i % 3 == 0, s.isKeyframe);
+        }
+    }
+
+    @Test
+    public void paletteChangeShouldApplyToFollowingSamples() {
+        Sample red = new Sample(0x63703030, 0, 10, 20, false);
+        Sample green = new Sample(0x63703030, 0, 30, 20, false);
+        SampleTableList list = new SampleTableList();
+        for (int i = 0; i < 10; i++) {
+            list.add(sample(i, i < 3 ? null : i < 7 ? red : green));
+        }
+        for (int i = 0; i < 10; i++) {
+            Sample expected = i < 3 ? null : i < 7 ? red : green;
+            assertSame(expected, list.getHeader(i), "sample " + i);
+            assertSame(expected, list.get(i).header, "sample " + i);
+        }
+    }
+
+    @Test
+    public void setShouldOnlyChangeTheHeaderOfTheSpecifiedSample() {
+        Sample red = new Sample(0x63703030, 0, 10, 20, false);
+        Sample green = new Sample(0x63703030, 0, 30, 20, false);
+        SampleTableList list = new SampleTableList();
+        for (int i = 0; i < 10; i++) {
+            list.add(sample(i, i < 5 ? null : red));
+        }
+        Sample[] expected = new Sample[10];
+        for (int i = 5; i < 10; i++) {
+            expected[i] = red;
+        }
+        int[] changes = {5, 0, 9, 2, 4, 5, 0, 9};
+        for (int i : changes) {
+            Sample s = list.get(i);
+            s.header = s.header == green ? null : green;
+            expected[i] = s.header;
+            list.set(i, s);
+            for (int j = 0; j < expected.length; j++) {
+                assertSame(expected[j], list.getHeader(j), "sample " + j + " after change of " + i);
+            }
+        }
+        list.clear();
+        list.add(sample(0, null));
+        assertSame(null, list.getHeader(0));
+    }
+}
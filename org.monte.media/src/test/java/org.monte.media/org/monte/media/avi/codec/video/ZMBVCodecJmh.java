@@ -0,0 +1,126 @@
+/*
+ * @(#)ZMBVCodecJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.avi.codec.video;
+
+import org.monte.media.av.Buffer;
+import org.monte.media.av.Codec;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.av.codec.video.TechSmithCodec;
+import org.monte.media.math.Rational;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.KeyFrameIntervalKey;
+import static org.monte.media.av.FormatKeys.MIME_AVI;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+
+/**
+ * Compares the encoding speed of ZMBV and TSCC on a 1080p screen recording
+ * with scrolling content.
+ * <p>
+ * The score is in frames per second. The tear down prints the average size
+ * of the encoded frames.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class ZMBVCodecJmh {
+    private final static int WIDTH = 1920;
+    private final static int HEIGHT = 1080;
+
+    private List<BufferedImage> frames;
+    private Codec zmbv;
+    private Codec tscc;
+    private final Buffer in = new Buffer();
+    private final Buffer out = new Buffer();
+    private int index;
+    private long zmbvBytes, zmbvFrames, tsccBytes, tsccFrames;
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ZMBVCodecJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        frames = ZMBVCodecTest.createScrollingFrames(WIDTH, HEIGHT, 30, 4, BufferedImage.TYPE_INT_RGB);
+        zmbv = ZMBVCodecTest.createEncoder(WIDTH, HEIGHT, 32, 16);
+        tscc = new TechSmithCodec();
+        tscc.setInputFormat(zmbv.getInputFormat());
+        tscc.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                WidthKey, WIDTH, HeightKey, HEIGHT, DepthKey, 24,
+                FrameRateKey, new Rational(30, 1), KeyFrameIntervalKey, 30));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (zmbvFrames > 0) {
+            System.out.println("\nZMBV average frame size: " + zmbvBytes / zmbvFrames + " bytes");
+        }
+        if (tsccFrames > 0) {
+            System.out.println("\nTSCC average frame size: " + tsccBytes / tsccFrames + " bytes");
+        }
+    }
+
+    private BufferedImage nextFrame() {
+        index = index + 1;
+        if (index >= frames.size()) index = 0;
+        return frames.get(index);
+    }
+
+    @Benchmark
+    public Object zmbv() {
+        in.data = nextFrame();
+        in.format = zmbv.getInputFormat();
+        zmbv.process(in, out);
+        zmbvBytes += out.length;
+        zmbvFrames++;
+        return out.data;
+    }
+
+    @Benchmark
+    public Object tscc() {
+        in.data = nextFrame();
+        in.format = tscc.getInputFormat();
+        tscc.process(in, out);
+        tsccBytes += out.length;
+        tsccFrames++;
+        return out.data;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * @(#)ZMBVCodecTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.avi.codec.video;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.Codec;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.av.codec.video.TechSmithCodec;
+import org.monte.media.math.Rational;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.monte.media.av.BufferFlag.KEYFRAME;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.KeyFrameIntervalKey;
+import static org.monte.media.av.FormatKeys.MIME_AVI;
+import static org.monte.media.av.FormatKeys.MIME_JAVA;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVI_DOSBOX_SCREEN_CAPTURE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.MotionSearchRangeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+
+public class ZMBVCodecTest {
+    @Test
+    public void shouldEncodeDecode8BitFrames() {
+        shouldEncodeDecodeFrames(BufferedImage.TYPE_BYTE_INDEXED, 8);
+    }
+
+    @Test
+    public void shouldEncodeDecode15BitFrames() {
+        shouldEncodeDecodeFrames(BufferedImage.TYPE_USHORT_555_RGB, 15);
+    }
+
+    @Test
+    public void shouldEncodeDecode16BitFrames() {
+        shouldEncodeDecodeFrames(BufferedImage.TYPE_USHORT_565_RGB, 16);
+    }
+
+    @Test
+    public void shouldEncodeDecode32BitFrames() {
+        shouldEncodeDecodeFrames(BufferedImage.TYPE_INT_RGB, 32);
+    }
+
+    @Test
+    public void shouldEncodeDecodePaletteChange() {
+        int width = 50, height = 40;
+        ZMBVCodec encoder = createEncoder(width, height, 8, 16);
+        ZMBVCodec decoder = createDecoder(encoder.getOutputFormat());
+        Buffer in = new Buffer();
+        Buffer encoded = new Buffer();
+        Buffer decoded = new Buffer();
+        BufferedImage img = createScrollingFrames(width, height, 1, 0, BufferedImage.TYPE_BYTE_INDEXED).get(0);
+        for (int frame = 0; frame < 3; frame++) {
+            if (frame == 2) {
+                // Same pixels, inverted palette
+                IndexColorModel icm = (IndexColorModel) img.getColorModel();
+                int[] rgbs = new int[icm.getMapSize()];
+                icm.getRGBs(rgbs);
+                for (int i = 0; i < rgbs.length; i++) {
+                    rgbs[i] = ~rgbs[i];
+                }
+                img = new BufferedImage(new IndexColorModel(8, rgbs.length, rgbs, 0, false, -1, icm.getTransferType()),
+                        img.getRaster(), false, null);
+            }
+            in.data = img;
+            in.format = encoder.getInputFormat();
+            assertEquals(Codec.CODEC_OK, encoder.process(in, encoded));
+            assertEquals(frame == 0, encoded.isFlag(KEYFRAME), "frame " + frame);
+            assertEquals(Codec.CODEC_OK, decoder.process(encoded, decoded));
+            assertArrayEquals(toRgb(img), toRgb((BufferedImage) decoded.data), "frame " + frame);
+        }
+    }
+
+    @Test
+    public void shouldEncodeScrollingContentSmallerThanTechSmith() {
+        int width = 320, height = 240;
+        List<BufferedImage> frames = createScrollingFrames(width, height, 10, 5, BufferedImage.TYPE_INT_RGB);
+
+        ZMBVCodec zmbv = createEncoder(width, height, 32, 16);
+        ZMBVCodec noMotion = createEncoder(width, height, 32, 0);
+        TechSmithCodec tscc = new TechSmithCodec();
+        tscc.setInputFormat(zmbv.getInputFormat());
+        tscc.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                EncodingKey, ENCODING_AVI_TECHSMITH_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                WidthKey, width, HeightKey, height, DepthKey, 24,
+                FrameRateKey, new Rational(30, 1), KeyFrameIntervalKey, 100));
+
+        long zmbvSize = encodeDeltaFrames(zmbv, frames);
+        long noMotionSize = encodeDeltaFrames(noMotion, frames);
+        long tsccSize = encodeDeltaFrames(tscc, frames);
+        assertTrue(zmbvSize * 2 < tsccSize, "zmbv=" + zmbvSize + " tscc=" + tsccSize);
+        assertTrue(zmbvSize < noMotionSize, "zmbv=" + zmbvSize + " without motion search=" + noMotionSize);
+    }
+
+    private static void shouldEncodeDecodeFrames(int imageType, int depth) {
+        // The width and height are not multiples of the block size
+        int width = 70, height = 50;
+        ZMBVCodec encoder = createEncoder(width, height, depth, 16);
+        ZMBVCodec decoder = createDecoder(encoder.getOutputFormat());
+        Buffer in = new Buffer();
+        Buffer encoded = new Buffer();
+        Buffer decoded = new Buffer();
+        List<BufferedImage> frames = createScrollingFrames(width, height, 6, 3, imageType);
+        for (int frame = 0; frame < frames.size(); frame++) {
+            BufferedImage img = frames.get(frame);
+            in.data = img;
+            in.format = encoder.getInputFormat();
+            assertEquals(Codec.CODEC_OK, encoder.process(in, encoded));
+            assertEquals(frame == 0, encoded.isFlag(KEYFRAME), "frame " + frame);
+            assertEquals(Codec.CODEC_OK, decoder.process(encoded, decoded));
+            BufferedImage actual = (BufferedImage) decoded.data;
+            switch (depth) {
+                case 8 -> {
+                    assertArrayEquals(((DataBufferByte) img.getRaster().getDataBuffer()).getData(),
+                            ((DataBufferByte) actual.getRaster().getDataBuffer()).getData(), "frame " + frame);
+                    assertArrayEquals(toRgb(img), toRgb(actual), "frame " + frame);
+                }
+                case 15, 16 -> assertArrayEquals(((DataBufferUShort) img.getRaster().getDataBuffer()).getData(),
+                        ((DataBufferUShort) actual.getRaster().getDataBuffer()).getData(), "frame " + frame);
+                default -> assertArrayEquals(toRgb(img), toRgb(actual), "frame " + frame);
+            }
+        }
+        assertFalse(encoded.isFlag(KEYFRAME));
+    }
+
+    static ZMBVCodec createEncoder(int width, int height, int depth, int motionSearchRange) {
+        ZMBVCodec encoder = new ZMBVCodec();
+        encoder.setInputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class,
+                WidthKey, width, HeightKey, height, DepthKey, depth));
+        encoder.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_AVI,
+                EncodingKey, ENCODING_AVI_DOSBOX_SCREEN_CAPTURE, DataClassKey, byte[].class,
+                WidthKey, width, HeightKey, height, DepthKey, depth,
+                FrameRateKey, new Rational(30, 1), KeyFrameIntervalKey, 100,
+                MotionSearchRangeKey, motionSearchRange));
+        return encoder;
+    }
+
+    private static ZMBVCodec createDecoder(Format encodedFormat) {
+        ZMBVCodec decoder = new ZMBVCodec();
+        decoder.setInputFormat(encodedFormat);
+        decoder.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class));
+        return decoder;
+    }
+
+    /**
+     * Encodes all frames and returns the total size of the delta frames.
+     */
+    static long encodeDeltaFrames(Codec encoder, List<BufferedImage> frames) {
+        Buffer in = new Buffer();
+        Buffer encoded = new Buffer();
+        long size = 0;
+        for (BufferedImage img : frames) {
+            in.data = img;
+            in.format = encoder.getInputFormat();
+            assertEquals(Codec.CODEC_OK, encoder.process(in, encoded));
+            if (!encoded.isFlag(KEYFRAME)) {
+                size += encoded.length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Creates frames that show a page of text-like content, which scrolls
+     * up by the specified number of lines in each frame.
+     */
+    static List<BufferedImage> createScrollingFrames(int width, int height, int count, int scroll, int imageType) {
+        BufferedImage page = new BufferedImage(width, height + count * scroll, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = page.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, page.getWidth(), page.getHeight());
+        Random r = new Random(7);
+        Color[] colors = {Color.BLACK, Color.BLUE, Color.RED, Color.GRAY};
+        for (int y = 4; y < page.getHeight(); y += 12) {
+            for (int x = 4; x < width - 8; ) {
+                int w = 3 + r.nextInt(40);
+                g.setColor(colors[r.nextInt(colors.length)]);
+                g.fillRect(x, y, Math.min(w, width - 4 - x), 2 + r.nextInt(7));
+                x += w + 3 + r.nextInt(8);
+            }
+        }
+        g.dispose();
+
+        List<BufferedImage> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BufferedImage frame = new BufferedImage(width, height, imageType);
+            Graphics2D fg = frame.createGraphics();
+            fg.drawImage(page.getSubimage(0, i * scroll, width, height), 0, 0, null);
+            fg.dispose();
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the RGB values of the pixels. Uses the color model returned by
+     * {@link BufferedImage#getColorModel()}, because the decoder changes the
+     * color model of 8-bit images with this method.
+     */
+    private static int[] toRgb(BufferedImage img) {
+        if (img.getColorModel() instanceof IndexColorModel icm) {
+            byte[] indices = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+            int[] rgb = new int[indices.length];
+            for (int i = 0; i < rgb.length; i++) {
+                rgb[i] = icm.getRGB(indices[i] & 0xff) & 0xffffff;
+            }
+            return rgb;
+        }
+        int[] rgb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] &= 0xffffff;
+        }
+        return rgb;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * @(#)ImageResamplerJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.image;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares downscaling a 4K image to 1080p with {@code Graphics2D} and with
+ * {@link ImageResampler}.
+ * <p>
+ * The score is in frames per second.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class ImageResamplerJmh {
+    private BufferedImage src;
+    private BufferedImage dst;
+    private ImageResampler box;
+    private ImageResampler bicubic;
+    private ImageResampler lanczos3;
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ImageResamplerJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        src = ImageResamplerTest.createGradient(3840, 2160, BufferedImage.TYPE_INT_RGB);
+        dst = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+        box = new ImageResampler(ImageResampler.Filter.BOX);
+        bicubic = new ImageResampler(ImageResampler.Filter.BICUBIC);
+        lanczos3 = new ImageResampler(ImageResampler.Filter.LANCZOS3);
+    }
+
+    @Benchmark
+    public Object graphics2DBicubic() {
+        Graphics2D g = dst.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.drawImage(src, 0, 0, dst.getWidth() - 1, dst.getHeight() - 1, 0, 0, src.getWidth() - 1, src.getHeight() - 1, null);
+        g.dispose();
+        return dst;
+    }
+
+    @Benchmark
+    public Object box() {
+        box.resample(src, dst);
+        return dst;
+    }
+
+    @Benchmark
+    public Object bicubic() {
+        bicubic.resample(src, dst);
+        return dst;
+    }
+
+    @Benchmark
+    public Object lanczos3() {
+        lanczos3.resample(src, dst);
+        return dst;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * @(#)ImageResamplerTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.image;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.Codec;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.av.codec.video.ScaleImageCodec;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.MIME_JAVA;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ScalingFilterKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+
+public class ImageResamplerTest {
+
+    @Test
+    public void shouldKeepUniformColor() {
+        BufferedImage src = new BufferedImage(97, 61, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = src.createGraphics();
+        g.setColor(new Color(12, 200, 99));
+        g.fillRect(0, 0, src.getWidth(), src.getHeight());
+        g.dispose();
+        for (ImageResampler.Filter filter : ImageResampler.Filter.values()) {
+            for (int[] size : new int[][]{{40, 25}, {200, 130}, {97, 20}}) {
+                BufferedImage dst = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+                new ImageResampler(filter).resample(src, dst);
+                for (int rgb : toRgb(dst)) {
+                    assertEquals(0xff0cc863, rgb, filter + " " + size[0] + "x" + size[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldCopyImageOfSameSize() {
+        BufferedImage src = createGradient(64, 48, BufferedImage.TYPE_INT_RGB);
+        BufferedImage dst = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        new ImageResampler(ImageResampler.Filter.LANCZOS3).resample(src, dst);
+        assertArrayEquals(toRgb(src), toRgb(dst));
+    }
+
+    @Test
+    public void shouldAverageAreaWithBoxFilter() {
+        BufferedImage src = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        src.setRGB(0, 0, 4, 2, new int[]{
+                0x000000, 0x404040, 0xff0000, 0xff0000,
+                0x808080, 0xc0c0c0, 0x0000ff, 0x0000ff}, 0, 4);
+        BufferedImage dst = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        new ImageResampler(ImageResampler.Filter.BOX).resample(src, dst);
+        assertArrayEquals(new int[]{0xff606060, 0xff800080}, toRgb(dst));
+    }
+
+    @Test
+    public void shouldProduceSameResultForAllImageTypes() {
+        BufferedImage src = createGradient(400, 300, BufferedImage.TYPE_INT_RGB);
+        BufferedImage expected = new BufferedImage(150, 100, BufferedImage.TYPE_INT_RGB);
+        ImageResampler resampler = new ImageResampler(ImageResampler.Filter.LANCZOS3);
+        resampler.resample(src, expected);
+        for (int type : new int[]{BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_BGR}) {
+            BufferedImage typedSrc = createGradient(400, 300, type);
+            BufferedImage actual = new BufferedImage(150, 100, type);
+            resampler.resample(typedSrc, actual);
+            assertArrayEquals(toRgb(expected), toRgb(actual), "type " + type);
+        }
+    }
+
+    @Test
+    public void shouldScaleSubimage() {
+        BufferedImage src = createGradient(400, 300, BufferedImage.TYPE_INT_RGB);
+        BufferedImage sub = src.getSubimage(100, 50, 200, 200);
+        BufferedImage copy = new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB);
+        copy.setRGB(0, 0, 200, 200, toRgb(sub), 0, 200);
+        ImageResampler resampler = new ImageResampler(ImageResampler.Filter.BICUBIC);
+        BufferedImage expected = new BufferedImage(70, 70, BufferedImage.TYPE_INT_RGB);
+        resampler.resample(copy, expected);
+        BufferedImage actual = new BufferedImage(70, 70, BufferedImage.TYPE_INT_RGB);
+        resampler.resample(sub, actual);
+        assertArrayEquals(toRgb(expected), toRgb(actual));
+    }
+
+    @Test
+    public void shouldNotAliasStripesWhenDownscaling() {
+        // One pixel wide black and white stripes become uniform gray
+        BufferedImage src = new BufferedImage(300, 10, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < src.getWidth(); x++) {
+            for (int y = 0; y < src.getHeight(); y++) {
+                src.setRGB(x, y, x % 2 == 0 ? 0xffffff : 0);
+            }
+        }
+        BufferedImage dst = new BufferedImage(100, 10, BufferedImage.TYPE_INT_RGB);
+        new ImageResampler(ImageResampler.Filter.LANCZOS3).resample(src, dst);
+        for (int rgb : toRgb(dst)) {
+            int gray = rgb & 0xff;
+            assertTrue(gray > 0x70 && gray < 0x90, Integer.toHexString(rgb));
+        }
+    }
+
+    @Test
+    public void shouldScaleWithScaleImageCodec() {
+        BufferedImage src = createGradient(320, 240, BufferedImage.TYPE_INT_RGB);
+        ScaleImageCodec codec = new ScaleImageCodec();
+        codec.setInputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, WidthKey, 320, HeightKey, 240));
+        codec.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, WidthKey, 160, HeightKey, 120,
+                ScalingFilterKey, ImageResampler.Filter.BOX));
+        Buffer in = new Buffer();
+        in.data = src;
+        Buffer out = new Buffer();
+        assertEquals(Codec.CODEC_OK, codec.process(in, out));
+
+        BufferedImage expected = new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB);
+        new ImageResampler(ImageResampler.Filter.BOX).resample(src, expected);
+        assertArrayEquals(toRgb(expected), toRgb((BufferedImage) out.data));
+    }
+
+    static BufferedImage createGradient(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.BLACK);
+        for (int y = 0; y < height; y += 9) {
+            g.drawLine(0, y, width, y + width / 3);
+        }
+        g.dispose();
+        return img;
+    }
+
+    private static int[] toRgb(BufferedImage img) {
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+}
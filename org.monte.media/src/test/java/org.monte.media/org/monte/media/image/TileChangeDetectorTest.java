@@ -0,0 +1,80 @@
+/*
+ * @(#)TileChangeDetectorTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.image;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TileChangeDetectorTest {
+
+    @Test
+    public void shouldReportEntireImageWithoutReference() {
+        TileChangeDetector detector = new TileChangeDetector(16);
+        BufferedImage img = new BufferedImage(100, 70, BufferedImage.TYPE_INT_RGB);
+        assertNull(detector.detect(img));
+    }
+
+    @Test
+    public void shouldReportNoChangeForIdenticalImage() {
+        TileChangeDetector detector = new TileChangeDetector(16);
+        BufferedImage img = new BufferedImage(100, 70, BufferedImage.TYPE_INT_RGB);
+        detector.update(img, null);
+        List<Rectangle> regions = detector.detect(img);
+        assertTrue(regions.isEmpty());
+    }
+
+    @Test
+    public void shouldMergeChangedTilesInRow() {
+        TileChangeDetector detector = new TileChangeDetector(16);
+        BufferedImage img = new BufferedImage(100, 70, BufferedImage.TYPE_INT_RGB);
+        detector.update(img, null);
+
+        img.setRGB(20, 5, 0xff0000);
+        img.setRGB(40, 5, 0xff0000);
+        img.setRGB(99, 69, 0x00ff00);
+        List<Rectangle> regions = detector.detect(img);
+        assertEquals(List.of(new Rectangle(16, 0, 32, 16), new Rectangle(96, 64, 4, 6)), regions);
+    }
+
+    @Test
+    public void shouldOnlyDetectChangesAgainstUpdatedReference() {
+        TileChangeDetector detector = new TileChangeDetector(16);
+        BufferedImage img = new BufferedImage(50, 50, BufferedImage.TYPE_BYTE_INDEXED);
+        detector.update(img, null);
+
+        img.getRaster().setSample(3, 3, 0, 7);
+        List<Rectangle> regions = detector.detect(img);
+        assertEquals(List.of(new Rectangle(0, 0, 16, 16)), regions);
+        // without an update, the change is reported again
+        assertEquals(regions, detector.detect(img));
+
+        detector.update(img, regions);
+        assertTrue(detector.detect(img).isEmpty());
+    }
+
+    @Test
+    public void shouldDetectChangesInParallelOnLargeImage() {
+        TileChangeDetector detector = new TileChangeDetector();
+        BufferedImage img = new BufferedImage(640, 480, BufferedImage.TYPE_USHORT_555_RGB);
+        detector.update(img, null);
+
+        img.setRGB(300, 400, 0xffffff);
+        assertEquals(List.of(new Rectangle(256, 384, 64, 64)), detector.detect(img));
+    }
+
+    @Test
+    public void shouldReportEntireImageWhenSizeChanges() {
+        TileChangeDetector detector = new TileChangeDetector(16);
+        detector.update(new BufferedImage(100, 70, BufferedImage.TYPE_INT_RGB), null);
+        assertNull(detector.detect(new BufferedImage(70, 100, BufferedImage.TYPE_INT_RGB)));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * @(#)ImageToYuv420jJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.impl.jcodec.impl;
+
+import org.monte.media.impl.jcodec.common.model.ColorSpace;
+import org.monte.media.impl.jcodec.common.model.Picture;
+import org.monte.media.impl.jcodec.scale.RgbToYuv420j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the conversion of a 1080p image to YUV420J through an RGB
+ * {@link Picture} and {@link RgbToYuv420j}, with the direct conversion of
+ * {@link ImageToYuv420j}.
+ * <p>
+ * The score is in frames per second.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class ImageToYuv420jJmh {
+    private final static int WIDTH = 1920;
+    private final static int HEIGHT = 1080;
+
+    @Param({"1", "5"})// TYPE_INT_RGB, TYPE_3BYTE_BGR
+    public int imageType;
+
+    private BufferedImage img;
+    private Picture picture;
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ImageToYuv420jJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        img = new BufferedImage(WIDTH, HEIGHT, imageType);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.ORANGE, WIDTH, HEIGHT, Color.BLUE));
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.dispose();
+        picture = Picture.create(WIDTH, HEIGHT, ColorSpace.YUV420J);
+    }
+
+    @Benchmark
+    public Object viaRgbPicture() {
+        Picture rgb = AWTUtil.fromBufferedImageRGB(img);
+        Picture yuv = Picture.create(WIDTH, HEIGHT, ColorSpace.YUV420J);
+        new RgbToYuv420j().transform(rgb, yuv);
+        return yuv;
+    }
+
+    @Benchmark
+    public Object direct() {
+        return ImageToYuv420j.transform(img, picture);
+    }
+}
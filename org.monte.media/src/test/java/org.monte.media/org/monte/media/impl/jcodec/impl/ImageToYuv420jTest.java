@@ -0,0 +1,80 @@
+/*
+ * @(#)ImageToYuv420jTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.impl.jcodec.impl;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.impl.jcodec.common.model.ColorSpace;
+import org.monte.media.impl.jcodec.common.model.Picture;
+import org.monte.media.impl.jcodec.scale.RgbToYuv420j;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ImageToYuv420jTest {
+
+    @Test
+    public void shouldConvertIntRgbLikeRgbToYuv420j() {
+        assertSameAsRgbToYuv420j(createImage(BufferedImage.TYPE_INT_RGB, 64, 48));
+    }
+
+    @Test
+    public void shouldConvertIntArgbLikeRgbToYuv420j() {
+        assertSameAsRgbToYuv420j(createImage(BufferedImage.TYPE_INT_ARGB, 64, 48));
+    }
+
+    @Test
+    public void shouldConvert3ByteBgrLikeRgbToYuv420j() {
+        assertSameAsRgbToYuv420j(createImage(BufferedImage.TYPE_3BYTE_BGR, 64, 48));
+    }
+
+    @Test
+    public void shouldConvert4ByteAbgrLikeRgbToYuv420j() {
+        assertSameAsRgbToYuv420j(createImage(BufferedImage.TYPE_4BYTE_ABGR, 64, 48));
+    }
+
+    @Test
+    public void shouldConvertOtherImageTypesLikeRgbToYuv420j() {
+        assertSameAsRgbToYuv420j(createImage(BufferedImage.TYPE_USHORT_565_RGB, 64, 48));
+    }
+
+    @Test
+    public void shouldConvertLargeImageInParallelAndReusePicture() {
+        BufferedImage img = createImage(BufferedImage.TYPE_INT_RGB, 640, 480);
+        Picture reuse = Picture.create(640, 480, ColorSpace.YUV420J);
+        Picture actual = ImageToYuv420j.transform(img, reuse);
+        assertSame(reuse, actual);
+        assertSameAsRgbToYuv420j(img);
+    }
+
+    private static void assertSameAsRgbToYuv420j(BufferedImage img) {
+        Picture rgb = AWTUtil.fromBufferedImageRGB(img);
+        Picture expected = Picture.create(img.getWidth(), img.getHeight(), ColorSpace.YUV420J);
+        new RgbToYuv420j().transform(rgb, expected);
+
+        Picture actual = ImageToYuv420j.transform(img, null);
+        for (int plane = 0; plane < 3; plane++) {
+            assertArrayEquals(expected.getPlaneData(plane), actual.getPlaneData(plane), "plane " + plane);
+        }
+    }
+
+    private static BufferedImage createImage(int type, int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random r = new Random(width * 31L + type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argb = r.nextInt();
+                if (r.nextBoolean()) {
+                    argb |= 0xff000000;
+                }
+                img.setRGB(x, y, argb);
+            }
+        }
+        return img;
+    }
+}
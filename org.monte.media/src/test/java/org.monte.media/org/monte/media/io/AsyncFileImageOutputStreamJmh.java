@@ -0,0 +1,94 @@
+/*
+ * @(#)AsyncFileImageOutputStreamJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.io;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link FileImageOutputStream} and
+ * {@link AsyncFileImageOutputStream} with the write pattern of a movie
+ * writer: each sample is preceded by a small chunk header, and the header of
+ * the file is updated at the end.
+ * <p>
+ * Each operation writes 32 MiB. The score is in operations per second.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class AsyncFileImageOutputStreamJmh {
+    private final static int SAMPLE_SIZE = 1000;
+    private final static int SAMPLE_COUNT = (32 << 20) / SAMPLE_SIZE;
+
+    private Path file;
+    private final byte[] sample = new byte[SAMPLE_SIZE];
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AsyncFileImageOutputStreamJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("AsyncFileImageOutputStreamJmh", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long fileImageOutputStream() throws IOException {
+        Files.deleteIfExists(file);
+        return writeMovie(new FileImageOutputStream(file.toFile()));
+    }
+
+    @Benchmark
+    public long asyncFileImageOutputStream() throws IOException {
+        return writeMovie(new AsyncFileImageOutputStream(file));
+    }
+
+    private long writeMovie(ImageOutputStream out) throws IOException {
+        out.writeInt(0);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            out.writeInt(i);
+            out.writeInt(SAMPLE_SIZE);
+            out.write(sample);
+        }
+        long length = out.getStreamPosition();
+        out.seek(0);
+        out.writeInt((int) length);
+        out.close();
+        return length;
+    }
+}
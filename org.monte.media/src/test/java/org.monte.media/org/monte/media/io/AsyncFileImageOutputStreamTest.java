@@ -0,0 +1,124 @@
+/*
+ * @(#)AsyncFileImageOutputStreamTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AsyncFileImageOutputStreamTest {
+    @Test
+    public void shouldWriteSameContentAsByteArrayImageOutputStream() throws IOException {
+        for (AsyncFileImageOutputStream.SyncPolicy policy : AsyncFileImageOutputStream.SyncPolicy.values()) {
+            for (int bufferSize : new int[]{1, 7, 64, 1 << 16}) {
+                Path file = Files.createTempFile("async", ".bin");
+                try {
+                    ByteArrayImageOutputStream expected = new ByteArrayImageOutputStream();
+                    expected.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+                    AsyncFileImageOutputStream actual = new AsyncFileImageOutputStream(file, bufferSize, policy);
+                    actual.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+                    Random r = new Random(bufferSize);
+                    for (int i = 0; i < 500; i++) {
+                        switch (r.nextInt(10)) {
+                            case 0 -> {
+                                // Update a header
+                                long pos = expected.length() == 0 ? 0 : r.nextInt((int) expected.length());
+                                expected.seek(pos);
+                                actual.seek(pos);
+                                expected.writeInt(i);
+                                actual.writeInt(i);
+                                expected.seek(expected.length());
+                                actual.seek(actual.length());
+                            }
+                            case 1 -> {
+                                expected.write(i);
+                                actual.write(i);
+                            }
+                            case 2 -> {
+                                expected.writeShort(i);
+                                actual.writeShort(i);
+                            }
+                            default -> {
+                                byte[] b = new byte[r.nextInt(200)];
+                                r.nextBytes(b);
+                                expected.write(b);
+                                actual.write(b);
+                            }
+                        }
+                        assertEquals(expected.getStreamPosition(), actual.getStreamPosition());
+                        assertEquals(expected.length(), actual.length());
+                    }
+                    actual.close();
+                    assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file), policy + " " + bufferSize);
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadBackWrittenData() throws IOException {
+        Path file = Files.createTempFile("async", ".bin");
+        try (AsyncFileImageOutputStream out = new AsyncFileImageOutputStream(file, 16,
+                AsyncFileImageOutputStream.SyncPolicy.NONE)) {
+            byte[] data = new byte[100];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            out.write(data);
+            out.seek(10);
+            byte[] b = new byte[50];
+            out.readFully(b);
+            assertArrayEquals(Arrays.copyOfRange(data, 10, 60), b);
+            assertEquals(60, out.getStreamPosition());
+            out.write(new byte[]{-1, -1});
+            out.seek(59);
+            assertEquals(59, out.read());
+            assertEquals(0xff, out.read());
+            out.seek(100);
+            assertEquals(-1, out.read());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void shouldTruncateExistingFile() throws IOException {
+        Path file = Files.createTempFile("async", ".bin");
+        try {
+            Files.write(file, new byte[1000]);
+            try (AsyncFileImageOutputStream out = new AsyncFileImageOutputStream(file)) {
+                out.writeInt(42);
+            }
+            assertEquals(4, Files.size(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void shouldThrowAfterClose() throws IOException {
+        Path file = Files.createTempFile("async", ".bin");
+        try {
+            AsyncFileImageOutputStream out = new AsyncFileImageOutputStream(file);
+            out.close();
+            out.close();
+            assertThrows(IOException.class, () -> out.write(1));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
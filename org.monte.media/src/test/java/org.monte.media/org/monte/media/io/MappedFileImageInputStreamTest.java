@@ -0,0 +1,89 @@
+/*
+ * @(#)MappedFileImageInputStreamTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MappedFileImageInputStreamTest {
+    @Test
+    public void readsShouldCrossWindowBoundaries() throws IOException {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        Path file = Files.createTempFile("mapped", ".bin");
+        try {
+            Files.write(file, data);
+            try (MappedFileImageInputStream in = new MappedFileImageInputStream(file, 16)) {
+                assertEquals(data.length, in.length());
+
+                byte[] b = new byte[data.length];
+                in.readFully(b);
+                assertArrayEquals(data, b);
+                assertEquals(-1, in.read());
+
+                ByteBuffer expected = ByteBuffer.wrap(data);
+                for (int pos = 0; pos < data.length - 8; pos += 5) {
+                    in.setByteOrder(ByteOrder.BIG_ENDIAN);
+                    expected.order(ByteOrder.BIG_ENDIAN);
+                    in.seek(pos);
+                    assertEquals(expected.getLong(pos), in.readLong(), "readLong at " + pos);
+                    in.seek(pos);
+                    assertEquals(expected.getInt(pos), in.readInt(), "readInt at " + pos);
+                    in.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+                    expected.order(ByteOrder.LITTLE_ENDIAN);
+                    in.seek(pos);
+                    assertEquals(expected.getShort(pos), in.readShort(), "readShort at " + pos);
+                    assertEquals(pos + 2, in.getStreamPosition());
+                }
+
+                in.seek(998);
+                assertThrows(EOFException.class, in::readInt);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void sliceShouldNotChangeStreamPosition() throws IOException {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Path file = Files.createTempFile("mapped", ".bin");
+        try {
+            Files.write(file, data);
+            try (MappedFileImageInputStream in = new MappedFileImageInputStream(file, 16)) {
+                in.seek(3);
+                for (int len : new int[]{10, 50}) {
+                    ByteBuffer slice = in.slice(20, len);
+                    assertTrue(slice.isReadOnly());
+                    assertEquals(len, slice.remaining());
+                    for (int i = 0; i < len; i++) {
+                        assertEquals(20 + i, slice.get(i), "slice of length " + len);
+                    }
+                }
+                assertEquals(3, in.getStreamPosition());
+                assertThrows(EOFException.class, () -> in.slice(90, 11));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
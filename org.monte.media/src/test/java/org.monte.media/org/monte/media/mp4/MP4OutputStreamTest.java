@@ -0,0 +1,210 @@
+/*
+ * @(#)MP4OutputStreamTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.mp4;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+
+public class MP4OutputStreamTest {
+
+    @Test
+    public void shouldWriteFragmentsAtSyncSamples() throws IOException {
+        File file = File.createTempFile("fragmented", ".mp4");
+        file.deleteOnExit();
+        MP4OutputStream out = new MP4OutputStream(file);
+        try {
+            int track = out.addVideoTrack("jpeg", "JPEG", 10, 4, 4, 24, 5,
+                    new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, "jpeg"));
+            out.setFragmentDuration(600);// one second
+            for (int i = 0; i < 25; i++) {
+                // frames have a duration of 1/10 second, every 5th frame is a key frame
+                byte[] frame = new byte[10 + i];
+                frame[0] = (byte) i;
+                out.writeSample(track, frame, 0, frame.length, 1, i % 5 == 0);
+            }
+        } finally {
+            out.close();
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<String> types = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        for (int offset = 0; offset < buf.limit(); ) {
+            int size = buf.getInt(offset);
+            types.add(getType(buf, offset + 4));
+            offsets.add(offset);
+            offset += size;
+        }
+        assertEquals(List.of("ftyp", "moov", "moof", "wide", "mdat", "moof", "wide", "mdat", "moof", "wide", "mdat"), types);
+
+        int moov = offsets.get(1);
+        assertTrue(contains(buf, moov, buf.getInt(moov), "trex"));
+
+        // the fragments contain 10 frames, 10 frames, and 5 frames
+        int[] expectedCounts = {10, 10, 5};
+        int firstFrame = 0;
+        for (int f = 0; f < 3; f++) {
+            int moof = offsets.get(2 + f * 3);
+            int trun = find(buf, moof, buf.getInt(moof), "trun");
+            int flags = buf.getInt(trun + 8);
+            int sampleCount = buf.getInt(trun + 12);
+            int dataOffset = buf.getInt(trun + 16);
+            assertEquals(expectedCounts[f], sampleCount);
+            assertEquals(0x201 | 0x400, flags);
+            assertEquals(offsets.get(4 + f * 3) + 8, moof + dataOffset);
+
+            int tfdt = find(buf, moof, buf.getInt(moof), "tfdt");
+            assertEquals(firstFrame, buf.getLong(tfdt + 12));
+
+            // verify the position of the sample data
+            int pos = moof + dataOffset;
+            for (int i = 0; i < sampleCount; i++) {
+                int frame = firstFrame + i;
+                int size = buf.getInt(trun + 20 + i * 8);
+                assertEquals(10 + frame, size);
+                assertEquals(frame % 5 == 0 ? 0x02000000 : 0x01010000, buf.getInt(trun + 24 + i * 8));
+                assertEquals((byte) frame, buf.get(pos));
+                pos += size;
+            }
+            firstFrame += sampleCount;
+        }
+    }
+
+    @Test
+    public void shouldNotChangeFragmentDurationAfterFirstSample() throws IOException {
+        File file = File.createTempFile("fragmented", ".mp4");
+        file.deleteOnExit();
+        MP4OutputStream out = new MP4OutputStream(file);
+        try {
+            int track = out.addVideoTrack("jpeg", "JPEG", 10, 4, 4, 24, 5,
+                    new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, "jpeg"));
+            out.writeSample(track, new byte[4], 0, 4, 1, true);
+            assertThrows(IllegalStateException.class, () -> out.setFragmentDuration(600));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void shouldWriteMovieHeaderIntoReserve() throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(writeFastStartMovie(4096).toPath()));
+        assertEquals(List.of("ftyp", "moov", "free", "wide", "mdat"), getTopLevelTypes(buf));
+        int moovSize = buf.getInt(buf.getInt(0));
+        int freeSize = buf.getInt(buf.getInt(0) + moovSize);
+        assertEquals(4096, moovSize + freeSize);
+        verifyChunkOffsets(buf);
+    }
+
+    @Test
+    public void shouldMoveMediaDataIfReserveIsTooSmall() throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(writeFastStartMovie(8).toPath()));
+        assertEquals("moov", getTopLevelTypes(buf).get(1));
+        assertEquals(List.of("wide", "mdat"), getTopLevelTypes(buf).subList(getTopLevelTypes(buf).size() - 2, getTopLevelTypes(buf).size()));
+        verifyChunkOffsets(buf);
+    }
+
+    @Test
+    public void shouldNotChangeFastStartReserveAfterFirstSample() throws IOException {
+        File file = File.createTempFile("faststart", ".mp4");
+        file.deleteOnExit();
+        MP4OutputStream out = new MP4OutputStream(file);
+        try {
+            int track = out.addVideoTrack("jpeg", "JPEG", 10, 4, 4, 24, 5,
+                    new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, "jpeg"));
+            out.writeSample(track, new byte[4], 0, 4, 1, true);
+            assertThrows(IllegalStateException.class, () -> out.setFastStartReserve(4096));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static File writeFastStartMovie(long reserve) throws IOException {
+        File file = File.createTempFile("faststart", ".mp4");
+        file.deleteOnExit();
+        MP4OutputStream out = new MP4OutputStream(file);
+        try {
+            int track = out.addVideoTrack("jpeg", "JPEG", 10, 4, 4, 24, 5,
+                    new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, "jpeg"));
+            out.setFastStartReserve(reserve);
+            for (int i = 0; i < 25; i++) {
+                byte[] frame = new byte[10 + i];
+                frame[0] = (byte) i;
+                out.writeSample(track, frame, 0, frame.length, 1, i % 5 == 0);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Verifies that the chunk offset table points to the frames written by
+     * {@link #writeFastStartMovie}.
+     */
+    private static void verifyChunkOffsets(ByteBuffer buf) {
+        int moov = buf.getInt(0);
+        int stco = find(buf, moov, buf.getInt(moov), "stco");
+        int count = buf.getInt(stco + 12);
+        int frame = 0;
+        for (int i = 0; i < count; i++) {
+            int pos = buf.getInt(stco + 16 + i * 4);
+            assertEquals((byte) frame, buf.get(pos));
+            // chunks may contain more than one frame
+            for (; frame < 25 && buf.get(pos) == (byte) frame; frame++) {
+                pos += 10 + frame;
+            }
+        }
+        assertEquals(25, frame);
+    }
+
+    private static List<String> getTopLevelTypes(ByteBuffer buf) {
+        List<String> types = new ArrayList<>();
+        for (int offset = 0; offset < buf.limit(); offset += buf.getInt(offset)) {
+            types.add(getType(buf, offset + 4));
+        }
+        return types;
+    }
+
+    private static String getType(ByteBuffer buf, int offset) {
+        byte[] b = new byte[4];
+        buf.get(offset, b);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean contains(ByteBuffer buf, int offset, int length, String type) {
+        return find(buf, offset, length, type) >= 0;
+    }
+
+    /**
+     * Returns the offset of the first atom with the specified type, or -1.
+     */
+    private static int find(ByteBuffer buf, int offset, int length, String type) {
+        byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+        for (int i = offset + 4, n = offset + length - 4; i < n; i++) {
+            byte[] b = new byte[4];
+            buf.get(i, b);
+            if (Arrays.equals(t, b)) {
+                return i - 4;
+            }
+        }
+        return -1;
+    }
+}
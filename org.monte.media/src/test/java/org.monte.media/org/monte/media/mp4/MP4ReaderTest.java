@@ -0,0 +1,230 @@
+/*
+ * @(#)MP4ReaderTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+package org.monte.media.mp4;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.math.Rational;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.monte.media.av.BufferFlag.END_OF_MEDIA;
+import static org.monte.media.av.BufferFlag.KEYFRAME;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.ChannelsKey;
+import static org.monte.media.av.codec.audio.AudioFormatKeys.SampleRateKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+
+public class MP4ReaderTest {
+    private final static int FRAME_COUNT = 25;
+
+    @Test
+    public void shouldReadMovie() throws IOException {
+        File file = writeMovie(0);
+        MP4Reader in = new MP4Reader(file);
+        try {
+            verifyMovie(in, FRAME_COUNT, FRAME_COUNT * 800);
+            assertEquals(new Rational(5, 2), in.getMovieDuration());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void shouldReadFragmentedMovie() throws IOException {
+        File file = writeMovie(600);
+        MP4Reader in = new MP4Reader(file);
+        try {
+            verifyMovie(in, FRAME_COUNT, FRAME_COUNT * 800);
+            assertEquals(new Rational(5, 2), in.getMovieDuration());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void shouldReadFastStartMovie() throws IOException {
+        // The first reserve is large enough, the second one is too small
+        for (long reserve : new long[]{4096, 8}) {
+            File file = writeMovie(0, reserve);
+            MP4Reader in = new MP4Reader(file);
+            try {
+                verifyMovie(in, FRAME_COUNT, FRAME_COUNT * 800);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    @Test
+    public void shouldIgnoreTruncatedFragment() throws IOException {
+        File file = writeMovie(600);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // cut off the audio data and a part of the last video frame in the last fragment
+            raf.setLength(raf.length() - 5 * 1600 - 10);
+        }
+        MP4Reader in = new MP4Reader(file);
+        try {
+            verifyMovie(in, FRAME_COUNT - 1, (FRAME_COUNT - 5) * 800);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void shouldReadTrackFragmentsWithImplicitBaseDataOffset() throws IOException {
+        File file = writeMovie(600);
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int moofCount = 0;
+        for (int moof = 0; moof < buf.limit(); moof += buf.getInt(moof)) {
+            if (!"moof".equals(type(buf, moof))) {
+                continue;
+            }
+            moofCount++;
+            int trafCount = 0;
+            for (int traf = moof + 8; traf < moof + buf.getInt(moof); traf += buf.getInt(traf)) {
+                if (!"traf".equals(type(buf, traf))) {
+                    continue;
+                }
+                for (int atom = traf + 8; atom < traf + buf.getInt(traf); atom += buf.getInt(atom)) {
+                    if ("tfhd".equals(type(buf, atom))) {
+                        // clear default-base-is-moof
+                        buf.putInt(atom + 8, buf.getInt(atom + 8) & ~0x020000);
+                    } else if ("trun".equals(type(buf, atom)) && trafCount > 0) {
+                        // the writer stores the data of the track fragments
+                        // contiguously, so the data of this track fragment
+                        // starts where the data of the preceding one ends
+                        assertTrue((buf.getInt(atom + 8) & 0x001) != 0);
+                        buf.putInt(atom + 16, 0);
+                    }
+                }
+                trafCount++;
+            }
+            assertEquals(2, trafCount);
+        }
+        assertTrue(moofCount > 1);
+        Files.write(file.toPath(), buf.array());
+
+        MP4Reader in = new MP4Reader(file);
+        try {
+            verifyMovie(in, FRAME_COUNT, FRAME_COUNT * 800);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String type(ByteBuffer buf, int atom) {
+        return new String(buf.array(), atom + 4, 4, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void shouldSeekToKeyframe() throws IOException {
+        File file = writeMovie(0);
+        MP4Reader in = new MP4Reader(file);
+        try {
+            assertEquals(7, in.findSampleAtTime(0, new Rational(75, 100)));
+            assertEquals(0, in.findSampleAtTime(0, new Rational(-1, 1)));
+            assertEquals(FRAME_COUNT - 1, in.findSampleAtTime(0, new Rational(100, 1)));
+
+            in.setMovieReadTime(new Rational(75, 100));
+            assertEquals(new Rational(1, 2), in.getReadTime(0));
+            Buffer buf = new Buffer();
+            in.read(0, buf);
+            assertEquals(5, buf.sequenceNumber);
+            assertTrue(buf.isFlag(KEYFRAME));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void verifyMovie(MP4Reader in, int frameCount, int audioSampleCount) throws IOException {
+        assertEquals(2, in.getTrackCount());
+        Format videoFormat = in.getFormat(0);
+        assertEquals(MediaType.VIDEO, videoFormat.get(MediaTypeKey));
+        assertEquals("jpeg", videoFormat.get(EncodingKey));
+        assertEquals(16, videoFormat.get(WidthKey));
+        assertEquals(8, videoFormat.get(HeightKey));
+        assertEquals(new Rational(10, 1), videoFormat.get(FrameRateKey));
+        Format audioFormat = in.getFormat(1);
+        assertEquals(MediaType.AUDIO, audioFormat.get(MediaTypeKey));
+        assertEquals(new Rational(8000, 1), audioFormat.get(SampleRateKey));
+        assertEquals(1, audioFormat.get(ChannelsKey));
+
+        assertEquals(frameCount, in.getSampleCount(0));
+        assertEquals(audioSampleCount, in.getSampleCount(1));
+        assertEquals(0, in.nextTrack());
+        Buffer buf = new Buffer();
+        for (int i = 0; i < frameCount; i++) {
+            in.read(0, buf);
+            assertEquals(10 + i, buf.length);
+            assertEquals((byte) i, ((byte[]) buf.data)[buf.offset]);
+            assertEquals(new Rational(i, 10), buf.timeStamp);
+            assertEquals(new Rational(1, 10), buf.sampleDuration);
+            assertEquals(i % 5 == 0, buf.isFlag(KEYFRAME));
+            if (i * 800 < audioSampleCount) {
+                assertEquals(new Rational(i, 10), in.getSampleTime(1, i * 800L));
+            }
+        }
+        in.read(0, buf);
+        assertTrue(buf.isFlag(END_OF_MEDIA));
+        assertEquals(1, in.nextTrack());
+        for (int i = 0; i < audioSampleCount; i += 800) {
+            in.read(1, buf);
+            assertEquals(2, buf.length);
+            assertEquals(1, buf.sampleCount);
+            assertEquals((byte) (0x40 + i / 800), ((byte[]) buf.data)[buf.offset], "audio sample " + i);
+            if (i + 800 < audioSampleCount) {
+                in.setMovieReadTime(new Rational(i / 800 + 1, 10));
+            }
+        }
+    }
+
+    /**
+     * Writes a movie with a video track with 10 frames per second and an
+     * audio track with 8000 samples per second, and a duration of 2.5
+     * seconds.
+     */
+    private static File writeMovie(long fragmentDuration) throws IOException {
+        return writeMovie(fragmentDuration, 0);
+    }
+
+    private static File writeMovie(long fragmentDuration, long fastStartReserve) throws IOException {
+        File file = File.createTempFile("mp4reader", ".mp4");
+        file.deleteOnExit();
+        MP4OutputStream out = new MP4OutputStream(file);
+        try {
+            int video = out.addVideoTrack("jpeg", "JPEG", 10, 16, 8, 24, 5,
+                    new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, "jpeg"));
+            int audio = out.addAudioTrack("twos", 8000, 8000, 1, 16, false, 1, 2, true, ByteOrder.BIG_ENDIAN);
+            out.setFragmentDuration(fragmentDuration);
+            out.setFastStartReserve(fastStartReserve);
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                byte[] frame = new byte[10 + i];
+                frame[0] = (byte) i;
+                out.writeSample(video, frame, 0, frame.length, 1, i % 5 == 0);
+                byte[] sound = new byte[1600];
+                Arrays.fill(sound, (byte) (0x40 + i));
+                out.writeSamples(audio, 800, sound, 0, sound.length, 1, true);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
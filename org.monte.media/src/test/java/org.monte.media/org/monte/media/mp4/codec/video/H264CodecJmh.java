@@ -0,0 +1,116 @@
+/*
+ * @(#)H264CodecJmh.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.mp4.codec.video;
+
+import org.monte.media.av.Buffer;
+import org.monte.media.av.Codec;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys;
+import org.monte.media.impl.jcodec.common.model.ColorSpace;
+import org.monte.media.impl.jcodec.common.model.Picture;
+import org.monte.media.impl.jcodec.impl.AWTUtil;
+import org.monte.media.math.Rational;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.KeyFrameIntervalKey;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVC1;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.SliceCountKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+import static org.monte.media.mp4.codec.video.JCodecPictureCodec.ENCODING_PICTURE;
+
+/**
+ * Measures the frame rate of the H.264 encoder on synthetic 1080p screen
+ * content, depending on the number of slices that are encoded in parallel.
+ * <p>
+ * The score is in frames per second. Each slice is encoded by a task on the
+ * common fork-join pool, so the slice count is the number of threads that
+ * work on a frame.
+ */
+@Measurement(iterations = 4)
+@Warmup(iterations = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+public class H264CodecJmh {
+    private final static int WIDTH = 1920;
+    private final static int HEIGHT = 1080;
+    private final static int FRAME_COUNT = 8;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int sliceCount;
+
+    private Codec codec;
+    private Picture[] frames;
+    private Buffer in;
+    private Buffer out;
+    private long sequenceNumber;
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(H264CodecJmh.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        frames = new Picture[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            H264CodecTest.drawScreen(img, i);
+            frames[i] = AWTUtil.fromBufferedImage(img, ColorSpace.YUV420J);
+        }
+
+        codec = new H264Codec();
+        codec.setInputFormat(new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
+                EncodingKey, ENCODING_PICTURE, DataClassKey, Picture.class,
+                WidthKey, WIDTH, HeightKey, HEIGHT));
+        codec.setOutputFormat(new Format(MediaTypeKey, FormatKeys.MediaType.VIDEO,
+                EncodingKey, ENCODING_AVC1, DataClassKey, byte[].class, DepthKey, 24,
+                WidthKey, WIDTH, HeightKey, HEIGHT,
+                FrameRateKey, new Rational(30, 1), KeyFrameIntervalKey, 60,
+                SliceCountKey, sliceCount));
+        in = new Buffer();
+        in.format = codec.getInputFormat();
+        in.sampleDuration = new Rational(1, 30);
+        out = new Buffer();
+    }
+
+    @Benchmark
+    public Object encodeFrame() {
+        in.data = frames[(int) (sequenceNumber % FRAME_COUNT)];
+        in.sequenceNumber = sequenceNumber++;
+        if (codec.process(in, out) != Codec.CODEC_OK) {
+            throw new IllegalStateException("could not encode frame " + in.sequenceNumber);
+        }
+        return out.data;
+    }
+}
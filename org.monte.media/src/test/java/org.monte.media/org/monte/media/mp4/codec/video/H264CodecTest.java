@@ -0,0 +1,419 @@
+/*
+ * @(#)H264CodecTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.mp4.codec.video;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferFlag;
+import org.monte.media.av.Codec;
+import org.monte.media.av.CodecChain;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.av.codec.video.ScaleImageCodec;
+import org.monte.media.impl.jcodec.codecs.h264.H264Encoder;
+import org.monte.media.impl.jcodec.codecs.h264.H264Utils;
+import org.monte.media.impl.jcodec.codecs.h264.encode.H264FixedRateControl;
+import org.monte.media.impl.jcodec.codecs.h264.encode.RateControl;
+import org.monte.media.impl.jcodec.codecs.h264.io.model.SliceType;
+import org.monte.media.impl.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.monte.media.impl.jcodec.codecs.h264.io.model.VUIParameters;
+import org.monte.media.impl.jcodec.common.VideoEncoder;
+import org.monte.media.impl.jcodec.common.model.ColorSpace;
+import org.monte.media.impl.jcodec.common.model.Picture;
+import org.monte.media.impl.jcodec.common.model.Size;
+import org.monte.media.impl.jcodec.impl.AWTUtil;
+import org.monte.media.math.Rational;
+import org.monte.media.qtff.AvcDecoderConfigurationRecord;
+import org.monte.media.quicktime.QuickTimeReader;
+import org.monte.media.quicktime.QuickTimeWriter;
+import org.monte.media.util.ByteArray;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.FrameRateKey;
+import static org.monte.media.av.FormatKeys.KeyFrameIntervalKey;
+import static org.monte.media.av.FormatKeys.MIME_JAVA;
+import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DataClassKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.DepthKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_AVC1;
+import static org.monte.media.av.codec.video.VideoFormatKeys.ENCODING_BUFFERED_IMAGE;
+import static org.monte.media.av.codec.video.VideoFormatKeys.HeightKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.SliceCountKey;
+import static org.monte.media.av.codec.video.VideoFormatKeys.WidthKey;
+
+public class H264CodecTest {
+    @TestFactory
+    public List<DynamicTest> slicedFramesShouldMatchDecodedFrames() {
+        return List.of(
+                dynamicTest("1 slice", () -> shouldMatchDecodedFrames(1, 320, 200)),
+                dynamicTest("3 slices", () -> shouldMatchDecodedFrames(3, 320, 200)),
+                dynamicTest("4 slices", () -> shouldMatchDecodedFrames(4, 320, 240)),
+                dynamicTest("more slices than rows", () -> shouldMatchDecodedFrames(64, 64, 48))
+        );
+    }
+
+    private void shouldMatchDecodedFrames(int sliceCount, int width, int height) {
+        H264Encoder enc = H264Encoder.createH264Encoder();
+        enc.setKeyInterval(4);
+        enc.setSliceCount(sliceCount);
+        // The encoder decodes each frame and throws an exception if the
+        // decoded frame does not match the reconstructed frame of the encoder
+        enc.setEncDecMismatch(true);
+
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ByteBuffer out = ByteBuffer.allocate(1 << 20);
+        int expectedSlices = Math.min(sliceCount, (height + 15) / 16);
+        for (int frame = 0; frame < 6; frame++) {
+            drawScreen(img, frame);
+            Picture pic = AWTUtil.fromBufferedImage(img, ColorSpace.YUV420J);
+            out.clear();
+            VideoEncoder.EncodedFrame encoded = enc.encodeFrame(pic, out);
+            assertEquals(frame % 4 == 0, encoded.isKeyFrame(), "key frame " + frame);
+            assertEquals(expectedSlices, countSlices(encoded.getData()), "slices in frame " + frame);
+        }
+    }
+
+    /**
+     * A rate control with a constant QP, that counts the macroblocks and the
+     * bits that it has accepted.
+     */
+    private static class CountingRateControl implements RateControl {
+        long macroblocks, bits;
+        private long forkMacroblocks, forkBits;
+
+        @Override
+        public int startPicture(Size sz, int maxSize, SliceType sliceType) {
+            return 26;
+        }
+
+        @Override
+        public int initialQpDelta(Picture pic, int mbX, int mbY) {
+            return 0;
+        }
+
+        @Override
+        public int accept(int bits) {
+            this.macroblocks++;
+            this.bits += bits;
+            return 0;
+        }
+
+        @Override
+        public RateControl fork() {
+            CountingRateControl ret = new CountingRateControl();
+            ret.macroblocks = ret.forkMacroblocks = macroblocks;
+            ret.bits = ret.forkBits = bits;
+            return ret;
+        }
+
+        @Override
+        public void join(RateControl fork) {
+            CountingRateControl f = (CountingRateControl) fork;
+            macroblocks += f.macroblocks - f.forkMacroblocks;
+            bits += f.bits - f.forkBits;
+        }
+    }
+
+    @Test
+    public void slicedEncodingShouldJoinRateControlForks() {
+        int width = 320, height = 240, frames = 6;
+        CountingRateControl rc = new CountingRateControl();
+        H264Encoder enc = new H264Encoder(rc);
+        enc.setKeyInterval(4);
+        enc.setSliceCount(4);
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ByteBuffer out = ByteBuffer.allocate(1 << 20);
+        long sliceDataBits = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            drawScreen(img, frame);
+            out.clear();
+            sliceDataBits += enc.encodeFrame(AWTUtil.fromBufferedImage(img, ColorSpace.YUV420J), out)
+                    .getData().remaining() * 8L;
+        }
+        assertEquals((long) frames * (width / 16) * (height / 16), rc.macroblocks);
+        assertTrue(rc.bits > 0 && rc.bits < sliceDataBits, "bits " + rc.bits);
+    }
+
+    @Test
+    public void fixedRateControlShouldJoinBalanceOfForks() {
+        H264FixedRateControl sequential = new H264FixedRateControl(100);
+        H264FixedRateControl sliced = new H264FixedRateControl(100);
+        int[][] sliceBits = {{300, 20, 150}, {10, 40}, {500}};
+        List<RateControl> forks = new ArrayList<>();
+        for (int[] bits : sliceBits) {
+            RateControl fork = sliced.fork();
+            forks.add(fork);
+            for (int b : bits) {
+                sequential.accept(b);
+                fork.accept(b);
+            }
+        }
+        for (RateControl fork : forks) {
+            sliced.join(fork);
+        }
+        // The controllers only have the same QP deltas, if they have the
+        // same balance
+        for (int i = 0; i < 4; i++) {
+            assertEquals(sequential.initialQpDelta(null, 0, 0), sliced.initialQpDelta(null, 0, 0), "delta " + i);
+            sequential.accept(20);
+            sliced.accept(20);
+        }
+    }
+
+    @TestFactory
+    public List<DynamicTest> decodedFramesShouldMatchInputFrames() {
+        return List.of(
+                dynamicTest("1 slice", () -> shouldDecodeFrames(1, 320, 200)),
+                dynamicTest("4 slices", () -> shouldDecodeFrames(4, 320, 240))
+        );
+    }
+
+    private void shouldDecodeFrames(int sliceCount, int width, int height) {
+        H264Codec encoder = new H264Codec();
+        Format imageFormat = new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_BUFFERED_IMAGE,
+                DataClassKey, BufferedImage.class, WidthKey, width, HeightKey, height, DepthKey, 24,
+                FrameRateKey, new Rational(30));
+        encoder.setInputFormat(imageFormat);
+        encoder.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_AVC1,
+                DataClassKey, byte[].class, FrameRateKey, new Rational(30),
+                KeyFrameIntervalKey, 4, SliceCountKey, sliceCount));
+        H264Codec decoder = new H264Codec();
+        assertNotNull(decoder.setInputFormat(encoder.getOutputFormat()));
+        assertNotNull(decoder.setOutputFormat(imageFormat));
+
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Buffer in = new Buffer();
+        Buffer encoded = new Buffer();
+        Buffer decoded = new Buffer();
+        Object header = null;
+        for (int frame = 0; frame < 6; frame++) {
+            drawScreen(img, frame);
+            in.data = img;
+            in.sequenceNumber = frame;
+            in.sampleDuration = new Rational(1, 30);
+            in.timeStamp = new Rational(frame, 30);
+            assertEquals(Codec.CODEC_OK, encoder.process(in, encoded));
+            if (encoded.header != null) {
+                header = encoded.header;
+            }
+            encoded.header = header;
+            assertEquals(Codec.CODEC_OK, decoder.process(encoded, decoded), "frame " + frame);
+            assertFalse(decoded.isFlag(BufferFlag.DISCARD), "frame " + frame);
+            assertEquals(in.timeStamp, decoded.timeStamp);
+            assertSimilar(toYuv420(img), (BufferedImage) decoded.data, "frame " + frame);
+        }
+    }
+
+    @Test
+    public void endOfMediaShouldFlushReorderedFramesThroughCodecChain() {
+        int width = 320, height = 200, frames = 6, reorderFrames = 2;
+        H264Codec encoder = new H264Codec();
+        Format imageFormat = new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_JAVA,
+                EncodingKey, ENCODING_BUFFERED_IMAGE, DataClassKey, BufferedImage.class,
+                WidthKey, width, HeightKey, height, DepthKey, 24, FrameRateKey, new Rational(30));
+        encoder.setInputFormat(imageFormat);
+        encoder.setOutputFormat(new Format(MediaTypeKey, MediaType.VIDEO, EncodingKey, ENCODING_AVC1,
+                DataClassKey, byte[].class, FrameRateKey, new Rational(30), KeyFrameIntervalKey, 4));
+
+        // Encode the frames, and announce in the SPS that the decoder must
+        // hold back frames for reordering
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Buffer in = new Buffer();
+        Buffer encoded = new Buffer();
+        List<Buffer> samples = new ArrayList<>();
+        AvcDecoderConfigurationRecord header = null;
+        for (int frame = 0; frame < frames; frame++) {
+            drawScreen(img, frame);
+            in.data = img;
+            in.sequenceNumber = frame;
+            in.sampleDuration = new Rational(1, 30);
+            in.timeStamp = new Rational(frame, 30);
+            assertEquals(Codec.CODEC_OK, encoder.process(in, encoded));
+            if (encoded.header != null) {
+                header = withReorderFrames((AvcDecoderConfigurationRecord) encoded.header, reorderFrames);
+            }
+            Buffer sample = new Buffer();
+            sample.setMetaTo(encoded);
+            sample.data = Arrays.copyOfRange((byte[]) encoded.data, encoded.offset, encoded.offset + encoded.length);
+            sample.length = encoded.length;
+            sample.header = header;
+            samples.add(sample);
+        }
+
+        H264Codec decoder = new H264Codec();
+        assertNotNull(decoder.setInputFormat(encoder.getOutputFormat()));
+        assertNotNull(decoder.setOutputFormat(imageFormat));
+        ScaleImageCodec scaler = new ScaleImageCodec();
+        assertNotNull(scaler.setInputFormat(imageFormat));
+        assertNotNull(scaler.setOutputFormat(imageFormat.prepend(WidthKey, width / 2, HeightKey, height / 2)));
+        Codec chain = CodecChain.createCodecChain(decoder, scaler);
+
+        List<Rational> timeStamps = new ArrayList<>();
+        Buffer decoded = new Buffer();
+        for (Buffer sample : samples) {
+            assertEquals(Codec.CODEC_OK, chain.process(sample, decoded));
+            if (!decoded.isFlag(BufferFlag.DISCARD)) {
+                timeStamps.add(decoded.timeStamp);
+            }
+        }
+        assertEquals(frames - reorderFrames, timeStamps.size());
+
+        Buffer eom = new Buffer();
+        eom.setFlagsTo(BufferFlag.END_OF_MEDIA, BufferFlag.DISCARD);
+        int state;
+        do {
+            state = chain.process(eom, decoded);
+            assertTrue(state != Codec.CODEC_FAILED);
+            if (!decoded.isFlag(BufferFlag.DISCARD)) {
+                timeStamps.add(decoded.timeStamp);
+            }
+        } while ((state & Codec.CODEC_INPUT_NOT_CONSUMED) != 0);
+        assertTrue(decoded.isFlag(BufferFlag.END_OF_MEDIA));
+
+        List<Rational> expected = new ArrayList<>();
+        for (int frame = 0; frame < frames; frame++) {
+            expected.add(new Rational(frame, 30));
+        }
+        assertEquals(expected, timeStamps);
+    }
+
+    /**
+     * Returns a copy of the decoder configuration, in which the SPS requires
+     * the specified number of reorder frames.
+     */
+    private static AvcDecoderConfigurationRecord withReorderFrames(AvcDecoderConfigurationRecord r, int reorderFrames) {
+        Set<ByteArray> spsSet = new LinkedHashSet<>();
+        for (ByteArray b : r.sequenceParameterSetNALUnit()) {
+            SeqParameterSet sps = H264Utils.readSPS(ByteBuffer.wrap(b.getArray()));
+            if (sps.vuiParams == null) {
+                sps.vuiParams = new VUIParameters();
+            }
+            sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
+            sps.vuiParams.bitstreamRestriction.numReorderFrames = reorderFrames;
+            sps.vuiParams.bitstreamRestriction.maxDecFrameBuffering = reorderFrames + 1;
+            ByteBuffer written = H264Utils.writeSPS(sps, 256);
+            byte[] array = new byte[written.remaining()];
+            written.get(array);
+            spsSet.add(new ByteArray(array));
+        }
+        return new AvcDecoderConfigurationRecord(r.avcProfileIndication(), r.profileCompatibility(),
+                r.avcLevelIndication(), r.nalLengthSize(), spsSet, r.pictureParameterSetNALUnit());
+    }
+
+    @Test
+    public void quickTimeFileShouldBeReadable() throws IOException {
+        int width = 160, height = 120, frames = 5;
+        File file = File.createTempFile("H264CodecTest", ".mov");
+        try {
+            try (QuickTimeWriter out = new QuickTimeWriter(file)) {
+                int track = out.addTrack(new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_QUICKTIME,
+                        EncodingKey, ENCODING_AVC1, DataClassKey, byte[].class, FrameRateKey, new Rational(30),
+                        WidthKey, width, HeightKey, height, DepthKey, 24));
+                BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                for (int frame = 0; frame < frames; frame++) {
+                    drawScreen(img, frame);
+                    out.write(track, img, 1);
+                }
+            }
+
+            try (QuickTimeReader in = new QuickTimeReader(file)) {
+                BufferedImage expected = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                BufferedImage actual = null;
+                for (int frame = 0; frame < frames; frame++) {
+                    actual = in.read(0, actual);
+                    assertNotNull(actual, "frame " + frame);
+                    drawScreen(expected, frame);
+                    assertSimilar(toYuv420(expected), actual, "frame " + frame);
+                }
+                assertNull(in.read(0, actual));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns the image after conversion to YUV 4:2:0 and back, which
+     * is the best that we can get from the decoder.
+     */
+    private static BufferedImage toYuv420(BufferedImage img) {
+        return AWTUtil.toBufferedImage(AWTUtil.fromBufferedImage(img, ColorSpace.YUV420J));
+    }
+
+    /**
+     * Asserts that the mean absolute difference of the color components
+     * is small.
+     */
+    private static void assertSimilar(BufferedImage expected, BufferedImage actual, String message) {
+        assertEquals(expected.getWidth(), actual.getWidth(), message);
+        assertEquals(expected.getHeight(), actual.getHeight(), message);
+        long diff = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y), a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    diff += Math.abs((e >>> shift & 0xff) - (a >>> shift & 0xff));
+                }
+            }
+        }
+        double meanDiff = diff / (3.0 * expected.getWidth() * expected.getHeight());
+        assertTrue(meanDiff < 3, message + " mean difference " + meanDiff);
+    }
+
+    private static int countSlices(ByteBuffer data) {
+        int count = 0;
+        for (ByteBuffer nal : H264Utils.splitFrame(data.duplicate())) {
+            int type = nal.get(nal.position()) & 0x1f;
+            if (type == 1 || type == 5) {
+                count++;
+            }
+        }
+        assertTrue(count > 0);
+        return count;
+    }
+
+    /**
+     * Draws synthetic screen content: a desktop with a window that moves
+     * from frame to frame.
+     */
+    static void drawScreen(BufferedImage img, int frame) {
+        Graphics2D g = img.createGraphics();
+        g.setColor(new Color(0x3a6ea5));
+        g.fillRect(0, 0, img.getWidth(), img.getHeight());
+        int x = 8 + frame * 5, y = 6 + frame * 3;
+        g.setColor(Color.WHITE);
+        g.fillRect(x, y, img.getWidth() / 2, img.getHeight() / 2);
+        g.setColor(new Color(0x000080));
+        g.fillRect(x, y, img.getWidth() / 2, 10);
+        g.setColor(Color.BLACK);
+        for (int line = 0; line < 6; line++) {
+            g.drawString("Line " + line + " of frame " + frame, x + 4, y + 22 + line * 12);
+        }
+        g.dispose();
+    }
+}
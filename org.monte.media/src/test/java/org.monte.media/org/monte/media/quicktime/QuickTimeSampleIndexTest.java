@@ -0,0 +1,115 @@
+/*
+ * @(#)QuickTimeSampleIndexTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.quicktime;
+
+import org.junit.jupiter.api.Test;
+import org.monte.media.av.Buffer;
+import org.monte.media.av.BufferFlag;
+import org.monte.media.av.Format;
+import org.monte.media.av.FormatKeys.MediaType;
+import org.monte.media.math.Rational;
+import org.monte.media.qtff.AbstractQTFFMovieStream.Edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.monte.media.av.FormatKeys.EncodingKey;
+import static org.monte.media.av.FormatKeys.MIME_QUICKTIME;
+import static org.monte.media.av.FormatKeys.MediaTypeKey;
+import static org.monte.media.av.FormatKeys.MimeTypeKey;
+
+public class QuickTimeSampleIndexTest {
+    /**
+     * Writes a video track with 10 samples of 1/30 second. Sample i has
+     * i + 1 bytes with value i. Every third sample is a sync sample.
+     */
+    private static File writeMovie(Edit[] editList) throws IOException {
+        File file = File.createTempFile("QuickTimeSampleIndexTest", ".mov");
+        file.deleteOnExit();
+        QuickTimeOutputStream out = new QuickTimeOutputStream(file);
+        try {
+            int track = out.addVideoTrack("raw ", "None", 30, 4, 4, 24, 3,
+                    new Format(MediaTypeKey, MediaType.VIDEO, MimeTypeKey, MIME_QUICKTIME, EncodingKey, "raw "));
+            if (editList != null) {
+                out.setEditList(track, editList);
+            }
+            for (int i = 0; i < 10; i++) {
+                byte[] data = new byte[i + 1];
+                Arrays.fill(data, (byte) i);
+                out.writeSample(track, data, 1, i % 3 == 0);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void shouldIndexAllSamplesWithoutEditList() throws IOException {
+        try (QuickTimeReader in = new QuickTimeReader(writeMovie(null))) {
+            assertEquals(10, in.getSampleCount(0));
+            QuickTimeSampleIndex index = in.getSampleIndex(0);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, index.getLength(i));
+                assertEquals(i * 20L, index.getTimeStamp(i));
+                assertEquals(20L, index.getDuration(i));
+                assertEquals(i % 3 == 0, index.isSyncSample(i));
+                assertEquals(i - i % 3, index.findSyncSampleAtOrBefore(i));
+            }
+            assertEquals(0, index.findSampleAtTime(-5));
+            assertEquals(4, index.findSampleAtTime(99));
+            assertEquals(5, index.findSampleAtTime(100));
+            assertEquals(9, index.findSampleAtTime(10_000));
+
+            assertEquals(new Rational(1, 3), in.meta.getDuration());
+            assertEquals(5, in.meta.timeToSample(0, new Rational(1, 6)));
+            assertEquals(new Rational(1, 6), in.meta.sampleToTime(0, 5));
+        }
+    }
+
+    @Test
+    public void shouldResolveEditList() throws IOException {
+        // Starts 1/30 second late, and presents the samples 4 to 8
+        Edit[] editList = {new Edit(20, -1, 1.0), new Edit(100, 4, 1.0)};
+        try (QuickTimeReader in = new QuickTimeReader(writeMovie(editList))) {
+            QuickTimeSampleIndex index = in.getSampleIndex(0);
+            // Sample 3 is the sync sample from where sample 4 can be decoded
+            assertEquals(6, index.getSampleCount());
+            assertEquals(3, index.getMediaSample(0));
+            assertEquals(20, index.getTimeStamp(0));
+            assertEquals(0, index.getDuration(0));
+            assertEquals(20, index.getTimeStamp(1));
+            assertEquals(20, index.getDuration(1));
+            assertEquals(100, index.getTimeStamp(5));
+            assertEquals(8, index.getMediaSample(5));
+
+            assertEquals(1, index.findSampleAtTime(0));
+            assertEquals(1, index.findSampleAtTime(20));
+            assertEquals(5, index.findSampleAtTime(119));
+            assertEquals(5, index.findSampleAtTime(500));
+            assertEquals(3, index.findSyncSampleAtOrBefore(5));
+            assertEquals(0, index.findSyncSampleAtOrBefore(2));
+
+            in.setMovieReadTime(new Rational(100, 600));
+            Buffer buf = new Buffer();
+            in.read(0, buf);
+            assertEquals(7, buf.length);
+            assertEquals(6, ((byte[]) buf.data)[0]);
+            assertTrue(buf.isFlag(BufferFlag.KEYFRAME));
+            assertEquals(new Rational(60, 600), buf.timeStamp);
+            in.read(0, buf);
+            in.read(0, buf);
+            assertFalse(buf.isFlag(BufferFlag.KEYFRAME));
+            assertEquals(new Rational(100, 600), buf.timeStamp);
+            in.read(0, buf);
+            assertTrue(buf.isFlag(BufferFlag.END_OF_MEDIA));
+        }
+    }
+}
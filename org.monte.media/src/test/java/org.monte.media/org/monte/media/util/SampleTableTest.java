@@ -0,0 +1,68 @@
+/*
+ * @(#)SampleTableTest.java
+ * Copyright © 2024 Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package org.monte.media.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SampleTableTest {
+    @Test
+    public void samplesShouldSpanMultiplePages() {
+        SampleTable table = new SampleTable();
+        int n = 10_000;
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, table.add(i & 0xff, 1000L * i, 0xffffffffL - i, 2L * i, 2, i % 30 == 0));
+        }
+        assertEquals(n, table.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i & 0xff, table.getType(i));
+            assertEquals(1000L * i, table.getOffset(i));
+            assertEquals(0xffffffffL - i, table.getLength(i));
+            assertEquals(2L * i, table.getTimeStamp(i));
+            assertEquals(2, table.getDuration(i));
+            assertEquals(i % 30 == 0, table.isKeyframe(i));
+        }
+        assertEquals(2L * n, table.getEndTime());
+        assertThrows(IndexOutOfBoundsException.class, () -> table.getOffset(n));
+    }
+
+    @Test
+    public void findSampleAtTimeShouldReturnLastSampleAtOrBeforeTime() {
+        SampleTable table = new SampleTable();
+        assertEquals(-1, table.findSampleAtTime(0));
+        table.add(0, 0, 1, 10, 0, true);// zero duration sample
+        table.add(0, 1, 1, 10, 5, true);
+        table.add(0, 2, 1, 15, 5, true);
+        assertEquals(0, table.findSampleAtTime(0));
+        assertEquals(1, table.findSampleAtTime(10));
+        assertEquals(1, table.findSampleAtTime(14));
+        assertEquals(2, table.findSampleAtTime(15));
+        assertEquals(2, table.findSampleAtTime(1000));
+    }
+
+    @Test
+    public void findKeyframeAtOrBeforeShouldScanBackwards() {
+        SampleTable table = new SampleTable();
+        for (int i = 0; i < 300; i++) {
+            table.add(0, i, 1, i, 1, i == 5 || i == 200);
+        }
+        assertEquals(-1, table.findKeyframeAtOrBefore(4));
+        assertEquals(5, table.findKeyframeAtOrBefore(5));
+        assertEquals(5, table.findKeyframeAtOrBefore(199));
+        assertEquals(200, table.findKeyframeAtOrBefore(299));
+
+        table.setKeyframe(200, false);
+        assertFalse(table.isKeyframe(200));
+        assertEquals(5, table.findKeyframeAtOrBefore(299));
+        table.setKeyframe(63, true);
+        assertTrue(table.isKeyframe(63));
+        assertEquals(63, table.findKeyframeAtOrBefore(64));
+    }
+}